@@ -1,30 +1,103 @@
 package com.commercetools.pspadapter.stripe;
 
+import com.commercetools.pspadapter.stripe.util.Deadline;
+import com.commercetools.pspadapter.stripe.util.HedgedReads;
 import io.sphere.sdk.client.SphereClient;
 import io.sphere.sdk.messages.queries.MessageQuery;
+import io.sphere.sdk.payments.Payment;
 import io.sphere.sdk.payments.messages.PaymentCreatedMessage;
+import io.sphere.sdk.payments.queries.PaymentQuery;
+import io.sphere.sdk.queries.QueryPredicate;
+import io.sphere.sdk.queries.QuerySort;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
 
 public class CTPMessagePull {
-    final private SphereClient client;
+    // Keeps the query URL of a batch short
+    private static final int BATCH_SIZE = 50;
+
+    final private HedgedReads reads;
+    final private long timeoutMillis;
 
     public CTPMessagePull(SphereClient client) {
-        this.client = client;
+        this(HedgedReads.ofEnvironment(client), 10000);
+    }
+
+    /**
+     * @param timeoutMillis The time budget of one pull.
+     */
+    public CTPMessagePull(HedgedReads reads, long timeoutMillis) {
+        this.reads = reads;
+        this.timeoutMillis = timeoutMillis;
     }
 
     public List<PaymentCreatedMessage> pullPaymentCreated(Long limit) throws ExecutionException, InterruptedException {
-        return client
+        return pullPaymentCreatedAsync(limit)
+            .toCompletableFuture()
+            .get();
+    }
+
+    public CompletionStage<List<PaymentCreatedMessage>> pullPaymentCreatedAsync(Long limit) {
+        return reads
             .execute(
                 MessageQuery.of()
                     .withSort(m -> m.createdAt().sort().desc())
                     .withExpansionPaths(m -> m.resource())
                     .withLimit(limit)
-                    .forMessageType(PaymentCreatedMessage.MESSAGE_HINT)
+                    .forMessageType(PaymentCreatedMessage.MESSAGE_HINT),
+                Deadline.after(timeoutMillis)
             )
-            .toCompletableFuture()
-            .get()
-            .getResults();
+            .thenApply(result -> result.getResults());
+    }
+
+    /**
+     * Pulls PaymentCreated messages without expanding their payments. The current version of a payment with all its
+     * interface interactions is only loaded for the payments that still need processing, see loadPaymentsAsync.
+     * @return The messages after the cursor, oldest first.
+     */
+    public CompletionStage<List<PaymentCreatedMessage>> pullPaymentCreatedAfterAsync(MessageCursor after, long limit) {
+        return reads
+            .execute(
+                MessageQuery.of()
+                    .withPredicates(QueryPredicate.of(after.after()))
+                    .withSort(Arrays.asList(QuerySort.of("createdAt asc"), QuerySort.of("id asc")))
+                    .withLimit(limit)
+                    .forMessageType(PaymentCreatedMessage.MESSAGE_HINT),
+                Deadline.after(timeoutMillis)
+            )
+            .thenApply(result -> result.getResults());
+    }
+
+    /**
+     * Loads the payments with batched queries that run in parallel.
+     * @return The payments that exist with their customers expanded, in no particular order.
+     */
+    public CompletionStage<List<Payment>> loadPaymentsAsync(List<String> paymentIds) {
+        final Deadline deadline = Deadline.after(timeoutMillis);
+        final List<CompletableFuture<List<Payment>>> batches = new ArrayList<>();
+        for (int from = 0; from < paymentIds.size(); from += BATCH_SIZE) {
+            final List<String> batch = paymentIds.subList(from, Math.min(from + BATCH_SIZE, paymentIds.size()));
+            final String ids = batch.stream().map(id -> "\"" + id + "\"").collect(Collectors.joining(","));
+            batches.add(reads
+                .execute(
+                    PaymentQuery.of()
+                        .withPredicates(QueryPredicate.of("id in (" + ids + ")"))
+                        // Saves the customer executor a read per payment
+                        .withExpansionPaths(m -> m.customer())
+                        .withLimit(batch.size()),
+                    deadline
+                )
+                .thenApply(result -> result.getResults()));
+        }
+        return CompletableFuture.allOf(batches.toArray(new CompletableFuture[batches.size()]))
+            .thenApply(done -> batches.stream()
+                .flatMap(batch -> batch.join().stream())
+                .collect(Collectors.toList()));
     }
 }
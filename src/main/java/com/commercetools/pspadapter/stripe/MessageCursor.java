@@ -0,0 +1,63 @@
+package com.commercetools.pspadapter.stripe;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.sphere.sdk.messages.Message;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * The position of a CTP message in the order of createdAt and id, stored as CTP custom object so the pull continues
+ * after the last message whose payment is done.
+ */
+public class MessageCursor implements Comparable<MessageCursor> {
+    // CTP keeps milliseconds, and a fixed number of digits is needed for the predicate
+    private static final DateTimeFormatter CREATED_AT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+
+    final private long createdAt;
+    final private String messageId;
+
+    @JsonCreator
+    public MessageCursor(@JsonProperty("createdAt") long createdAt, @JsonProperty("messageId") String messageId) {
+        this.createdAt = createdAt;
+        this.messageId = messageId;
+    }
+
+    public static MessageCursor of(Message message) {
+        return new MessageCursor(Instant.from(message.getCreatedAt()).toEpochMilli(), message.getId());
+    }
+
+    /**
+     * @return The position before all messages created at or after the instant.
+     */
+    public static MessageCursor before(Instant instant) {
+        return new MessageCursor(instant.toEpochMilli() - 1, "");
+    }
+
+    /**
+     * @return The creation time of the message, in milliseconds since the epoch.
+     */
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    /**
+     * @return The query predicate for the messages after this position.
+     */
+    public String after() {
+        final String time = CREATED_AT.format(Instant.ofEpochMilli(createdAt));
+        return "createdAt > \"" + time + "\" or (createdAt = \"" + time + "\" and id > \"" + messageId + "\")";
+    }
+
+    @Override
+    public int compareTo(MessageCursor other) {
+        final int byTime = Long.compare(createdAt, other.createdAt);
+        return byTime != 0 ? byTime : messageId.compareTo(other.messageId);
+    }
+}
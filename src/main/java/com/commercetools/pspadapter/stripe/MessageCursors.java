@@ -0,0 +1,61 @@
+package com.commercetools.pspadapter.stripe;
+
+import com.commercetools.pspadapter.stripe.logging.Log;
+import io.sphere.sdk.client.SphereClient;
+import io.sphere.sdk.customobjects.CustomObjectDraft;
+import io.sphere.sdk.customobjects.commands.CustomObjectUpsertCommand;
+import io.sphere.sdk.customobjects.queries.CustomObjectByKeyGet;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Keeps the cursors of the message pulls as CTP custom objects, so a restarted node continues where the last one
+ * stopped. Without a saved cursor, the pull starts at the messages of the lookback window.
+ */
+public class MessageCursors {
+    private static final Log LOG = Log.of(MessageCursors.class);
+
+    public static final String CONTAINER = "ctp-stripe-adapter-message-cursors";
+
+    final private SphereClient client;
+    final private Duration lookback;
+
+    public MessageCursors(SphereClient client, Duration lookback) {
+        this.client = client;
+        this.lookback = lookback;
+    }
+
+    /**
+     * Uses the CTP_STRIPE_ADAPTER_MESSAGE_LOOKBACK_HOURS environment variable.
+     */
+    public static MessageCursors ofEnvironment(SphereClient client) {
+        final long lookbackHours = Long.parseLong(Optional.ofNullable(System.getenv("CTP_STRIPE_ADAPTER_MESSAGE_LOOKBACK_HOURS")).orElse("24"));
+        return new MessageCursors(client, Duration.ofHours(lookbackHours));
+    }
+
+    /**
+     * @return The saved cursor, or the start of the lookback window.
+     */
+    public CompletableFuture<MessageCursor> load(String key) {
+        return client.execute(CustomObjectByKeyGet.of(CONTAINER, key, MessageCursor.class))
+            .toCompletableFuture()
+            .thenApply(saved -> saved != null ? saved.getValue() : MessageCursor.before(Instant.now().minus(lookback)));
+    }
+
+    /**
+     * Saves the cursor without a version: a node that saves an older cursor only makes the next pull read a few
+     * messages again. Never fails, a failure to save is logged.
+     */
+    public CompletableFuture<Void> save(String key, MessageCursor cursor) {
+        return client
+            .execute(CustomObjectUpsertCommand.of(CustomObjectDraft.ofUnversionedUpsert(CONTAINER, key, cursor, MessageCursor.class)))
+            .toCompletableFuture()
+            .handle((saved, e) -> {
+                if (e != null) LOG.warn("Saving message cursor failed", e, "key", key);
+                return null;
+            });
+    }
+}
@@ -0,0 +1,157 @@
+package com.commercetools.pspadapter.stripe;
+
+import com.commercetools.pspadapter.stripe.leases.PartitionLeaseManager;
+import com.commercetools.pspadapter.stripe.logging.Log;
+import com.commercetools.pspadapter.stripe.tenants.Tenant;
+import com.commercetools.pspadapter.stripe.tenants.TenantRegistry;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.regex.Pattern;
+
+/**
+ * Accepts PaymentCreated messages pushed by a message queue subscription (e.g. a CTP subscription to a queue with a
+ * push bridge), so payments are charged without waiting for the next pull. Every tenant has a
+ * PaymentCreatedSubscriber that processes the pushed payments and pulls with a long interval to fill the gaps.
+ * With CTP_STRIPE_ADAPTER_PARTITIONS, the nodes share the gaps to fill by partition leases, see PartitionLeaseManager.
+ *
+ * The body is either the CTP message itself, or an envelope with the base64 encoded message in "message.data".
+ * Pushes have to carry the shared token as "Authorization: Bearer token" header or as "token" query parameter.
+ */
+public class PaymentCreatedIngestion {
+    private static final Log LOG = Log.of(PaymentCreatedIngestion.class);
+    // Pushed ids end up in query predicates
+    private static final Pattern PAYMENT_ID = Pattern.compile("[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
+
+    final private byte[] token;
+    final private Map<String, PaymentCreatedSubscriber> subscribers;
+    final private long maxInFlight;
+    final private Collection<PartitionLeaseManager> leases;
+
+    public PaymentCreatedIngestion(String token, Map<String, PaymentCreatedSubscriber> subscribers, long maxInFlight) {
+        this(token, subscribers, maxInFlight, Collections.emptyList());
+    }
+
+    /**
+     * @param leases The lease managers of the subscribers, started and released together with the ingestion.
+     */
+    public PaymentCreatedIngestion(String token, Map<String, PaymentCreatedSubscriber> subscribers, long maxInFlight,
+                                   Collection<PartitionLeaseManager> leases) {
+        this.token = token.getBytes(StandardCharsets.UTF_8);
+        this.subscribers = subscribers;
+        this.maxInFlight = maxInFlight;
+        this.leases = leases;
+    }
+
+    /**
+     * Uses the CTP_STRIPE_ADAPTER_INGESTION_TOKEN, CTP_STRIPE_ADAPTER_GAP_FILL_INTERVAL_MS and
+     * CTP_STRIPE_ADAPTER_MAX_IN_FLIGHT environment variables. Without a token, payments are not ingested.
+     */
+    public static Optional<PaymentCreatedIngestion> fromEnvironment(TenantRegistry tenants) {
+        final String token = System.getenv("CTP_STRIPE_ADAPTER_INGESTION_TOKEN");
+        if (token == null || token.isEmpty()) return Optional.empty();
+        final long gapFillMillis = Long.parseLong(Optional.ofNullable(System.getenv("CTP_STRIPE_ADAPTER_GAP_FILL_INTERVAL_MS")).orElse("60000"));
+        final long maxInFlight = Long.parseLong(Optional.ofNullable(System.getenv("CTP_STRIPE_ADAPTER_MAX_IN_FLIGHT")).orElse("100"));
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "payment-created-gap-fill");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // The heartbeats block, so they don't share the thread of the pulls
+        final ScheduledExecutorService leaseScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "partition-leases");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final Map<String, PaymentCreatedSubscriber> subscribers = new HashMap<>();
+        final List<PartitionLeaseManager> leases = new ArrayList<>();
+        for (Tenant tenant : tenants.getAll()) {
+            final Optional<PartitionLeaseManager> tenantLeases = PartitionLeaseManager.fromEnvironment(tenant.getClient(), leaseScheduler);
+            tenantLeases.ifPresent(leases::add);
+            subscribers.put(tenant.getKey(), new PaymentCreatedSubscriber(new CTPMessagePull(tenant.getCtpReads(), 10000),
+                MessageCursors.ofEnvironment(tenant.getClient()), new PaymentCreationListener(tenant), scheduler, 100, gapFillMillis,
+                tenantLeases.orElse(null)));
+        }
+        return Optional.of(new PaymentCreatedIngestion(token, subscribers, maxInFlight, leases));
+    }
+
+    /**
+     * Starts the subscribers, which also pull once right away, and the heartbeats of the leases.
+     */
+    public void start() {
+        leases.forEach(PartitionLeaseManager::start);
+        subscribers.values().forEach(subscriber -> subscriber.subscribe(maxInFlight));
+    }
+
+    /**
+     * Stops pulling and gives up the leases, so the other nodes take over the partitions right away.
+     */
+    public void stop() {
+        subscribers.values().forEach(PaymentCreatedSubscriber::cancel);
+        leases.forEach(PartitionLeaseManager::release);
+    }
+
+    /**
+     * @return The HTTP status for the push: 204 if the payment is taken (or the message is of no interest), 401 for a
+     * wrong token, 400 for a malformed message, 404 for an unknown tenant and 503 if the push has to be delivered
+     * again later.
+     */
+    public int accept(Optional<Tenant> tenant, Optional<String> authorization, Optional<String> tokenParameter, String body) {
+        if (!authenticated(authorization.map(header -> header.startsWith("Bearer ") ? header.substring(7) : header).orElse(tokenParameter.orElse("")))) {
+            LOG.warn("Rejected PaymentCreated push with wrong token");
+            return 401;
+        }
+        final Optional<PaymentCreatedSubscriber> subscriber = tenant.map(t -> subscribers.get(t.getKey()));
+        if (!subscriber.isPresent()) {
+            LOG.warn("No tenant found for PaymentCreated push");
+            return 404;
+        }
+        final Optional<String> paymentId;
+        try {
+            paymentId = paymentIdOf(body);
+        } catch (RuntimeException e) {
+            LOG.warn("Malformed PaymentCreated push", e);
+            return 400;
+        }
+        if (paymentId.isPresent() && !PAYMENT_ID.matcher(paymentId.get()).matches()) {
+            LOG.warn("Malformed payment id in PaymentCreated push", "paymentId", paymentId.get());
+            return 400;
+        }
+        return paymentId.map(id -> subscriber.get().push(id) ? 204 : 503).orElse(204);
+    }
+
+    public Map<String, Long> getStatistics() {
+        final Map<String, Long> statistics = new LinkedHashMap<>();
+        subscribers.forEach((tenantKey, subscriber) -> {
+            statistics.put("tenant_" + tenantKey + "_payments_pushed", subscriber.getPushed());
+            statistics.put("tenant_" + tenantKey + "_payments_in_flight", (long) subscriber.getInFlight());
+        });
+        return statistics;
+    }
+
+    /**
+     * @return The id of the created payment, or empty if the message is not a PaymentCreated message.
+     */
+    static Optional<String> paymentIdOf(String body) {
+        JsonObject json = new JsonParser().parse(body).getAsJsonObject();
+        // Envelope of the push bridge
+        if (json.has("message") && json.get("message").isJsonObject()) {
+            final String data = json.getAsJsonObject("message").get("data").getAsString();
+            json = new JsonParser().parse(new String(Base64.getDecoder().decode(data), StandardCharsets.UTF_8)).getAsJsonObject();
+        }
+        final JsonElement type = json.get("type");
+        if (type == null || !"PaymentCreated".equals(type.getAsString())) return Optional.empty();
+        return Optional.of(json.getAsJsonObject("resource").get("id").getAsString());
+    }
+
+    private boolean authenticated(String candidate) {
+        // Constant time, so the token can not be guessed byte by byte
+        return MessageDigest.isEqual(token, candidate.getBytes(StandardCharsets.UTF_8));
+    }
+}
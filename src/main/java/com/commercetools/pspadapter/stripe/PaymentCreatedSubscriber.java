@@ -0,0 +1,340 @@
+package com.commercetools.pspadapter.stripe;
+
+import com.commercetools.pspadapter.stripe.leases.PartitionLeaseManager;
+import com.commercetools.pspadapter.stripe.logging.Log;
+import com.commercetools.pspadapter.stripe.util.SeenSet;
+import com.commercetools.pspadapter.stripe.util.ThreadPools;
+import io.sphere.sdk.payments.Payment;
+import io.sphere.sdk.payments.messages.PaymentCreatedMessage;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Pulls PaymentCreated messages and processes their payments with the non-blocking PaymentCreationListener.
+ * Messages are pulled oldest first, after a cursor that only moves past messages whose payments are done, so a
+ * restarted node and a burst larger than a page don't leave payments behind. A payment that failed, also one whose
+ * Stripe request failed temporarily, stays in flight and is processed again with backoff. After MAX_ATTEMPTS it is
+ * left to the dead letters (see PaymentCreationListener), so it does not hold the cursor back.
+ * Nodes that share the messages with a PartitionLeaseManager keep a cursor per partition, as a node only knows which
+ * payments of its own partitions are done. The pull starts at the earliest cursor of the partitions the node holds.
+ * While a late heartbeat leaves the leases uncertain, the node dispatches nothing, but its partitions stay its own.
+ * Messages are pulled without their payments, so payments that are already processed or in flight are skipped
+ * without transferring them. The remaining payments are loaded in batches.
+ * Like a Reactive Streams subscription, messages are only pulled while there is demand. Every started payment uses up
+ * one unit of demand, and every finished payment requests one more. So the number of payments in flight is limited
+ * by the demand, not by the number of threads.
+ * Payments can also be pushed, see push. Pulling then only fills the gaps of pushes that got lost.
+ */
+public class PaymentCreatedSubscriber {
+    private static final Log LOG = Log.of(PaymentCreatedSubscriber.class);
+
+    private static final String CURSOR_KEY = "payment-created";
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_BACKOFF_MILLIS = 1000;
+
+    final private CTPMessagePull messagePull;
+    final private MessageCursors cursors;
+    final private PaymentCreationListener listener;
+    final private ScheduledExecutorService scheduler;
+    final private long pageSize;
+    final private long pollIntervalMillis;
+    final private PartitionLeaseManager leases;
+
+    final private AtomicLong demand = new AtomicLong();
+    final private AtomicBoolean pulling = new AtomicBoolean();
+    final private AtomicBoolean backlog = new AtomicBoolean();
+    final private AtomicBoolean starved = new AtomicBoolean();
+    final private AtomicBoolean cancelled = new AtomicBoolean();
+    final private AtomicLong pushed = new AtomicLong();
+    final private Set<String> inFlight = ConcurrentHashMap.newKeySet();
+    final private SeenSet processed = new SeenSet(10000);
+    final private Map<String, Integer> failures = new ConcurrentHashMap<>();
+    // Only the pulling thread moves the cursors, they are loaded by the first pull
+    private volatile MessageCursor cursor;
+    final private Map<Integer, MessageCursor> partitionCursors = new ConcurrentHashMap<>();
+    // A virtual thread per payment in virtual thread mode, so blocking stages can not stall the pulling thread
+    final private Executor taskExecutor = ThreadPools.taskExecutor("payment");
+
+    public PaymentCreatedSubscriber(CTPMessagePull messagePull, MessageCursors cursors, PaymentCreationListener listener,
+                                    ScheduledExecutorService scheduler, long pageSize, long pollIntervalMillis) {
+        this(messagePull, cursors, listener, scheduler, pageSize, pollIntervalMillis, null);
+    }
+
+    /**
+     * @param leases Decides which payments this node processes when several nodes share the messages, or null to
+     *               process all payments.
+     */
+    public PaymentCreatedSubscriber(CTPMessagePull messagePull, MessageCursors cursors, PaymentCreationListener listener,
+                                    ScheduledExecutorService scheduler, long pageSize, long pollIntervalMillis,
+                                    PartitionLeaseManager leases) {
+        this.messagePull = messagePull;
+        this.cursors = cursors;
+        this.listener = listener;
+        this.scheduler = scheduler;
+        this.pageSize = pageSize;
+        this.pollIntervalMillis = pollIntervalMillis;
+        this.leases = leases;
+    }
+
+    /**
+     * Starts pulling with an initial demand, i.e. the maximum number of payments in flight.
+     */
+    public void subscribe(long maxInFlight) {
+        request(maxInFlight);
+    }
+
+    /**
+     * Signals demand for n more payments.
+     */
+    public void request(long n) {
+        demand.addAndGet(n);
+        pull();
+    }
+
+    public void cancel() {
+        cancelled.set(true);
+    }
+
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    private void pull() {
+        if (cancelled.get()) return;
+        if (demand.get() <= 0) {
+            // All slots are in flight, the next release pulls. Checked again, a release may have missed the flag.
+            starved.set(true);
+            if (demand.get() <= 0 || !starved.compareAndSet(true, false)) return;
+        }
+        // The running pull schedules the next one
+        if (!pulling.compareAndSet(false, true)) return;
+        loadCursor()
+            .thenCompose(from -> messagePull.pullPaymentCreatedAfterAsync(from, pageSize))
+            .thenCompose(messages -> {
+                final List<String> selected = select(messages);
+                final boolean advanced = advance(messages);
+                // Only the payments that are dispatched are loaded
+                return load(selected).thenApply(payments -> {
+                    payments.forEach(this::dispatch);
+                    return advanced || !selected.isEmpty();
+                });
+            })
+            .whenComplete((progressed, e) -> {
+                if (e != null) {
+                    LOG.warn("Pulling PaymentCreated messages failed", e);
+                    backlog.set(false);
+                }
+                pulling.set(false);
+                // Without progress, the next page would be the same one
+                if (backlog.get() && Boolean.TRUE.equals(progressed)) pull();
+                else if (!cancelled.get()) scheduler.schedule(this::pull, pollIntervalMillis, TimeUnit.MILLISECONDS);
+            });
+    }
+
+    /**
+     * Processes a payment whose PaymentCreated message was pushed to this node, without waiting for the next pull.
+     * The push bridge delivers every message to one node, so the payment is not checked against the leases.
+     * @return False if there is no demand, so the push should be delivered again later. True if the payment is
+     * dispatched now, or already processed or in flight.
+     */
+    public boolean push(String paymentId) {
+        if (cancelled.get()) return false;
+        if (processed.contains(paymentId) || !inFlight.add(paymentId)) return true;
+        if (demand.getAndDecrement() <= 0) {
+            demand.incrementAndGet();
+            inFlight.remove(paymentId);
+            return false;
+        }
+        pushed.incrementAndGet();
+        load(Collections.singletonList(paymentId))
+            .whenComplete((payments, e) -> {
+                if (e != null) LOG.warn("Loading pushed payment failed", e, "paymentId", paymentId);
+                else payments.forEach(this::dispatch);
+            });
+        return true;
+    }
+
+    /**
+     * @return The number of payments that were dispatched from a push.
+     */
+    public long getPushed() {
+        return pushed.get();
+    }
+
+    /**
+     * Loads the payments that are in flight, and releases those that could not be loaded.
+     */
+    private CompletableFuture<List<Payment>> load(List<String> selected) {
+        return messagePull.loadPaymentsAsync(selected)
+            .handle((payments, e) -> {
+                final Set<String> loaded = payments == null ? Collections.<String>emptySet() :
+                    payments.stream().map(payment -> payment.getId()).collect(Collectors.toSet());
+                selected.stream()
+                    .filter(paymentId -> !loaded.contains(paymentId))
+                    // A deleted payment doesn't have to be processed, one that failed to load is retried.
+                    .forEach(paymentId -> release(paymentId, e == null));
+                if (e != null) throw new CompletionException(e);
+                return payments;
+            })
+            .toCompletableFuture();
+    }
+
+    /**
+     * Takes one unit of demand for every payment that needs processing, as far as there is demand.
+     * @return The ids of the payments that are in flight now.
+     */
+    private List<String> select(List<PaymentCreatedMessage> messages) {
+        boolean undispatched = false;
+        final List<String> selected = new ArrayList<>();
+        for (PaymentCreatedMessage message : messages) {
+            final String paymentId = message.getResource().getId();
+            if (isDone(paymentId) || inFlight.contains(paymentId)) continue;
+            // The lease may have expired since the last heartbeat, the payment waits for the next one
+            if (leases != null && !leases.isValid()) continue;
+            if (demand.getAndDecrement() <= 0) {
+                demand.incrementAndGet();
+                undispatched = true;
+                break;
+            }
+            inFlight.add(paymentId);
+            selected.add(paymentId);
+        }
+        // A full page means there are more messages after it
+        backlog.set(undispatched || messages.size() >= pageSize);
+        return selected;
+    }
+
+    /**
+     * @return The position to pull from. With leases, the pull starts at the earliest cursor of the held partitions, so
+     * a partition that was taken over since the last pull continues at its own cursor.
+     */
+    private CompletableFuture<MessageCursor> loadCursor() {
+        if (leases == null) {
+            if (cursor != null) return CompletableFuture.completedFuture(cursor);
+            return cursors.load(CURSOR_KEY).thenApply(loaded -> cursor = loaded);
+        }
+        final Set<Integer> owned = leases.getOwnedPartitions();
+        partitionCursors.keySet().retainAll(owned);
+        final Map<Integer, CompletableFuture<MessageCursor>> loads = new HashMap<>();
+        owned.stream()
+            .filter(partition -> !partitionCursors.containsKey(partition))
+            .forEach(partition -> loads.put(partition, cursors.load(partitionCursorKey(partition))));
+        return CompletableFuture.allOf(loads.values().toArray(new CompletableFuture[0]))
+            .thenApply(loaded -> {
+                loads.forEach((partition, load) -> partitionCursors.put(partition, load.join()));
+                // Before the first partition is taken over, the pull only keeps up with the new messages
+                MessageCursor from = partitionCursors.isEmpty() ? (cursor != null ? cursor : MessageCursor.before(Instant.now())) : null;
+                for (MessageCursor partitionCursor : partitionCursors.values()) {
+                    if (from == null || partitionCursor.compareTo(from) < 0) from = partitionCursor;
+                }
+                return cursor = from;
+            });
+    }
+
+    /**
+     * Moves the cursor past the messages up to the first one whose payment is not done yet. With leases, the cursor
+     * of every held partition moves past the processed payments of the partition.
+     * @return Whether the cursor moved.
+     */
+    private boolean advance(List<PaymentCreatedMessage> messages) {
+        MessageCursor next = cursor;
+        boolean blocked = false;
+        final Set<Integer> pending = new HashSet<>();
+        final Map<Integer, MessageCursor> processedUpTo = new HashMap<>();
+        for (PaymentCreatedMessage message : messages) {
+            final String paymentId = message.getResource().getId();
+            blocked = blocked || !isDone(paymentId);
+            if (!blocked) next = MessageCursor.of(message);
+            if (leases == null) continue;
+            final int partition = leases.partitionOf(paymentId);
+            if (!processed.contains(paymentId)) pending.add(partition);
+            else if (!pending.contains(partition)) processedUpTo.put(partition, MessageCursor.of(message));
+        }
+        final boolean moved = next.compareTo(cursor) > 0;
+        cursor = next;
+        if (leases == null) {
+            if (moved) cursors.save(CURSOR_KEY, next);
+            return moved;
+        }
+        for (Map.Entry<Integer, MessageCursor> partitionCursor : partitionCursors.entrySet()) {
+            final int partition = partitionCursor.getKey();
+            MessageCursor partitionNext = processedUpTo.getOrDefault(partition, partitionCursor.getValue());
+            // Without pending payments, all messages of the partition up to the pull are processed
+            if (!pending.contains(partition) && next.compareTo(partitionNext) > 0) partitionNext = next;
+            if (partitionNext.compareTo(partitionCursor.getValue()) > 0) {
+                partitionCursors.put(partition, partitionNext);
+                cursors.save(partitionCursorKey(partition), partitionNext);
+            }
+        }
+        return moved;
+    }
+
+    private boolean isDone(String paymentId) {
+        // Another node processes the payments of the partitions it holds. A partition of this node whose lease has not
+        // been renewed in time is still its own, so the cursor does not move past its payments.
+        return processed.contains(paymentId) || (leases != null && !leases.owns(paymentId));
+    }
+
+    private static String partitionCursorKey(int partition) {
+        return CURSOR_KEY + "-" + partition;
+    }
+
+    private void dispatch(Payment payment) {
+        final String paymentId = payment.getId();
+        CompletableFuture.supplyAsync(() -> listener.paymentCreatedAsync(payment), taskExecutor)
+            .thenCompose(stage -> stage)
+            .whenComplete((pair, e) -> {
+                if (e != null) LOG.warn("Processing payment failed", e, "paymentId", paymentId);
+                final int attempts = e == null ? 0 : failures.merge(paymentId, 1, Integer::sum);
+                if (e != null && attempts < MAX_ATTEMPTS && !cancelled.get()) {
+                    // Stays in flight, so neither a pull nor a push starts it while it waits
+                    scheduler.schedule(() -> retry(paymentId), RETRY_BACKOFF_MILLIS << (attempts - 1), TimeUnit.MILLISECONDS);
+                    return;
+                }
+                // After a few attempts it is left to the dead letters, which the listener recorded.
+                failures.remove(paymentId);
+                release(paymentId, true);
+                // Only pull right away if the last page had more payments than we could take.
+                if (backlog.get()) pull();
+            });
+    }
+
+    /**
+     * Processes a failed payment again, with the version CTP has now.
+     */
+    private void retry(String paymentId) {
+        if (cancelled.get()) {
+            failures.remove(paymentId);
+            release(paymentId, false);
+            return;
+        }
+        load(Collections.singletonList(paymentId))
+            .whenComplete((payments, e) -> {
+                if (e != null) LOG.warn("Loading payment for retry failed", e, "paymentId", paymentId);
+                else payments.forEach(this::dispatch);
+            });
+    }
+
+    private void release(String paymentId, boolean done) {
+        inFlight.remove(paymentId);
+        if (done) processed.add(paymentId);
+        demand.incrementAndGet();
+        if (starved.compareAndSet(true, false)) pull();
+    }
+}
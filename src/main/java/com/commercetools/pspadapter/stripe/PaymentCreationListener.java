@@ -1,7 +1,11 @@
 package com.commercetools.pspadapter.stripe;
 
+import com.commercetools.pspadapter.stripe.deadletters.DeadLetter;
 import com.commercetools.pspadapter.stripe.executors.IdempotentChargeExecutor;
 import com.commercetools.pspadapter.stripe.executors.IdempotentCustomerExecutor;
+import com.commercetools.pspadapter.stripe.logging.Log;
+import com.commercetools.pspadapter.stripe.tenants.Tenant;
+import com.commercetools.pspadapter.stripe.util.Deadline;
 import com.commercetools.pspadapter.stripe.util.PaymentHelperMethods;
 import com.commercetools.pspadapter.stripe.util.PaymentPair;
 import io.sphere.sdk.client.SphereClient;
@@ -10,49 +14,109 @@ import io.sphere.sdk.payments.messages.PaymentCreatedMessage;
 
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 
 public class PaymentCreationListener extends PaymentHelperMethods {
-    final private SphereClient client;
+    private static final Log LOG = Log.of(PaymentCreationListener.class);
+
+    final private Tenant tenant;
 
     public PaymentCreationListener(SphereClient client) {
-        super(new TypeKeyToId(client));
-        this.client = client;
+        this(Tenant.of(client));
+    }
+
+    public PaymentCreationListener(Tenant tenant) {
+        super(tenant.getTypeKeyToId());
+        this.tenant = tenant;
     }
 
     public void paymentCreated(PaymentCreatedMessage msg) throws Exception {
-        final Payment payment = msg.getResource().getObj();
+        paymentCreatedAsync(msg).toCompletableFuture().get();
+    }
+
+    /**
+     * Processes the payment of the message without blocking the calling thread.
+     * @return The payment after processing, with the charge id (or the Stripe customer id, if no charge was requested).
+     */
+    public CompletionStage<PaymentPair<Optional<String>>> paymentCreatedAsync(PaymentCreatedMessage msg) {
+        return paymentCreatedAsync(msg.getResource().getObj());
+    }
+
+    /**
+     * Processes a created payment without blocking the calling thread. A payment that fails is recorded as dead letter,
+     * which is removed once the payment succeeds.
+     * A payment whose Stripe request failed temporarily (or was not sent, e.g. while the circuit breaker is open) is
+     * recorded in the payment, and the stage completes exceptionally, so the caller processes the payment again.
+     */
+    public CompletionStage<PaymentPair<Optional<String>>> paymentCreatedAsync(Payment createdPayment) {
+        // A retry of the message may carry an older version than the one the last attempt left in the cache.
+        final Payment payment = tenant.getPaymentCache().freshest(createdPayment);
+        // One time budget for all stages of the payment
+        final Deadline deadline = Deadline.fromEnvironment();
+        return process(payment, deadline)
+            .thenApply(pair -> {
+                if (!isSettled(pair, deadline)) {
+                    throw new CompletionException(new IllegalStateException("Temporary Stripe failure: " +
+                        Optional.ofNullable(pair.getPayment().getPaymentStatus()).map(status -> status.getInterfaceText()).orElse(null)));
+                }
+                return pair;
+            })
+            // Succeeded after all, e.g. on a retry of the subscriber or a replay
+            .thenCompose(pair -> tenant.getDeadLetters().resolve(DeadLetter.PAYMENT, payment.getId()).thenApply(removed -> pair))
+            .whenComplete((pair, e) -> {
+                if (e == null) return;
+                final Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                tenant.getDeadLetters().add(DeadLetter.PAYMENT, payment.getId(), null, cause.toString());
+            });
+    }
+
+    private CompletableFuture<PaymentPair<Optional<String>>> process(Payment payment, Deadline deadline) {
+        final Log log = LOG.with("tenant", tenant.getKey()).with("paymentId", payment.getId());
         final boolean chargeRequested = true; // TODO
         if (chargeRequested) {
-            getOrCreateStripeCustomerId(payment)
-            .thenCompose(pair -> getOrCreateCharge(pair))
-            .get()
-            .getRight()
-            .map(chargeId -> {
-                System.out.println("Charge: " + chargeId);
-                return chargeId;
+            return getOrCreateStripeCustomerId(payment, deadline)
+            .thenCompose(pair -> getOrCreateCharge(pair, deadline))
+            .thenApply(pair -> {
+                pair.getRight().ifPresent(chargeId -> log.info("Charged", "chargeId", chargeId));
+                return pair;
             });
-
         }
         else if (payment.getCustomer() != null) {
-            getOrCreateStripeCustomerId(payment)
-            .get()
-            .getRight()
-            .map(customerId -> {
-                System.out.println("Customer: " + customerId);
-                return customerId;
+            return getOrCreateStripeCustomerId(payment, deadline)
+            .thenApply(pair -> {
+                pair.getRight().ifPresent(customerId -> log.info("Stripe customer checked", "stripeCustomerId", customerId));
+                return pair;
             });
         }
+        else return CompletableFuture.completedFuture(new PaymentPair<Optional<String>>(payment, Optional.empty()));
+    }
+
+    /**
+     * @return Whether nothing is left to do for the payment: it is charged, failed permanently or has no token. The
+     * executors record both outcomes in interactions that are never archived, a temporary failure leaves neither.
+     */
+    private boolean isSettled(PaymentPair<Optional<String>> pair, Deadline deadline) {
+        if (pair.getRight().isPresent()) return true;
+        final Payment payment = pair.getPayment();
+        if (!getToken(payment).isPresent()) return true;
+        return new IdempotentCustomerExecutor(payment, tenant, deadline).previousExecution()
+            .map(customer -> customer.getRight()
+                .map(customerId -> new IdempotentChargeExecutor(payment, customerId, tenant, deadline).previousExecution().isPresent())
+                // The customer creation failed permanently
+                .orElse(true))
+            .orElse(false);
     }
 
-    private CompletableFuture<PaymentPair<Optional<String>>> getOrCreateCharge(PaymentPair<Optional<String>> pair) {
+    private CompletableFuture<PaymentPair<Optional<String>>> getOrCreateCharge(PaymentPair<Optional<String>> pair, Deadline deadline) {
         return pair.getRight()
             .map(stripeCustomerId ->
-                    new IdempotentChargeExecutor(pair.getLeft(), stripeCustomerId, client).executionResult()
+                    new IdempotentChargeExecutor(pair.getLeft(), stripeCustomerId, tenant, deadline).executionResult()
             )
             .orElse(CompletableFuture.completedFuture(pair)) ;
     }
 
-    private CompletableFuture<PaymentPair<Optional<String>>> getOrCreateStripeCustomerId(Payment payment) {
-        return new IdempotentCustomerExecutor(payment, client).executionResult();
+    private CompletableFuture<PaymentPair<Optional<String>>> getOrCreateStripeCustomerId(Payment payment, Deadline deadline) {
+        return new IdempotentCustomerExecutor(payment, tenant, deadline).executionResult();
     }
 }
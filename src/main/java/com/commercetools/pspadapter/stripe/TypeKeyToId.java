@@ -1,20 +1,35 @@
 package com.commercetools.pspadapter.stripe;
 
+import com.commercetools.pspadapter.stripe.logging.Log;
+import com.commercetools.pspadapter.stripe.util.Deadline;
+import com.commercetools.pspadapter.stripe.util.HedgedReads;
 import io.sphere.sdk.client.SphereClient;
 import io.sphere.sdk.queries.PagedQueryResult;
 import io.sphere.sdk.types.Type;
 import io.sphere.sdk.types.queries.TypeQuery;
 import io.sphere.sdk.types.queries.TypeQueryModel;
 
-import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class TypeKeyToId {
-    final private SphereClient client;
-    final private static HashMap<String, String> keyToIdCache = new HashMap<>();
+    private static final Log LOG = Log.of(TypeKeyToId.class);
+
+    final private HedgedReads reads;
+    final private static Map<String, String> sharedKeyToIdCache = new ConcurrentHashMap<>();
+    final private Map<String, String> keyToIdCache;
 
     public TypeKeyToId(SphereClient client) {
-        this.client = client;
+        this(client, sharedKeyToIdCache);
+    }
+
+    /**
+     * Type ids differ between CTP projects, so every project needs its own cache.
+     */
+    public TypeKeyToId(SphereClient client, Map<String, String> keyToIdCache) {
+        this.reads = HedgedReads.ofEnvironment(client);
+        this.keyToIdCache = keyToIdCache;
     }
 
     public Optional<String> getId(String key) {
@@ -26,14 +41,24 @@ public class TypeKeyToId {
         } else return cachedId;
     }
 
+    /**
+     * @return The key of a type, if its id has been looked up before.
+     */
+    public Optional<String> getKey(String id) {
+        return keyToIdCache.entrySet().stream()
+            .filter(entry -> entry.getValue().equals(id))
+            .map(entry -> entry.getKey())
+            .findFirst();
+    }
+
     private Optional<String> getTypeIdFromCTP(String key) {
         try {
-            final PagedQueryResult<Type> typesResult = client
-                    .execute(TypeQuery.of().withPredicates(TypeQueryModel.of().key().is(key)))
-                    .toCompletableFuture().get();
+            final PagedQueryResult<Type> typesResult = reads
+                    .execute(TypeQuery.of().withPredicates(TypeQueryModel.of().key().is(key)), Deadline.fromEnvironment())
+                    .get();
             return typesResult.head().map(t -> t.getId());
         } catch (Exception e) {
-            e.printStackTrace();
+            LOG.error("Fetching type failed", e, "typeKey", key);
             return Optional.empty();
         }
     }
@@ -0,0 +1,149 @@
+package com.commercetools.pspadapter.stripe;
+
+import com.commercetools.pspadapter.stripe.logging.Log;
+import com.commercetools.pspadapter.stripe.tenants.Tenant;
+import com.commercetools.pspadapter.stripe.util.Deadline;
+import com.commercetools.pspadapter.stripe.util.PaymentHelperMethods;
+import com.commercetools.pspadapter.stripe.util.StripeApi;
+import com.commercetools.pspadapter.stripe.util.StripeRequest;
+import com.commercetools.pspadapter.stripe.webhookprocessors.StripeEventHandler;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.stripe.model.Charge;
+import com.stripe.model.Dispute;
+import com.stripe.model.Event;
+import com.stripe.model.StripeObject;
+import io.sphere.sdk.json.SphereJsonUtils;
+import io.sphere.sdk.payments.Payment;
+import io.sphere.sdk.payments.queries.PaymentQuery;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Prepares a freshly started process for traffic: Loads the interface interaction types, gets the CTP token, opens
+ * pooled connections to CTP and Stripe, and runs synthetic payloads through the parsing, PaymentHelperMethods and
+ * serialization code until the JIT compiled it. The process reports ready afterwards, also if a step failed, since
+ * warm-up only makes the first requests faster.
+ */
+public class WarmUp {
+    private static final Log LOG = Log.of(WarmUp.class);
+
+    public static final List<String> TYPE_KEYS = Collections.unmodifiableList(Arrays.asList(
+        "STRIPE_TOKEN_RECEIVED", "STRIPE_CUSTOMER_CREATE_REQUEST", "STRIPE_CHARGE_CREATE_REQUEST", "STRIPE_EXCEPTION",
+        "STRIPE_TEMPORARY_EXCEPTION", "STRIPE_CUSTOMER_CHECKED", "STRIPE_CHARGED", "STRIPE_AUTHORIZED",
+        "STRIPE_CAPTURE_REQUEST", "STRIPE_REFUND_CREATE_REQUEST", "STRIPE_REFUNDED", "STRIPE_DISPUTE_UPDATE"));
+
+    private static final String EVENT = "{\"id\":\"evt_warmup\",\"object\":\"event\",\"type\":\"charge.dispute.created\"," +
+        "\"created\":1460000000,\"livemode\":false,\"data\":{\"object\":{\"id\":\"dp_warmup\",\"object\":\"dispute\"," +
+        "\"amount\":2300,\"currency\":\"eur\",\"charge\":\"ch_warmup\",\"created\":1460000000," +
+        "\"status\":\"needs_response\",\"reason\":\"fraudulent\",\"livemode\":false}}}";
+
+    final private List<Tenant> tenants;
+    final private int iterations;
+    final private int connections;
+    final private AtomicBoolean ready = new AtomicBoolean();
+
+    public WarmUp(List<Tenant> tenants, int iterations, int connections) {
+        this.tenants = tenants;
+        this.iterations = iterations;
+        this.connections = connections;
+    }
+
+    public static WarmUp fromEnvironment(List<Tenant> tenants) {
+        final int iterations = Integer.parseInt(Optional.ofNullable(System.getenv("CTP_STRIPE_ADAPTER_WARMUP_ITERATIONS")).orElse("10000"));
+        final int connections = Integer.parseInt(Optional.ofNullable(System.getenv("CTP_STRIPE_ADAPTER_WARMUP_CONNECTIONS")).orElse("4"));
+        return new WarmUp(tenants, iterations, connections);
+    }
+
+    public boolean isReady() {
+        return ready.get();
+    }
+
+    /**
+     * Runs the warm-up in a background thread, so the process can answer /ready in the meantime.
+     */
+    public void start() {
+        final Thread thread = new Thread(this::run, "warm-up");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void run() {
+        final long start = System.currentTimeMillis();
+        for (Tenant tenant : tenants) {
+            final Log log = LOG.with("tenant", tenant.getKey());
+            try {
+                connect(tenant);
+            } catch (Exception e) {
+                log.warn("Opening connections failed", e);
+            }
+            try {
+                new HotPaths(tenant).run(iterations);
+            } catch (Exception e) {
+                log.warn("Running synthetic payloads failed", e);
+            }
+        }
+        ready.set(true);
+        LOG.info("Warm-up finished", "millis", System.currentTimeMillis() - start);
+    }
+
+    private void connect(Tenant tenant) {
+        // Also fetches the CTP token
+        TYPE_KEYS.forEach(typeKey -> tenant.getTypeKeyToId().getId(typeKey));
+        final Deadline deadline = Deadline.fromEnvironment();
+        final StripeApi stripeApi = tenant.getStripeApi();
+        final Map<String, Object> params = new HashMap<>();
+        params.put("limit", 1);
+        final List<CompletableFuture<?>> requests = new ArrayList<>();
+        // Concurrent requests open several pooled connections with their TLS sessions.
+        for (int i = 0; i < connections; i++) {
+            requests.add(tenant.getCtpReads().execute(PaymentQuery.of().withLimit(1), deadline));
+            requests.add(stripeApi.call(StripeApi.CHARGE_LIST, stripeApi.requestOptions(), options -> Charge.list(params, options), deadline));
+        }
+        CompletableFuture.allOf(requests.toArray(new CompletableFuture[requests.size()])).join();
+    }
+
+    /**
+     * The code every webhook and payment runs through, without the requests to CTP and Stripe.
+     */
+    private static class HotPaths extends PaymentHelperMethods {
+        final private ObjectMapper objectMapper = SphereJsonUtils.newObjectMapper();
+        final private String paymentJson;
+
+        HotPaths(Tenant tenant) {
+            super(tenant.getTypeKeyToId());
+            final String tokenTypeId = typeKeyToId.getId("STRIPE_TOKEN_RECEIVED").orElse("warmup");
+            this.paymentJson = "{\"id\":\"warmup\",\"version\":1,\"createdAt\":\"2016-04-01T00:00:00.000Z\"," +
+                "\"lastModifiedAt\":\"2016-04-01T00:00:00.000Z\",\"amountPlanned\":{\"currencyCode\":\"EUR\",\"centAmount\":2300}," +
+                "\"paymentMethodInfo\":{\"paymentInterface\":\"STRIPE\"},\"paymentStatus\":{},\"transactions\":[]," +
+                "\"interfaceInteractions\":[{\"type\":{\"typeId\":\"type\",\"id\":\"" + tokenTypeId + "\"}," +
+                "\"fields\":{\"token\":\"tok_warmup\"}}]}";
+        }
+
+        void run(int iterations) throws Exception {
+            for (int i = 0; i < iterations; i++) {
+                // Webhooks
+                final Event event = Event.GSON.fromJson(EVENT, Event.class);
+                StripeEventHandler.stripeAccountOf(EVENT);
+                final Dispute dispute = (Dispute) event.getData().getObject();
+                StripeObject.PRETTY_PRINT_GSON.toJson(dispute);
+                toAmount(dispute);
+                toTime(event.getCreated());
+                // Payments
+                final Payment payment = objectMapper.readValue(paymentJson, Payment.class);
+                getToken(payment);
+                getAttempt(payment);
+                getLastInteractionOfType(payment, "STRIPE_CHARGED");
+                final Map<String, Object> params = new HashMap<>();
+                params.put("amount", 2300L);
+                params.put("currency", "EUR");
+                params.put("source", "tok_warmup");
+                final StripeRequest request = StripeRequest.ofParams(params, payment.getId(), "charge", 0);
+                objectMapper.writeValueAsString(Arrays.asList(
+                    request.toInterfaceInteractionOfType("STRIPE_CHARGE_CREATE_REQUEST"),
+                    interactionOfTypeWith("STRIPE_CHARGED", request.getIdempotencyKey(), "chargeId", "ch_warmup")));
+            }
+        }
+    }
+}
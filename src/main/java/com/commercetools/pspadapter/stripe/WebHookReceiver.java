@@ -1,10 +1,24 @@
 package com.commercetools.pspadapter.stripe;
 
+import com.commercetools.pspadapter.stripe.deadletters.DeadLetterAdmin;
+import com.commercetools.pspadapter.stripe.deadletters.DeadLetterStore;
+import com.commercetools.pspadapter.stripe.executors.CaptureMode;
+import com.commercetools.pspadapter.stripe.jobs.CaptureScheduler;
+import com.commercetools.pspadapter.stripe.journal.JournaledEventHandler;
+import com.commercetools.pspadapter.stripe.journal.WebhookJournal;
+import com.commercetools.pspadapter.stripe.logging.AsyncLogHandler;
+import com.commercetools.pspadapter.stripe.logging.Log;
+import com.commercetools.pspadapter.stripe.replay.TrafficRecorder;
+import com.commercetools.pspadapter.stripe.tenants.Tenant;
+import com.commercetools.pspadapter.stripe.tenants.TenantRegistry;
 import com.commercetools.pspadapter.stripe.util.JavaClientInstantiation;
-import com.commercetools.pspadapter.stripe.webhookprocessors.DisputeEventProcessor;
+import com.commercetools.pspadapter.stripe.util.StripeApi;
+import com.commercetools.pspadapter.stripe.webhookprocessors.EventCatchUp;
+import com.commercetools.pspadapter.stripe.webhookprocessors.StripeEventHandler;
 import com.stripe.Stripe;
 import com.stripe.exception.*;
 import com.stripe.model.*;
+import com.stripe.net.RequestOptions;
 import io.sphere.sdk.client.SphereClient;
 import io.sphere.sdk.customers.Customer;
 import io.sphere.sdk.models.DefaultCurrencyUnits;
@@ -24,15 +38,24 @@ import org.javamoney.moneta.FastMoney;
 import java.util.*;
 import java.util.concurrent.CompletionException;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.stream.Collectors;
 
 import static java.util.Collections.singleton;
 import static java.util.Collections.singletonList;
+import static spark.Spark.before;
+import static spark.Spark.exception;
 import static spark.Spark.get;
 import static spark.Spark.halt;
 import static spark.Spark.port;
 import static spark.Spark.post;
+import static spark.Spark.threadPool;
 
 public class WebHookReceiver {
+    private static final Log LOG = Log.of(WebHookReceiver.class);
+
     static int getHerokuAssignedPort() {
         ProcessBuilder processBuilder = new ProcessBuilder();
         if (processBuilder.environment().get("PORT") != null) {
@@ -43,34 +66,185 @@ public class WebHookReceiver {
 
     public static void main(String[] args) throws Exception {
         Stripe.apiKey = System.getenv("CTP_STRIPE_ADAPTER_STRIPE_API_KEY");
+        // Has to wrap the CTP clients, so it is installed before the tenants are created
+        TrafficRecorder.installFromEnvironment();
+        // Set up the pooled transport before the first Stripe request
+        final StripeApi stripeApi = StripeApi.getDefault();
+        final TenantRegistry tenants = TenantRegistry.fromEnvironment();
+        // With a journal, webhooks are acknowledged as soon as they are durable
+        final Optional<JournaledEventHandler> journaledHandler = WebhookJournal.fromEnvironment()
+            .map(journal -> new JournaledEventHandler(journal, tenants));
+        journaledHandler.ifPresent(handler -> handler.replay());
+        // With an ingestion token, PaymentCreated messages are pushed and only a slow pull fills the gaps
+        final Optional<PaymentCreatedIngestion> ingestion = PaymentCreatedIngestion.fromEnvironment(tenants);
+        final WarmUp warmUp = WarmUp.fromEnvironment(new ArrayList<>(tenants.getAll()));
+        final Optional<DeadLetterAdmin> deadLetterAdmin = DeadLetterAdmin.fromEnvironment();
+        // With an interval, dispute events whose webhooks were missed are fetched from Stripe
+        final Optional<Long> catchUpInterval = EventCatchUp.intervalFromEnvironment();
+        final Map<Tenant, EventCatchUp> catchUps = catchUpInterval.isPresent() ?
+            tenants.getAll().stream().collect(Collectors.toMap(tenant -> tenant, EventCatchUp::fromEnvironment)) :
+            Collections.emptyMap();
         port(getHerokuAssignedPort());
+        // Spark 2.3 can not run Jetty on virtual threads, but the request threads only wait for the processing.
+        Optional.ofNullable(System.getenv("CTP_STRIPE_ADAPTER_HTTP_THREADS"))
+            .ifPresent(threads -> threadPool(Integer.parseInt(threads)));
 
         get("/test", (req, res) -> {
             testing();
             return "Cool";
         });
 
-        post("/stripe/event", (req, res) -> {
-            // Parse req to Stripe Event
-            Event webhookEvent = Event.GSON.fromJson(req.body(), Event.class);
-            if (webhookEvent.getType().startsWith("charge.dispute")) {
-                final DisputeEventProcessor disputeEventProcessor = new DisputeEventProcessor(new JavaClientInstantiation().instantiate());
-                final int statusCode = disputeEventProcessor.processDisputeEvent(confirmEvent(webhookEvent));
-                halt(statusCode);
-            }
-            else {
-                // We're not interested in this event
-                System.out.println("Ignored event of type: " + webhookEvent.getType());
-                halt(200);
-            }
+        get("/metrics", (req, res) -> {
+            res.type("text/plain");
+            final StringBuilder body = new StringBuilder(metrics("", stripeApi.getStatistics()));
+            tenants.getAll().stream()
+                .filter(tenant -> tenant.getStripeApi() != stripeApi)
+                .forEach(tenant -> body.append(metrics("tenant_" + tenant.getKey() + "_", tenant.getStripeApi().getStatistics())));
+            tenants.getAll().forEach(tenant ->
+                body.append(metrics("tenant_" + tenant.getKey() + "_", tenant.getPaymentCache().getStatistics())));
+            tenants.getAll().forEach(tenant ->
+                body.append(metrics("tenant_" + tenant.getKey() + "_", tenant.getCtpReads().getStatistics())));
+            tenants.getAll().forEach(tenant ->
+                body.append(metrics("tenant_" + tenant.getKey() + "_", tenant.getInteractionCompaction().getStatistics())));
+            tenants.getAll().forEach(tenant -> {
+                body.append(metrics("tenant_" + tenant.getKey() + "_", tenant.getCustomerReads().getStatistics()));
+                body.append(metrics("tenant_" + tenant.getKey() + "_", tenant.getEventReads().getStatistics()));
+            });
+            ingestion.ifPresent(i -> body.append(metrics("", i.getStatistics())));
+            journaledHandler.ifPresent(handler -> body.append(metrics("", handler.getStatistics())));
+            tenants.getAll().forEach(tenant ->
+                body.append(metrics("tenant_" + tenant.getKey() + "_", tenant.getDeadLetters().getStatistics())));
+            catchUps.forEach((tenant, catchUp) ->
+                body.append(metrics("tenant_" + tenant.getKey() + "_", catchUp.getStatistics())));
+            AsyncLogHandler.getInstalled().ifPresent(handler -> body.append("log_dropped ").append(handler.getDropped()).append('\n'));
+            return body.toString();
+        });
 
+        if (tenants.isRoutableByAccount()) {
+            post("/stripe/event", (req, res) -> {
+                halt(handleEvent(journaledHandler, tenants.route(StripeEventHandler.stripeAccountOf(req.body())), req.body()));
+                return null;
+            });
+        } else {
+            // Events of tenants with their own API key don't carry an account, so they could not be routed
+            LOG.warn("Tenants without CTP_STRIPE_ADAPTER_{TENANT}_STRIPE_ACCOUNT_ID need the webhook URL /stripe/event/{tenant}");
+            post("/stripe/event", (req, res) -> {
+                halt(400, "The webhook URL has to name the tenant: /stripe/event/{tenant}");
+                return null;
+            });
+        }
+
+        post("/stripe/event/:tenant", (req, res) -> {
+            halt(handleEvent(journaledHandler, tenants.get(req.params(":tenant")), req.body()));
             return null;
         });
+
+        ingestion.ifPresent(i -> {
+            post("/ctp/payment-created", (req, res) -> {
+                halt(i.accept(tenants.getSingle(), Optional.ofNullable(req.headers("Authorization")),
+                    Optional.ofNullable(req.queryParams("token")), req.body()));
+                return null;
+            });
+            post("/ctp/payment-created/:tenant", (req, res) -> {
+                halt(i.accept(tenants.get(req.params(":tenant")), Optional.ofNullable(req.headers("Authorization")),
+                    Optional.ofNullable(req.queryParams("token")), req.body()));
+                return null;
+            });
+        });
+
+        // Without an admin token, the admin routes don't exist
+        deadLetterAdmin.ifPresent(admin -> {
+            before("/admin/*", (req, res) -> {
+                if (!admin.isAuthorized(Optional.ofNullable(req.headers("Authorization")))) halt(401);
+            });
+            get("/admin/dead-letters/:tenant", (req, res) -> {
+                res.type("application/json");
+                return admin.list(tenantOrHalt(tenants, req.params(":tenant")), Optional.ofNullable(req.queryParams("kind")),
+                    intParam(req.queryParams("limit"), 100));
+            });
+            get("/admin/dead-letters/:tenant/:key", (req, res) -> {
+                res.type("application/json");
+                return admin.inspect(tenantOrHalt(tenants, req.params(":tenant")), req.params(":key"))
+                    .orElseGet(() -> {
+                        halt(404);
+                        return null;
+                    });
+            });
+            post("/admin/dead-letters/:tenant/replay", (req, res) -> {
+                final long replayed = admin.replay(tenantOrHalt(tenants, req.params(":tenant")), Optional.ofNullable(req.queryParams("kind")),
+                    intParam(req.queryParams("limit"), DeadLetterStore.MAX_PAGE_SIZE), intParam(req.queryParams("parallelism"), 8),
+                    Double.parseDouble(Optional.ofNullable(req.queryParams("rate")).orElse("20")));
+                res.status(202);
+                return "Replaying " + replayed + " dead letters";
+            });
+            exception(IllegalArgumentException.class, (e, req, res) -> {
+                res.status(400);
+                res.body(e.getMessage());
+            });
+        });
+
+        // Traffic is routed to the process once it answers /ready
+        get("/ready", (req, res) -> {
+            if (!warmUp.isReady()) halt(503, "Warming up");
+            return "Ready";
+        });
+        warmUp.start();
+        ingestion.ifPresent(i -> {
+            i.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(i::stop, "payment-created-stop"));
+        });
+        catchUpInterval.ifPresent(interval -> {
+            final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread thread = new Thread(r, "event-catch-up");
+                thread.setDaemon(true);
+                return thread;
+            });
+            catchUps.values().forEach(catchUp -> catchUp.start(scheduler, interval));
+        });
+        // Authorized payments are captured once the authorization is old enough
+        if (CaptureMode.fromEnvironment() == CaptureMode.DEFERRED) {
+            final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread thread = new Thread(r, "capture-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            });
+            final long interval = CaptureScheduler.intervalFromEnvironment();
+            tenants.getAll().forEach(tenant -> CaptureScheduler.fromEnvironment(tenant, scheduler).start(interval));
+        }
+    }
+
+    private static int handleEvent(Optional<JournaledEventHandler> journaledHandler, Optional<Tenant> tenant, String body) throws InterruptedException, ExecutionException {
+        if (!tenant.isPresent()) {
+            LOG.warn("No tenant found for event");
+            return 404;
+        }
+        TrafficRecorder.getInstalled().ifPresent(recorder -> recorder.recordWebhook(tenant.get().getKey(), body));
+        if (journaledHandler.isPresent()) {
+            try {
+                return journaledHandler.get().accept(tenant.get(), body).toCompletableFuture().get();
+            } catch (ExecutionException e) {
+                // Not durable, let Stripe retry
+                LOG.error("Could not write event to journal", e.getCause());
+                return 503;
+            }
+        }
+        return new StripeEventHandler(tenant.get()).handle(body).toCompletableFuture().get();
+    }
+
+    private static Tenant tenantOrHalt(TenantRegistry tenants, String key) {
+        final Optional<Tenant> tenant = tenants.get(key);
+        if (!tenant.isPresent()) halt(404, "Unknown tenant");
+        return tenant.get();
+    }
+
+    private static int intParam(String value, int defaultValue) {
+        return Optional.ofNullable(value).map(Integer::parseInt).orElse(defaultValue);
     }
 
-    private static Event confirmEvent(Event webhookEvent) throws StripeException {
-        // To make sure that this is not a spoofed webhook, fetch the Event again directly from the Stripe API.
-        return Event.retrieve(webhookEvent.getId());
+    private static String metrics(String prefix, Map<String, Long> statistics) {
+        final StringBuilder builder = new StringBuilder();
+        statistics.forEach((name, value) -> builder.append(prefix).append(name).append(' ').append(value).append('\n'));
+        return builder.toString();
     }
 
     private static void testing() throws Exception {
@@ -100,7 +274,7 @@ public class WebHookReceiver {
             try {
                 pcl.paymentCreated(msg);
             } catch (Exception e) {
-                e.printStackTrace();
+                LOG.error("Processing payment failed", e, "paymentId", msg.getResource().getId());
             }
         });
 
@@ -116,6 +290,10 @@ public class WebHookReceiver {
         createTypeWithTwoStringFields(client, typeKeyToId, "STRIPE_TEMPORARY_EXCEPTION", "response", "idempotencyKey");
         createTypeWithTwoStringFields(client, typeKeyToId, "STRIPE_CUSTOMER_CHECKED", "stripeCustomerId", "idempotencyKey");
         createTypeWithTwoStringFields(client, typeKeyToId, "STRIPE_CHARGED", "chargeId", "idempotencyKey");
+        createTypeWithTwoStringFields(client, typeKeyToId, "STRIPE_AUTHORIZED", "chargeId", "idempotencyKey");
+        createRequestType(client, typeKeyToId, "STRIPE_CAPTURE_REQUEST");
+        createRequestType(client, typeKeyToId, "STRIPE_REFUND_CREATE_REQUEST");
+        createTypeWithTwoStringFields(client, typeKeyToId, "STRIPE_REFUNDED", "refundId", "idempotencyKey");
         createTypeWithTwoStringFields(client, typeKeyToId, "STRIPE_DISPUTE_UPDATE", "eventId", "dispute");
     }
 
@@ -150,7 +328,7 @@ public class WebHookReceiver {
         final Type type = client.execute(TypeCreateCommand.of(typeDraft)).toCompletableFuture().get();
     }
 
-    public static Token createTestToken() throws CardException, APIException, AuthenticationException, InvalidRequestException, APIConnectionException {
+    public static Token createTestToken() throws InterruptedException, ExecutionException {
         Map<String, Object> tokenParams = new HashMap<String, Object>();
         Map<String, Object> cardParams = new HashMap<String, Object>();
         cardParams.put("number", "4242424242424242");
@@ -159,6 +337,8 @@ public class WebHookReceiver {
         cardParams.put("cvc", "314");
         tokenParams.put("card", cardParams);
 
-        return Token.create(tokenParams);
+        return StripeApi.getDefault()
+            .call(StripeApi.TOKEN_CREATE, RequestOptions.builder().build(), options -> Token.create(tokenParams, options))
+            .get();
     }
 }
\ No newline at end of file
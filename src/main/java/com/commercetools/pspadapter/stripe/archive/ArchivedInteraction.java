@@ -0,0 +1,37 @@
+package com.commercetools.pspadapter.stripe.archive;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.Map;
+
+/**
+ * An interface interaction that is kept in the archive instead of the payment.
+ */
+public class ArchivedInteraction {
+    final private String typeKey;
+    final private Map<String, String> fields;
+    final private int position;
+
+    @JsonCreator
+    public ArchivedInteraction(@JsonProperty("typeKey") String typeKey, @JsonProperty("fields") Map<String, String> fields, @JsonProperty("position") int position) {
+        this.typeKey = typeKey;
+        this.fields = fields;
+        this.position = position;
+    }
+
+    public String getTypeKey() {
+        return typeKey;
+    }
+
+    public Map<String, String> getFields() {
+        return fields;
+    }
+
+    /**
+     * @return The number of interface interactions the payment had when this one was archived instead of added.
+     */
+    public int getPosition() {
+        return position;
+    }
+}
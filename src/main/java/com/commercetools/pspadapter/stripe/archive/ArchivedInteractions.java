@@ -0,0 +1,22 @@
+package com.commercetools.pspadapter.stripe.archive;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.List;
+
+/**
+ * All archived interface interactions of a payment, stored as CTP custom object keyed by the payment id.
+ */
+public class ArchivedInteractions {
+    final private List<ArchivedInteraction> interactions;
+
+    @JsonCreator
+    public ArchivedInteractions(@JsonProperty("interactions") List<ArchivedInteraction> interactions) {
+        this.interactions = interactions;
+    }
+
+    public List<ArchivedInteraction> getInteractions() {
+        return interactions;
+    }
+}
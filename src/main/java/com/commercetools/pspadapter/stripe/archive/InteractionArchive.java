@@ -0,0 +1,109 @@
+package com.commercetools.pspadapter.stripe.archive;
+
+import com.commercetools.pspadapter.stripe.TypeKeyToId;
+import com.commercetools.pspadapter.stripe.util.PaymentCache;
+import io.sphere.sdk.client.SphereClient;
+import io.sphere.sdk.customobjects.CustomObject;
+import io.sphere.sdk.customobjects.CustomObjectDraft;
+import io.sphere.sdk.customobjects.commands.CustomObjectUpsertCommand;
+import io.sphere.sdk.customobjects.queries.CustomObjectByKeyGet;
+import io.sphere.sdk.payments.Payment;
+import io.sphere.sdk.types.CustomFields;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Stores the interface interactions that are not added to payments, as CTP custom objects keyed by the payment id.
+ */
+public class InteractionArchive {
+    public static final String CONTAINER = "ctp-stripe-adapter-interaction-archive";
+
+    private static final int MAX_ATTEMPTS = 3;
+    // The fields that identify an archived interaction
+    private static final List<String> ID_FIELDS = Arrays.asList("idempotencyKey", "eventId");
+
+    final private SphereClient client;
+    final private TypeKeyToId typeKeyToId;
+
+    public InteractionArchive(SphereClient client, TypeKeyToId typeKeyToId) {
+        this.client = client;
+        this.typeKeyToId = typeKeyToId;
+    }
+
+    /**
+     * Adds the interaction to the archive of the payment. Concurrent appends are retried on version conflicts.
+     * Interactions are identified by type and idempotencyKey or eventId, so an interaction that is archived again
+     * (e.g. by the retry of a payment update that failed with a version conflict) is only kept once.
+     *
+     * @return Whether the interaction was added, false if the archive already had it.
+     */
+    public CompletableFuture<Boolean> append(String paymentId, ArchivedInteraction interaction) {
+        return append(paymentId, interaction, 1);
+    }
+
+    private CompletableFuture<Boolean> append(String paymentId, ArchivedInteraction interaction, int attempt) {
+        return fetch(paymentId)
+            .thenCompose(archive -> {
+                final List<ArchivedInteraction> interactions = new ArrayList<>(
+                    Optional.ofNullable(archive).map(a -> a.getValue().getInteractions()).orElse(Collections.emptyList()));
+                if (interactions.stream().anyMatch(archived -> isSame(archived, interaction))) return CompletableFuture.completedFuture(false);
+                interactions.add(interaction);
+                final long version = Optional.ofNullable(archive).map(a -> a.getVersion()).orElse(0L);
+                return client.execute(CustomObjectUpsertCommand.of(CustomObjectDraft.ofVersionedUpdate(
+                    CONTAINER, paymentId, new ArchivedInteractions(interactions), version, ArchivedInteractions.class)))
+                    .thenApply(saved -> true);
+            })
+            .handle((added, e) -> {
+                if (e != null && PaymentCache.isVersionConflict(e) && attempt < MAX_ATTEMPTS) return append(paymentId, interaction, attempt + 1);
+                else if (e != null) throw new CompletionException(e);
+                return CompletableFuture.completedFuture(added);
+            })
+            .thenCompose(appended -> appended);
+    }
+
+    /**
+     * @return The full history of the payment: its interface interactions with the archived ones in between, in the
+     * order they were recorded. Interactions of types that were never looked up by key have the type id as key.
+     */
+    public CompletableFuture<List<ArchivedInteraction>> rehydrate(Payment payment) {
+        return fetch(payment.getId())
+            .thenApply(archive -> {
+                final List<ArchivedInteraction> archived = Optional.ofNullable(archive)
+                    .map(a -> a.getValue().getInteractions())
+                    .orElse(Collections.emptyList());
+                final List<CustomFields> interactions = payment.getInterfaceInteractions();
+                final List<ArchivedInteraction> history = new ArrayList<>(archived.size() + interactions.size());
+                int next = 0;
+                for (int position = 0; position <= interactions.size(); position++) {
+                    // The archive is in append order, so positions never decrease.
+                    while (next < archived.size() && archived.get(next).getPosition() <= position) history.add(archived.get(next++));
+                    if (position < interactions.size()) history.add(toArchivedInteraction(interactions.get(position), position));
+                }
+                // Archived after a later version of the payment than the given one.
+                history.addAll(archived.subList(next, archived.size()));
+                return history;
+            });
+    }
+
+    private static boolean isSame(ArchivedInteraction archived, ArchivedInteraction interaction) {
+        if (!archived.getTypeKey().equals(interaction.getTypeKey())) return false;
+        for (String idField : ID_FIELDS) {
+            final String id = interaction.getFields().get(idField);
+            if (id != null) return id.equals(archived.getFields().get(idField));
+        }
+        return false;
+    }
+
+    private CompletableFuture<CustomObject<ArchivedInteractions>> fetch(String paymentId) {
+        return client.execute(CustomObjectByKeyGet.of(CONTAINER, paymentId, ArchivedInteractions.class)).toCompletableFuture();
+    }
+
+    private ArchivedInteraction toArchivedInteraction(CustomFields interaction, int position) {
+        final String typeId = interaction.getType().getId();
+        final Map<String, String> fields = new HashMap<>();
+        interaction.getFieldsJsonMap().keySet().forEach(name -> fields.put(name, interaction.getFieldAsString(name)));
+        return new ArchivedInteraction(typeKeyToId.getKey(typeId).orElse(typeId), fields, position);
+    }
+}
@@ -0,0 +1,97 @@
+package com.commercetools.pspadapter.stripe.archive;
+
+import com.commercetools.pspadapter.stripe.util.StripeExecution;
+import io.sphere.sdk.commands.UpdateAction;
+import io.sphere.sdk.payments.Payment;
+import io.sphere.sdk.payments.commands.updateactions.AddInterfaceInteraction;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the interface interactions of a payment below a target size. CTP can't remove interface interactions, so
+ * compaction happens when they are written: Once a payment has reached the limit, interactions that no idempotency
+ * check reads go to the archive instead. Temporary exceptions are archived completely, dispute updates keep their
+ * eventId (the idempotency check of the dispute webhook) and archive the dispute JSON. Requests, results, permanent
+ * exceptions and tokens always stay in the payment.
+ */
+public class InteractionCompaction {
+    public static final String ARCHIVED = "archived";
+
+    final private InteractionArchive archive;
+    final private int limit;
+    final private AtomicLong archived = new AtomicLong();
+
+    public InteractionCompaction(InteractionArchive archive, int limit) {
+        this.archive = archive;
+        this.limit = limit;
+    }
+
+    public static int limitFromEnvironment() {
+        return Integer.parseInt(Optional.ofNullable(System.getenv("CTP_STRIPE_ADAPTER_INTERACTION_LIMIT")).orElse("50"));
+    }
+
+    public InteractionArchive getArchive() {
+        return archive;
+    }
+
+    /**
+     * @return The update actions for a failed Stripe execution, without the interaction if it was archived.
+     */
+    public CompletableFuture<List<UpdateAction<Payment>>> exceptionToUpdateActions(Payment payment, StripeExecution<?> execution) {
+        if (!StripeExecution.isTemporary(execution.stripeException) || !isFull(payment)) {
+            return CompletableFuture.completedFuture(execution.exceptionToUpdateActions());
+        }
+        final Map<String, String> fields = new HashMap<>();
+        fields.put("idempotencyKey", execution.idempotencyKey);
+        fields.put("response", execution.stripeException.toString());
+        return archive(payment, new ArchivedInteraction("STRIPE_TEMPORARY_EXCEPTION", fields, position(payment)))
+            .thenApply(v -> execution.exceptionToStatusUpdateActions());
+    }
+
+    /**
+     * @return The interaction for a dispute event, with the dispute JSON moved to the archive if the payment is full.
+     */
+    public CompletableFuture<AddInterfaceInteraction> disputeUpdateInteraction(Payment payment, String eventId, String dispute) {
+        final Map<String, String> fields = new HashMap<>();
+        fields.put("eventId", eventId);
+        fields.put("dispute", dispute);
+        if (!isFull(payment)) return CompletableFuture.completedFuture(toInteraction("STRIPE_DISPUTE_UPDATE", fields));
+        return archive(payment, new ArchivedInteraction("STRIPE_DISPUTE_UPDATE", fields, position(payment)))
+            .thenApply(v -> {
+                final Map<String, String> slim = new HashMap<>(fields);
+                slim.put("dispute", ARCHIVED);
+                return toInteraction("STRIPE_DISPUTE_UPDATE", slim);
+            });
+    }
+
+    public Map<String, Long> getStatistics() {
+        final Map<String, Long> statistics = new LinkedHashMap<>();
+        statistics.put("interactions_archived", archived.get());
+        return statistics;
+    }
+
+    private boolean isFull(Payment payment) {
+        return payment.getInterfaceInteractions().size() >= limit;
+    }
+
+    private int position(Payment payment) {
+        return payment.getInterfaceInteractions().size();
+    }
+
+    private CompletableFuture<Void> archive(Payment payment, ArchivedInteraction interaction) {
+        return archive.append(payment.getId(), interaction)
+            .thenAccept(added -> {
+                if (added) archived.incrementAndGet();
+            });
+    }
+
+    private AddInterfaceInteraction toInteraction(String typeKey, Map<String, String> fields) {
+        return AddInterfaceInteraction.ofTypeKeyAndObjects(typeKey, new HashMap<String, Object>(fields));
+    }
+}
@@ -0,0 +1,77 @@
+package com.commercetools.pspadapter.stripe.deadletters;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * A webhook event or a payment whose processing failed, stored as CTP custom object until it is replayed.
+ */
+public class DeadLetter {
+    public static final String WEBHOOK = "webhook";
+    public static final String PAYMENT = "payment";
+
+    final private String kind;
+    final private String subject;
+    final private String body;
+    final private String error;
+    final private int attempts;
+    final private long firstFailedAt;
+    final private long lastFailedAt;
+
+    @JsonCreator
+    public DeadLetter(@JsonProperty("kind") String kind, @JsonProperty("subject") String subject, @JsonProperty("body") String body,
+                      @JsonProperty("error") String error, @JsonProperty("attempts") int attempts,
+                      @JsonProperty("firstFailedAt") long firstFailedAt, @JsonProperty("lastFailedAt") long lastFailedAt) {
+        this.kind = kind;
+        this.subject = subject;
+        this.body = body;
+        this.error = error;
+        this.attempts = attempts;
+        this.firstFailedAt = firstFailedAt;
+        this.lastFailedAt = lastFailedAt;
+    }
+
+    /**
+     * @return WEBHOOK or PAYMENT.
+     */
+    public String getKind() {
+        return kind;
+    }
+
+    /**
+     * @return The event id of a webhook, or the payment id.
+     */
+    public String getSubject() {
+        return subject;
+    }
+
+    /**
+     * @return The webhook body, or null for a payment, which is loaded again when it is replayed.
+     */
+    public String getBody() {
+        return body;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public long getFirstFailedAt() {
+        return firstFailedAt;
+    }
+
+    public long getLastFailedAt() {
+        return lastFailedAt;
+    }
+
+    /**
+     * @return The same item after one more failed attempt.
+     */
+    DeadLetter failedAgain(String error, long at) {
+        return new DeadLetter(kind, subject, body, error, attempts + 1, firstFailedAt, at);
+    }
+}
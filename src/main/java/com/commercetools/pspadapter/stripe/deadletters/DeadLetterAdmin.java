@@ -0,0 +1,110 @@
+package com.commercetools.pspadapter.stripe.deadletters;
+
+import com.commercetools.pspadapter.stripe.logging.Log;
+import com.commercetools.pspadapter.stripe.tenants.Tenant;
+import io.sphere.sdk.customobjects.CustomObject;
+import io.sphere.sdk.json.SphereJsonUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * The admin operations on the dead letters of a tenant: list, inspect and replay in bulk. Requests have to carry the
+ * CTP_STRIPE_ADAPTER_ADMIN_TOKEN as bearer token.
+ */
+public class DeadLetterAdmin {
+    private static final Log LOG = Log.of(DeadLetterAdmin.class);
+
+    final private byte[] token;
+
+    public DeadLetterAdmin(String token) {
+        this.token = token.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return The admin operations, if the CTP_STRIPE_ADAPTER_ADMIN_TOKEN environment variable is set.
+     */
+    public static Optional<DeadLetterAdmin> fromEnvironment() {
+        return Optional.ofNullable(System.getenv("CTP_STRIPE_ADAPTER_ADMIN_TOKEN"))
+            .filter(token -> !token.isEmpty())
+            .map(DeadLetterAdmin::new);
+    }
+
+    public boolean isAuthorized(Optional<String> authorization) {
+        final String candidate = authorization.filter(header -> header.startsWith("Bearer ")).map(header -> header.substring(7)).orElse("");
+        // Constant time, so the token can not be guessed byte by byte
+        return MessageDigest.isEqual(token, candidate.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param limit At most DeadLetterStore.MAX_PAGE_SIZE.
+     * @return The items as JSON, without their webhook bodies.
+     */
+    public String list(Tenant tenant, Optional<String> kind, int limit) throws Exception {
+        if (limit > DeadLetterStore.MAX_PAGE_SIZE) throw new IllegalArgumentException("The limit can be at most " + DeadLetterStore.MAX_PAGE_SIZE);
+        final List<Map<String, Object>> items = tenant.getDeadLetters().list(validKind(kind), limit).get().stream()
+            .map(item -> {
+                final Map<String, Object> summary = new LinkedHashMap<>();
+                summary.put("key", item.getKey());
+                summary.put("kind", item.getValue().getKind());
+                summary.put("subject", item.getValue().getSubject());
+                summary.put("attempts", item.getValue().getAttempts());
+                summary.put("error", item.getValue().getError());
+                summary.put("firstFailedAt", item.getValue().getFirstFailedAt());
+                summary.put("lastFailedAt", item.getValue().getLastFailedAt());
+                return summary;
+            })
+            .collect(Collectors.toList());
+        return SphereJsonUtils.toJsonString(items);
+    }
+
+    /**
+     * @return The item as JSON, if it exists.
+     */
+    public Optional<String> inspect(Tenant tenant, String key) throws Exception {
+        return tenant.getDeadLetters().get(key).get()
+            .map(item -> SphereJsonUtils.toJsonString(item.getValue()));
+    }
+
+    /**
+     * Replays the oldest items in a background thread, a page of at most DeadLetterStore.MAX_PAGE_SIZE items at a time.
+     * @param limit The maximum number of items to replay, can be more than one page.
+     * @return The number of items that are replayed.
+     */
+    public long replay(Tenant tenant, Optional<String> kind, int limit, int parallelism, double perSecond) throws Exception {
+        final Optional<String> validKind = validKind(kind);
+        final DeadLetterStore store = tenant.getDeadLetters();
+        final long total = Math.min(limit, store.count(validKind).get());
+        final Thread thread = new Thread(() -> {
+            try {
+                final DeadLetterReplay replay = new DeadLetterReplay(tenant, parallelism, perSecond);
+                Optional<CustomObject<DeadLetter>> after = Optional.empty();
+                long remaining = total;
+                while (remaining > 0) {
+                    final List<CustomObject<DeadLetter>> page = store.list(validKind, after, (int) Math.min(remaining, DeadLetterStore.MAX_PAGE_SIZE)).get();
+                    if (page.isEmpty()) break;
+                    replay.run(page);
+                    remaining -= page.size();
+                    // Items that failed again stay in the store, the next page starts after them
+                    after = Optional.of(page.get(page.size() - 1));
+                }
+            } catch (Exception e) {
+                LOG.error("Replaying dead letters failed", e, "tenant", tenant.getKey());
+            }
+        }, "dead-letter-replay");
+        thread.setDaemon(true);
+        thread.start();
+        return total;
+    }
+
+    private static Optional<String> validKind(Optional<String> kind) {
+        // The kind ends up in a query predicate
+        kind.filter(k -> !DeadLetter.WEBHOOK.equals(k) && !DeadLetter.PAYMENT.equals(k))
+            .ifPresent(k -> {
+                throw new IllegalArgumentException("Unknown dead letter kind " + k);
+            });
+        return kind;
+    }
+}
@@ -0,0 +1,77 @@
+package com.commercetools.pspadapter.stripe.deadletters;
+
+import com.commercetools.pspadapter.stripe.PaymentCreationListener;
+import com.commercetools.pspadapter.stripe.logging.Log;
+import com.commercetools.pspadapter.stripe.tenants.Tenant;
+import com.commercetools.pspadapter.stripe.util.Deadline;
+import com.commercetools.pspadapter.stripe.util.ParallelTasks;
+import com.commercetools.pspadapter.stripe.util.RateLimiter;
+import com.commercetools.pspadapter.stripe.webhookprocessors.StripeEventHandler;
+import io.sphere.sdk.customobjects.CustomObject;
+import io.sphere.sdk.payments.queries.PaymentByIdGet;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Processes dead letters again with bounded parallelism and a rate limit, e.g. after an incident. The handler of the
+ * item removes it from the store once it succeeds, and records the failure on the item if it fails again. A payment
+ * whose Stripe request failed temporarily again counts as failed.
+ */
+public class DeadLetterReplay {
+    private static final Log LOG = Log.of(DeadLetterReplay.class);
+
+    final private Tenant tenant;
+    final private int parallelism;
+    final private RateLimiter rateLimiter;
+
+    /**
+     * @param perSecond The maximum number of items started per second.
+     */
+    public DeadLetterReplay(Tenant tenant, int parallelism, double perSecond) {
+        this.tenant = tenant;
+        this.parallelism = parallelism;
+        this.rateLimiter = new RateLimiter(perSecond, parallelism);
+    }
+
+    /**
+     * Replays the items, blocking the calling thread until all of them are done.
+     * @return The number of items that succeeded.
+     */
+    public long run(List<CustomObject<DeadLetter>> items) throws Exception {
+        final List<Boolean> results = ParallelTasks.map(items, parallelism, item -> {
+            // Waits for the rate limit before the next item is started
+            try {
+                TimeUnit.NANOSECONDS.sleep(rateLimiter.reserve());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Replay interrupted", e);
+            }
+            return replay(item);
+        }).get();
+        final long replayed = results.stream().filter(Boolean.TRUE::equals).count();
+        LOG.info("Replayed dead letters", "tenant", tenant.getKey(), "replayed", replayed, "failed", items.size() - replayed);
+        return replayed;
+    }
+
+    private CompletionStage<Boolean> replay(CustomObject<DeadLetter> item) {
+        final DeadLetter deadLetter = item.getValue();
+        final CompletionStage<Boolean> processed;
+        if (DeadLetter.WEBHOOK.equals(deadLetter.getKind())) {
+            processed = new StripeEventHandler(tenant).handle(deadLetter.getBody())
+                .thenApply(status -> status < 300);
+        } else if (DeadLetter.PAYMENT.equals(deadLetter.getKind())) {
+            processed = tenant.getCtpReads().execute(PaymentByIdGet.of(deadLetter.getSubject()), Deadline.fromEnvironment())
+                .thenCompose(payment -> payment == null ?
+                    // Deleted in the meantime, nothing left to do
+                    tenant.getDeadLetters().resolve(deadLetter.getKind(), deadLetter.getSubject()).thenApply(removed -> true) :
+                    new PaymentCreationListener(tenant).paymentCreatedAsync(payment).thenApply(pair -> true));
+        } else {
+            LOG.warn("Unknown dead letter kind", "key", item.getKey(), "kind", deadLetter.getKind());
+            return CompletableFuture.completedFuture(false);
+        }
+        return processed.exceptionally(e -> false);
+    }
+}
@@ -0,0 +1,202 @@
+package com.commercetools.pspadapter.stripe.deadletters;
+
+import com.commercetools.pspadapter.stripe.logging.Log;
+import com.commercetools.pspadapter.stripe.util.PaymentCache;
+import io.sphere.sdk.client.SphereClient;
+import io.sphere.sdk.customobjects.CustomObject;
+import io.sphere.sdk.customobjects.CustomObjectDraft;
+import io.sphere.sdk.customobjects.commands.CustomObjectDeleteCommand;
+import io.sphere.sdk.customobjects.commands.CustomObjectUpsertCommand;
+import io.sphere.sdk.customobjects.queries.CustomObjectByKeyGet;
+import io.sphere.sdk.customobjects.queries.CustomObjectQuery;
+import io.sphere.sdk.queries.QueryPredicate;
+import io.sphere.sdk.queries.QuerySort;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps failed webhook events and payments as CTP custom objects, with their last error and the number of attempts,
+ * so they can be replayed after an incident instead of waiting for the retries of Stripe or the next pull. Failing
+ * again updates the existing item. The store is bounded: once it holds capacity items, new failures are only logged.
+ */
+public class DeadLetterStore {
+    private static final Log LOG = Log.of(DeadLetterStore.class);
+
+    public static final String CONTAINER = "ctp-stripe-adapter-dead-letters";
+    // CTP returns at most 500 results per query
+    public static final int MAX_PAGE_SIZE = 500;
+    // CTP keeps milliseconds, and a fixed number of digits is needed for the predicate
+    private static final DateTimeFormatter CREATED_AT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+
+    private static final int MAX_ATTEMPTS = 3;
+    // The store is usually empty, so a success only looks for its item if the last count found items
+    private static final long EMPTY_CHECK_MILLIS = 1000;
+
+    final private SphereClient client;
+    final private long capacity;
+    final private AtomicLong added = new AtomicLong();
+    final private AtomicLong dropped = new AtomicLong();
+    final private AtomicLong removed = new AtomicLong();
+    private volatile boolean empty = false;
+    private volatile long emptyCheckedAt = 0;
+
+    public DeadLetterStore(SphereClient client, long capacity) {
+        this.client = client;
+        this.capacity = capacity;
+    }
+
+    public static long capacityFromEnvironment() {
+        return Long.parseLong(Optional.ofNullable(System.getenv("CTP_STRIPE_ADAPTER_DEAD_LETTER_CAPACITY")).orElse("10000"));
+    }
+
+    /**
+     * @return The key of the item of a webhook event or payment.
+     */
+    public static String keyOf(String kind, String subject) {
+        return kind + "-" + subject;
+    }
+
+    /**
+     * Records a failed attempt. Never fails, a failure to record is logged.
+     * @param body The webhook body, or null for a payment.
+     */
+    public CompletableFuture<Void> add(String kind, String subject, String body, String error) {
+        return add(kind, subject, body, error, 1)
+            .exceptionally(e -> {
+                LOG.warn("Recording dead letter failed", e, "kind", kind, "subject", subject);
+                return null;
+            });
+    }
+
+    private CompletableFuture<Void> add(String kind, String subject, String body, String error, int attempt) {
+        final long now = System.currentTimeMillis();
+        return get(keyOf(kind, subject))
+            .thenCompose(existing -> {
+                if (existing.isPresent()) return save(existing.get().getValue().failedAgain(error, now), existing.get().getVersion());
+                return count(Optional.empty()).thenCompose(size -> {
+                    if (size >= capacity) {
+                        dropped.incrementAndGet();
+                        LOG.warn("Dead letter store is full", "kind", kind, "subject", subject, "error", error);
+                        return CompletableFuture.<Void>completedFuture(null);
+                    }
+                    return save(new DeadLetter(kind, subject, body, error, 1, now, now), 0L);
+                });
+            })
+            .handle((saved, e) -> {
+                // Concurrent failures of the same item
+                if (e != null && PaymentCache.isVersionConflict(e) && attempt < MAX_ATTEMPTS) return add(kind, subject, body, error, attempt + 1);
+                else if (e != null) throw new CompletionException(e);
+                return CompletableFuture.<Void>completedFuture(null);
+            })
+            .thenCompose(done -> done);
+    }
+
+    private CompletableFuture<Void> save(DeadLetter deadLetter, long version) {
+        return client
+            .execute(CustomObjectUpsertCommand.of(CustomObjectDraft.ofVersionedUpdate(
+                CONTAINER, keyOf(deadLetter.getKind(), deadLetter.getSubject()), deadLetter, version, DeadLetter.class)))
+            .toCompletableFuture()
+            .thenApply(saved -> {
+                if (version == 0L) added.incrementAndGet();
+                empty = false;
+                return null;
+            });
+    }
+
+    /**
+     * Removes the item of a webhook event or payment that succeeded after all, e.g. on a redelivery of Stripe or a
+     * retry of the subscriber. Never fails, a failure to remove is logged.
+     */
+    public CompletableFuture<Void> resolve(String kind, String subject) {
+        return isEmpty()
+            .thenCompose(isEmpty -> isEmpty ?
+                CompletableFuture.completedFuture(Optional.<CustomObject<DeadLetter>>empty()) :
+                get(keyOf(kind, subject)))
+            .thenCompose(item -> item.map(this::remove).orElseGet(() -> CompletableFuture.completedFuture(null)))
+            .exceptionally(e -> {
+                LOG.warn("Removing dead letter failed", e, "kind", kind, "subject", subject);
+                return null;
+            });
+    }
+
+    private CompletableFuture<Boolean> isEmpty() {
+        final long now = System.currentTimeMillis();
+        if (now - emptyCheckedAt < EMPTY_CHECK_MILLIS) return CompletableFuture.completedFuture(empty);
+        return count(Optional.empty()).thenApply(size -> {
+            empty = size == 0;
+            emptyCheckedAt = now;
+            return empty;
+        });
+    }
+
+    public CompletableFuture<Optional<CustomObject<DeadLetter>>> get(String key) {
+        return client.execute(CustomObjectByKeyGet.of(CONTAINER, key, DeadLetter.class))
+            .toCompletableFuture()
+            .thenApply(Optional::ofNullable);
+    }
+
+    /**
+     * @param kind Only items of this kind, or all items.
+     * @return The items that failed first, at most limit and at most MAX_PAGE_SIZE.
+     */
+    public CompletableFuture<List<CustomObject<DeadLetter>>> list(Optional<String> kind, int limit) {
+        return list(kind, Optional.empty(), limit);
+    }
+
+    /**
+     * @param after Only the items after this one in the order of createdAt and id, to page through the store.
+     * @return The items that failed first, at most limit and at most MAX_PAGE_SIZE.
+     */
+    public CompletableFuture<List<CustomObject<DeadLetter>>> list(Optional<String> kind, Optional<CustomObject<DeadLetter>> after, int limit) {
+        final String predicate = predicate(kind) + after.map(item -> {
+            final String time = CREATED_AT.format(Instant.from(item.getCreatedAt()));
+            return " and (createdAt > \"" + time + "\" or (createdAt = \"" + time + "\" and id > \"" + item.getId() + "\"))";
+        }).orElse("");
+        return client
+            .execute(CustomObjectQuery.of(DeadLetter.class)
+                .withPredicates(QueryPredicate.of(predicate))
+                .withSort(Arrays.asList(QuerySort.of("createdAt asc"), QuerySort.of("id asc")))
+                .withLimit(Math.min(limit, MAX_PAGE_SIZE)))
+            .toCompletableFuture()
+            .thenApply(result -> result.getResults());
+    }
+
+    /**
+     * @param kind Only items of this kind, or all items.
+     */
+    public CompletableFuture<Long> count(Optional<String> kind) {
+        return client.execute(CustomObjectQuery.of(DeadLetter.class).withPredicates(QueryPredicate.of(predicate(kind))).withLimit(1))
+            .toCompletableFuture()
+            .thenApply(result -> result.getTotal());
+    }
+
+    /**
+     * Removes an item once it has been processed.
+     */
+    public CompletableFuture<Void> remove(CustomObject<DeadLetter> item) {
+        return client.execute(CustomObjectDeleteCommand.of(CONTAINER, item.getKey(), DeadLetter.class))
+            .toCompletableFuture()
+            .thenApply(deleted -> {
+                removed.incrementAndGet();
+                return null;
+            });
+    }
+
+    private static String predicate(Optional<String> kind) {
+        return "container = \"" + CONTAINER + "\"" + kind.map(k -> " and value(kind = \"" + k + "\")").orElse("");
+    }
+
+    public Map<String, Long> getStatistics() {
+        final Map<String, Long> statistics = new LinkedHashMap<>();
+        statistics.put("dead_letters_added", added.get());
+        statistics.put("dead_letters_dropped", dropped.get());
+        statistics.put("dead_letters_removed", removed.get());
+        return statistics;
+    }
+}
@@ -0,0 +1,21 @@
+package com.commercetools.pspadapter.stripe.executors;
+
+import java.util.Optional;
+
+public enum CaptureMode {
+    /**
+     * Charges the payment right away.
+     */
+    IMMEDIATE,
+
+    /**
+     * Only authorizes the payment at checkout. The charge is captured later, e.g. by the CaptureScheduler.
+     */
+    DEFERRED;
+
+    public static CaptureMode fromEnvironment() {
+        return Optional.ofNullable(System.getenv("CTP_STRIPE_ADAPTER_CAPTURE_MODE"))
+            .map(mode -> CaptureMode.valueOf(mode.toUpperCase()))
+            .orElse(IMMEDIATE);
+    }
+}
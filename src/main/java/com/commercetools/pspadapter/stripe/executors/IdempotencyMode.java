@@ -0,0 +1,23 @@
+package com.commercetools.pspadapter.stripe.executors;
+
+import java.util.Optional;
+
+public enum IdempotencyMode {
+    /**
+     * Saves the request with a random idempotency key in the payment before calling Stripe.
+     * A retry reads the saved request from the payment.
+     */
+    WRITE_AHEAD,
+
+    /**
+     * Derives the idempotency key from payment id, operation and attempt, so a retry can rebuild it.
+     * Saves one CTP round trip per Stripe request, as the request does not need to be saved in the payment beforehand.
+     */
+    DETERMINISTIC;
+
+    public static IdempotencyMode fromEnvironment() {
+        return Optional.ofNullable(System.getenv("CTP_STRIPE_ADAPTER_IDEMPOTENCY_MODE"))
+            .map(mode -> IdempotencyMode.valueOf(mode.toUpperCase()))
+            .orElse(WRITE_AHEAD);
+    }
+}
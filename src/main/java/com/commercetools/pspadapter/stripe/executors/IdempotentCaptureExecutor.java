@@ -0,0 +1,160 @@
+package com.commercetools.pspadapter.stripe.executors;
+
+import com.commercetools.pspadapter.stripe.archive.InteractionCompaction;
+import com.commercetools.pspadapter.stripe.tenants.Tenant;
+import com.commercetools.pspadapter.stripe.util.Deadline;
+import com.commercetools.pspadapter.stripe.util.PaymentCache;
+import com.commercetools.pspadapter.stripe.util.PaymentHelperMethods;
+import com.commercetools.pspadapter.stripe.util.PaymentPair;
+import com.commercetools.pspadapter.stripe.util.StripeApi;
+import com.commercetools.pspadapter.stripe.util.StripeExecution;
+import com.commercetools.pspadapter.stripe.util.StripeRequest;
+import com.stripe.model.Charge;
+import io.sphere.sdk.client.SphereClient;
+import io.sphere.sdk.commands.UpdateAction;
+import io.sphere.sdk.payments.Payment;
+import io.sphere.sdk.payments.TransactionBuilder;
+import io.sphere.sdk.payments.TransactionType;
+import io.sphere.sdk.payments.commands.updateactions.AddInterfaceInteraction;
+import io.sphere.sdk.payments.commands.updateactions.AddTransaction;
+import io.sphere.sdk.payments.commands.updateactions.SetAmountPaid;
+import org.javamoney.moneta.function.MonetaryUtil;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Captures a charge that was only authorized at checkout (see CaptureMode.DEFERRED).
+ */
+public class IdempotentCaptureExecutor extends PaymentHelperMethods implements IdempotentStripeRequestExecutor<Optional<String>> {
+    final private Payment payment;
+    final private SphereClient client;
+    final private IdempotencyMode idempotencyMode;
+    final private StripeApi stripeApi;
+    final private PaymentCache paymentCache;
+    final private InteractionCompaction interactionCompaction;
+    final private Deadline deadline;
+
+    public IdempotentCaptureExecutor(Payment payment, Tenant tenant) {
+        this(payment, tenant, IdempotencyMode.fromEnvironment());
+    }
+
+    public IdempotentCaptureExecutor(Payment payment, Tenant tenant, Deadline deadline) {
+        this(payment, tenant, IdempotencyMode.fromEnvironment(), deadline);
+    }
+
+    public IdempotentCaptureExecutor(Payment payment, Tenant tenant, IdempotencyMode idempotencyMode) {
+        this(payment, tenant, idempotencyMode, Deadline.fromEnvironment());
+    }
+
+    public IdempotentCaptureExecutor(Payment payment, Tenant tenant, IdempotencyMode idempotencyMode, Deadline deadline) {
+        super(tenant.getTypeKeyToId());
+        this.payment = payment;
+        this.client = tenant.getClient();
+        this.idempotencyMode = idempotencyMode;
+        this.stripeApi = tenant.getStripeApi();
+        this.paymentCache = tenant.getPaymentCache();
+        this.interactionCompaction = tenant.getInteractionCompaction();
+        this.deadline = deadline;
+    }
+
+    @Override
+    public Optional<PaymentPair<Optional<String>>> previousExecution() {
+        // Idempotency check: Has the charge already been captured?
+        final Optional<PaymentPair<Optional<String>>> successfulExecution =
+            getLastInteractionOfType(payment, "STRIPE_CHARGED")
+                .map(interaction ->
+                    new PaymentPair<Optional<String>>(payment, Optional.of(interaction.getFieldAsString("chargeId")))
+                );
+        if (successfulExecution.isPresent()) return successfulExecution;
+        // Is there anything to capture?
+        else if (!getAuthorizedChargeId().isPresent()) return Optional.of(new PaymentPair<Optional<String>>(payment, Optional.<String>empty()));
+        // Idempotency check: Has the capture failed permanently? A saved request counts in both modes, it may have been
+        // saved before the mode was switched to DETERMINISTIC.
+        final Optional<PaymentPair<Optional<String>>> failedRequest = getLastInteractionOfType(payment, "STRIPE_CAPTURE_REQUEST")
+            .flatMap(interaction -> getLastException(payment, interaction))
+            .map(exception -> new PaymentPair<Optional<String>>(payment, Optional.<String>empty()));
+        if (failedRequest.isPresent()) return failedRequest;
+        // No request was saved, search for exception with the derived idempotencyKey.
+        return getLastInteractionOfTypeWithField(payment, "STRIPE_EXCEPTION", "idempotencyKey", deterministicIdempotencyKey())
+            .map(exception -> new PaymentPair<Optional<String>>(payment, Optional.<String>empty()));
+    }
+
+    @Override
+    public Optional<CompletableFuture<PaymentPair<Optional<String>>>> retryPreviousExecution() {
+        // A saved request is retried with its own idempotencyKey in both modes, it may be a random one from before the
+        // mode was switched to DETERMINISTIC. Without a saved request, a new execution derives the same idempotencyKey.
+        // Idempotency check: Did we already try to capture?
+        return getLastInteractionOfType(payment, "STRIPE_CAPTURE_REQUEST")
+            .map(interaction ->
+                // Retry the same request
+                captureFromRequest(CompletableFuture.completedFuture(
+                    new PaymentPair(payment, StripeRequest.of(interaction))
+                ))
+            );
+    }
+
+    @Override
+    public CompletableFuture<PaymentPair<Optional<String>>> newExecution() {
+        // Create the request
+        final Map<String, Object> captureParams = new HashMap<String, Object>();
+        captureParams.put("amount", payment.getAmountPlanned().query(MonetaryUtil.minorUnits()));
+        // Both modes use the derived idempotencyKey, so switching the mode in either direction retries with the same key.
+        final StripeRequest stripeRequest = StripeRequest.ofParams(captureParams, payment.getId(), "capture", getAttempt(payment),
+            hasTemporaryException(payment, deterministicIdempotencyKey()));
+        if (idempotencyMode == IdempotencyMode.DETERMINISTIC) {
+            // The idempotencyKey can be derived again, so the charge can be captured without saving the request.
+            return captureFromRequest(CompletableFuture.completedFuture(new PaymentPair(payment, stripeRequest)));
+        }
+        // Save it in the payment
+        final AddInterfaceInteraction request = stripeRequest.toInterfaceInteractionOfType("STRIPE_CAPTURE_REQUEST");
+        final CompletableFuture<PaymentPair<StripeRequest>> createRequest = paymentCache
+            .update(client, payment, request, deadline)
+            .thenApply(updatedPayment -> new PaymentPair(updatedPayment, stripeRequest));
+
+        // Capture the charge at Stripe.
+        return captureFromRequest(createRequest);
+    }
+
+    private CompletableFuture<PaymentPair<Optional<String>>> captureFromRequest(CompletableFuture<PaymentPair<StripeRequest>> createRequest) {
+        final String chargeId = getAuthorizedChargeId().get();
+        return createRequest
+            .thenCompose(pair ->
+                // Try to capture the charge at Stripe.
+                stripeApi.execute(StripeApi.CHARGE_CAPTURE, pair.getRight(),
+                    (params, options) -> Charge.retrieve(chargeId, options).capture(params, options), deadline)
+                    .thenApply(execution -> new PaymentPair<StripeExecution<Charge>>(pair.getPayment(), execution))
+            )
+            .<PaymentPair<Optional<String>>>thenCompose(paymentPair -> {
+                final StripeExecution<Charge> stripeCaptureExecution = paymentPair.getRight();
+                // Add an interface interaction with success or error.
+                final CompletableFuture<List<UpdateAction<Payment>>> updateAction = stripeCaptureExecution
+                    .map(stripeObject ->
+                        Arrays.<UpdateAction<Payment>>asList(
+                            interactionOfTypeWith("STRIPE_CHARGED", stripeCaptureExecution.idempotencyKey, "chargeId", stripeObject.getId()),
+                            AddTransaction.of(TransactionBuilder
+                                .of(TransactionType.CHARGE, toAmount(stripeObject), toTime(stripeObject.getCreated()))
+                                .interactionId(stripeObject.getId())
+                                .build()),
+                            SetAmountPaid.of(toAmount(stripeObject))
+                        )
+                    )
+                    .toOptional()
+                    .map(actions -> CompletableFuture.completedFuture(actions))
+                    // Large payments archive temporary exceptions instead
+                    .orElseGet(() -> interactionCompaction.exceptionToUpdateActions(paymentPair.getPayment(), stripeCaptureExecution));
+                final Optional<String> stripeChargeId = stripeCaptureExecution.toOptional().map(c -> c.getId());
+                return updateAction.thenCompose(actions -> paymentCache.update(client, paymentPair.getPayment(), actions, deadline))
+                    .thenApply(updatedPayment -> new PaymentPair(updatedPayment, stripeChargeId));
+            });
+    }
+
+    private Optional<String> getAuthorizedChargeId() {
+        return getLastInteractionOfType(payment, "STRIPE_AUTHORIZED")
+            .map(interaction -> interaction.getFieldAsString("chargeId"));
+    }
+
+    private String deterministicIdempotencyKey() {
+        return StripeRequest.deterministicIdempotencyKey(payment.getId(), "capture", getAttempt(payment));
+    }
+}
@@ -1,20 +1,23 @@
 package com.commercetools.pspadapter.stripe.executors;
 
-import com.commercetools.pspadapter.stripe.TypeKeyToId;
+import com.commercetools.pspadapter.stripe.archive.InteractionCompaction;
+import com.commercetools.pspadapter.stripe.tenants.Tenant;
+import com.commercetools.pspadapter.stripe.util.Deadline;
+import com.commercetools.pspadapter.stripe.util.PaymentCache;
 import com.commercetools.pspadapter.stripe.util.PaymentHelperMethods;
 import com.commercetools.pspadapter.stripe.util.PaymentPair;
+import com.commercetools.pspadapter.stripe.util.StripeApi;
 import com.commercetools.pspadapter.stripe.util.StripeExecution;
 import com.commercetools.pspadapter.stripe.util.StripeRequest;
-import com.stripe.exception.StripeException;
 import com.stripe.model.Charge;
 import io.sphere.sdk.client.SphereClient;
 import io.sphere.sdk.commands.UpdateAction;
 import io.sphere.sdk.payments.Payment;
 import io.sphere.sdk.payments.TransactionBuilder;
 import io.sphere.sdk.payments.TransactionType;
-import io.sphere.sdk.payments.commands.PaymentUpdateCommand;
 import io.sphere.sdk.payments.commands.updateactions.AddInterfaceInteraction;
 import io.sphere.sdk.payments.commands.updateactions.AddTransaction;
+import io.sphere.sdk.payments.commands.updateactions.SetAmountAuthorized;
 import io.sphere.sdk.payments.commands.updateactions.SetAmountPaid;
 import io.sphere.sdk.utils.MoneyImpl;
 import org.javamoney.moneta.function.MonetaryUtil;
@@ -25,41 +28,86 @@ import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
 
 public class IdempotentChargeExecutor extends PaymentHelperMethods implements IdempotentStripeRequestExecutor<Optional<String>>{
     final private Payment payment;
     final private SphereClient client;
     final private String stripeCustomerId;
+    final private IdempotencyMode idempotencyMode;
+    final private StripeApi stripeApi;
+    final private PaymentCache paymentCache;
+    final private InteractionCompaction interactionCompaction;
+    final private Deadline deadline;
+    final private CaptureMode captureMode;
 
     public IdempotentChargeExecutor(Payment payment, String stripeCustomerId, SphereClient client) {
-        super(new TypeKeyToId(client));
+        this(payment, stripeCustomerId, Tenant.of(client));
+    }
+
+    public IdempotentChargeExecutor(Payment payment, String stripeCustomerId, SphereClient client, IdempotencyMode idempotencyMode) {
+        this(payment, stripeCustomerId, Tenant.of(client), idempotencyMode);
+    }
+
+    public IdempotentChargeExecutor(Payment payment, String stripeCustomerId, Tenant tenant) {
+        this(payment, stripeCustomerId, tenant, IdempotencyMode.fromEnvironment());
+    }
+
+    public IdempotentChargeExecutor(Payment payment, String stripeCustomerId, Tenant tenant, IdempotencyMode idempotencyMode) {
+        this(payment, stripeCustomerId, tenant, idempotencyMode, CaptureMode.fromEnvironment());
+    }
+
+    public IdempotentChargeExecutor(Payment payment, String stripeCustomerId, Tenant tenant, Deadline deadline) {
+        this(payment, stripeCustomerId, tenant, IdempotencyMode.fromEnvironment(), CaptureMode.fromEnvironment(), deadline);
+    }
+
+    public IdempotentChargeExecutor(Payment payment, String stripeCustomerId, Tenant tenant, IdempotencyMode idempotencyMode, CaptureMode captureMode) {
+        this(payment, stripeCustomerId, tenant, idempotencyMode, captureMode, Deadline.fromEnvironment());
+    }
+
+    /**
+     * @param deadline The time budget for all CTP and Stripe requests of the execution.
+     */
+    public IdempotentChargeExecutor(Payment payment, String stripeCustomerId, Tenant tenant, IdempotencyMode idempotencyMode, CaptureMode captureMode, Deadline deadline) {
+        super(tenant.getTypeKeyToId());
         this.payment = payment;
-        this.client = client;
+        this.client = tenant.getClient();
         this.stripeCustomerId = stripeCustomerId;
+        this.idempotencyMode = idempotencyMode;
+        this.stripeApi = tenant.getStripeApi();
+        this.paymentCache = tenant.getPaymentCache();
+        this.interactionCompaction = tenant.getInteractionCompaction();
+        this.deadline = deadline;
+        this.captureMode = captureMode;
     }
 
     @Override
     public Optional<PaymentPair<Optional<String>>> previousExecution() {
-        // Idempotency check: Has the charge already been charged?
+        // Idempotency check: Has the charge already been charged (or authorized, to be captured later)?
         final Optional<PaymentPair<Optional<String>>> successfulExecution =
-            getLastInteractionOfType(payment, "STRIPE_CHARGED")
+            Stream.of("STRIPE_CHARGED", "STRIPE_AUTHORIZED")
+                .map(typeKey -> getLastInteractionOfType(payment, typeKey))
+                .filter(interaction -> interaction.isPresent())
+                .findFirst()
                 .map(interaction ->
-                    new PaymentPair<Optional<String>>(payment, Optional.of(interaction.getFieldAsString("chargeId")))
+                    new PaymentPair<Optional<String>>(payment, Optional.of(interaction.get().getFieldAsString("chargeId")))
                 );
         if (successfulExecution.isPresent()) return successfulExecution;
-        // Idempotency check: Has the charge failed permanently?
-        else return
-            getLastInteractionOfType(payment, "STRIPE_CHARGE_CREATE_REQUEST")
-                // There was a previous request, search for exception with same idempotencyKey.
-                .flatMap(interaction -> getLastException(payment, interaction)
-                    .map(exception ->
-                        new PaymentPair<Optional<String>>(payment, Optional.<String>empty())
-                    )
-                );
+        // Idempotency check: Has the charge failed permanently? A saved request counts in both modes, it may have been
+        // saved before the mode was switched to DETERMINISTIC.
+        final Optional<PaymentPair<Optional<String>>> failedRequest = getLastInteractionOfType(payment, "STRIPE_CHARGE_CREATE_REQUEST")
+            .flatMap(interaction -> getLastException(payment, interaction))
+            .map(exception -> new PaymentPair<Optional<String>>(payment, Optional.<String>empty()));
+        if (failedRequest.isPresent()) return failedRequest;
+        // No request was saved, search for exception with the derived idempotencyKey.
+        return getLastInteractionOfTypeWithField(payment, "STRIPE_EXCEPTION", "idempotencyKey", deterministicIdempotencyKey())
+            .map(exception -> new PaymentPair<Optional<String>>(payment, Optional.<String>empty()));
     }
 
     @Override
     public Optional<CompletableFuture<PaymentPair<Optional<String>>>> retryPreviousExecution() {
+        // A saved request is retried with its own idempotencyKey in both modes, it may be a random one from before the
+        // mode was switched to DETERMINISTIC. Without a saved request, a new execution derives the same idempotencyKey.
         // Idempotency check: Did we already try to charge?
         return getLastInteractionOfType(payment, "STRIPE_CHARGE_CREATE_REQUEST")
             .map(interaction ->
@@ -73,13 +121,18 @@ public class IdempotentChargeExecutor extends PaymentHelperMethods implements Id
     @Override
     public CompletableFuture<PaymentPair<Optional<String>>> newExecution() {
         // Create the request
-        final Map<String, Object> chargeParams = createChargeParams(payment.getAmountPlanned(), true);
-        final StripeRequest stripeRequest = StripeRequest.ofParams(chargeParams);
+        final Map<String, Object> chargeParams = createChargeParams(payment.getAmountPlanned(), captureMode == CaptureMode.IMMEDIATE);
+        // Both modes use the derived idempotencyKey, so switching the mode in either direction retries with the same key.
+        final StripeRequest stripeRequest = StripeRequest.ofParams(chargeParams, payment.getId(), "charge", getAttempt(payment),
+            hasTemporaryException(payment, deterministicIdempotencyKey()));
+        if (idempotencyMode == IdempotencyMode.DETERMINISTIC) {
+            // The idempotencyKey can be derived again, so the charge can be created at Stripe without saving the request.
+            return createChargeFromRequest(CompletableFuture.completedFuture(new PaymentPair(payment, stripeRequest)));
+        }
         // Save it in the payment
         final AddInterfaceInteraction request = stripeRequest.toInterfaceInteractionOfType("STRIPE_CHARGE_CREATE_REQUEST");
-        final CompletableFuture<PaymentPair<StripeRequest>> createRequest = client
-            .execute(PaymentUpdateCommand.of(payment, request))
-            .toCompletableFuture()
+        final CompletableFuture<PaymentPair<StripeRequest>> createRequest = paymentCache
+            .update(client, payment, request, deadline)
             .thenApply(updatedPayment -> new PaymentPair(updatedPayment, stripeRequest));
 
         // Create the charge at Stripe.
@@ -89,21 +142,16 @@ public class IdempotentChargeExecutor extends PaymentHelperMethods implements Id
 
     private CompletableFuture<PaymentPair<Optional<String>>> createChargeFromRequest(CompletableFuture<PaymentPair<StripeRequest>> createRequest) {
         return createRequest
-            .thenApply(pair -> pair.mapValue(stripeRequest -> {
+            .thenCompose(pair ->
                 // Try to create the charge at Stripe.
-                try {
-                    return stripeRequest.toSuccess(
-                        Charge.create(stripeRequest.getParams(), stripeRequest.getRequestOptions())
-                    );
-                } catch (StripeException e) {
-                    return stripeRequest.<Charge>toException(e);
-                }
-            }))
+                stripeApi.execute(StripeApi.CHARGE_CREATE, pair.getRight(), (params, options) -> Charge.create(params, options), deadline)
+                    .thenApply(execution -> new PaymentPair<StripeExecution<Charge>>(pair.getPayment(), execution))
+            )
             .<PaymentPair<Optional<String>>>thenCompose(paymentPair -> {
                 final StripeExecution<Charge> stripeChargeExecution = paymentPair.getRight();
                 // Add an interface interaction with success or error.
-                List<UpdateAction<Payment>> updateAction = stripeChargeExecution
-                    .map(stripeObject ->
+                final CompletableFuture<List<UpdateAction<Payment>>> updateAction = stripeChargeExecution
+                    .map(stripeObject -> captureMode == CaptureMode.IMMEDIATE ?
                         Arrays.<UpdateAction<Payment>>asList(
                             interactionOfTypeWith("STRIPE_CHARGED", stripeChargeExecution.idempotencyKey, "chargeId", stripeObject.getId()),
                             AddTransaction.of(TransactionBuilder
@@ -111,15 +159,30 @@ public class IdempotentChargeExecutor extends PaymentHelperMethods implements Id
                                 .interactionId(stripeObject.getId())
                                 .build()),
                             SetAmountPaid.of(toAmount(stripeObject))
+                        ) :
+                        Arrays.<UpdateAction<Payment>>asList(
+                            interactionOfTypeWith("STRIPE_AUTHORIZED", stripeChargeExecution.idempotencyKey, "chargeId", stripeObject.getId()),
+                            AddTransaction.of(TransactionBuilder
+                                .of(TransactionType.AUTHORIZATION, toAmount(stripeObject), toTime(stripeObject.getCreated()))
+                                .interactionId(stripeObject.getId())
+                                .build()),
+                            SetAmountAuthorized.of(toAmount(stripeObject))
                         )
                     )
-                    .orElseGet(() -> stripeChargeExecution.exceptionToUpdateActions());
+                    .toOptional()
+                    .map(actions -> CompletableFuture.completedFuture(actions))
+                    // Large payments archive temporary exceptions instead
+                    .orElseGet(() -> interactionCompaction.exceptionToUpdateActions(paymentPair.getPayment(), stripeChargeExecution));
                 final Optional<String> stripeChargeId = stripeChargeExecution.toOptional().map(c -> c.getId());
-                return client.execute(PaymentUpdateCommand.of(paymentPair.getPayment(), updateAction))
+                return updateAction.thenCompose(actions -> paymentCache.update(client, paymentPair.getPayment(), actions, deadline))
                     .thenApply(updatedPayment -> new PaymentPair(updatedPayment, stripeChargeId));
             });
     }
 
+    private String deterministicIdempotencyKey() {
+        return StripeRequest.deterministicIdempotencyKey(payment.getId(), "charge", getAttempt(payment));
+    }
+
     private Map<String, Object> createChargeParams(MonetaryAmount money, boolean capture) {
         Map<String, Object> chargeParams = new HashMap<String, Object>();
         chargeParams.put("amount", money.query(MonetaryUtil.minorUnits()));
@@ -1,17 +1,21 @@
 package com.commercetools.pspadapter.stripe.executors;
 
-import com.commercetools.pspadapter.stripe.TypeKeyToId;
+import com.commercetools.pspadapter.stripe.archive.InteractionCompaction;
+import com.commercetools.pspadapter.stripe.tenants.Tenant;
+import com.commercetools.pspadapter.stripe.util.Deadline;
+import com.commercetools.pspadapter.stripe.util.HedgedReads;
+import com.commercetools.pspadapter.stripe.util.PaymentCache;
 import com.commercetools.pspadapter.stripe.util.PaymentHelperMethods;
 import com.commercetools.pspadapter.stripe.util.PaymentPair;
+import com.commercetools.pspadapter.stripe.util.SingleFlight;
+import com.commercetools.pspadapter.stripe.util.StripeApi;
 import com.commercetools.pspadapter.stripe.util.StripeExecution;
 import com.commercetools.pspadapter.stripe.util.StripeRequest;
-import com.stripe.exception.StripeException;
 import io.sphere.sdk.client.SphereClient;
 import io.sphere.sdk.commands.UpdateAction;
 import io.sphere.sdk.customers.Customer;
 import io.sphere.sdk.customers.queries.CustomerByIdGet;
 import io.sphere.sdk.payments.Payment;
-import io.sphere.sdk.payments.commands.PaymentUpdateCommand;
 import io.sphere.sdk.payments.commands.updateactions.AddInterfaceInteraction;
 
 import java.util.*;
@@ -20,11 +24,48 @@ import java.util.concurrent.CompletableFuture;
 public class IdempotentCustomerExecutor extends PaymentHelperMethods implements IdempotentStripeRequestExecutor<Optional<String>> {
     final private Payment payment;
     final private SphereClient client;
+    final private IdempotencyMode idempotencyMode;
+    final private StripeApi stripeApi;
+    final private PaymentCache paymentCache;
+    final private InteractionCompaction interactionCompaction;
+    final private Deadline deadline;
+    final private HedgedReads ctpReads;
+    final private SingleFlight<String, Customer> customerReads;
 
     public IdempotentCustomerExecutor(Payment payment, SphereClient client) {
-        super(new TypeKeyToId(client));
+        this(payment, Tenant.of(client));
+    }
+
+    public IdempotentCustomerExecutor(Payment payment, SphereClient client, IdempotencyMode idempotencyMode) {
+        this(payment, Tenant.of(client), idempotencyMode);
+    }
+
+    public IdempotentCustomerExecutor(Payment payment, Tenant tenant) {
+        this(payment, tenant, IdempotencyMode.fromEnvironment());
+    }
+
+    public IdempotentCustomerExecutor(Payment payment, Tenant tenant, Deadline deadline) {
+        this(payment, tenant, IdempotencyMode.fromEnvironment(), deadline);
+    }
+
+    public IdempotentCustomerExecutor(Payment payment, Tenant tenant, IdempotencyMode idempotencyMode) {
+        this(payment, tenant, idempotencyMode, Deadline.fromEnvironment());
+    }
+
+    /**
+     * @param deadline The time budget for all CTP and Stripe requests of the execution.
+     */
+    public IdempotentCustomerExecutor(Payment payment, Tenant tenant, IdempotencyMode idempotencyMode, Deadline deadline) {
+        super(tenant.getTypeKeyToId());
         this.payment = payment;
-        this.client = client;
+        this.client = tenant.getClient();
+        this.idempotencyMode = idempotencyMode;
+        this.stripeApi = tenant.getStripeApi();
+        this.paymentCache = tenant.getPaymentCache();
+        this.interactionCompaction = tenant.getInteractionCompaction();
+        this.deadline = deadline;
+        this.ctpReads = tenant.getCtpReads();
+        this.customerReads = tenant.getCustomerReads();
     }
 
     @Override
@@ -36,19 +77,21 @@ public class IdempotentCustomerExecutor extends PaymentHelperMethods implements
                     new PaymentPair<Optional<String>>(payment, Optional.of(interaction.getFieldAsString("stripeCustomerId")))
                 );
         if (successfulExecution.isPresent()) return successfulExecution;
-        // Idempotency check: Has the customer creation failed permanently?
-        else return
-            getLastInteractionOfType(payment, "STRIPE_CUSTOMER_CREATE_REQUEST")
-                // There was a previous request, search for exception with same idempotencyKey.
-                .flatMap(interaction -> getLastException(payment, interaction)
-                        .map(exception ->
-                                new PaymentPair<Optional<String>>(payment, Optional.<String>empty())
-                        )
-                );
+        // Idempotency check: Has the customer creation failed permanently? A saved request counts in both modes, it may
+        // have been saved before the mode was switched to DETERMINISTIC.
+        final Optional<PaymentPair<Optional<String>>> failedRequest = getLastInteractionOfType(payment, "STRIPE_CUSTOMER_CREATE_REQUEST")
+            .flatMap(interaction -> getLastException(payment, interaction))
+            .map(exception -> new PaymentPair<Optional<String>>(payment, Optional.<String>empty()));
+        if (failedRequest.isPresent()) return failedRequest;
+        // No request was saved, search for exception with the derived idempotencyKey.
+        return getLastInteractionOfTypeWithField(payment, "STRIPE_EXCEPTION", "idempotencyKey", deterministicIdempotencyKey())
+            .map(exception -> new PaymentPair<Optional<String>>(payment, Optional.<String>empty()));
     }
 
     @Override
     public Optional<CompletableFuture<PaymentPair<Optional<String>>>> retryPreviousExecution() {
+        // A saved request is retried with its own idempotencyKey in both modes, it may be a random one from before the
+        // mode was switched to DETERMINISTIC. Without a saved request, a new execution derives the same idempotencyKey.
         // Idempotency check: Did we already try to create the customer?
         return getLastInteractionOfType(payment, "STRIPE_CUSTOMER_CREATE_REQUEST")
             .map(interaction ->
@@ -73,23 +116,35 @@ public class IdempotentCustomerExecutor extends PaymentHelperMethods implements
     }
 
     private CompletableFuture<PaymentPair<Optional<String>>> createCustomer(Payment payment, String token) {
+        if (idempotencyMode == IdempotencyMode.DETERMINISTIC) {
+            // Nothing is saved, so a retry derives the request again. Stripe rejects a retry with the same idempotencyKey
+            // and other params, so only data of the payment is used, not the CTP customer that may change in between.
+            final Map<String, Object> customerParams = Optional.ofNullable(payment.getCustomer())
+                .map(customerReference -> createCustomerParams(customerReference.getId(), token))
+                .orElseGet(() -> createAnonymousCustomerParams(token));
+            return createCustomerFromRequest(CompletableFuture.completedFuture(new PaymentPair(payment, toStripeRequest(customerParams))));
+        }
         // Create the request and save it in the payment.
         final CompletableFuture<PaymentPair<StripeRequest>> createRequest = Optional.ofNullable(payment.getCustomer())
             .map(customerReference ->
-                    // Create request with CTP customer data
-                    client
-                        .execute(CustomerByIdGet.of(customerReference)).toCompletableFuture()
-                        .thenApply(customer -> StripeRequest.ofParams(createCustomerParams(customer, token)))
+                    // Create request with CTP customer data, which comes expanded with payments loaded by CTPMessagePull
+                    Optional.ofNullable(customerReference.getObj())
+                        .map(customer -> CompletableFuture.completedFuture(customer))
+                        // Concurrent checkouts of a customer share the read
+                        .orElseGet(() -> deadline.bound(
+                            customerReads.get(customerReference.getId(), () -> ctpReads.execute(CustomerByIdGet.of(customerReference), deadline)),
+                            "CTP customer read"))
+                        .thenApply(customer -> toStripeRequest(createCustomerParams(customer, token)))
             )
             .orElseGet(() ->
                     // Create request for anonymous customer
-                    CompletableFuture.completedFuture(StripeRequest.ofParams(createAnonymousCustomerParams(token)))
+                    CompletableFuture.completedFuture(toStripeRequest(createAnonymousCustomerParams(token)))
             )
             .<PaymentPair<StripeRequest>>thenCompose(stripeRequest -> {
                 // Save the request in the payment
                 final AddInterfaceInteraction request = stripeRequest.toInterfaceInteractionOfType("STRIPE_CUSTOMER_CREATE_REQUEST");
-                return client
-                    .execute(PaymentUpdateCommand.of(payment, request))
+                return paymentCache
+                    .update(client, payment, request, deadline)
                     .thenApply(updatedPayment -> new PaymentPair(updatedPayment, stripeRequest));
             });
 
@@ -99,32 +154,41 @@ public class IdempotentCustomerExecutor extends PaymentHelperMethods implements
 
     private CompletableFuture<PaymentPair<Optional<String>>> createCustomerFromRequest(CompletableFuture<PaymentPair<StripeRequest>> createRequest) {
         return createRequest
-            .thenApply(pair -> pair.mapValue(stripeRequest -> {
+            .thenCompose(pair ->
                 // Try to create the customer at Stripe.
-                try {
-                    return stripeRequest.toSuccess(
-                        com.stripe.model.Customer.create(stripeRequest.getParams(), stripeRequest.getRequestOptions())
-                    );
-                } catch (StripeException e) {
-                    return stripeRequest.<com.stripe.model.Customer>toException(e);
-                }
-            }))
+                stripeApi.execute(StripeApi.CUSTOMER_CREATE, pair.getRight(), (params, options) -> com.stripe.model.Customer.create(params, options), deadline)
+                    .thenApply(execution -> new PaymentPair<StripeExecution<com.stripe.model.Customer>>(pair.getPayment(), execution))
+            )
             .<PaymentPair<Optional<String>>>thenCompose(paymentPair -> {
                 final StripeExecution<com.stripe.model.Customer> stripeCustomerExecution = paymentPair.getRight();
                 // Add an interface interaction with success or error.
-                List<UpdateAction<Payment>> updateAction = stripeCustomerExecution
+                final CompletableFuture<List<UpdateAction<Payment>>> updateAction = stripeCustomerExecution
                     .map(stripeObject ->
                         Arrays.<UpdateAction<Payment>>asList(
                             interactionOfTypeWith("STRIPE_CUSTOMER_CHECKED", stripeCustomerExecution.idempotencyKey, "stripeCustomerId", stripeObject.getId())
                         )
                     )
-                    .orElseGet(() -> stripeCustomerExecution.exceptionToUpdateActions());
+                    .toOptional()
+                    .map(actions -> CompletableFuture.completedFuture(actions))
+                    // Large payments archive temporary exceptions instead
+                    .orElseGet(() -> interactionCompaction.exceptionToUpdateActions(paymentPair.getPayment(), stripeCustomerExecution));
                 final Optional<String> stripeCustomerId = stripeCustomerExecution.toOptional().map(c -> c.getId());
-                return client.execute(PaymentUpdateCommand.of(paymentPair.getPayment(), updateAction))
+                return updateAction.thenCompose(actions -> paymentCache.update(client, paymentPair.getPayment(), actions, deadline))
                     .thenApply(updatedPayment -> new PaymentPair(updatedPayment, stripeCustomerId));
             });
     }
 
+    private StripeRequest toStripeRequest(Map<String, Object> customerParams) {
+        // The saved request of WRITE_AHEAD uses the derived idempotencyKey as well, so switching the mode in either
+        // direction retries with the same key.
+        return StripeRequest.ofParams(customerParams, payment.getId(), "customer", getAttempt(payment),
+            hasTemporaryException(payment, deterministicIdempotencyKey()));
+    }
+
+    private String deterministicIdempotencyKey() {
+        return StripeRequest.deterministicIdempotencyKey(payment.getId(), "customer", getAttempt(payment));
+    }
+
     private Map<String, Object> createAnonymousCustomerParams(String tokenId) {
         Map<String, Object> customerParams = new HashMap<String, Object>();
         customerParams.put("source", tokenId);
@@ -140,12 +204,23 @@ public class IdempotentCustomerExecutor extends PaymentHelperMethods implements
         return customerParams;
     }
 
+    /**
+     * Only the reference to the CTP customer, for the DETERMINISTIC mode.
+     */
+    private Map<String, Object> createCustomerParams(String customerId, String tokenId) {
+        Map<String, Object> customerParams = new HashMap<String, Object>();
+        customerParams.put("source", tokenId);
+        Map<String, Object> metadata = new HashMap<String, Object>();
+        metadata.put("ctp_id", customerId);
+        customerParams.put("metadata", metadata);
+        return customerParams;
+    }
+
     private Map<String, Object> createCustomerMetadata(Customer customer) {
         Map<String, Object> metadata = new HashMap<String, Object>();
         metadata.put("ctp_id", customer.getId());
         metadata.put("firstName", customer.getFirstName());
         metadata.put("lastName", customer.getLastName());
-        metadata.put("ctp_version", customer.getVersion());
         return metadata;
     }
 }
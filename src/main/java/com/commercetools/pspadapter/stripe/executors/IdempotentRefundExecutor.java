@@ -0,0 +1,186 @@
+package com.commercetools.pspadapter.stripe.executors;
+
+import com.commercetools.pspadapter.stripe.archive.InteractionCompaction;
+import com.commercetools.pspadapter.stripe.tenants.Tenant;
+import com.commercetools.pspadapter.stripe.util.Deadline;
+import com.commercetools.pspadapter.stripe.util.PaymentCache;
+import com.commercetools.pspadapter.stripe.util.PaymentHelperMethods;
+import com.commercetools.pspadapter.stripe.util.PaymentPair;
+import com.commercetools.pspadapter.stripe.util.StripeApi;
+import com.commercetools.pspadapter.stripe.util.StripeExecution;
+import com.commercetools.pspadapter.stripe.util.StripeRequest;
+import com.stripe.model.Charge;
+import com.stripe.model.Refund;
+import io.sphere.sdk.client.SphereClient;
+import io.sphere.sdk.commands.UpdateAction;
+import io.sphere.sdk.payments.Payment;
+import io.sphere.sdk.payments.TransactionBuilder;
+import io.sphere.sdk.payments.TransactionType;
+import io.sphere.sdk.payments.commands.updateactions.AddInterfaceInteraction;
+import io.sphere.sdk.payments.commands.updateactions.AddTransaction;
+import io.sphere.sdk.payments.commands.updateactions.SetAmountRefunded;
+import org.javamoney.moneta.function.MonetaryUtil;
+
+import javax.money.MonetaryAmount;
+import java.time.ZonedDateTime;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Refunds the charge of a payment once, either in full or the given amount.
+ */
+public class IdempotentRefundExecutor extends PaymentHelperMethods implements IdempotentStripeRequestExecutor<Optional<String>> {
+    final private Payment payment;
+    final private SphereClient client;
+    final private Optional<MonetaryAmount> amount;
+    final private IdempotencyMode idempotencyMode;
+    final private StripeApi stripeApi;
+    final private PaymentCache paymentCache;
+    final private InteractionCompaction interactionCompaction;
+    final private Deadline deadline;
+
+    public IdempotentRefundExecutor(Payment payment, Tenant tenant) {
+        this(payment, Optional.empty(), tenant);
+    }
+
+    /**
+     * @param amount The amount to refund, or empty to refund the full charge.
+     */
+    public IdempotentRefundExecutor(Payment payment, Optional<MonetaryAmount> amount, Tenant tenant) {
+        this(payment, amount, tenant, IdempotencyMode.fromEnvironment());
+    }
+
+    public IdempotentRefundExecutor(Payment payment, Optional<MonetaryAmount> amount, Tenant tenant, IdempotencyMode idempotencyMode) {
+        this(payment, amount, tenant, idempotencyMode, Deadline.fromEnvironment());
+    }
+
+    public IdempotentRefundExecutor(Payment payment, Optional<MonetaryAmount> amount, Tenant tenant, IdempotencyMode idempotencyMode, Deadline deadline) {
+        super(tenant.getTypeKeyToId());
+        this.payment = payment;
+        this.client = tenant.getClient();
+        this.amount = amount;
+        this.idempotencyMode = idempotencyMode;
+        this.stripeApi = tenant.getStripeApi();
+        this.paymentCache = tenant.getPaymentCache();
+        this.interactionCompaction = tenant.getInteractionCompaction();
+        this.deadline = deadline;
+    }
+
+    @Override
+    public Optional<PaymentPair<Optional<String>>> previousExecution() {
+        // Idempotency check: Has the payment already been refunded?
+        final Optional<PaymentPair<Optional<String>>> successfulExecution =
+            getLastInteractionOfType(payment, "STRIPE_REFUNDED")
+                .map(interaction ->
+                    new PaymentPair<Optional<String>>(payment, Optional.of(interaction.getFieldAsString("refundId")))
+                );
+        if (successfulExecution.isPresent()) return successfulExecution;
+        // Is there anything to refund?
+        else if (!getChargeId().isPresent()) return Optional.of(new PaymentPair<Optional<String>>(payment, Optional.<String>empty()));
+        // Idempotency check: Has the refund failed permanently? A saved request counts in both modes, it may have been
+        // saved before the mode was switched to DETERMINISTIC.
+        final Optional<PaymentPair<Optional<String>>> failedRequest = getLastInteractionOfType(payment, "STRIPE_REFUND_CREATE_REQUEST")
+            .flatMap(interaction -> getLastException(payment, interaction))
+            .map(exception -> new PaymentPair<Optional<String>>(payment, Optional.<String>empty()));
+        if (failedRequest.isPresent()) return failedRequest;
+        // No request was saved, search for exception with the derived idempotencyKey.
+        return getLastInteractionOfTypeWithField(payment, "STRIPE_EXCEPTION", "idempotencyKey", deterministicIdempotencyKey())
+            .map(exception -> new PaymentPair<Optional<String>>(payment, Optional.<String>empty()));
+    }
+
+    @Override
+    public Optional<CompletableFuture<PaymentPair<Optional<String>>>> retryPreviousExecution() {
+        // A saved request is retried with its own idempotencyKey in both modes, it may be a random one from before the
+        // mode was switched to DETERMINISTIC. Without a saved request, a new execution derives the same idempotencyKey.
+        // Idempotency check: Did we already try to refund?
+        return getLastInteractionOfType(payment, "STRIPE_REFUND_CREATE_REQUEST")
+            .map(interaction ->
+                // Retry the same request
+                createRefundFromRequest(CompletableFuture.completedFuture(
+                    new PaymentPair(payment, StripeRequest.of(interaction))
+                ))
+            );
+    }
+
+    @Override
+    public CompletableFuture<PaymentPair<Optional<String>>> newExecution() {
+        // Create the request
+        final Map<String, Object> refundParams = new HashMap<String, Object>();
+        amount.ifPresent(money -> refundParams.put("amount", money.query(MonetaryUtil.minorUnits())));
+        // Both modes use the derived idempotencyKey, so switching the mode in either direction retries with the same key.
+        final StripeRequest stripeRequest = StripeRequest.ofParams(refundParams, payment.getId(), "refund", getAttempt(payment),
+            hasTemporaryException(payment, deterministicIdempotencyKey()));
+        if (idempotencyMode == IdempotencyMode.DETERMINISTIC) {
+            // The idempotencyKey can be derived again, so the refund can be created without saving the request.
+            return createRefundFromRequest(CompletableFuture.completedFuture(new PaymentPair(payment, stripeRequest)));
+        }
+        // Save it in the payment
+        final AddInterfaceInteraction request = stripeRequest.toInterfaceInteractionOfType("STRIPE_REFUND_CREATE_REQUEST");
+        final CompletableFuture<PaymentPair<StripeRequest>> createRequest = paymentCache
+            .update(client, payment, request, deadline)
+            .thenApply(updatedPayment -> new PaymentPair(updatedPayment, stripeRequest));
+
+        // Create the refund at Stripe.
+        return createRefundFromRequest(createRequest);
+    }
+
+    private CompletableFuture<PaymentPair<Optional<String>>> createRefundFromRequest(CompletableFuture<PaymentPair<StripeRequest>> createRequest) {
+        final String chargeId = getChargeId().get();
+        return createRequest
+            .thenCompose(pair ->
+                // Try to refund the charge at Stripe.
+                stripeApi.execute(StripeApi.CHARGE_REFUND, pair.getRight(),
+                    (params, options) -> Charge.retrieve(chargeId, options).refund(params, options), deadline)
+                    .thenApply(execution -> new PaymentPair<StripeExecution<Charge>>(pair.getPayment(), execution))
+            )
+            .<PaymentPair<Optional<String>>>thenCompose(paymentPair -> {
+                final StripeExecution<Charge> stripeRefundExecution = paymentPair.getRight();
+                // The refunds of the charge are sorted with the most recent first. They may be missing, e.g. if the
+                // API version does not include them in the charge.
+                final Optional<Refund> refund = stripeRefundExecution.toOptional()
+                    .flatMap(charge -> Optional.ofNullable(charge.getRefunds()))
+                    .flatMap(refunds -> Optional.ofNullable(refunds.getData()))
+                    .flatMap(refunds -> refunds.stream().findFirst());
+                // Add an interface interaction with success or error.
+                final CompletableFuture<List<UpdateAction<Payment>>> updateAction = stripeRefundExecution
+                    .map(stripeObject -> refundActions(paymentPair.getPayment(), stripeRefundExecution.idempotencyKey, stripeObject, refund))
+                    .toOptional()
+                    .map(actions -> CompletableFuture.completedFuture(actions))
+                    // Large payments archive temporary exceptions instead
+                    .orElseGet(() -> interactionCompaction.exceptionToUpdateActions(paymentPair.getPayment(), stripeRefundExecution));
+                final Optional<String> stripeRefundId = stripeRefundExecution.toOptional()
+                    .map(charge -> refund.map(r -> r.getId()).orElse(charge.getId()));
+                return updateAction.thenCompose(actions -> paymentCache.update(client, paymentPair.getPayment(), actions, deadline))
+                    .thenApply(updatedPayment -> new PaymentPair(updatedPayment, stripeRefundId));
+            });
+    }
+
+    /**
+     * Without the refund in the response, the refund is recorded with the id of the charge, and with the amount the
+     * charge was refunded by since the last recorded refund.
+     */
+    private List<UpdateAction<Payment>> refundActions(Payment payment, String idempotencyKey, Charge charge, Optional<Refund> refund) {
+        final MonetaryAmount amountRefunded = toAmountRefunded(charge);
+        final MonetaryAmount refundAmount = refund.map(r -> toAmount(r))
+            .orElseGet(() -> Optional.ofNullable(payment.getAmountRefunded()).map(amountRefunded::subtract).orElse(amountRefunded));
+        final String refundId = refund.map(r -> r.getId()).orElse(charge.getId());
+        final ZonedDateTime refundTime = refund.map(r -> toTime(r.getCreated())).orElseGet(ZonedDateTime::now);
+        return Arrays.<UpdateAction<Payment>>asList(
+            interactionOfTypeWith("STRIPE_REFUNDED", idempotencyKey, "refundId", refundId),
+            AddTransaction.of(TransactionBuilder
+                .of(TransactionType.REFUND, refundAmount, refundTime)
+                .interactionId(refundId)
+                .build()),
+            SetAmountRefunded.of(amountRefunded)
+        );
+    }
+
+    private Optional<String> getChargeId() {
+        return getLastInteractionOfType(payment, "STRIPE_CHARGED")
+            .map(interaction -> interaction.getFieldAsString("chargeId"));
+    }
+
+    private String deterministicIdempotencyKey() {
+        return StripeRequest.deterministicIdempotencyKey(payment.getId(), "refund", getAttempt(payment));
+    }
+}
@@ -0,0 +1,222 @@
+package com.commercetools.pspadapter.stripe.jobs;
+
+import com.commercetools.pspadapter.stripe.executors.IdempotentRefundExecutor;
+import com.commercetools.pspadapter.stripe.logging.Log;
+import com.commercetools.pspadapter.stripe.tenants.Tenant;
+import com.commercetools.pspadapter.stripe.util.Deadline;
+import com.commercetools.pspadapter.stripe.util.ParallelTasks;
+import com.commercetools.pspadapter.stripe.util.PaymentPair;
+import io.sphere.sdk.customobjects.CustomObject;
+import io.sphere.sdk.customobjects.CustomObjectDraft;
+import io.sphere.sdk.customobjects.commands.CustomObjectUpsertCommand;
+import io.sphere.sdk.customobjects.queries.CustomObjectByKeyGet;
+import io.sphere.sdk.payments.Payment;
+import io.sphere.sdk.payments.queries.PaymentQuery;
+import io.sphere.sdk.queries.QueryPredicate;
+import io.sphere.sdk.queries.QuerySort;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Refunds all payments matching a query predicate or a list of payment ids, e.g. after an incident.
+ * Payments are processed in pages sorted by id with bounded parallelism, and the Stripe requests are rate limited by
+ * the StripeApi of the tenant. After every page the progress is saved, so a job that is started again with the same
+ * jobId continues after the last processed page. Payments that were already refunded, or have nothing to refund, are
+ * skipped.
+ * A refund that fails temporarily (e.g. rate limited by Stripe) is retried a few times. A refund that failed with an
+ * error is retried with the payment read again. If it still fails, the job stops before it, so the next run of the job
+ * starts with it. Refunds after it in the same page are then counted as skipped by the next run.
+ */
+public class BulkRefundJob {
+    private static final Log LOG = Log.of(BulkRefundJob.class);
+
+    public static final String CONTAINER = "ctp-stripe-adapter-refund-jobs";
+
+    // The ids end up in query predicates
+    private static final Pattern PAYMENT_ID = Pattern.compile("[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}");
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long FIRST_RETRY_MILLIS = 1000;
+
+    private enum Outcome { REFUNDED, FAILED, SKIPPED, TEMPORARY }
+
+    final private Tenant tenant;
+    final private String jobId;
+    final private Optional<QueryPredicate<Payment>> predicate;
+    final private Optional<List<String>> paymentIds;
+    final private int pageSize;
+    final private int parallelism;
+
+    public BulkRefundJob(Tenant tenant, String jobId, Optional<QueryPredicate<Payment>> predicate, int pageSize, int parallelism) {
+        this(tenant, jobId, predicate, Optional.empty(), pageSize, parallelism);
+    }
+
+    private BulkRefundJob(Tenant tenant, String jobId, Optional<QueryPredicate<Payment>> predicate, Optional<List<String>> paymentIds,
+                          int pageSize, int parallelism) {
+        this.tenant = tenant;
+        this.jobId = jobId;
+        this.predicate = predicate;
+        this.paymentIds = paymentIds;
+        this.pageSize = pageSize;
+        this.parallelism = parallelism;
+    }
+
+    public static BulkRefundJob ofQuery(Tenant tenant, String jobId, QueryPredicate<Payment> predicate, int parallelism) {
+        return new BulkRefundJob(tenant, jobId, Optional.of(predicate), 100, parallelism);
+    }
+
+    /**
+     * Every page queries the next ids of the sorted list, so the query stays short for any number of ids.
+     * @throws IllegalArgumentException If an id is not a payment id.
+     */
+    public static BulkRefundJob ofPaymentIds(Tenant tenant, String jobId, List<String> paymentIds, int parallelism) {
+        final List<String> ids = paymentIds.stream()
+            .map(id -> id.trim().toLowerCase())
+            .distinct()
+            .sorted()
+            .collect(Collectors.toList());
+        ids.stream()
+            .filter(id -> !PAYMENT_ID.matcher(id).matches())
+            .findFirst()
+            .ifPresent(id -> {
+                throw new IllegalArgumentException("Not a payment id: " + id);
+            });
+        return new BulkRefundJob(tenant, jobId, Optional.empty(), Optional.of(ids), 100, parallelism);
+    }
+
+    /**
+     * Runs the job until all matching payments have been processed, or a refund keeps failing temporarily.
+     * @return The final progress.
+     */
+    public RefundJobProgress run() throws Exception {
+        Optional<CustomObject<RefundJobProgress>> saved = fetchProgress();
+        RefundJobProgress progress = saved.map(p -> p.getValue()).orElse(new RefundJobProgress("", 0, 0, 0));
+        long version = saved.map(p -> p.getVersion()).orElse(0L);
+        while (true) {
+            final List<Payment> page = fetchPage(progress.getLastPaymentId());
+            if (page.isEmpty()) return progress;
+            final List<Outcome> outcomes = refund(page);
+            // Only payments with a final outcome are passed, up to the first one that failed temporarily
+            final int settled = outcomes.contains(Outcome.TEMPORARY) ? outcomes.indexOf(Outcome.TEMPORARY) : outcomes.size();
+            if (settled == 0) {
+                LOG.warn("Refund job stopped at temporary failure", "jobId", jobId, "paymentId", page.get(0).getId());
+                return progress;
+            }
+            final List<Outcome> passed = outcomes.subList(0, settled);
+            progress = new RefundJobProgress(
+                page.get(settled - 1).getId(),
+                progress.getRefunded() + Collections.frequency(passed, Outcome.REFUNDED),
+                progress.getFailed() + Collections.frequency(passed, Outcome.FAILED),
+                progress.getSkipped() + Collections.frequency(passed, Outcome.SKIPPED));
+            // Fails if another instance of the job saved its progress in the meantime.
+            version = tenant.getClient()
+                .execute(CustomObjectUpsertCommand.of(
+                    CustomObjectDraft.ofVersionedUpdate(CONTAINER, jobId, progress, version, RefundJobProgress.class)
+                ))
+                .toCompletableFuture()
+                .get()
+                .getVersion();
+            LOG.info("Refund job progress", "jobId", jobId, "refunded", progress.getRefunded(), "notRefunded", progress.getFailed(),
+                "skipped", progress.getSkipped(), "lastPaymentId", progress.getLastPaymentId());
+            if (settled < page.size()) {
+                LOG.warn("Refund job stopped at temporary failure", "jobId", jobId, "paymentId", page.get(settled).getId());
+                return progress;
+            }
+        }
+    }
+
+    /**
+     * Refunds the payments of the page, and retries those that failed temporarily.
+     * @return The outcome for every payment of the page.
+     */
+    private List<Outcome> refund(List<Payment> page) throws Exception {
+        final List<Payment> payments = new ArrayList<>(page);
+        final List<Outcome> outcomes = new ArrayList<>();
+        for (Payment payment : payments) {
+            // Already refunded, nothing to refund or failed permanently before
+            final boolean settled = new IdempotentRefundExecutor(payment, tenant).previousExecution().isPresent();
+            outcomes.add(settled ? Outcome.SKIPPED : Outcome.TEMPORARY);
+        }
+        // The payments whose last task failed, they may have been changed in the meantime
+        final Set<Integer> failed = new HashSet<>();
+        final Set<Integer> deleted = ConcurrentHashMap.newKeySet();
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS && outcomes.contains(Outcome.TEMPORARY); attempt++) {
+            if (attempt > 1) Thread.sleep(FIRST_RETRY_MILLIS << (attempt - 2));
+            final int currentAttempt = attempt;
+            final List<Integer> open = new ArrayList<>();
+            for (int i = 0; i < outcomes.size(); i++) if (outcomes.get(i) == Outcome.TEMPORARY) open.add(i);
+            final List<PaymentPair<Optional<String>>> results = ParallelTasks.map(open, parallelism, i -> {
+                final String paymentId = payments.get(i).getId();
+                // A retry starts from the current version, the stale one would fail again with a version conflict
+                final CompletableFuture<Payment> payment = failed.contains(i) ?
+                    tenant.getPaymentCache().fetch(tenant.getCtpReads(), paymentId, Deadline.fromEnvironment()) :
+                    CompletableFuture.completedFuture(payments.get(i));
+                return payment
+                    .thenCompose(current -> {
+                        if (current != null) return new IdempotentRefundExecutor(current, tenant).executionResult();
+                        deleted.add(i);
+                        return CompletableFuture.<PaymentPair<Optional<String>>>completedFuture(null);
+                    })
+                    .whenComplete((result, e) -> {
+                        // ParallelTasks only passes on a null result
+                        if (e != null) LOG.warn("Refund failed", e, "jobId", jobId, "paymentId", paymentId, "attempt", currentAttempt);
+                    });
+            }).get();
+            for (int j = 0; j < open.size(); j++) {
+                final int i = open.get(j);
+                final PaymentPair<Optional<String>> result = results.get(j);
+                if (deleted.contains(i)) {
+                    // Deleted in the meantime, nothing left to refund
+                    outcomes.set(i, Outcome.SKIPPED);
+                    continue;
+                }
+                if (result == null) {
+                    failed.add(i);
+                    continue;
+                }
+                failed.remove(i);
+                payments.set(i, result.getPayment());
+                if (result.getRight().isPresent()) outcomes.set(i, Outcome.REFUNDED);
+                else if (new IdempotentRefundExecutor(result.getPayment(), tenant).previousExecution().isPresent()) outcomes.set(i, Outcome.FAILED);
+            }
+        }
+        return outcomes;
+    }
+
+    private Optional<CustomObject<RefundJobProgress>> fetchProgress() throws Exception {
+        return Optional.ofNullable(tenant.getClient()
+            .execute(CustomObjectByKeyGet.of(CONTAINER, jobId, RefundJobProgress.class))
+            .toCompletableFuture()
+            .get());
+    }
+
+    private List<Payment> fetchPage(String lastPaymentId) throws Exception {
+        QueryPredicate<Payment> pagePredicate = QueryPredicate.of("id > \"" + lastPaymentId + "\"");
+        if (predicate.isPresent()) pagePredicate = predicate.get().and(pagePredicate);
+        if (paymentIds.isPresent()) {
+            final List<String> chunk = paymentIds.get().stream()
+                .filter(id -> id.compareTo(lastPaymentId) > 0)
+                .limit(pageSize)
+                .collect(Collectors.toList());
+            if (chunk.isEmpty()) return Collections.emptyList();
+            final String ids = chunk.stream().map(id -> "\"" + id + "\"").collect(Collectors.joining(","));
+            pagePredicate = pagePredicate.and(QueryPredicate.of("id in (" + ids + ")"));
+        }
+        return tenant.getClient()
+            .execute(PaymentQuery.of()
+                .withPredicates(pagePredicate)
+                .withSort(QuerySort.of("id asc"))
+                .withLimit(pageSize))
+            .toCompletableFuture()
+            .get()
+            .getResults();
+    }
+}
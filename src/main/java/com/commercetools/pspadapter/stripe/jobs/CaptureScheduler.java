@@ -0,0 +1,135 @@
+package com.commercetools.pspadapter.stripe.jobs;
+
+import com.commercetools.pspadapter.stripe.executors.IdempotentCaptureExecutor;
+import com.commercetools.pspadapter.stripe.logging.Log;
+import com.commercetools.pspadapter.stripe.tenants.Tenant;
+import com.commercetools.pspadapter.stripe.util.Deadline;
+import com.commercetools.pspadapter.stripe.util.ParallelTasks;
+import com.commercetools.pspadapter.stripe.util.PaymentPair;
+import io.sphere.sdk.payments.Payment;
+import io.sphere.sdk.payments.queries.PaymentQuery;
+import io.sphere.sdk.queries.QueryPredicate;
+import io.sphere.sdk.queries.QuerySort;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Captures the charges that were only authorized at checkout. A capture is triggered by the fulfillment of the order
+ * (captureNow), or by the scheduler once the authorization is older than a threshold. Due payments are captured in
+ * batches with bounded parallelism; the Stripe requests are rate limited by the StripeApi of the tenant.
+ * A run pages through the due payments by id, so payments whose capture failed permanently are skipped instead of
+ * filling every batch.
+ */
+public class CaptureScheduler {
+    private static final Log LOG = Log.of(CaptureScheduler.class);
+
+    final private Tenant tenant;
+    final private ScheduledExecutorService scheduler;
+    final private long captureAfterMillis;
+    final private int batchSize;
+    final private int parallelism;
+
+    public CaptureScheduler(Tenant tenant, ScheduledExecutorService scheduler, long captureAfterMillis, int batchSize, int parallelism) {
+        this.tenant = tenant;
+        this.scheduler = scheduler;
+        this.captureAfterMillis = captureAfterMillis;
+        this.batchSize = batchSize;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Uses the CTP_STRIPE_ADAPTER_CAPTURE_AFTER_MS, CTP_STRIPE_ADAPTER_CAPTURE_BATCH_SIZE and
+     * CTP_STRIPE_ADAPTER_CAPTURE_PARALLELISM environment variables.
+     */
+    public static CaptureScheduler fromEnvironment(Tenant tenant, ScheduledExecutorService scheduler) {
+        final long captureAfterMillis = Long.parseLong(Optional.ofNullable(System.getenv("CTP_STRIPE_ADAPTER_CAPTURE_AFTER_MS")).orElse("86400000"));
+        final int batchSize = Integer.parseInt(Optional.ofNullable(System.getenv("CTP_STRIPE_ADAPTER_CAPTURE_BATCH_SIZE")).orElse("100"));
+        final int parallelism = Integer.parseInt(Optional.ofNullable(System.getenv("CTP_STRIPE_ADAPTER_CAPTURE_PARALLELISM")).orElse("4"));
+        return new CaptureScheduler(tenant, scheduler, captureAfterMillis, batchSize, parallelism);
+    }
+
+    /**
+     * @return The interval of the runs from CTP_STRIPE_ADAPTER_CAPTURE_INTERVAL_MS.
+     */
+    public static long intervalFromEnvironment() {
+        return Long.parseLong(Optional.ofNullable(System.getenv("CTP_STRIPE_ADAPTER_CAPTURE_INTERVAL_MS")).orElse("60000"));
+    }
+
+    public void start(long intervalMillis) {
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                final int captured = captureDue();
+                if (captured > 0) LOG.info("Captured authorized payments", "tenant", tenant.getKey(), "count", captured);
+            } catch (Exception e) {
+                LOG.warn("Capturing authorized payments failed", e, "tenant", tenant.getKey());
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Captures the authorized charge of the payment, e.g. when the order is shipped.
+     */
+    public CompletionStage<PaymentPair<Optional<String>>> captureNow(String paymentId) {
+        final Deadline deadline = Deadline.fromEnvironment();
+        return tenant.getPaymentCache()
+            .fetch(tenant.getCtpReads(), paymentId, deadline)
+            .thenCompose(payment -> new IdempotentCaptureExecutor(payment, tenant, deadline).executionResult());
+    }
+
+    /**
+     * Captures the authorizations older than the threshold, until there are none left.
+     * @return The number of captured payments.
+     */
+    public int captureDue() throws Exception {
+        int captured = 0;
+        String lastPaymentId = "";
+        final String authorizedBefore = Instant.now().minusMillis(captureAfterMillis).toString();
+        while (true) {
+            final List<Payment> page = fetchDue(authorizedBefore, lastPaymentId);
+            if (page.isEmpty()) return captured;
+            lastPaymentId = page.get(page.size() - 1).getId();
+            // A capture that failed permanently is not retried, see IdempotentCaptureExecutor
+            final List<Payment> due = page.stream()
+                .filter(payment -> !new IdempotentCaptureExecutor(payment, tenant).previousExecution().isPresent())
+                .collect(Collectors.toList());
+            final List<PaymentPair<Optional<String>>> results = ParallelTasks.map(
+                due, parallelism, payment -> new IdempotentCaptureExecutor(payment, tenant).executionResult()).get();
+            final long capturedInBatch = results.stream()
+                .filter(result -> result != null && result.getRight().isPresent())
+                .count();
+            captured += capturedInBatch;
+            // Stop if nothing could be captured, the remaining payments are retried on the next run.
+            if (page.size() < batchSize || (!due.isEmpty() && capturedInBatch == 0)) return captured;
+        }
+    }
+
+    /**
+     * @return The next page of payments that are authorized before the time and not captured yet.
+     */
+    private List<Payment> fetchDue(String authorizedBefore, String lastPaymentId) throws Exception {
+        final Optional<String> authorizedTypeId = tenant.getTypeKeyToId().getId("STRIPE_AUTHORIZED");
+        final Optional<String> chargedTypeId = tenant.getTypeKeyToId().getId("STRIPE_CHARGED");
+        if (!authorizedTypeId.isPresent() || !chargedTypeId.isPresent()) return Collections.emptyList();
+        // The authorization transaction has the time of the charge at Stripe, which may be long after the payment was created
+        final QueryPredicate<Payment> predicate = QueryPredicate.of(
+            "interfaceInteractions(type(id=\"" + authorizedTypeId.get() + "\"))"
+            + " and not(interfaceInteractions(type(id=\"" + chargedTypeId.get() + "\")))"
+            + " and transactions(type=\"Authorization\" and timestamp < \"" + authorizedBefore + "\")"
+            + " and id > \"" + lastPaymentId + "\"");
+        return tenant.getClient()
+            .execute(PaymentQuery.of()
+                .withPredicates(predicate)
+                .withSort(QuerySort.of("id asc"))
+                .withLimit(batchSize))
+            .toCompletableFuture()
+            .get()
+            .getResults();
+    }
+}
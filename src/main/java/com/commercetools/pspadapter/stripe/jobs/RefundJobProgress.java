@@ -0,0 +1,48 @@
+package com.commercetools.pspadapter.stripe.jobs;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * The progress of a bulk refund job, stored as CTP custom object so an interrupted job can be resumed.
+ */
+public class RefundJobProgress {
+    final private String lastPaymentId;
+    final private long refunded;
+    final private long failed;
+    final private long skipped;
+
+    @JsonCreator
+    public RefundJobProgress(@JsonProperty("lastPaymentId") String lastPaymentId, @JsonProperty("refunded") long refunded,
+                             @JsonProperty("failed") long failed, @JsonProperty("skipped") long skipped) {
+        this.lastPaymentId = lastPaymentId;
+        this.refunded = refunded;
+        this.failed = failed;
+        this.skipped = skipped;
+    }
+
+    /**
+     * @return The highest payment id that has been processed, or an empty string if the job did not start yet.
+     */
+    public String getLastPaymentId() {
+        return lastPaymentId;
+    }
+
+    public long getRefunded() {
+        return refunded;
+    }
+
+    /**
+     * @return The number of payments whose refund failed permanently.
+     */
+    public long getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return The number of payments that were already refunded, had nothing to refund or failed in an earlier run.
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+}
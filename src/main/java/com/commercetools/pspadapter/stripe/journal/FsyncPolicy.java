@@ -0,0 +1,18 @@
+package com.commercetools.pspadapter.stripe.journal;
+
+public enum FsyncPolicy {
+    /**
+     * Forces every batch of writes to disk before the appends complete. Concurrent appends share one fsync.
+     */
+    ALWAYS,
+
+    /**
+     * Forces the writes to disk at most once per interval. A crash of the machine can lose the last interval.
+     */
+    INTERVAL,
+
+    /**
+     * Leaves it to the operating system. Survives a crash of the process, but not of the machine.
+     */
+    NEVER
+}
@@ -0,0 +1,25 @@
+package com.commercetools.pspadapter.stripe.journal;
+
+public class JournalEntry {
+    final private long sequence;
+    final private String tenantKey;
+    final private String body;
+
+    public JournalEntry(long sequence, String tenantKey, String body) {
+        this.sequence = sequence;
+        this.tenantKey = tenantKey;
+        this.body = body;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public String getTenantKey() {
+        return tenantKey;
+    }
+
+    public String getBody() {
+        return body;
+    }
+}
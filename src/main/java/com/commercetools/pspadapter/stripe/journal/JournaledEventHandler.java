@@ -0,0 +1,99 @@
+package com.commercetools.pspadapter.stripe.journal;
+
+import com.commercetools.pspadapter.stripe.logging.Log;
+import com.commercetools.pspadapter.stripe.tenants.Tenant;
+import com.commercetools.pspadapter.stripe.tenants.TenantRegistry;
+import com.commercetools.pspadapter.stripe.webhookprocessors.StripeEventHandler;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Acknowledges a webhook as soon as it is written to the journal, and processes it in the background.
+ * An event that failed, or whose payment was not found (404), is retried with backoff while the process runs. After
+ * the last attempt it is completed, as the event handler kept it as dead letter. Events that were not completed before
+ * a crash are replayed on startup.
+ */
+public class JournaledEventHandler {
+    private static final Log LOG = Log.of(JournaledEventHandler.class);
+
+    private static final int MAX_ATTEMPTS = 8;
+    private static final long FIRST_RETRY_MILLIS = 1000;
+
+    final private WebhookJournal journal;
+    final private TenantRegistry tenants;
+    final private ScheduledExecutorService scheduler;
+    final private AtomicLong retries = new AtomicLong();
+
+    public JournaledEventHandler(WebhookJournal journal, TenantRegistry tenants) {
+        this(journal, tenants, Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "webhook-journal-retries");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    /**
+     * @param scheduler Schedules the retries of failed events.
+     */
+    public JournaledEventHandler(WebhookJournal journal, TenantRegistry tenants, ScheduledExecutorService scheduler) {
+        this.journal = journal;
+        this.tenants = tenants;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @return The HTTP status code for the webhook response, once the event is durable.
+     */
+    public CompletionStage<Integer> accept(Tenant tenant, String body) {
+        return journal.append(tenant.getKey(), body)
+            .thenApply(sequence -> {
+                process(tenant, sequence, body, 1);
+                return 200;
+            });
+    }
+
+    /**
+     * Processes the events that were accepted, but not completed before the last shutdown or crash.
+     */
+    public void replay() {
+        journal.getRecovered().forEach(entry -> {
+            final Optional<Tenant> tenant = tenants.get(entry.getTenantKey());
+            if (tenant.isPresent()) process(tenant.get(), entry.getSequence(), entry.getBody(), 1);
+            else LOG.warn("Can not replay journal entry of unknown tenant", "sequence", entry.getSequence(), "tenant", entry.getTenantKey());
+        });
+    }
+
+    public Map<String, Long> getStatistics() {
+        final Map<String, Long> statistics = new LinkedHashMap<>(journal.getStatistics());
+        statistics.put("journal_retries", retries.get());
+        return statistics;
+    }
+
+    private void process(Tenant tenant, long sequence, String body, int attempt) {
+        new StripeEventHandler(tenant).handle(body)
+            .whenComplete((statusCode, e) -> {
+                if (e == null && statusCode != 404 && statusCode < 500) {
+                    journal.complete(sequence);
+                    return;
+                }
+                LOG.warn("Processing journal entry failed", e, "sequence", sequence, "tenant", tenant.getKey(),
+                    "status", statusCode, "attempt", attempt);
+                if (attempt >= MAX_ATTEMPTS) {
+                    // Left to the dead letters from now on
+                    journal.complete(sequence);
+                    return;
+                }
+                retries.incrementAndGet();
+                // Until the retry succeeds, the event stays in the journal and is replayed after a restart.
+                scheduler.schedule(() -> process(tenant, sequence, body, attempt + 1),
+                    FIRST_RETRY_MILLIS << (attempt - 1), TimeUnit.MILLISECONDS);
+            });
+    }
+}
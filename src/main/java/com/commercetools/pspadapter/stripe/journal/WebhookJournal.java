@@ -0,0 +1,366 @@
+package com.commercetools.pspadapter.stripe.journal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of accepted webhook events on local disk, split into segments.
+ * One writer thread takes all waiting appends and writes them with a single write (and fsync), so concurrent webhooks
+ * share the cost of the fsync (group commit). With the INTERVAL policy, the writer also forces writes that were left
+ * unforced once the interval is over, so a quiet journal is not left unforced until the next webhook.
+ * A completion marker is appended once an event has been processed.
+ * Old segments are deleted when all their events are completed; the few events still pending in the oldest segment are
+ * copied to the current segment first.
+ *
+ * Record layout: int size | byte type | long sequence | payload | int crc32 (of type, sequence and payload)
+ */
+public class WebhookJournal implements Closeable {
+    private static final byte ACCEPTED = 1;
+    private static final byte COMPLETED = 2;
+    private static final int HEADER_BYTES = 4 + 1 + 8;
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    final private Path directory;
+    final private FsyncPolicy fsyncPolicy;
+    final private long fsyncIntervalMillis;
+    final private long segmentBytes;
+    final private int maxSegments;
+    final private BlockingQueue<PendingWrite> queue = new ArrayBlockingQueue<>(10000);
+    final private Thread writer;
+
+    // Only accessed by the writer thread (and during open)
+    final private Map<Long, JournalEntry> pending = new HashMap<>();
+    final private Map<Long, Long> segmentOfPending = new HashMap<>();
+    final private Deque<Long> segments = new ArrayDeque<>();
+    private FileChannel current;
+    private long currentSegment;
+    private long nextSequence;
+    private long lastForce;
+    private boolean unforced;
+    private volatile boolean closed;
+    final private AtomicLong appends = new AtomicLong();
+    final private AtomicLong fsyncs = new AtomicLong();
+    final private AtomicLong pendingCount = new AtomicLong();
+
+    final private List<JournalEntry> recovered;
+
+    private WebhookJournal(Path directory, FsyncPolicy fsyncPolicy, long fsyncIntervalMillis, long segmentBytes, int maxSegments) throws IOException {
+        this.directory = directory;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = maxSegments;
+        Files.createDirectories(directory);
+        recover();
+        this.recovered = new ArrayList<>(pending.values());
+        this.recovered.sort(Comparator.comparingLong(entry -> entry.getSequence()));
+        this.pendingCount.set(pending.size());
+        openSegment();
+        this.writer = new Thread(this::write, "webhook-journal");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    public static WebhookJournal open(Path directory, FsyncPolicy fsyncPolicy, long fsyncIntervalMillis, long segmentBytes, int maxSegments) throws IOException {
+        return new WebhookJournal(directory, fsyncPolicy, fsyncIntervalMillis, segmentBytes, maxSegments);
+    }
+
+    /**
+     * Uses the CTP_STRIPE_ADAPTER_JOURNAL_DIR, CTP_STRIPE_ADAPTER_JOURNAL_FSYNC (ALWAYS, INTERVAL or NEVER) and
+     * CTP_STRIPE_ADAPTER_JOURNAL_FSYNC_INTERVAL_MS environment variables.
+     */
+    public static Optional<WebhookJournal> fromEnvironment() throws IOException {
+        final String directory = System.getenv("CTP_STRIPE_ADAPTER_JOURNAL_DIR");
+        if (directory == null) return Optional.empty();
+        final FsyncPolicy fsyncPolicy = FsyncPolicy.valueOf(
+            Optional.ofNullable(System.getenv("CTP_STRIPE_ADAPTER_JOURNAL_FSYNC")).orElse("ALWAYS").toUpperCase());
+        final long fsyncIntervalMillis = Long.parseLong(
+            Optional.ofNullable(System.getenv("CTP_STRIPE_ADAPTER_JOURNAL_FSYNC_INTERVAL_MS")).orElse("100"));
+        return Optional.of(open(java.nio.file.Paths.get(directory), fsyncPolicy, fsyncIntervalMillis, 64L * 1024 * 1024, 4));
+    }
+
+    /**
+     * @return The events that were accepted, but not completed before the last shutdown or crash.
+     */
+    public List<JournalEntry> getRecovered() {
+        return Collections.unmodifiableList(recovered);
+    }
+
+    /**
+     * @return The sequence number of the event, once it has been written according to the fsync policy.
+     */
+    public CompletableFuture<Long> append(String tenantKey, String body) {
+        final byte[] payload = (tenantKey + "\n" + body).getBytes(StandardCharsets.UTF_8);
+        return enqueue(new PendingWrite(ACCEPTED, -1, payload));
+    }
+
+    /**
+     * Marks the event as processed, so it is not replayed after a restart.
+     */
+    public CompletableFuture<Long> complete(long sequence) {
+        return enqueue(new PendingWrite(COMPLETED, sequence, new byte[0]));
+    }
+
+    /**
+     * @return The number of appends and fsyncs, so the share of the group commit can be seen, and the number of events
+     * not completed yet.
+     */
+    public Map<String, Long> getStatistics() {
+        final Map<String, Long> statistics = new LinkedHashMap<>();
+        statistics.put("journal_appends", appends.get());
+        statistics.put("journal_fsyncs", fsyncs.get());
+        statistics.put("journal_pending", pendingCount.get());
+        return statistics;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        writer.interrupt();
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        current.force(true);
+        current.close();
+    }
+
+    private CompletableFuture<Long> enqueue(PendingWrite write) {
+        if (closed) {
+            write.done.completeExceptionally(new IOException("Journal is closed"));
+        } else if (!queue.offer(write)) {
+            write.done.completeExceptionally(new IOException("Journal queue is full"));
+        }
+        return write.done;
+    }
+
+    private void write() {
+        final List<PendingWrite> batch = new ArrayList<>();
+        while (!closed || !queue.isEmpty()) {
+            try {
+                if (!unforced) {
+                    batch.add(queue.take());
+                } else {
+                    final PendingWrite next = queue.poll(Math.max(0, lastForce + fsyncIntervalMillis - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                    if (next == null) {
+                        force();
+                        continue;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                if (queue.isEmpty()) return;
+            } catch (IOException e) {
+                // Forced with the next batch
+                continue;
+            }
+            queue.drainTo(batch);
+            try {
+                writeBatch(batch);
+                batch.forEach(write -> write.done.complete(write.sequence));
+            } catch (IOException | RuntimeException e) {
+                batch.forEach(write -> write.done.completeExceptionally(e));
+            }
+            batch.clear();
+        }
+    }
+
+    private void writeBatch(List<PendingWrite> batch) throws IOException {
+        // A failed batch that could not be discarded left no segment open
+        if (!current.isOpen()) openSegment();
+        if (current.size() >= segmentBytes) rollSegment();
+        int size = 0;
+        for (PendingWrite write : batch) size += HEADER_BYTES + write.payload.length + 4;
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        long sequence = nextSequence;
+        for (PendingWrite write : batch) {
+            if (write.type == ACCEPTED) write.sequence = sequence++;
+            encode(buffer, write.type, write.sequence, write.payload);
+        }
+        buffer.flip();
+        final long position = current.position();
+        try {
+            while (buffer.hasRemaining()) current.write(buffer);
+            if (fsyncPolicy == FsyncPolicy.ALWAYS || (fsyncPolicy == FsyncPolicy.INTERVAL && System.currentTimeMillis() - lastForce >= fsyncIntervalMillis)) {
+                force();
+            } else {
+                unforced = fsyncPolicy == FsyncPolicy.INTERVAL;
+            }
+        } catch (IOException e) {
+            // The sequences can only be given out again if no record of the failed batch is left in a segment
+            if (!discard(position)) nextSequence = sequence;
+            throw e;
+        }
+        // The batch is in the journal, only now its events are pending
+        nextSequence = sequence;
+        for (PendingWrite write : batch) {
+            if (write.type == ACCEPTED) {
+                final String[] tenantAndBody = new String(write.payload, StandardCharsets.UTF_8).split("\n", 2);
+                pending.put(write.sequence, new JournalEntry(write.sequence, tenantAndBody[0], tenantAndBody[1]));
+                segmentOfPending.put(write.sequence, currentSegment);
+                appends.incrementAndGet();
+            } else {
+                pending.remove(write.sequence);
+                segmentOfPending.remove(write.sequence);
+            }
+        }
+        pendingCount.set(pending.size());
+        compact();
+    }
+
+    /**
+     * Cuts a batch that failed to be written off the current segment, so a part of it is not recovered after a restart.
+     * If the segment can not be truncated, the writes continue in a new segment.
+     * @return Whether the segment was truncated.
+     */
+    private boolean discard(long position) {
+        try {
+            current.truncate(position);
+            current.position(position);
+            return true;
+        } catch (IOException e) {
+            try {
+                current.close();
+            } catch (IOException ignored) {
+                // The segment is abandoned anyway
+            }
+            try {
+                openSegment();
+            } catch (IOException ignored) {
+                // Opened by the next batch
+            }
+            return false;
+        }
+    }
+
+    private void force() throws IOException {
+        lastForce = System.currentTimeMillis();
+        current.force(false);
+        fsyncs.incrementAndGet();
+        unforced = false;
+    }
+
+    private void encode(ByteBuffer buffer, byte type, long sequence, byte[] payload) {
+        final CRC32 crc = new CRC32();
+        final ByteBuffer checked = ByteBuffer.allocate(1 + 8 + payload.length);
+        checked.put(type).putLong(sequence).put(payload);
+        crc.update(checked.array());
+        buffer.putInt(1 + 8 + payload.length).put(checked.array()).putInt((int) crc.getValue());
+    }
+
+    /**
+     * Deletes the oldest segments without pending events. If there are too many segments, the pending events of the
+     * oldest segment are copied to the current segment, so it can be deleted as well.
+     */
+    private void compact() throws IOException {
+        while (segments.size() > 1) {
+            final long oldest = segments.peekFirst();
+            final List<Long> pendingInOldest = segmentOfPending.entrySet().stream()
+                .filter(entry -> entry.getValue() == oldest)
+                .map(entry -> entry.getKey())
+                .sorted()
+                .collect(Collectors.toList());
+            if (!pendingInOldest.isEmpty()) {
+                if (segments.size() <= maxSegments) return;
+                for (Long sequence : pendingInOldest) {
+                    final JournalEntry entry = pending.get(sequence);
+                    final byte[] payload = (entry.getTenantKey() + "\n" + entry.getBody()).getBytes(StandardCharsets.UTF_8);
+                    final ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + payload.length + 4);
+                    encode(buffer, ACCEPTED, sequence, payload);
+                    buffer.flip();
+                    while (buffer.hasRemaining()) current.write(buffer);
+                    segmentOfPending.put(sequence, currentSegment);
+                }
+                current.force(false);
+            }
+            segments.pollFirst();
+            Files.deleteIfExists(segmentPath(oldest));
+        }
+    }
+
+    private void rollSegment() throws IOException {
+        current.force(false);
+        current.close();
+        openSegment();
+    }
+
+    private void openSegment() throws IOException {
+        // Segments are numbered by the first sequence they may contain. A new segment is started on every startup.
+        currentSegment = segments.isEmpty() ? nextSequence : Math.max(nextSequence, segments.peekLast() + 1);
+        current = FileChannel.open(segmentPath(currentSegment),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        segments.addLast(currentSegment);
+    }
+
+    private Path segmentPath(long segment) {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    private void recover() throws IOException {
+        final List<Path> segmentFiles;
+        try (Stream<Path> files = Files.list(directory)) {
+            segmentFiles = files
+                .filter(path -> path.getFileName().toString().startsWith(SEGMENT_PREFIX))
+                .sorted()
+                .collect(Collectors.toList());
+        }
+        for (Path path : segmentFiles) {
+            final String name = path.getFileName().toString();
+            final long segment = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            segments.addLast(segment);
+            final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+            while (buffer.remaining() >= 4) {
+                final int size = buffer.getInt();
+                if (size < 9 || buffer.remaining() < size + 4) break; // Torn write at the end of the segment
+                final byte[] checked = new byte[size];
+                buffer.get(checked);
+                final int expectedCrc = buffer.getInt();
+                final CRC32 crc = new CRC32();
+                crc.update(checked);
+                if ((int) crc.getValue() != expectedCrc) break;
+                final ByteBuffer record = ByteBuffer.wrap(checked);
+                final byte type = record.get();
+                final long sequence = record.getLong();
+                nextSequence = Math.max(nextSequence, sequence + 1);
+                if (type == ACCEPTED) {
+                    final String[] tenantAndBody = new String(checked, 9, size - 9, StandardCharsets.UTF_8).split("\n", 2);
+                    pending.put(sequence, new JournalEntry(sequence, tenantAndBody[0], tenantAndBody[1]));
+                    segmentOfPending.put(sequence, segment);
+                } else {
+                    pending.remove(sequence);
+                    segmentOfPending.remove(sequence);
+                }
+            }
+        }
+    }
+
+    private static class PendingWrite {
+        final byte type;
+        final byte[] payload;
+        final CompletableFuture<Long> done = new CompletableFuture<>();
+        long sequence;
+
+        PendingWrite(byte type, long sequence, byte[] payload) {
+            this.type = type;
+            this.sequence = sequence;
+            this.payload = payload;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.commercetools.pspadapter.stripe.leases;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * The claim of a node on a partition of the payment id space, stored as CTP custom object.
+ */
+public class Lease {
+    final private String owner;
+    final private long expiresAt;
+
+    @JsonCreator
+    public Lease(@JsonProperty("owner") String owner, @JsonProperty("expiresAt") long expiresAt) {
+        this.owner = owner;
+        this.expiresAt = expiresAt;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public boolean isHeldBy(String nodeId, long now) {
+        return nodeId.equals(owner) && !isExpired(now);
+    }
+
+    public boolean isExpired(long now) {
+        return expiresAt <= now;
+    }
+}
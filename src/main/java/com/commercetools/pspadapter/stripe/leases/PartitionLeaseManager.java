@@ -0,0 +1,207 @@
+package com.commercetools.pspadapter.stripe.leases;
+
+import com.commercetools.pspadapter.stripe.logging.Log;
+import io.sphere.sdk.client.SphereClient;
+import io.sphere.sdk.customobjects.CustomObject;
+import io.sphere.sdk.customobjects.CustomObjectDraft;
+import io.sphere.sdk.customobjects.commands.CustomObjectDeleteCommand;
+import io.sphere.sdk.customobjects.commands.CustomObjectUpsertCommand;
+import io.sphere.sdk.customobjects.queries.CustomObjectQuery;
+
+import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Splits the payment id space into partitions, so several nodes can share the PaymentCreated messages.
+ * Every node claims its fair share of partitions with leases stored as CTP custom objects, and renews them with a
+ * heartbeat. Leases are written with the version of the custom object, so only one node can win a partition.
+ * If a node disappears, its leases expire and are claimed by the remaining nodes.
+ * Every node also writes a heartbeat object of its own, so a node that holds no lease yet is counted for the fair
+ * share, and the other nodes give up partitions for it.
+ */
+public class PartitionLeaseManager implements Predicate<String> {
+    private static final Log LOG = Log.of(PartitionLeaseManager.class);
+
+    public static final String CONTAINER = "ctp-stripe-adapter-leases";
+    public static final String NODES_CONTAINER = "ctp-stripe-adapter-nodes";
+
+    final private SphereClient client;
+    final private ScheduledExecutorService scheduler;
+    final private int partitions;
+    final private long leaseMillis;
+    final private String nodeId = UUID.randomUUID().toString();
+
+    private volatile Set<Integer> ownedPartitions = Collections.emptySet();
+    private volatile long validUntil = 0;
+
+    public PartitionLeaseManager(SphereClient client, ScheduledExecutorService scheduler, int partitions, long leaseMillis) {
+        this.client = client;
+        this.scheduler = scheduler;
+        this.partitions = partitions;
+        this.leaseMillis = leaseMillis;
+    }
+
+    /**
+     * Uses the CTP_STRIPE_ADAPTER_PARTITIONS and CTP_STRIPE_ADAPTER_LEASE_MS environment variables. Without
+     * CTP_STRIPE_ADAPTER_PARTITIONS, the node does not share the messages and processes all payments.
+     */
+    public static Optional<PartitionLeaseManager> fromEnvironment(SphereClient client, ScheduledExecutorService scheduler) {
+        final Optional<Integer> partitions = Optional.ofNullable(System.getenv("CTP_STRIPE_ADAPTER_PARTITIONS")).map(Integer::parseInt);
+        final long leaseMillis = Long.parseLong(Optional.ofNullable(System.getenv("CTP_STRIPE_ADAPTER_LEASE_MS")).orElse("30000"));
+        return partitions.map(p -> new PartitionLeaseManager(client, scheduler, p, leaseMillis));
+    }
+
+    public void start() {
+        scheduler.scheduleWithFixedDelay(this::heartbeat, 0, leaseMillis / 3, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return Whether this node currently holds the lease of the partition of the payment.
+     */
+    @Override
+    public boolean test(String paymentId) {
+        return isValid() && owns(paymentId);
+    }
+
+    /**
+     * @return Whether the payment belongs to a partition this node holds, even if the last heartbeat is too long ago to
+     * be sure the leases are still held.
+     */
+    public boolean owns(String paymentId) {
+        return ownedPartitions.contains(partitionOf(paymentId));
+    }
+
+    /**
+     * @return Whether the last heartbeat is recent enough that the held leases can not have expired at CTP.
+     */
+    public boolean isValid() {
+        // Stop processing before the lease can expire at CTP
+        return System.currentTimeMillis() < validUntil;
+    }
+
+    public int partitionOf(String paymentId) {
+        return Math.floorMod(paymentId.hashCode(), partitions);
+    }
+
+    public Set<Integer> getOwnedPartitions() {
+        return ownedPartitions;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Gives up all leases, so the other nodes can take them over right away.
+     */
+    public void release() {
+        final Set<Integer> released = ownedPartitions;
+        ownedPartitions = Collections.emptySet();
+        try {
+            client.execute(CustomObjectDeleteCommand.of(NODES_CONTAINER, nodeId, Lease.class)).toCompletableFuture().get();
+            final Map<Integer, CustomObject<Lease>> leases = fetchLeases();
+            released.forEach(partition -> Optional.ofNullable(leases.get(partition))
+                .ifPresent(lease -> write(partition, new Lease("", 0), lease.getVersion())));
+        } catch (Exception e) {
+            LOG.warn("Releasing leases failed", e, "nodeId", nodeId);
+        }
+    }
+
+    void heartbeat() {
+        try {
+            final long heartbeatStart = System.currentTimeMillis();
+            final Set<String> liveNodes = fetchLiveNodes(heartbeatStart);
+            final Map<Integer, CustomObject<Lease>> leases = fetchLeases();
+            // Owners of leases count too, in case their heartbeat object could not be written
+            leases.values().stream()
+                .map(lease -> lease.getValue())
+                .filter(lease -> !lease.isExpired(heartbeatStart) && !lease.getOwner().isEmpty())
+                .forEach(lease -> liveNodes.add(lease.getOwner()));
+            liveNodes.add(nodeId);
+            final int fairShare = (partitions + liveNodes.size() - 1) / liveNodes.size();
+
+            final List<Integer> held = leases.entrySet().stream()
+                .filter(entry -> entry.getValue().getValue().isHeldBy(nodeId, heartbeatStart))
+                .map(entry -> entry.getKey())
+                .sorted()
+                .collect(Collectors.toList());
+            final Set<Integer> owned = new HashSet<>();
+            final Lease renewed = new Lease(nodeId, heartbeatStart + leaseMillis);
+            for (Integer partition : held) {
+                final long version = leases.get(partition).getVersion();
+                if (owned.size() >= fairShare) {
+                    // Rebalance: Give up partitions above the fair share, so new nodes get their share.
+                    write(partition, new Lease("", 0), version);
+                } else if (write(partition, renewed, version)) {
+                    owned.add(partition);
+                }
+            }
+            for (int partition = 0; partition < partitions && owned.size() < fairShare; partition++) {
+                final CustomObject<Lease> lease = leases.get(partition);
+                if (lease == null) {
+                    // Version 0 only creates the lease if no other node created it in the meantime.
+                    if (write(partition, renewed, 0L)) owned.add(partition);
+                } else if (lease.getValue().isExpired(heartbeatStart) && write(partition, renewed, lease.getVersion())) {
+                    owned.add(partition);
+                }
+            }
+            ownedPartitions = Collections.unmodifiableSet(owned);
+            // Leave a third of the lease as margin for clock differences and slow requests.
+            validUntil = heartbeatStart + leaseMillis * 2 / 3;
+        } catch (Exception e) {
+            LOG.warn("Lease heartbeat failed", e, "nodeId", nodeId);
+        }
+    }
+
+    /**
+     * Writes the heartbeat object of this node and reads those of the nodes that are alive. Removes heartbeat objects
+     * of nodes that are gone for a while, so they don't pile up over restarts.
+     */
+    private Set<String> fetchLiveNodes(long now) throws Exception {
+        client.execute(CustomObjectUpsertCommand.of(
+            CustomObjectDraft.ofUnversionedUpsert(NODES_CONTAINER, nodeId, new Lease(nodeId, now + leaseMillis), Lease.class)
+        )).toCompletableFuture().get();
+        final List<CustomObject<Lease>> nodes = client
+            .execute(CustomObjectQuery.of(Lease.class).byContainer(NODES_CONTAINER).withLimit(500))
+            .toCompletableFuture()
+            .get()
+            .getResults();
+        nodes.stream()
+            .filter(node -> node.getValue().isExpired(now - 10 * leaseMillis))
+            .forEach(node -> client.execute(CustomObjectDeleteCommand.of(NODES_CONTAINER, node.getKey(), Lease.class)));
+        return nodes.stream()
+            .map(node -> node.getValue())
+            .filter(node -> !node.isExpired(now))
+            .map(node -> node.getOwner())
+            .collect(Collectors.toSet());
+    }
+
+    private Map<Integer, CustomObject<Lease>> fetchLeases() throws Exception {
+        final List<CustomObject<Lease>> results = client
+            .execute(CustomObjectQuery.of(Lease.class).byContainer(CONTAINER).withLimit(500))
+            .toCompletableFuture()
+            .get()
+            .getResults();
+        final Map<Integer, CustomObject<Lease>> leases = new HashMap<>();
+        results.forEach(lease -> leases.put(Integer.parseInt(lease.getKey()), lease));
+        return leases;
+    }
+
+    /**
+     * @return Whether the lease was written, i.e. no other node changed it since it was read.
+     */
+    private boolean write(int partition, Lease lease, long version) {
+        try {
+            client.execute(CustomObjectUpsertCommand.of(
+                CustomObjectDraft.ofVersionedUpdate(CONTAINER, String.valueOf(partition), lease, version, Lease.class)
+            )).toCompletableFuture().get();
+            return true;
+        } catch (Exception e) {
+            // Most likely a concurrent modification by another node
+            return false;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.commercetools.pspadapter.stripe.logging;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.*;
+
+/**
+ * Hands log records to a writer thread through a bounded queue. If the queue is full, e.g. while a Stripe outage
+ * produces an error per request, records are dropped instead of slowing down the processing threads. The number of
+ * dropped records is logged once the writer catches up.
+ */
+public class AsyncLogHandler extends Handler {
+    private static AsyncLogHandler installed;
+
+    final private BlockingQueue<LogRecord> queue;
+    final private Handler target;
+    final private AtomicLong dropped = new AtomicLong();
+
+    public AsyncLogHandler(Handler target, int capacity) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.target = target;
+        final Thread writer = new Thread(this::write, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Replaces the handlers of the root logger with an AsyncLogHandler writing to stdout.
+     * Uses the CTP_STRIPE_ADAPTER_LOG_LEVEL and CTP_STRIPE_ADAPTER_LOG_QUEUE_SIZE environment variables.
+     */
+    public static synchronized AsyncLogHandler install() {
+        if (installed != null) return installed;
+        final Level level = Level.parse(Optional.ofNullable(System.getenv("CTP_STRIPE_ADAPTER_LOG_LEVEL")).orElse("INFO"));
+        final int capacity = Integer.parseInt(Optional.ofNullable(System.getenv("CTP_STRIPE_ADAPTER_LOG_QUEUE_SIZE")).orElse("10000"));
+        final StreamHandler stdout = new StreamHandler(System.out, new KeyValueFormatter());
+        stdout.setLevel(Level.ALL);
+        installed = new AsyncLogHandler(stdout, capacity);
+        final Logger root = LogManager.getLogManager().getLogger("");
+        for (Handler handler : root.getHandlers()) {
+            root.removeHandler(handler);
+        }
+        root.addHandler(installed);
+        root.setLevel(level);
+        Runtime.getRuntime().addShutdownHook(new Thread(installed::close));
+        return installed;
+    }
+
+    public static Optional<AsyncLogHandler> getInstalled() {
+        return Optional.ofNullable(installed);
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (!isLoggable(record)) return;
+        if (!queue.offer(record)) dropped.incrementAndGet();
+    }
+
+    @Override
+    public void flush() {
+        // The writer flushes whenever the queue runs empty
+    }
+
+    @Override
+    public void close() {
+        final List<LogRecord> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        remaining.forEach(target::publish);
+        target.flush();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private void write() {
+        long reportedDropped = 0;
+        while (true) {
+            try {
+                target.publish(queue.take());
+                if (queue.isEmpty()) {
+                    final long droppedNow = dropped.get();
+                    if (droppedNow > reportedDropped) {
+                        final LogRecord record = new LogRecord(Level.WARNING, "msg=\"Dropped log records\" count=" + (droppedNow - reportedDropped));
+                        record.setLoggerName(AsyncLogHandler.class.getName());
+                        target.publish(record);
+                        reportedDropped = droppedNow;
+                    }
+                    target.flush();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                // Never let a broken record stop the writer
+                dropped.incrementAndGet();
+            }
+        }
+    }
+}
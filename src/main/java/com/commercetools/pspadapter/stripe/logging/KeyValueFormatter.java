@@ -0,0 +1,34 @@
+package com.commercetools.pspadapter.stripe.logging;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.util.logging.Formatter;
+import java.util.logging.LogRecord;
+
+/**
+ * Formats a record as one line of key/value pairs, followed by the stack trace if there is one.
+ */
+public class KeyValueFormatter extends Formatter {
+    @Override
+    public String format(LogRecord record) {
+        final StringBuilder builder = new StringBuilder()
+            .append("time=").append(Instant.ofEpochMilli(record.getMillis()))
+            .append(" level=").append(record.getLevel().getName())
+            .append(" logger=").append(simpleName(record.getLoggerName()))
+            .append(" thread=").append(record.getThreadID())
+            .append(' ').append(record.getMessage())
+            .append('\n');
+        if (record.getThrown() != null) {
+            final StringWriter stackTrace = new StringWriter();
+            record.getThrown().printStackTrace(new PrintWriter(stackTrace));
+            builder.append(stackTrace);
+        }
+        return builder.toString();
+    }
+
+    private static String simpleName(String loggerName) {
+        if (loggerName == null) return "root";
+        return loggerName.substring(loggerName.lastIndexOf('.') + 1);
+    }
+}
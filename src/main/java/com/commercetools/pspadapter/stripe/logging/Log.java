@@ -0,0 +1,111 @@
+package com.commercetools.pspadapter.stripe.logging;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Structured logging with key/value pairs. A Log can be bound to a context (e.g. the payment id) with with(), and the
+ * bound Log can be captured by the stages of a CompletableFuture chain, whatever thread they run on.
+ * Records are written by an AsyncLogHandler, so logging never blocks the processing threads.
+ */
+public class Log {
+    private static final long STACK_TRACE_INTERVAL_MILLIS = 60000;
+    private static final Map<String, Long> lastStackTraces = new ConcurrentHashMap<>();
+
+    static {
+        AsyncLogHandler.install();
+    }
+
+    final private Logger logger;
+    final private Object[] context;
+
+    private Log(Logger logger, Object[] context) {
+        this.logger = logger;
+        this.context = context;
+    }
+
+    public static Log of(Class<?> type) {
+        return new Log(Logger.getLogger(type.getName()), new Object[0]);
+    }
+
+    /**
+     * @return A Log that adds the key/value pair to every record.
+     */
+    public Log with(String key, Object value) {
+        final Object[] extended = Arrays.copyOf(context, context.length + 2);
+        extended[context.length] = key;
+        extended[context.length + 1] = value;
+        return new Log(logger, extended);
+    }
+
+    public void info(String message, Object... keyValues) {
+        log(Level.INFO, message, null, keyValues);
+    }
+
+    public void warn(String message, Object... keyValues) {
+        log(Level.WARNING, message, null, keyValues);
+    }
+
+    public void warn(String message, Throwable e, Object... keyValues) {
+        log(Level.WARNING, message, e, keyValues);
+    }
+
+    public void error(String message, Throwable e, Object... keyValues) {
+        log(Level.SEVERE, message, e, keyValues);
+    }
+
+    /**
+     * Logs the stack trace only once per minute per exception type. Known temporary failures come in bursts, and
+     * one stack trace per burst is enough.
+     */
+    public void warnThrottled(String message, Throwable e, Object... keyValues) {
+        if (!logger.isLoggable(Level.WARNING)) return;
+        final long now = System.currentTimeMillis();
+        final boolean[] stackTrace = {false};
+        lastStackTraces.compute(e.getClass().getName(), (type, last) -> {
+            if (last != null && now - last < STACK_TRACE_INTERVAL_MILLIS) return last;
+            stackTrace[0] = true;
+            return now;
+        });
+        log(Level.WARNING, message, e, stackTrace[0], keyValues);
+    }
+
+    private void log(Level level, String message, Throwable e, Object[] keyValues) {
+        log(level, message, e, true, keyValues);
+    }
+
+    private void log(Level level, String message, Throwable e, boolean stackTrace, Object[] keyValues) {
+        if (!logger.isLoggable(level)) return;
+        final StringBuilder builder = new StringBuilder("msg=");
+        appendValue(builder, message);
+        appendPairs(builder, context);
+        appendPairs(builder, keyValues);
+        if (e != null) {
+            builder.append(" error=");
+            appendValue(builder, e.toString());
+        }
+        final LogRecord record = new LogRecord(level, builder.toString());
+        record.setLoggerName(logger.getName());
+        if (stackTrace) record.setThrown(e);
+        logger.log(record);
+    }
+
+    private static void appendPairs(StringBuilder builder, Object[] keyValues) {
+        for (int i = 0; i + 1 < keyValues.length; i += 2) {
+            builder.append(' ').append(keyValues[i]).append('=');
+            appendValue(builder, String.valueOf(keyValues[i + 1]));
+        }
+    }
+
+    private static void appendValue(StringBuilder builder, String value) {
+        if (value.isEmpty() || value.indexOf(' ') >= 0 || value.indexOf('"') >= 0 || value.indexOf('=') >= 0) {
+            builder.append('"').append(value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+        } else {
+            builder.append(value);
+        }
+    }
+}
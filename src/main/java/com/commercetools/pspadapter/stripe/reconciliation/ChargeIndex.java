@@ -0,0 +1,260 @@
+package com.commercetools.pspadapter.stripe.reconciliation;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Joins the charges seen at Stripe with the charges recorded in CTP payments, keyed by the Stripe charge id.
+ * An entry is removed as soon as both sides have been seen, so only the charges that are still waiting for their
+ * counterpart are kept. Entries live in primitive arrays (open addressing with linear probing) and the charge ids in
+ * one byte arena, which takes about 60 bytes per waiting charge instead of several hundred for a HashMap of objects.
+ */
+public class ChargeIndex {
+    private static final byte STRIPE = 1;
+    private static final byte CTP = 2;
+    private static final double MAX_LOAD = 0.7;
+
+    /**
+     * A charge that was removed from the index. The value of a side that was not seen is -1.
+     */
+    public static class Entry {
+        public final String chargeId;
+        public final long stripeValue;
+        public final long ctpValue;
+        public final String paymentId;
+
+        Entry(String chargeId, long stripeValue, long ctpValue, String paymentId) {
+            this.chargeId = chargeId;
+            this.stripeValue = stripeValue;
+            this.ctpValue = ctpValue;
+            this.paymentId = paymentId;
+        }
+    }
+
+    // 0 marks a free slot
+    private long[] hashes;
+    private long[] values;
+    private long[] paymentIdHigh;
+    private long[] paymentIdLow;
+    private int[] idOffsets;
+    private byte[] sides;
+    private int mask;
+    private int size;
+
+    private byte[] ids;
+    private int idsLength;
+    private int liveIdBytes;
+
+    public ChargeIndex(int expectedSize) {
+        allocate(Integer.highestOneBit(Math.max(16, (int) (expectedSize / MAX_LOAD)) - 1) << 1);
+        ids = new byte[Math.max(1024, expectedSize * 32)];
+    }
+
+    /**
+     * @return The joined entry if the charge was already recorded in CTP, otherwise null.
+     */
+    public synchronized Entry addStripe(String chargeId, long value) {
+        return add(chargeId, STRIPE, value, null);
+    }
+
+    /**
+     * @return The joined entry if the charge was already seen at Stripe, otherwise null.
+     */
+    public synchronized Entry addCtp(String chargeId, long value, String paymentId) {
+        return add(chargeId, CTP, value, paymentId);
+    }
+
+    /**
+     * Removes and passes all charges that are still waiting for their counterpart.
+     */
+    public synchronized void drain(Consumer<Entry> consumer) {
+        for (int slot = 0; slot < hashes.length; slot++) {
+            if (hashes[slot] != 0) consumer.accept(toEntry(slot, -1, null));
+        }
+        allocate(16);
+        idsLength = 0;
+        liveIdBytes = 0;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized long memoryBytes() {
+        return (long) hashes.length * (8 * 4 + 4 + 1) + ids.length;
+    }
+
+    /**
+     * Packs an amount in minor units and its currency code into one long, so both sides can be compared at once.
+     */
+    public static long value(long minorUnits, String currency) {
+        long currencyBits = 0;
+        for (int i = 0; i < 3; i++) {
+            currencyBits = (currencyBits << 5) | ((Character.toUpperCase(currency.charAt(i)) - 'A') & 31);
+        }
+        return (minorUnits << 15) | currencyBits;
+    }
+
+    public static String format(long value) {
+        if (value < 0) return "";
+        final char[] currency = new char[3];
+        for (int i = 2; i >= 0; i--) {
+            currency[i] = (char) ('A' + ((value >> (5 * (2 - i))) & 31));
+        }
+        return (value >> 15) + " " + new String(currency);
+    }
+
+    private Entry add(String chargeId, byte side, long value, String paymentId) {
+        final byte[] id = chargeId.getBytes(StandardCharsets.US_ASCII);
+        if (id.length > Byte.MAX_VALUE) throw new IllegalArgumentException("Charge id too long: " + chargeId);
+        // Make room first, as a rehash moves the slots
+        if (size + 1 > hashes.length * MAX_LOAD) rehash(hashes.length << 1);
+        ensureIdSpace(id.length + 1);
+        final long hash = hash(id);
+        int slot = home(hash);
+        while (hashes[slot] != 0) {
+            if (hashes[slot] == hash && idEquals(slot, id)) {
+                // Both sides have been seen
+                if (sides[slot] == side) return null; // duplicate of the same side
+                final Entry entry = toEntry(slot, value, paymentId);
+                remove(slot);
+                return entry;
+            }
+            slot = (slot + 1) & mask;
+        }
+        hashes[slot] = hash;
+        values[slot] = value;
+        sides[slot] = side;
+        if (paymentId != null) {
+            final UUID uuid = UUID.fromString(paymentId);
+            paymentIdHigh[slot] = uuid.getMostSignificantBits();
+            paymentIdLow[slot] = uuid.getLeastSignificantBits();
+        }
+        idOffsets[slot] = idsLength;
+        ids[idsLength] = (byte) id.length;
+        System.arraycopy(id, 0, ids, idsLength + 1, id.length);
+        idsLength += id.length + 1;
+        liveIdBytes += id.length + 1;
+        size++;
+        return null;
+    }
+
+    /**
+     * @param otherValue The value of the side that was just seen, or -1.
+     * @param otherPaymentId The payment id of the side that was just seen, if it is the CTP side.
+     */
+    private Entry toEntry(int slot, long otherValue, String otherPaymentId) {
+        final String chargeId = readId(idOffsets[slot]);
+        if (sides[slot] == STRIPE) {
+            return new Entry(chargeId, values[slot], otherValue, otherPaymentId);
+        } else {
+            final String paymentId = new UUID(paymentIdHigh[slot], paymentIdLow[slot]).toString();
+            return new Entry(chargeId, otherValue, values[slot], paymentId);
+        }
+    }
+
+    private void remove(int slot) {
+        liveIdBytes -= ids[idOffsets[slot]] + 1;
+        size--;
+        // Backward shift deletion, so lookups never need tombstones
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (hashes[next] != 0) {
+            final int home = home(hashes[next]);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                move(next, hole);
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        hashes[hole] = 0;
+    }
+
+    private void move(int from, int to) {
+        hashes[to] = hashes[from];
+        values[to] = values[from];
+        paymentIdHigh[to] = paymentIdHigh[from];
+        paymentIdLow[to] = paymentIdLow[from];
+        idOffsets[to] = idOffsets[from];
+        sides[to] = sides[from];
+    }
+
+    private void ensureIdSpace(int length) {
+        if (idsLength + length <= ids.length) return;
+        // Removed entries leave garbage in the arena, compact before growing it.
+        if (liveIdBytes * 2 < idsLength) rehash(hashes.length);
+        if (idsLength + length > ids.length) ids = Arrays.copyOf(ids, Math.max(ids.length * 2, idsLength + length));
+    }
+
+    private void rehash(int capacity) {
+        final long[] oldHashes = hashes;
+        final long[] oldValues = values;
+        final long[] oldPaymentIdHigh = paymentIdHigh;
+        final long[] oldPaymentIdLow = paymentIdLow;
+        final int[] oldIdOffsets = idOffsets;
+        final byte[] oldSides = sides;
+        final byte[] oldIds = ids;
+        final int oldSize = size;
+        allocate(capacity);
+        size = oldSize;
+        ids = new byte[Math.max(1024, liveIdBytes * 2)];
+        idsLength = 0;
+        for (int oldSlot = 0; oldSlot < oldHashes.length; oldSlot++) {
+            if (oldHashes[oldSlot] == 0) continue;
+            int slot = home(oldHashes[oldSlot]);
+            while (hashes[slot] != 0) slot = (slot + 1) & mask;
+            hashes[slot] = oldHashes[oldSlot];
+            values[slot] = oldValues[oldSlot];
+            paymentIdHigh[slot] = oldPaymentIdHigh[oldSlot];
+            paymentIdLow[slot] = oldPaymentIdLow[oldSlot];
+            sides[slot] = oldSides[oldSlot];
+            final int length = oldIds[oldIdOffsets[oldSlot]] + 1;
+            System.arraycopy(oldIds, oldIdOffsets[oldSlot], ids, idsLength, length);
+            idOffsets[slot] = idsLength;
+            idsLength += length;
+        }
+        liveIdBytes = idsLength;
+    }
+
+    private void allocate(int capacity) {
+        hashes = new long[capacity];
+        values = new long[capacity];
+        paymentIdHigh = new long[capacity];
+        paymentIdLow = new long[capacity];
+        idOffsets = new int[capacity];
+        sides = new byte[capacity];
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    private boolean idEquals(int slot, byte[] id) {
+        final int offset = idOffsets[slot];
+        if (ids[offset] != id.length) return false;
+        for (int i = 0; i < id.length; i++) {
+            if (ids[offset + 1 + i] != id[i]) return false;
+        }
+        return true;
+    }
+
+    private String readId(int offset) {
+        return new String(ids, offset + 1, ids[offset], StandardCharsets.US_ASCII);
+    }
+
+    private int home(long hash) {
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private static long hash(byte[] id) {
+        // FNV-1a with a final mix, never 0
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : id) {
+            hash = (hash ^ b) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash == 0 ? 1 : hash;
+    }
+}
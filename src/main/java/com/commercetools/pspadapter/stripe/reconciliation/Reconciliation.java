@@ -0,0 +1,198 @@
+package com.commercetools.pspadapter.stripe.reconciliation;
+
+import com.commercetools.pspadapter.stripe.logging.Log;
+import com.commercetools.pspadapter.stripe.tenants.Tenant;
+import com.commercetools.pspadapter.stripe.tenants.TenantRegistry;
+import com.commercetools.pspadapter.stripe.util.PaymentHelperMethods;
+import com.commercetools.pspadapter.stripe.util.StripeApi;
+import com.stripe.Stripe;
+import com.stripe.model.Charge;
+import com.stripe.model.ChargeCollection;
+import io.sphere.sdk.payments.Payment;
+import io.sphere.sdk.payments.Transaction;
+import io.sphere.sdk.payments.TransactionType;
+import io.sphere.sdk.payments.queries.PaymentQuery;
+import io.sphere.sdk.queries.QueryPredicate;
+import io.sphere.sdk.queries.QuerySort;
+import org.javamoney.moneta.function.MonetaryUtil;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Checks that every charge at Stripe has a STRIPE_CHARGED interaction and a CHARGE transaction with the same amount
+ * in CTP, and the other way around.
+ * The time window is split into slices, and the charges of each slice are paged from Stripe and from CTP at the same
+ * time. Both streams are joined in a ChargeIndex, which only keeps the charges whose counterpart was not seen yet.
+ * Mismatches are written to the report as soon as they are found.
+ */
+public class Reconciliation extends PaymentHelperMethods {
+    private static final Log LOG = Log.of(Reconciliation.class);
+
+    final private Tenant tenant;
+    final private Instant from;
+    final private Instant to;
+    final private int slices;
+    final private Duration paymentMargin;
+
+    /**
+     * @param slices The number of parts of the time window that are paged in parallel, per side.
+     * @param paymentMargin How long before its charge a payment may have been created.
+     */
+    public Reconciliation(Tenant tenant, Instant from, Instant to, int slices, Duration paymentMargin) {
+        super(tenant.getTypeKeyToId());
+        this.tenant = tenant;
+        this.from = from;
+        this.to = to;
+        this.slices = slices;
+        this.paymentMargin = paymentMargin;
+    }
+
+    /**
+     * Reconciles the tenants of the environment. Uses CTP_STRIPE_ADAPTER_RECONCILE_FROM and
+     * CTP_STRIPE_ADAPTER_RECONCILE_TO (ISO instants, the last 30 days by default) and writes one report per tenant
+     * into the directory given as first argument.
+     */
+    public static void main(String[] args) throws Exception {
+        Stripe.apiKey = System.getenv("CTP_STRIPE_ADAPTER_STRIPE_API_KEY");
+        final Instant to = Optional.ofNullable(System.getenv("CTP_STRIPE_ADAPTER_RECONCILE_TO")).map(Instant::parse).orElse(Instant.now());
+        final Instant from = Optional.ofNullable(System.getenv("CTP_STRIPE_ADAPTER_RECONCILE_FROM")).map(Instant::parse).orElse(to.minus(Duration.ofDays(30)));
+        final Path directory = Paths.get(args.length > 0 ? args[0] : ".");
+        for (Tenant tenant : TenantRegistry.fromEnvironment().getAll()) {
+            final Path file = directory.resolve("reconciliation-" + tenant.getKey() + ".csv");
+            final Map<String, Long> result = new Reconciliation(tenant, from, to, 8, Duration.ofDays(1)).run(file);
+            LOG.info("Reconciliation finished", "tenant", tenant.getKey(), "result", result);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * @return The number of charges seen on each side and the number of mismatches of each kind.
+     */
+    public Map<String, Long> run(Path reportFile) throws Exception {
+        final ChargeIndex index = new ChargeIndex(100000);
+        final ExecutorService executor = Executors.newFixedThreadPool(slices * 2);
+        final long[] seen = new long[2];
+        try (ReconciliationReport report = new ReconciliationReport(reportFile)) {
+            final List<CompletableFuture<Void>> tasks = new ArrayList<>();
+            // Stripe filters by seconds, so the slices have to start at full seconds
+            final long sliceSeconds = Math.max(1, (to.getEpochSecond() - from.getEpochSecond() + slices - 1) / slices);
+            for (long sliceFrom = from.getEpochSecond(); sliceFrom < to.getEpochSecond(); sliceFrom += sliceSeconds) {
+                final Instant sliceStart = Instant.ofEpochSecond(sliceFrom);
+                final Instant sliceEnd = Instant.ofEpochSecond(Math.min(sliceFrom + sliceSeconds, to.getEpochSecond()));
+                tasks.add(CompletableFuture.runAsync(() -> {
+                    final long count = pageStripe(sliceStart, sliceEnd, index, report);
+                    synchronized (seen) { seen[0] += count; }
+                }, executor));
+                tasks.add(CompletableFuture.runAsync(() -> {
+                    final long count = pageCtp(sliceStart, sliceEnd, index, report);
+                    synchronized (seen) { seen[1] += count; }
+                }, executor));
+            }
+            CompletableFuture.allOf(tasks.toArray(new CompletableFuture[tasks.size()])).get();
+            // The charges without counterpart
+            index.drain(entry -> {
+                if (entry.ctpValue < 0) report.mismatch(ReconciliationReport.MISSING_IN_CTP, entry.chargeId, null, entry.stripeValue, -1);
+                else report.mismatch(ReconciliationReport.MISSING_IN_STRIPE, entry.chargeId, entry.paymentId, -1, entry.ctpValue);
+            });
+            final Map<String, Long> result = new LinkedHashMap<>();
+            result.put("stripe_charges", seen[0]);
+            result.put("ctp_charges", seen[1]);
+            result.putAll(report.getCounts());
+            return result;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private long pageStripe(Instant sliceStart, Instant sliceEnd, ChargeIndex index, ReconciliationReport report) {
+        final StripeApi stripeApi = tenant.getStripeApi();
+        final Map<String, Object> created = new HashMap<>();
+        created.put("gte", sliceStart.getEpochSecond());
+        created.put("lt", sliceEnd.getEpochSecond());
+        long count = 0;
+        Optional<String> startingAfter = Optional.empty();
+        while (true) {
+            // Same as the auto-pagination of stripe-java, but rate limited and with timeouts
+            final Map<String, Object> params = new HashMap<>();
+            params.put("created", created);
+            params.put("limit", 100);
+            startingAfter.ifPresent(id -> params.put("starting_after", id));
+            final ChargeCollection page = stripeApi
+                .call(StripeApi.CHARGE_LIST, stripeApi.requestOptions(), options -> Charge.list(params, options))
+                .join();
+            for (Charge charge : page.getData()) {
+                // Only captured charges are recorded as STRIPE_CHARGED
+                if (!Boolean.TRUE.equals(charge.getPaid()) || !Boolean.TRUE.equals(charge.getCaptured())) continue;
+                count++;
+                compare(index.addStripe(charge.getId(), ChargeIndex.value(charge.getAmount(), charge.getCurrency())), report);
+            }
+            if (page.getData().isEmpty() || !Boolean.TRUE.equals(page.getHasMore())) return count;
+            startingAfter = Optional.of(page.getData().get(page.getData().size() - 1).getId());
+        }
+    }
+
+    private long pageCtp(Instant sliceStart, Instant sliceEnd, ChargeIndex index, ReconciliationReport report) {
+        final String slicePredicate = "paymentMethodInfo(paymentInterface=\"STRIPE\")"
+            + " and createdAt >= \"" + sliceStart.minus(paymentMargin) + "\" and createdAt < \"" + sliceEnd + "\"";
+        long count = 0;
+        String lastId = "";
+        while (true) {
+            // Paging by id instead of offset, so deep pages stay fast
+            final List<Payment> page = tenant.getClient()
+                .execute(PaymentQuery.of()
+                    .withPredicates(QueryPredicate.of(slicePredicate + " and id > \"" + lastId + "\""))
+                    .withSort(QuerySort.of("id asc"))
+                    .withLimit(500))
+                .toCompletableFuture()
+                .join()
+                .getResults();
+            for (Payment payment : page) {
+                count += addCtpCharges(payment, sliceStart, sliceEnd, index, report);
+            }
+            if (page.size() < 500) return count;
+            lastId = page.get(page.size() - 1).getId();
+        }
+    }
+
+    private long addCtpCharges(Payment payment, Instant sliceStart, Instant sliceEnd, ChargeIndex index, ReconciliationReport report) {
+        final List<String> chargeIds = new ArrayList<>();
+        getInteractionsOfType(payment, "STRIPE_CHARGED")
+            .ifPresent(interactions -> interactions.forEach(interaction -> chargeIds.add(interaction.getFieldAsString("chargeId"))));
+        long count = 0;
+        for (String chargeId : chargeIds) {
+            final Optional<Transaction> transaction = payment.getTransactions().stream()
+                .filter(t -> t.getType() == TransactionType.CHARGE && chargeId.equals(t.getInteractionId()))
+                .findFirst();
+            if (!transaction.isPresent()) {
+                // Without transaction there is no charge time, so the creation time of the payment decides the slice.
+                final Instant createdAt = payment.getCreatedAt().toInstant();
+                if (!createdAt.isBefore(sliceStart) && createdAt.isBefore(sliceEnd)) {
+                    report.mismatch(ReconciliationReport.MISSING_TRANSACTION, chargeId, payment.getId(), -1, -1);
+                }
+                continue;
+            }
+            // The transaction has the creation time of the charge, which decides the slice like at Stripe.
+            final Instant chargedAt = transaction.get().getTimestamp().toInstant();
+            if (chargedAt.getEpochSecond() < sliceStart.getEpochSecond() || chargedAt.getEpochSecond() >= sliceEnd.getEpochSecond()) continue;
+            count++;
+            final long value = ChargeIndex.value(
+                transaction.get().getAmount().query(MonetaryUtil.minorUnits()),
+                transaction.get().getAmount().getCurrency().getCurrencyCode());
+            compare(index.addCtp(chargeId, value, payment.getId()), report);
+        }
+        return count;
+    }
+
+    private void compare(ChargeIndex.Entry joined, ReconciliationReport report) {
+        if (joined != null && joined.stripeValue != joined.ctpValue) {
+            report.mismatch(ReconciliationReport.AMOUNT_MISMATCH, joined.chargeId, joined.paymentId, joined.stripeValue, joined.ctpValue);
+        }
+    }
+}
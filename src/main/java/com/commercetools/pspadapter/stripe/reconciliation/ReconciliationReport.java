@@ -0,0 +1,48 @@
+package com.commercetools.pspadapter.stripe.reconciliation;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Writes the mismatches of a reconciliation as CSV lines, as soon as they are found.
+ */
+public class ReconciliationReport implements Closeable {
+    public static final String AMOUNT_MISMATCH = "AMOUNT_MISMATCH";
+    public static final String MISSING_IN_CTP = "MISSING_IN_CTP";
+    public static final String MISSING_IN_STRIPE = "MISSING_IN_STRIPE";
+    public static final String MISSING_TRANSACTION = "MISSING_TRANSACTION";
+
+    final private BufferedWriter writer;
+    final private Map<String, Long> counts = new LinkedHashMap<>();
+
+    public ReconciliationReport(Path file) throws IOException {
+        this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+        writer.write("kind,chargeId,paymentId,stripeAmount,ctpAmount\n");
+    }
+
+    public synchronized void mismatch(String kind, String chargeId, String paymentId, long stripeValue, long ctpValue) {
+        counts.merge(kind, 1L, Long::sum);
+        try {
+            writer.write(kind + "," + chargeId + "," + (paymentId == null ? "" : paymentId) + ","
+                + ChargeIndex.format(stripeValue) + "," + ChargeIndex.format(ctpValue) + "\n");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized Map<String, Long> getCounts() {
+        return new LinkedHashMap<>(counts);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,77 @@
+package com.commercetools.pspadapter.stripe.replay;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * A traffic capture loaded for a replay. Responses are served in the order they were recorded. Once the responses of
+ * a request are used up, the last one is served again, since a changed build may send a request more often.
+ */
+class Recording {
+    final private List<TrafficRecord> webhooks = new ArrayList<>();
+    final private Map<String, Responses> ctpResponses = new HashMap<>();
+    final private Map<String, Responses> stripeResponses = new HashMap<>();
+
+    static Recording read(Path file) throws IOException {
+        final ObjectMapper mapper = new ObjectMapper();
+        final Recording recording = new Recording();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) continue;
+                final TrafficRecord record = mapper.readValue(line, TrafficRecord.class);
+                if (TrafficRecord.WEBHOOK.equals(record.getKind())) recording.webhooks.add(record);
+                else if (TrafficRecord.CTP.equals(record.getKind())) recording.ctpResponses.computeIfAbsent(record.getKey(), key -> new Responses()).add(record);
+                // Stripe keys end with the subject, which is a random idempotencyKey in WRITE_AHEAD mode.
+                else if (TrafficRecord.STRIPE.equals(record.getKind())) recording.stripeResponses.computeIfAbsent(operationOf(record.getKey()), key -> new Responses()).add(record);
+            }
+        }
+        recording.webhooks.sort(Comparator.comparingLong(TrafficRecord::getAt));
+        return recording;
+    }
+
+    List<TrafficRecord> getWebhooks() {
+        return webhooks;
+    }
+
+    synchronized Optional<TrafficRecord> nextCtpResponse(String key) {
+        return Optional.ofNullable(ctpResponses.get(key)).map(responses -> responses.next(key));
+    }
+
+    /**
+     * @return The response with the same subject, or else the next response of the operation.
+     */
+    synchronized Optional<TrafficRecord> nextStripeResponse(String key) {
+        return Optional.ofNullable(stripeResponses.get(operationOf(key))).map(responses -> responses.next(key));
+    }
+
+    private static String operationOf(String key) {
+        return key.substring(0, Math.max(0, key.indexOf(':')));
+    }
+
+    private static class Responses {
+        final private LinkedList<TrafficRecord> pending = new LinkedList<>();
+        private TrafficRecord last;
+
+        void add(TrafficRecord record) {
+            pending.add(record);
+        }
+
+        TrafficRecord next(String key) {
+            if (pending.isEmpty()) return last;
+            final TrafficRecord match = pending.stream()
+                .filter(record -> record.getKey().equals(key))
+                .findFirst()
+                .orElse(pending.getFirst());
+            pending.remove(match);
+            last = match;
+            return match;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.commercetools.pspadapter.stripe.replay;
+
+import io.sphere.sdk.client.SphereClient;
+import io.sphere.sdk.client.SphereRequest;
+import io.sphere.sdk.client.SphereServiceException;
+import io.sphere.sdk.http.HttpRequestIntent;
+import io.sphere.sdk.json.SphereJsonUtils;
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Records the responses of a CTP client.
+ */
+class RecordingSphereClient implements SphereClient {
+    final private SphereClient client;
+    final private TrafficRecorder recorder;
+
+    RecordingSphereClient(SphereClient client, TrafficRecorder recorder) {
+        this.client = client;
+        this.recorder = recorder;
+    }
+
+    @Override
+    public <T> CompletionStage<T> execute(SphereRequest<T> request) {
+        final String key = keyOf(request);
+        return client.execute(request)
+            .whenComplete((result, e) -> {
+                final long at = System.currentTimeMillis();
+                if (e == null) {
+                    recorder.record(new TrafficRecord(TrafficRecord.CTP, at, key, null, null, 200,
+                        TrafficRecorder.redact(SphereJsonUtils.toJsonString(result))));
+                } else {
+                    final Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    final Integer status = cause instanceof SphereServiceException ? ((SphereServiceException) cause).getStatusCode() : null;
+                    recorder.record(new TrafficRecord(TrafficRecord.CTP, at, key, cause.getClass().getName(), cause.getMessage(), status, null));
+                }
+            });
+    }
+
+    @Override
+    public void close() {
+        client.close();
+    }
+
+    /**
+     * @return The HTTP method and path of the request, which includes the query.
+     */
+    static String keyOf(SphereRequest<?> request) {
+        final HttpRequestIntent intent = request.httpRequestIntent();
+        return intent.getHttpMethod() + " " + intent.getPath();
+    }
+}
@@ -0,0 +1,143 @@
+package com.commercetools.pspadapter.stripe.replay;
+
+import com.commercetools.pspadapter.stripe.TypeKeyToId;
+import com.commercetools.pspadapter.stripe.logging.Log;
+import com.commercetools.pspadapter.stripe.tenants.Tenant;
+import com.commercetools.pspadapter.stripe.util.PaymentCache;
+import com.commercetools.pspadapter.stripe.util.StripeApi;
+import com.commercetools.pspadapter.stripe.webhookprocessors.StripeEventHandler;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Replays a capture of TrafficRecorder offline. The webhooks are sent to the adapter at their recorded pace, sped up
+ * by a factor (0 for as fast as possible), and CTP and Stripe are replaced by the recorded responses.
+ * The reports of two builds can be compared, to check that a performance change leaves the behavior identical.
+ *
+ * Usage: ReplayHarness run capture.jsonl report.json [speed]
+ *        ReplayHarness compare before.json after.json
+ */
+public class ReplayHarness {
+    private static final Log LOG = Log.of(ReplayHarness.class);
+
+    public static void main(String[] args) throws Exception {
+        final ObjectMapper mapper = new ObjectMapper();
+        if (args.length >= 3 && args[0].equals("run")) {
+            final double speed = args.length > 3 ? Double.parseDouble(args[3]) : 1;
+            final ReplayReport report = run(Recording.read(Paths.get(args[1])), speed);
+            mapper.writerWithDefaultPrettyPrinter().writeValue(Paths.get(args[2]).toFile(), report);
+            LOG.info("Replay finished", "webhooks", report.getWebhooks(), "throughputPerSecond", report.getThroughputPerSecond(),
+                "p50Millis", report.getP50Millis(), "p95Millis", report.getP95Millis(), "p99Millis", report.getP99Millis());
+            System.exit(0);
+        } else if (args.length == 3 && args[0].equals("compare")) {
+            final boolean same = compare(read(mapper, Paths.get(args[1])), read(mapper, Paths.get(args[2])));
+            System.exit(same ? 0 : 1);
+        } else {
+            LOG.warn("Usage: ReplayHarness run capture.jsonl report.json [speed] | compare before.json after.json");
+            System.exit(2);
+        }
+    }
+
+    static ReplayReport run(Recording recording, double speed) throws Exception {
+        final ReplaySphereClient client = new ReplaySphereClient(recording);
+        StripeApi.setInterceptor(new ReplayInterceptor(recording));
+        final ExecutorService pool = Executors.newFixedThreadPool(StripeApi.poolSizeFromEnvironment());
+        final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
+        try {
+            final Tenant tenant = new Tenant("replay", null, client, new StripeApi(null, pool, null, 30000, new HashMap<>()),
+                new TypeKeyToId(client, new ConcurrentHashMap<>()), new PaymentCache(PaymentCache.capacityFromEnvironment()));
+            final StripeEventHandler handler = new StripeEventHandler(tenant);
+            final List<TrafficRecord> webhooks = recording.getWebhooks();
+            final long firstAt = webhooks.isEmpty() ? 0 : webhooks.get(0).getAt();
+            final long start = System.nanoTime();
+            final List<CompletableFuture<Sample>> samples = new ArrayList<>();
+            for (TrafficRecord webhook : webhooks) {
+                final CompletableFuture<Sample> sample = new CompletableFuture<>();
+                final long delayMillis = speed <= 0 ? 0 : (long) ((webhook.getAt() - firstAt) / speed);
+                scheduler.schedule(() -> {
+                    final long sent = System.nanoTime();
+                    try {
+                        handler.handle(webhook.getBody()).whenComplete((status, e) ->
+                            sample.complete(new Sample(e == null ? String.valueOf(status) : "error", System.nanoTime() - sent)));
+                    } catch (RuntimeException e) {
+                        sample.complete(new Sample("error", System.nanoTime() - sent));
+                    }
+                }, delayMillis, TimeUnit.MILLISECONDS);
+                samples.add(sample);
+            }
+            CompletableFuture.allOf(samples.toArray(new CompletableFuture[samples.size()])).join();
+            final long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            final List<Long> latencies = new ArrayList<>();
+            final Map<String, Long> statuses = new TreeMap<>();
+            samples.forEach(future -> {
+                final Sample sample = future.join();
+                latencies.add(sample.nanos);
+                statuses.merge(sample.status, 1L, Long::sum);
+            });
+            Collections.sort(latencies);
+            final List<String> commands = client.getCommands();
+            Collections.sort(commands);
+            return new ReplayReport(webhooks.size(), millis, webhooks.size() * 1000.0 / Math.max(1, millis),
+                percentile(latencies, 0.5), percentile(latencies, 0.95), percentile(latencies, 0.99), statuses, commands);
+        } finally {
+            StripeApi.setInterceptor(null);
+            scheduler.shutdownNow();
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * @return Whether both builds behaved identically.
+     */
+    static boolean compare(ReplayReport before, ReplayReport after) {
+        LOG.info("Throughput per second", "before", before.getThroughputPerSecond(), "after", after.getThroughputPerSecond(),
+            "change", change(before.getThroughputPerSecond(), after.getThroughputPerSecond()));
+        LOG.info("Latency p50", "before", before.getP50Millis(), "after", after.getP50Millis(), "change", change(before.getP50Millis(), after.getP50Millis()));
+        LOG.info("Latency p95", "before", before.getP95Millis(), "after", after.getP95Millis(), "change", change(before.getP95Millis(), after.getP95Millis()));
+        LOG.info("Latency p99", "before", before.getP99Millis(), "after", after.getP99Millis(), "change", change(before.getP99Millis(), after.getP99Millis()));
+        boolean same = true;
+        if (!before.getStatuses().equals(after.getStatuses())) {
+            LOG.warn("Webhook responses differ", "before", before.getStatuses(), "after", after.getStatuses());
+            same = false;
+        }
+        final List<String> missing = new ArrayList<>(before.getCommands());
+        after.getCommands().forEach(missing::remove);
+        final List<String> added = new ArrayList<>(after.getCommands());
+        before.getCommands().forEach(added::remove);
+        if (!missing.isEmpty() || !added.isEmpty()) {
+            missing.forEach(command -> LOG.warn("CTP command only sent before", "command", command));
+            added.forEach(command -> LOG.warn("CTP command only sent after", "command", command));
+            same = false;
+        }
+        LOG.info(same ? "Behavior identical" : "Behavior differs");
+        return same;
+    }
+
+    private static ReplayReport read(ObjectMapper mapper, Path file) throws Exception {
+        return mapper.readValue(file.toFile(), ReplayReport.class);
+    }
+
+    private static double percentile(List<Long> sortedNanos, double percentile) {
+        if (sortedNanos.isEmpty()) return 0;
+        final int index = (int) Math.ceil(percentile * sortedNanos.size()) - 1;
+        return sortedNanos.get(Math.max(0, index)) / 1e6;
+    }
+
+    private static String change(double before, double after) {
+        return before == 0 ? "n/a" : String.format(Locale.ROOT, "%+.1f%%", (after - before) * 100 / before);
+    }
+
+    private static class Sample {
+        final String status;
+        final long nanos;
+
+        Sample(String status, long nanos) {
+            this.status = status;
+            this.nanos = nanos;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.commercetools.pspadapter.stripe.replay;
+
+import com.commercetools.pspadapter.stripe.util.StripeApi;
+import com.stripe.exception.APIConnectionException;
+import com.stripe.exception.InvalidRequestException;
+import com.stripe.exception.StripeException;
+import com.stripe.net.APIResource;
+import com.stripe.net.RequestOptions;
+
+/**
+ * Answers Stripe calls with the recorded responses instead of calling Stripe.
+ */
+class ReplayInterceptor implements StripeApi.Interceptor {
+    final private Recording recording;
+
+    ReplayInterceptor(Recording recording) {
+        this.recording = recording;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T intercept(String operation, String subject, RequestOptions options, StripeApi.StripeCall<T> call) throws StripeException {
+        final String key = operation + ":" + subject;
+        final TrafficRecord response = recording.nextStripeResponse(key)
+            .orElseThrow(() -> new APIConnectionException("No recorded response for " + key));
+        if (response.getError() == null) {
+            try {
+                return (T) APIResource.GSON.fromJson(response.getBody(), Class.forName(response.getType()));
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException("Unknown Stripe class " + response.getType(), e);
+            }
+        }
+        // The adapter only distinguishes temporary and permanent failures.
+        if (isTemporary(response.getType())) throw new APIConnectionException(response.getError());
+        throw new InvalidRequestException(response.getError(), null, null, response.getStatus(), null);
+    }
+
+    private static boolean isTemporary(String type) {
+        return type.endsWith(".APIConnectionException") || type.endsWith(".APIException") ||
+            type.endsWith(".AuthenticationException") || type.endsWith(".RateLimitException");
+    }
+}
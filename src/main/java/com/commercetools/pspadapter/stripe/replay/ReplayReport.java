@@ -0,0 +1,82 @@
+package com.commercetools.pspadapter.stripe.replay;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The result of a replay: Performance figures, and the behavior (response statuses and CTP commands) to compare.
+ */
+public class ReplayReport {
+    final private long webhooks;
+    final private long millis;
+    final private double throughputPerSecond;
+    final private double p50Millis;
+    final private double p95Millis;
+    final private double p99Millis;
+    final private Map<String, Long> statuses;
+    final private List<String> commands;
+
+    @JsonCreator
+    public ReplayReport(@JsonProperty("webhooks") long webhooks, @JsonProperty("millis") long millis,
+                        @JsonProperty("throughputPerSecond") double throughputPerSecond,
+                        @JsonProperty("p50Millis") double p50Millis, @JsonProperty("p95Millis") double p95Millis,
+                        @JsonProperty("p99Millis") double p99Millis, @JsonProperty("statuses") Map<String, Long> statuses,
+                        @JsonProperty("commands") List<String> commands) {
+        this.webhooks = webhooks;
+        this.millis = millis;
+        this.throughputPerSecond = throughputPerSecond;
+        this.p50Millis = p50Millis;
+        this.p95Millis = p95Millis;
+        this.p99Millis = p99Millis;
+        this.statuses = statuses;
+        this.commands = commands;
+    }
+
+    /**
+     * Replaces the values that differ between runs, like random idempotency keys, so commands can be compared.
+     */
+    static String normalize(String command) {
+        return command.replaceAll("[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}", "<uuid>");
+    }
+
+    public long getWebhooks() {
+        return webhooks;
+    }
+
+    public long getMillis() {
+        return millis;
+    }
+
+    public double getThroughputPerSecond() {
+        return throughputPerSecond;
+    }
+
+    public double getP50Millis() {
+        return p50Millis;
+    }
+
+    public double getP95Millis() {
+        return p95Millis;
+    }
+
+    public double getP99Millis() {
+        return p99Millis;
+    }
+
+    /**
+     * @return The number of webhook responses per HTTP status.
+     */
+    public Map<String, Long> getStatuses() {
+        return statuses;
+    }
+
+    /**
+     * @return The normalized CTP commands, sorted, since concurrent webhooks complete in any order.
+     */
+    public List<String> getCommands() {
+        return commands;
+    }
+}
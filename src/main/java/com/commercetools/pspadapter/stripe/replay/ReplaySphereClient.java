@@ -0,0 +1,59 @@
+package com.commercetools.pspadapter.stripe.replay;
+
+import io.sphere.sdk.client.ConcurrentModificationException;
+import io.sphere.sdk.client.SphereClient;
+import io.sphere.sdk.client.SphereRequest;
+import io.sphere.sdk.http.HttpMethod;
+import io.sphere.sdk.http.HttpRequestIntent;
+import io.sphere.sdk.http.HttpResponse;
+import io.sphere.sdk.models.SphereException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Answers CTP requests with the recorded responses, and keeps the commands it receives for comparison.
+ */
+class ReplaySphereClient implements SphereClient {
+    final private Recording recording;
+    final private List<String> commands = Collections.synchronizedList(new ArrayList<>());
+
+    ReplaySphereClient(Recording recording) {
+        this.recording = recording;
+    }
+
+    @Override
+    public <T> CompletionStage<T> execute(SphereRequest<T> request) {
+        final String key = RecordingSphereClient.keyOf(request);
+        final HttpRequestIntent intent = request.httpRequestIntent();
+        if (intent.getHttpMethod() != HttpMethod.GET) commands.add(ReplayReport.normalize(key + " " + intent.getBody()));
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        final TrafficRecord response = recording.nextCtpResponse(key).orElse(null);
+        try {
+            if (response == null) result.completeExceptionally(new SphereException("No recorded response for " + key));
+            else if (response.getError() == null) result.complete(request.deserialize(HttpResponse.of(response.getStatus(), response.getBody())));
+            // Version conflicts make the adapter read the payment again, other failures are just failures.
+            else if (response.getType().endsWith("ConcurrentModificationException")) result.completeExceptionally(new ConcurrentModificationException());
+            else result.completeExceptionally(new SphereException(response.getError()));
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * @return The method, path and body of every command, i.e. the update actions the adapter sent.
+     */
+    List<String> getCommands() {
+        synchronized (commands) {
+            return new ArrayList<>(commands);
+        }
+    }
+}
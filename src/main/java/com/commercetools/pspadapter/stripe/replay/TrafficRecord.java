@@ -0,0 +1,80 @@
+package com.commercetools.pspadapter.stripe.replay;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * One line of a traffic capture: a webhook the adapter received, or a response of CTP or Stripe it saw.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class TrafficRecord {
+    public static final String WEBHOOK = "webhook";
+    public static final String CTP = "ctp";
+    public static final String STRIPE = "stripe";
+
+    final private String kind;
+    final private long at;
+    final private String key;
+    final private String type;
+    final private String error;
+    final private Integer status;
+    final private String body;
+
+    @JsonCreator
+    public TrafficRecord(@JsonProperty("kind") String kind, @JsonProperty("at") long at, @JsonProperty("key") String key,
+                         @JsonProperty("type") String type, @JsonProperty("error") String error,
+                         @JsonProperty("status") Integer status, @JsonProperty("body") String body) {
+        this.kind = kind;
+        this.at = at;
+        this.key = key;
+        this.type = type;
+        this.error = error;
+        this.status = status;
+        this.body = body;
+    }
+
+    public String getKind() {
+        return kind;
+    }
+
+    /**
+     * @return The time the webhook arrived or the response was received, in epoch millis.
+     */
+    public long getAt() {
+        return at;
+    }
+
+    /**
+     * @return The tenant of a webhook, the HTTP method and path of a CTP request, or the operation and subject of a
+     * Stripe call.
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return The class of a Stripe object or exception.
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * @return The message of a failed request, if it failed.
+     */
+    public String getError() {
+        return error;
+    }
+
+    public Integer getStatus() {
+        return status;
+    }
+
+    /**
+     * @return The redacted JSON of the webhook or the response.
+     */
+    public String getBody() {
+        return body;
+    }
+}
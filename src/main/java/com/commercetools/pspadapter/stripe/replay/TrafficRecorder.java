@@ -0,0 +1,132 @@
+package com.commercetools.pspadapter.stripe.replay;
+
+import com.commercetools.pspadapter.stripe.logging.Log;
+import com.commercetools.pspadapter.stripe.util.StripeApi;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.stripe.exception.StripeException;
+import com.stripe.net.APIResource;
+import com.stripe.net.RequestOptions;
+import io.sphere.sdk.client.SphereClient;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Captures the traffic of the adapter into a file with one TrafficRecord per line: The webhooks, and the responses of
+ * CTP and Stripe. Personal data and card details are redacted. The capture is replayed by ReplayHarness.
+ * Recording is enabled by setting CTP_STRIPE_ADAPTER_RECORD_FILE.
+ */
+public class TrafficRecorder implements StripeApi.Interceptor {
+    private static final Log LOG = Log.of(TrafficRecorder.class);
+
+    private static final Set<String> SENSITIVE_FIELDS = new HashSet<>(Arrays.asList(
+        "email", "name", "firstName", "lastName", "phone", "line1", "line2", "city", "postal_code", "postalCode",
+        "streetName", "streetNumber", "number", "cvc", "exp_month", "exp_year", "last4", "fingerprint", "iban",
+        "client_ip", "receipt_email", "dateOfBirth",
+        // Card address
+        "address_line1", "address_line2", "address_city", "address_state", "address_zip",
+        // Dispute evidence
+        "customer_email_address", "customer_name", "customer_purchase_ip", "billing_address", "shipping_address"));
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static TrafficRecorder installed;
+
+    final private Writer writer;
+
+    public TrafficRecorder(Writer writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * Starts recording into the file of CTP_STRIPE_ADAPTER_RECORD_FILE, if it is set. Has to run before the CTP
+     * clients are created.
+     */
+    public static synchronized Optional<TrafficRecorder> installFromEnvironment() throws IOException {
+        if (installed == null) {
+            final String file = System.getenv("CTP_STRIPE_ADAPTER_RECORD_FILE");
+            if (file == null) return Optional.empty();
+            installed = new TrafficRecorder(Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+            StripeApi.setInterceptor(installed);
+            LOG.info("Recording traffic", "file", file);
+        }
+        return Optional.of(installed);
+    }
+
+    public static synchronized Optional<TrafficRecorder> getInstalled() {
+        return Optional.ofNullable(installed);
+    }
+
+    public void recordWebhook(String tenant, String body) {
+        record(new TrafficRecord(TrafficRecord.WEBHOOK, System.currentTimeMillis(), tenant, null, null, null, redact(body)));
+    }
+
+    /**
+     * @return The client, recording the responses it receives.
+     */
+    public SphereClient wrap(SphereClient client) {
+        return new RecordingSphereClient(client, this);
+    }
+
+    @Override
+    public <T> T intercept(String operation, String subject, RequestOptions options, StripeApi.StripeCall<T> call) throws StripeException {
+        final String key = operation + ":" + subject;
+        try {
+            final T result = call.call(options);
+            record(new TrafficRecord(TrafficRecord.STRIPE, System.currentTimeMillis(), key,
+                result.getClass().getName(), null, null, redact(APIResource.GSON.toJson(result))));
+            return result;
+        } catch (StripeException e) {
+            record(new TrafficRecord(TrafficRecord.STRIPE, System.currentTimeMillis(), key,
+                e.getClass().getName(), e.getMessage(), e.getStatusCode(), null));
+            throw e;
+        }
+    }
+
+    synchronized void record(TrafficRecord record) {
+        try {
+            writer.write(MAPPER.writeValueAsString(record));
+            writer.write('\n');
+            writer.flush();
+        } catch (IOException e) {
+            LOG.warnThrottled("Recording traffic failed", e);
+        }
+    }
+
+    /**
+     * @return The JSON with the values of sensitive fields replaced, or the text itself if it is no JSON.
+     */
+    static String redact(String json) {
+        try {
+            final JsonNode node = MAPPER.readTree(json);
+            redact(node);
+            return MAPPER.writeValueAsString(node);
+        } catch (IOException e) {
+            return json;
+        }
+    }
+
+    private static void redact(JsonNode node) {
+        if (node instanceof ObjectNode) {
+            final ObjectNode object = (ObjectNode) node;
+            final List<String> names = new ArrayList<>();
+            object.fieldNames().forEachRemaining(names::add);
+            for (String name : names) {
+                final JsonNode value = object.get(name);
+                // Objects like addresses are redacted field by field, so the replay can still parse them.
+                if (!SENSITIVE_FIELDS.contains(name) || value.isContainerNode()) redact(value);
+                else if (value.isNumber()) object.put(name, 0);
+                else if (value.isTextual()) object.put(name, "redacted");
+            }
+        } else if (node instanceof ArrayNode) {
+            node.forEach(TrafficRecorder::redact);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.commercetools.pspadapter.stripe.tenants;
+
+import com.commercetools.pspadapter.stripe.TypeKeyToId;
+import com.commercetools.pspadapter.stripe.archive.InteractionArchive;
+import com.commercetools.pspadapter.stripe.archive.InteractionCompaction;
+import com.commercetools.pspadapter.stripe.deadletters.DeadLetterStore;
+import com.commercetools.pspadapter.stripe.util.HedgedReads;
+import com.commercetools.pspadapter.stripe.util.PaymentCache;
+import com.commercetools.pspadapter.stripe.util.SingleFlight;
+import com.commercetools.pspadapter.stripe.util.StripeApi;
+import com.stripe.model.Event;
+import io.sphere.sdk.client.SphereClient;
+import io.sphere.sdk.customers.Customer;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A CTP project together with the Stripe account its payments are processed with.
+ */
+public class Tenant {
+    private static final Map<SphereClient, Tenant> tenantsByClient = new ConcurrentHashMap<>();
+
+    final private String key;
+    final private String stripeAccountId;
+    final private SphereClient client;
+    final private StripeApi stripeApi;
+    final private TypeKeyToId typeKeyToId;
+    final private PaymentCache paymentCache;
+    final private HedgedReads ctpReads;
+    final private InteractionCompaction interactionCompaction;
+    final private DeadLetterStore deadLetters;
+    final private SingleFlight<String, Customer> customerReads = SingleFlight.ofEnvironment("ctp_customer");
+    final private SingleFlight<String, Event> eventReads = SingleFlight.ofEnvironment("stripe_event");
+
+    public Tenant(String key, String stripeAccountId, SphereClient client, StripeApi stripeApi, TypeKeyToId typeKeyToId) {
+        this(key, stripeAccountId, client, stripeApi, typeKeyToId, new PaymentCache(PaymentCache.capacityFromEnvironment()));
+    }
+
+    public Tenant(String key, String stripeAccountId, SphereClient client, StripeApi stripeApi, TypeKeyToId typeKeyToId, PaymentCache paymentCache) {
+        this.key = key;
+        this.stripeAccountId = stripeAccountId;
+        this.client = client;
+        this.stripeApi = stripeApi;
+        this.typeKeyToId = typeKeyToId;
+        this.paymentCache = paymentCache;
+        this.ctpReads = HedgedReads.ofEnvironment(client);
+        this.interactionCompaction = new InteractionCompaction(
+            new InteractionArchive(client, typeKeyToId), InteractionCompaction.limitFromEnvironment());
+        this.deadLetters = new DeadLetterStore(client, DeadLetterStore.capacityFromEnvironment());
+    }
+
+    /**
+     * @return The single tenant of a process that is not multi-tenant, using the global Stripe.apiKey. The tenant is
+     * created once per client, so the legacy constructors share its caches, reads and dead letters.
+     */
+    public static Tenant of(SphereClient client) {
+        return tenantsByClient.computeIfAbsent(client, c ->
+            new Tenant("default", null, c, StripeApi.getDefault(), new TypeKeyToId(c), PaymentCache.getDefault()));
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public Optional<String> getStripeAccountId() {
+        return Optional.ofNullable(stripeAccountId);
+    }
+
+    public SphereClient getClient() {
+        return client;
+    }
+
+    public StripeApi getStripeApi() {
+        return stripeApi;
+    }
+
+    public TypeKeyToId getTypeKeyToId() {
+        return typeKeyToId;
+    }
+
+    public PaymentCache getPaymentCache() {
+        return paymentCache;
+    }
+
+    /**
+     * @return The idempotent reads of the CTP project, hedged to cut tail latency.
+     */
+    public HedgedReads getCtpReads() {
+        return ctpReads;
+    }
+
+    /**
+     * @return The write-time compaction of interface interactions, with the archive to rehydrate payments from.
+     */
+    public InteractionCompaction getInteractionCompaction() {
+        return interactionCompaction;
+    }
+
+    public DeadLetterStore getDeadLetters() {
+        return deadLetters;
+    }
+
+    /**
+     * @return The coalesced reads of CTP customers by id.
+     */
+    public SingleFlight<String, Customer> getCustomerReads() {
+        return customerReads;
+    }
+
+    /**
+     * @return The coalesced retrievals of Stripe events by id, e.g. for redelivered webhooks.
+     */
+    public SingleFlight<String, Event> getEventReads() {
+        return eventReads;
+    }
+}
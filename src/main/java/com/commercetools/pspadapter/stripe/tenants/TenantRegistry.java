@@ -0,0 +1,97 @@
+package com.commercetools.pspadapter.stripe.tenants;
+
+import com.commercetools.pspadapter.stripe.TypeKeyToId;
+import com.commercetools.pspadapter.stripe.util.JavaClientInstantiation;
+import com.commercetools.pspadapter.stripe.util.PriorityScheduler;
+import com.commercetools.pspadapter.stripe.util.RateLimiter;
+import com.commercetools.pspadapter.stripe.util.StripeApi;
+import com.commercetools.pspadapter.stripe.util.ThreadPools;
+import io.sphere.sdk.client.SphereClient;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class TenantRegistry {
+    final private Map<String, Tenant> tenantsByKey = new LinkedHashMap<>();
+    final private Map<String, Tenant> tenantsByStripeAccount = new LinkedHashMap<>();
+
+    public TenantRegistry(Collection<Tenant> tenants) {
+        tenants.forEach(tenant -> {
+            tenantsByKey.put(tenant.getKey(), tenant);
+            tenant.getStripeAccountId().ifPresent(accountId -> tenantsByStripeAccount.put(accountId, tenant));
+        });
+    }
+
+    /**
+     * Reads the comma separated tenant keys from CTP_STRIPE_ADAPTER_TENANTS. The settings of a tenant are read from the
+     * environment variables with the prefix CTP_STRIPE_ADAPTER_{TENANT}_, e.g. CTP_STRIPE_ADAPTER_MYSHOP_STRIPE_API_KEY.
+     * All tenants share one pool for the Stripe requests. Its scheduler picks the calls by priority class and takes
+     * turns between the tenants within a class.
+     * If CTP_STRIPE_ADAPTER_TENANTS is not set, there is a single tenant using the CTP_STRIPE_ADAPTER_ variables.
+     */
+    public static TenantRegistry fromEnvironment() {
+        final String tenantKeys = System.getenv("CTP_STRIPE_ADAPTER_TENANTS");
+        if (tenantKeys == null) {
+            return new TenantRegistry(Collections.singletonList(Tenant.of(new JavaClientInstantiation().instantiate())));
+        }
+        final int poolSize = StripeApi.poolSizeFromEnvironment();
+        StripeApi.configureTransport(poolSize);
+        // Virtual threads are not limited by the pool size
+        final PriorityScheduler sharedScheduler = PriorityScheduler.ofEnvironment(
+            ThreadPools.newPool(poolSize, "stripe-api"), null, ThreadPools.isVirtual() ? 0 : poolSize);
+        final Map<String, Tenant> tenants = new LinkedHashMap<>();
+        for (String tenantKey : tenantKeys.split(",")) {
+            final String key = tenantKey.trim();
+            final String envPrefix = "CTP_STRIPE_ADAPTER_" + key.toUpperCase() + "_";
+            final SphereClient client = new JavaClientInstantiation().instantiate(envPrefix);
+            final RateLimiter rateLimiter = Optional.ofNullable(System.getenv(envPrefix + "STRIPE_REQUESTS_PER_SECOND"))
+                .map(rate -> new RateLimiter(Double.parseDouble(rate), 10))
+                .orElse(null);
+            final StripeApi stripeApi = StripeApi.ofEnvironment(
+                System.getenv(envPrefix + "STRIPE_API_KEY"), sharedScheduler, key, rateLimiter);
+            tenants.put(key, new Tenant(
+                key, System.getenv(envPrefix + "STRIPE_ACCOUNT_ID"), client, stripeApi, new TypeKeyToId(client, new ConcurrentHashMap<>())));
+        }
+        return new TenantRegistry(tenants.values());
+    }
+
+    public Optional<Tenant> get(String key) {
+        return Optional.ofNullable(tenantsByKey.get(key));
+    }
+
+    public Optional<Tenant> getByStripeAccount(String stripeAccountId) {
+        return Optional.ofNullable(tenantsByStripeAccount.get(stripeAccountId));
+    }
+
+    /**
+     * @return The tenant of the connected Stripe account, or the only tenant if the account is unknown.
+     */
+    public Optional<Tenant> route(Optional<String> stripeAccountId) {
+        final Optional<Tenant> tenant = stripeAccountId.flatMap(accountId -> getByStripeAccount(accountId));
+        return tenant.isPresent() ? tenant : getSingle();
+    }
+
+    /**
+     * Only events of connected accounts carry the account, so events can only be routed by account if there is a
+     * single tenant or every tenant is a connected account. Otherwise the tenant has to be part of the webhook URL.
+     * @return Whether route can find the tenant of every event.
+     */
+    public boolean isRoutableByAccount() {
+        return tenantsByKey.size() == 1 || tenantsByStripeAccount.size() == tenantsByKey.size();
+    }
+
+    /**
+     * @return The tenant, if there is only one.
+     */
+    public Optional<Tenant> getSingle() {
+        return tenantsByKey.size() == 1 ? Optional.of(tenantsByKey.values().iterator().next()) : Optional.empty();
+    }
+
+    public Collection<Tenant> getAll() {
+        return Collections.unmodifiableCollection(tenantsByKey.values());
+    }
+}
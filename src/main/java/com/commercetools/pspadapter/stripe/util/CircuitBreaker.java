@@ -0,0 +1,142 @@
+package com.commercetools.pspadapter.stripe.util;
+
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stops calling a dependency that fails or is too slow. The outcomes of the last calls are kept in a window; if too
+ * many of them failed or were slow, the breaker opens and calls fail right away. After a while it half-opens and lets
+ * a few probe calls through: if they succeed the breaker closes, otherwise it opens again.
+ * Every change of the state starts a new generation. A call only counts for the generation it was permitted in, so a
+ * slow call from before the breaker opened is not taken for a probe. Probes that did not report back within the slow
+ * call time count as failed, so a lost probe can not keep the breaker half-open.
+ */
+public class CircuitBreaker {
+    public enum State { CLOSED, HALF_OPEN, OPEN }
+
+    final private int windowSize;
+    final private int minimumCalls;
+    final private double failureRateThreshold;
+    final private long slowCallMillis;
+    final private long openMillis;
+    final private int probes;
+
+    // true for a failed or slow call
+    final private boolean[] window;
+    private int calls = 0;
+    private int badCalls = 0;
+    private State state = State.CLOSED;
+    private long openedAt = 0;
+    private long halfOpenedAt = 0;
+    private long generation = 0;
+    private int probesStarted = 0;
+    private int probesSucceeded = 0;
+    final private AtomicLong rejected = new AtomicLong();
+
+    public CircuitBreaker(int windowSize, int minimumCalls, double failureRateThreshold, long slowCallMillis, long openMillis, int probes) {
+        this.windowSize = windowSize;
+        this.minimumCalls = minimumCalls;
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallMillis = slowCallMillis;
+        this.openMillis = openMillis;
+        this.probes = probes;
+        this.window = new boolean[windowSize];
+    }
+
+    /**
+     * Uses the CTP_STRIPE_ADAPTER_BREAKER_FAILURE_RATE, CTP_STRIPE_ADAPTER_BREAKER_SLOW_MS and
+     * CTP_STRIPE_ADAPTER_BREAKER_OPEN_MS environment variables.
+     */
+    public static CircuitBreaker fromEnvironment() {
+        final double failureRate = Double.parseDouble(getEnv("CTP_STRIPE_ADAPTER_BREAKER_FAILURE_RATE").orElse("0.5"));
+        final long slowCallMillis = Long.parseLong(getEnv("CTP_STRIPE_ADAPTER_BREAKER_SLOW_MS").orElse("10000"));
+        final long openMillis = Long.parseLong(getEnv("CTP_STRIPE_ADAPTER_BREAKER_OPEN_MS").orElse("30000"));
+        return new CircuitBreaker(50, 10, failureRate, slowCallMillis, openMillis, 3);
+    }
+
+    /**
+     * @return The generation of the permitted call, or -1 if the call may not go through. Every permitted call has to
+     * be recorded with onResult, or given back with release if it never reached the dependency.
+     */
+    public synchronized long tryAcquire() {
+        final long now = System.currentTimeMillis();
+        if (state == State.OPEN && now - openedAt >= openMillis) {
+            state = State.HALF_OPEN;
+            halfOpenedAt = now;
+            generation++;
+            probesStarted = 0;
+            probesSucceeded = 0;
+        }
+        // A probe that did not report back in time counts as failed
+        if (state == State.HALF_OPEN && now - halfOpenedAt >= slowCallMillis) open();
+        if (state == State.CLOSED) return generation;
+        if (state == State.HALF_OPEN && probesStarted < probes) {
+            probesStarted++;
+            return generation;
+        }
+        rejected.incrementAndGet();
+        return -1;
+    }
+
+    /**
+     * @param generation The generation returned by tryAcquire for the call.
+     * @param failed Whether the call failed in a way that indicates a problem of the dependency.
+     */
+    public synchronized void onResult(long generation, boolean failed, long latencyMillis) {
+        // A call that started in an earlier state
+        if (generation != this.generation) return;
+        final boolean bad = failed || latencyMillis >= slowCallMillis;
+        switch (state) {
+            case HALF_OPEN:
+                if (bad) open();
+                else if (++probesSucceeded >= probes) close();
+                break;
+            case CLOSED:
+                final int slot = calls % windowSize;
+                if (calls >= windowSize && window[slot]) badCalls--;
+                window[slot] = bad;
+                if (bad) badCalls++;
+                calls++;
+                final int callsInWindow = Math.min(calls, windowSize);
+                if (callsInWindow >= minimumCalls && badCalls >= failureRateThreshold * callsInWindow) open();
+                break;
+            case OPEN:
+                // Every call of an open breaker was rejected
+                break;
+        }
+    }
+
+    /**
+     * Gives back a permitted call that never reached the dependency, e.g. because it timed out while queued. It does
+     * not count as a result, and a half-open breaker can start another probe instead.
+     * @param generation The generation returned by tryAcquire for the call.
+     */
+    public synchronized void release(long generation) {
+        if (generation == this.generation && state == State.HALF_OPEN && probesStarted > 0) probesStarted--;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+        generation++;
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        generation++;
+        calls = 0;
+        badCalls = 0;
+    }
+
+    private static Optional<String> getEnv(String name) {
+        return Optional.ofNullable(System.getenv(name));
+    }
+}
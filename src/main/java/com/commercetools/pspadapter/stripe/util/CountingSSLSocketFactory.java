@@ -0,0 +1,73 @@
+package com.commercetools.pspadapter.stripe.util;
+
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the TLS connections to a domain opened through the wrapped factory, i.e. the connections that could not be
+ * reused from the keep-alive cache. The factory is the default of all HttpsURLConnections in the JVM, so connections
+ * to other hosts, e.g. to CTP, are not counted. Sockets created for an address without host name are not counted
+ * either; HttpsURLConnection always passes the host name.
+ */
+public class CountingSSLSocketFactory extends SSLSocketFactory {
+    final private SSLSocketFactory delegate;
+    final private String domain;
+    final private AtomicLong opened = new AtomicLong();
+
+    /**
+     * @param domain Only connections to this domain and its subdomains are counted, e.g. "stripe.com".
+     */
+    public CountingSSLSocketFactory(SSLSocketFactory delegate, String domain) {
+        this.delegate = delegate;
+        this.domain = domain;
+    }
+
+    public long getOpenedConnections() {
+        return opened.get();
+    }
+
+    private void count(String host) {
+        if (host != null && (host.equals(domain) || host.endsWith("." + domain))) opened.incrementAndGet();
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return delegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return delegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+        count(host);
+        return delegate.createSocket(socket, host, port, autoClose);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        count(host);
+        return delegate.createSocket(host, port);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        count(host);
+        return delegate.createSocket(host, port, localHost, localPort);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return delegate.createSocket(host, port);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+        return delegate.createSocket(address, port, localAddress, localPort);
+    }
+}
@@ -0,0 +1,77 @@
+package com.commercetools.pspadapter.stripe.util;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The time budget of a whole pipeline (e.g. processing one payment or one webhook event). It is passed down to every
+ * stage, so a stuck CTP or Stripe call can not hold a thread and a payment forever.
+ */
+public class Deadline {
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "deadlines");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final Deadline NONE = new Deadline(Long.MAX_VALUE);
+
+    final private long expiresAtNanos;
+
+    private Deadline(long expiresAtNanos) {
+        this.expiresAtNanos = expiresAtNanos;
+    }
+
+    public static Deadline after(long millis) {
+        return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    public static Deadline none() {
+        return NONE;
+    }
+
+    /**
+     * @return A deadline after CTP_STRIPE_ADAPTER_DEADLINE_MS (60 seconds by default).
+     */
+    public static Deadline fromEnvironment() {
+        return after(Long.parseLong(Optional.ofNullable(System.getenv("CTP_STRIPE_ADAPTER_DEADLINE_MS")).orElse("60000")));
+    }
+
+    public long remainingMillis() {
+        if (this == NONE) return Long.MAX_VALUE;
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(expiresAtNanos - System.nanoTime()));
+    }
+
+    public boolean isExpired() {
+        return remainingMillis() == 0;
+    }
+
+    /**
+     * @return The timeout of a stage, shortened to the remaining budget.
+     */
+    public long timeoutMillis(long stageTimeoutMillis) {
+        return Math.min(stageTimeoutMillis, remainingMillis());
+    }
+
+    /**
+     * @return The result of the stage, or a TimeoutException if the deadline passes first.
+     */
+    public <T> CompletableFuture<T> bound(CompletionStage<T> stage, String stageName) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        stage.whenComplete((value, e) -> {
+            if (e != null) result.completeExceptionally(e);
+            else result.complete(value);
+        });
+        if (this == NONE || result.isDone()) return result;
+        final ScheduledFuture<?> timeout = timer.schedule(
+            () -> result.completeExceptionally(new TimeoutException("Deadline exceeded in " + stageName)),
+            remainingMillis(), TimeUnit.MILLISECONDS);
+        result.whenComplete((value, e) -> timeout.cancel(false));
+        return result;
+    }
+}
@@ -0,0 +1,123 @@
+package com.commercetools.pspadapter.stripe.util;
+
+import io.sphere.sdk.client.SphereClient;
+import io.sphere.sdk.client.SphereRequest;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executes idempotent CTP reads (queries and gets) with a hedge: if the read takes longer than the recent 95th
+ * percentile, the same read is sent a second time and the first response wins. This cuts the tail latency caused by
+ * single slow requests at the cost of about 5% more reads.
+ * Never use it for updates, and never for Stripe requests.
+ */
+public class HedgedReads {
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "ctp-hedged-reads");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final int SAMPLES = 128;
+    private static final int MIN_SAMPLES = 20;
+
+    final private SphereClient client;
+    final private boolean enabled;
+    final private long defaultDelayMillis;
+    final private long[] latencies = new long[SAMPLES];
+    private int samples = 0;
+    private volatile long hedgeDelayMillis;
+    final private AtomicLong reads = new AtomicLong();
+    final private AtomicLong hedges = new AtomicLong();
+    final private AtomicLong hedgeWins = new AtomicLong();
+
+    public HedgedReads(SphereClient client, boolean enabled, long defaultDelayMillis) {
+        this.client = client;
+        this.enabled = enabled;
+        this.defaultDelayMillis = defaultDelayMillis;
+        this.hedgeDelayMillis = defaultDelayMillis;
+    }
+
+    /**
+     * Hedging can be turned off with CTP_STRIPE_ADAPTER_CTP_HEDGING=false.
+     */
+    public static HedgedReads ofEnvironment(SphereClient client) {
+        final boolean enabled = Boolean.parseBoolean(Optional.ofNullable(System.getenv("CTP_STRIPE_ADAPTER_CTP_HEDGING")).orElse("true"));
+        return new HedgedReads(client, enabled, 200);
+    }
+
+    public <T> CompletableFuture<T> execute(SphereRequest<T> request, Deadline deadline) {
+        reads.incrementAndGet();
+        final HedgedRead<T> read = new HedgedRead<>(request);
+        read.attempt(false);
+        final long delay = hedgeDelayMillis;
+        if (enabled && delay < deadline.remainingMillis()) {
+            final ScheduledFuture<?> hedge = timer.schedule(() -> read.attempt(true), delay, TimeUnit.MILLISECONDS);
+            read.result.whenComplete((value, e) -> hedge.cancel(false));
+        }
+        return deadline.bound(read.result, "CTP read");
+    }
+
+    public Map<String, Long> getStatistics() {
+        final Map<String, Long> statistics = new LinkedHashMap<>();
+        statistics.put("ctp_reads", reads.get());
+        statistics.put("ctp_hedged_reads", hedges.get());
+        statistics.put("ctp_hedge_wins", hedgeWins.get());
+        statistics.put("ctp_read_p95_ms", hedgeDelayMillis);
+        return statistics;
+    }
+
+    private synchronized void recordLatency(long millis) {
+        latencies[samples % SAMPLES] = millis;
+        samples++;
+        if (samples >= MIN_SAMPLES && samples % 16 == 0) {
+            final long[] sorted = Arrays.copyOf(latencies, Math.min(samples, SAMPLES));
+            Arrays.sort(sorted);
+            hedgeDelayMillis = Math.max(5, sorted[(int) (sorted.length * 0.95)]);
+        }
+    }
+
+    private class HedgedRead<T> {
+        final private SphereRequest<T> request;
+        final private CompletableFuture<T> result = new CompletableFuture<>();
+        private int started = 0;
+        private int failed = 0;
+
+        HedgedRead(SphereRequest<T> request) {
+            this.request = request;
+        }
+
+        void attempt(boolean hedge) {
+            synchronized (this) {
+                // Only one hedge per read
+                if (result.isDone() || started >= 2 || (hedge && started != 1)) return;
+                started++;
+            }
+            if (hedge) hedges.incrementAndGet();
+            final long start = System.nanoTime();
+            client.execute(request).whenComplete((value, e) -> {
+                if (e == null) {
+                    recordLatency(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    if (result.complete(value) && hedge) hedgeWins.incrementAndGet();
+                    return;
+                }
+                final boolean retry;
+                synchronized (this) {
+                    failed++;
+                    retry = !hedge && started == 1;
+                    if (!retry && failed == started) result.completeExceptionally(e);
+                }
+                // The read is idempotent, so a failed first attempt is hedged right away.
+                if (retry) attempt(true);
+            });
+        }
+    }
+}
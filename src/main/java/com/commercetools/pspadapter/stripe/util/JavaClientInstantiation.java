@@ -1,14 +1,23 @@
 package com.commercetools.pspadapter.stripe.util;
 
+import com.commercetools.pspadapter.stripe.replay.TrafficRecorder;
 import io.sphere.sdk.client.SphereClient;
 import io.sphere.sdk.client.SphereClientFactory;
 
 public class JavaClientInstantiation {
     public SphereClient instantiate() {
+        return instantiate("CTP_STRIPE_ADAPTER_");
+    }
+
+    /**
+     * @param envPrefix The prefix of the environment variables, e.g. CTP_STRIPE_ADAPTER_MYSHOP_ for a tenant.
+     */
+    public SphereClient instantiate(String envPrefix) {
         final SphereClientFactory factory = SphereClientFactory.of();
-        return factory.createClient(
-                System.getenv("CTP_STRIPE_ADAPTER_CTP_PROJECT_KEY"),
-                System.getenv("CTP_STRIPE_ADAPTER_CTP_CLIENT_ID"),
-                System.getenv("CTP_STRIPE_ADAPTER_CTP_CLIENT_SECRET"));
+        final SphereClient client = factory.createClient(
+                System.getenv(envPrefix + "CTP_PROJECT_KEY"),
+                System.getenv(envPrefix + "CTP_CLIENT_ID"),
+                System.getenv(envPrefix + "CTP_CLIENT_SECRET"));
+        return TrafficRecorder.getInstalled().map(recorder -> recorder.wrap(client)).orElse(client);
     }
-}
\ No newline at end of file
+}
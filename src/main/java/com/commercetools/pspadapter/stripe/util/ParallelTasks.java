@@ -0,0 +1,41 @@
+package com.commercetools.pspadapter.stripe.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+
+public class ParallelTasks {
+    /**
+     * Starts the task for every item, with at most parallelism tasks in flight. Blocks the calling thread while the
+     * limit is reached, so it is meant for background jobs.
+     * @return The results in the order of the items, once all tasks are done. A failed task has a null result.
+     */
+    public static <T, R> CompletableFuture<List<R>> map(List<T> items, int parallelism, Function<T, CompletionStage<R>> task) throws InterruptedException {
+        final Semaphore permits = new Semaphore(parallelism);
+        final List<CompletableFuture<R>> futures = new ArrayList<>();
+        for (T item : items) {
+            permits.acquire();
+            CompletableFuture<R> future;
+            try {
+                future = task.apply(item).toCompletableFuture();
+            } catch (RuntimeException e) {
+                future = new CompletableFuture<>();
+                future.completeExceptionally(e);
+            }
+            futures.add(future
+                .handle((result, e) -> {
+                    permits.release();
+                    return e == null ? result : null;
+                }));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()]))
+            .thenApply(done -> {
+                final List<R> results = new ArrayList<>();
+                futures.forEach(future -> results.add(future.join()));
+                return results;
+            });
+    }
+}
@@ -0,0 +1,149 @@
+package com.commercetools.pspadapter.stripe.util;
+
+import io.sphere.sdk.client.ConcurrentModificationException;
+import io.sphere.sdk.client.SphereClient;
+import io.sphere.sdk.commands.UpdateAction;
+import io.sphere.sdk.payments.Payment;
+import io.sphere.sdk.payments.commands.PaymentUpdateCommand;
+import io.sphere.sdk.payments.queries.PaymentByIdGet;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the most recent version of recently used payments, so follow-up operations (webhooks, retries) don't have to
+ * fetch them from CTP again. Every update through the cache stores the updated payment. A version conflict means the
+ * payment was changed elsewhere, so it is removed from the cache and the caller falls back to a fresh read.
+ */
+public class PaymentCache {
+    private static PaymentCache defaultInstance;
+
+    private final LinkedHashMap<String, Payment> payments;
+    private final Map<String, String> paymentIdsByInterfaceId = new HashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public PaymentCache(final int capacity) {
+        this.payments = new LinkedHashMap<String, Payment>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Payment> eldest) {
+                if (size() <= capacity) return false;
+                unindex(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @return The instance of processes that are not multi-tenant, sized by CTP_STRIPE_ADAPTER_PAYMENT_CACHE_SIZE.
+     */
+    public static synchronized PaymentCache getDefault() {
+        if (defaultInstance == null) defaultInstance = new PaymentCache(capacityFromEnvironment());
+        return defaultInstance;
+    }
+
+    public static int capacityFromEnvironment() {
+        return Integer.parseInt(Optional.ofNullable(System.getenv("CTP_STRIPE_ADAPTER_PAYMENT_CACHE_SIZE")).orElse("10000"));
+    }
+
+    /**
+     * Stores the payment, unless the cache already has the same or a newer version.
+     */
+    public synchronized void put(Payment payment) {
+        final Payment cached = payments.get(payment.getId());
+        if (cached != null && cached.getVersion() >= payment.getVersion()) return;
+        if (cached != null) unindex(cached);
+        payments.put(payment.getId(), payment);
+        Optional.ofNullable(payment.getInterfaceId()).ifPresent(interfaceId -> paymentIdsByInterfaceId.put(interfaceId, payment.getId()));
+    }
+
+    public synchronized Optional<Payment> get(String paymentId) {
+        return count(Optional.ofNullable(payments.get(paymentId)));
+    }
+
+    public synchronized Optional<Payment> getByInterfaceId(String interfaceId) {
+        return count(Optional.ofNullable(paymentIdsByInterfaceId.get(interfaceId)).map(payments::get));
+    }
+
+    /**
+     * @return The given payment, or the cached version of it if that one is newer.
+     */
+    public synchronized Payment freshest(Payment payment) {
+        final Payment cached = payments.get(payment.getId());
+        if (cached != null && cached.getVersion() > payment.getVersion()) return cached;
+        put(payment);
+        return payment;
+    }
+
+    public synchronized void invalidate(String paymentId) {
+        Optional.ofNullable(payments.remove(paymentId)).ifPresent(this::unindex);
+    }
+
+    /**
+     * @return The cached payment, or the payment fetched from CTP.
+     */
+    public CompletableFuture<Payment> fetch(HedgedReads reads, String paymentId, Deadline deadline) {
+        final Optional<Payment> cached = get(paymentId);
+        if (cached.isPresent()) return CompletableFuture.completedFuture(cached.get());
+        return reads.execute(PaymentByIdGet.of(paymentId), deadline)
+            .thenApply(payment -> {
+                if (payment != null) put(payment);
+                return payment;
+            });
+    }
+
+    public CompletableFuture<Payment> update(SphereClient client, Payment payment, UpdateAction<Payment> updateAction) {
+        return update(client, payment, Collections.singletonList(updateAction));
+    }
+
+    public CompletableFuture<Payment> update(SphereClient client, Payment payment, UpdateAction<Payment> updateAction, Deadline deadline) {
+        return update(client, payment, Collections.singletonList(updateAction), deadline);
+    }
+
+    /**
+     * Like update, but fails with a TimeoutException once the deadline passes. The update may still succeed in CTP,
+     * in that case the retry runs into a version conflict and reads the payment again.
+     */
+    public CompletableFuture<Payment> update(SphereClient client, Payment payment, List<? extends UpdateAction<Payment>> updateActions, Deadline deadline) {
+        return deadline.bound(update(client, payment, updateActions), "CTP payment update");
+    }
+
+    /**
+     * Updates the payment in CTP and caches the updated payment.
+     */
+    public CompletableFuture<Payment> update(SphereClient client, Payment payment, List<? extends UpdateAction<Payment>> updateActions) {
+        return client.execute(PaymentUpdateCommand.of(payment, updateActions))
+            .toCompletableFuture()
+            .whenComplete((updatedPayment, e) -> {
+                if (updatedPayment != null) put(updatedPayment);
+                else if (isVersionConflict(e)) invalidate(payment.getId());
+            });
+    }
+
+    public static boolean isVersionConflict(Throwable e) {
+        final Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        return cause instanceof ConcurrentModificationException;
+    }
+
+    public Map<String, Long> getStatistics() {
+        final Map<String, Long> statistics = new LinkedHashMap<>();
+        statistics.put("payment_cache_hits", hits.get());
+        statistics.put("payment_cache_misses", misses.get());
+        synchronized (this) {
+            statistics.put("payment_cache_size", (long) payments.size());
+        }
+        return statistics;
+    }
+
+    private Optional<Payment> count(Optional<Payment> payment) {
+        (payment.isPresent() ? hits : misses).incrementAndGet();
+        return payment;
+    }
+
+    private void unindex(Payment payment) {
+        Optional.ofNullable(payment.getInterfaceId())
+            .ifPresent(interfaceId -> paymentIdsByInterfaceId.remove(interfaceId, payment.getId()));
+    }
+}
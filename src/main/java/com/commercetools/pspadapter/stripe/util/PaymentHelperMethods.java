@@ -3,6 +3,7 @@ package com.commercetools.pspadapter.stripe.util;
 import com.commercetools.pspadapter.stripe.TypeKeyToId;
 import com.stripe.model.Charge;
 import com.stripe.model.Dispute;
+import com.stripe.model.Refund;
 import io.sphere.sdk.payments.Payment;
 import io.sphere.sdk.payments.commands.updateactions.AddInterfaceInteraction;
 import io.sphere.sdk.types.CustomFields;
@@ -46,6 +47,13 @@ public abstract class PaymentHelperMethods {
             .flatMap(s -> s.reduce((a, b) -> b)); // == findLast()
     }
 
+    /**
+     * @return Whether a request with the idempotencyKey failed temporarily before, so sending it again is a retry.
+     */
+    protected boolean hasTemporaryException(Payment payment, String idempotencyKey) {
+        return getLastInteractionOfTypeWithField(payment, "STRIPE_TEMPORARY_EXCEPTION", "idempotencyKey", idempotencyKey).isPresent();
+    }
+
     protected Optional<CustomFields> getLastException(Payment payment, CustomFields interaction) {
         return Optional.ofNullable(interaction.getFieldAsString("idempotencyKey"))
             .flatMap(idempotencyKey ->
@@ -60,6 +68,15 @@ public abstract class PaymentHelperMethods {
         return token;
     }
 
+    /**
+     * @return The number of the current attempt. Every additional token (e.g. after a card got declined) starts a new attempt.
+     */
+    protected long getAttempt(Payment payment) {
+        return getInteractionsOfType(payment, "STRIPE_TOKEN_RECEIVED")
+            .map(s -> Math.max(0L, s.count() - 1))
+            .orElse(0L);
+    }
+
     protected AddInterfaceInteraction interactionOfTypeWith(String typeKey, String idempotencyKey, String fieldName, String fieldValue) {
         HashMap<String, Object> objects = new HashMap();
         objects.put("idempotencyKey", idempotencyKey);
@@ -75,6 +92,14 @@ public abstract class PaymentHelperMethods {
         return getMonetaryAmount(dispute.getAmount(), dispute.getCurrency());
     }
 
+    protected MonetaryAmount toAmount(Refund refund) {
+        return getMonetaryAmount(refund.getAmount(), refund.getCurrency());
+    }
+
+    protected MonetaryAmount toAmountRefunded(Charge charge) {
+        return getMonetaryAmount(charge.getAmountRefunded(), charge.getCurrency());
+    }
+
     private MonetaryAmount getMonetaryAmount(Integer amount, String currency) {
         return MoneyImpl.ofCents(amount, currency.toUpperCase());
     }
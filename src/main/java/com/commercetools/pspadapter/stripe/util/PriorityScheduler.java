@@ -0,0 +1,223 @@
+package com.commercetools.pspadapter.stripe.util;
+
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out the threads and the rate limit of a StripeApi by priority class. Every class has reserved slots that the
+ * other classes can't take, so a backlog of disputes or jobs can't delay checkouts. Among the classes that may start a
+ * task, the task with the best priority goes first, and every agingMillis of waiting moves a task up one class, so
+ * the least urgent class still makes progress under load.
+ * Permits of the rate limiter are reserved when a task is dispatched, so they are handed out in priority order too.
+ * Several tenants can share one scheduler and its pool. Within a class the tenants take turns, so a tenant with a large
+ * backlog can not starve the others, and every tenant can bring its own rate limiter.
+ */
+public class PriorityScheduler {
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "stripe-api-rate-limit");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    final private Executor executor;
+    final private RateLimiter rateLimiter;
+    final private int slots;
+    final private int[] reserved;
+    final private long agingNanos;
+
+    final private Map<WorkClass, TenantQueues> queues = new EnumMap<>(WorkClass.class);
+    final private int[] running = new int[WorkClass.values().length];
+    private int runningTotal;
+    final private AtomicLong[] dispatched = new AtomicLong[WorkClass.values().length];
+    final private AtomicLong[] waitNanos = new AtomicLong[WorkClass.values().length];
+    final private AtomicLong[] maxWaitNanos = new AtomicLong[WorkClass.values().length];
+
+    /**
+     * @param rateLimiter Limits the rate of tasks, or null for no limit.
+     * @param slots The maximum number of tasks running at once, e.g. the size of the pool. With 0 there is no limit,
+     *              e.g. for virtual threads, and only the rate limit is handed out by priority.
+     * @param reserved The number of slots reserved per class, in the order of WorkClass.
+     */
+    public PriorityScheduler(Executor executor, RateLimiter rateLimiter, int slots, int[] reserved, long agingMillis) {
+        this.executor = executor;
+        this.rateLimiter = rateLimiter;
+        this.slots = slots;
+        this.reserved = reserved;
+        this.agingNanos = TimeUnit.MILLISECONDS.toNanos(agingMillis);
+        for (WorkClass workClass : WorkClass.values()) {
+            queues.put(workClass, new TenantQueues());
+            dispatched[workClass.ordinal()] = new AtomicLong();
+            waitNanos[workClass.ordinal()] = new AtomicLong();
+            maxWaitNanos[workClass.ordinal()] = new AtomicLong();
+        }
+    }
+
+    /**
+     * Reserves a share of the slots per class, e.g. CTP_STRIPE_ADAPTER_SCHEDULER_RESERVED_INTERACTIVE=0.4.
+     * Aging is set with CTP_STRIPE_ADAPTER_SCHEDULER_AGING_MS.
+     */
+    public static PriorityScheduler ofEnvironment(Executor executor, RateLimiter rateLimiter, int slots) {
+        final Map<WorkClass, String> defaults = new EnumMap<>(WorkClass.class);
+        defaults.put(WorkClass.INTERACTIVE, "0.4");
+        defaults.put(WorkClass.RETRY, "0.1");
+        defaults.put(WorkClass.WEBHOOK, "0.1");
+        defaults.put(WorkClass.BATCH, "0");
+        final int[] reserved = new int[WorkClass.values().length];
+        for (WorkClass workClass : WorkClass.values()) {
+            final double share = Double.parseDouble(Optional.ofNullable(
+                System.getenv("CTP_STRIPE_ADAPTER_SCHEDULER_RESERVED_" + workClass.name())).orElse(defaults.get(workClass)));
+            reserved[workClass.ordinal()] = (int) Math.floor(slots * share);
+        }
+        final long agingMillis = Long.parseLong(Optional.ofNullable(System.getenv("CTP_STRIPE_ADAPTER_SCHEDULER_AGING_MS")).orElse("1000"));
+        return new PriorityScheduler(executor, rateLimiter, slots, reserved, agingMillis);
+    }
+
+    public void execute(WorkClass workClass, Runnable task) {
+        execute(workClass, "", null, task);
+    }
+
+    /**
+     * @param tenantKey The tenant of the task, which takes turns with the other tenants of its class.
+     * @param rateLimiter Limits the rate of the tenant, or null for the rate limiter of the scheduler.
+     */
+    public void execute(WorkClass workClass, String tenantKey, RateLimiter rateLimiter, Runnable task) {
+        final Task queued = new Task(workClass, tenantKey, rateLimiter == null ? this.rateLimiter : rateLimiter, task, System.nanoTime());
+        synchronized (this) {
+            queues.get(workClass).add(queued);
+        }
+        dispatch();
+    }
+
+    private void dispatch() {
+        while (true) {
+            final Task task;
+            final long delayNanos;
+            synchronized (this) {
+                task = next();
+                if (task == null) return;
+                running[task.workClass.ordinal()]++;
+                runningTotal++;
+                delayNanos = task.rateLimiter == null ? 0 : task.rateLimiter.reserve();
+            }
+            final long waited = System.nanoTime() - task.enqueuedNanos;
+            dispatched[task.workClass.ordinal()].incrementAndGet();
+            waitNanos[task.workClass.ordinal()].addAndGet(waited);
+            maxWaitNanos[task.workClass.ordinal()].accumulateAndGet(waited, Math::max);
+            final Runnable run = () -> {
+                try {
+                    task.runnable.run();
+                } finally {
+                    synchronized (this) {
+                        running[task.workClass.ordinal()]--;
+                        runningTotal--;
+                    }
+                    dispatch();
+                }
+            };
+            if (delayNanos > 0) timer.schedule(() -> executor.execute(run), delayNanos, TimeUnit.NANOSECONDS);
+            else executor.execute(run);
+        }
+    }
+
+    /**
+     * @return The task to run next, or null if no task may start.
+     */
+    private Task next() {
+        if (slots > 0 && runningTotal >= slots) return null;
+        final long now = System.nanoTime();
+        Task next = null;
+        double nextRank = Double.MAX_VALUE;
+        for (WorkClass workClass : WorkClass.values()) {
+            final Task head = queues.get(workClass).peek();
+            if (head == null || !mayStart(workClass)) continue;
+            final double rank = workClass.ordinal() - (double) (now - head.enqueuedNanos) / agingNanos;
+            if (rank < nextRank) {
+                next = head;
+                nextRank = rank;
+            }
+        }
+        if (next != null) queues.get(next.workClass).poll();
+        return next;
+    }
+
+    private boolean mayStart(WorkClass workClass) {
+        if (slots <= 0) return true;
+        if (running[workClass.ordinal()] < reserved[workClass.ordinal()]) return true;
+        // The unused reservations of the other classes stay free
+        int heldForOthers = 0;
+        for (WorkClass other : WorkClass.values()) {
+            if (other != workClass) heldForOthers += Math.max(0, reserved[other.ordinal()] - running[other.ordinal()]);
+        }
+        return slots - runningTotal > heldForOthers;
+    }
+
+    public Map<String, Long> getStatistics() {
+        final Map<String, Long> statistics = new LinkedHashMap<>();
+        for (WorkClass workClass : WorkClass.values()) {
+            final String prefix = "stripe_queue_" + workClass.name().toLowerCase() + "_";
+            synchronized (this) {
+                statistics.put(prefix + "waiting", (long) queues.get(workClass).size());
+                statistics.put(prefix + "running", (long) running[workClass.ordinal()]);
+            }
+            statistics.put(prefix + "dispatched", dispatched[workClass.ordinal()].get());
+            statistics.put(prefix + "wait_ms_total", TimeUnit.NANOSECONDS.toMillis(waitNanos[workClass.ordinal()].get()));
+            statistics.put(prefix + "wait_ms_max", TimeUnit.NANOSECONDS.toMillis(maxWaitNanos[workClass.ordinal()].get()));
+        }
+        return statistics;
+    }
+
+    private static class Task {
+        final WorkClass workClass;
+        final String tenantKey;
+        final RateLimiter rateLimiter;
+        final Runnable runnable;
+        final long enqueuedNanos;
+
+        Task(WorkClass workClass, String tenantKey, RateLimiter rateLimiter, Runnable runnable, long enqueuedNanos) {
+            this.workClass = workClass;
+            this.tenantKey = tenantKey;
+            this.rateLimiter = rateLimiter;
+            this.runnable = runnable;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+
+    /**
+     * The tasks of one class, in a queue per tenant. The tenants with waiting tasks take turns.
+     */
+    private static class TenantQueues {
+        final private Map<String, Deque<Task>> tasks = new HashMap<>();
+        final private Deque<String> turns = new ArrayDeque<>();
+        private int size;
+
+        void add(Task task) {
+            tasks.computeIfAbsent(task.tenantKey, key -> {
+                turns.addLast(key);
+                return new ArrayDeque<>();
+            }).addLast(task);
+            size++;
+        }
+
+        Task peek() {
+            return turns.isEmpty() ? null : tasks.get(turns.peekFirst()).peekFirst();
+        }
+
+        void poll() {
+            final String tenantKey = turns.pollFirst();
+            final Deque<Task> tenantTasks = tasks.get(tenantKey);
+            tenantTasks.pollFirst();
+            size--;
+            // Go to the end of the line, if there are more tasks of this tenant
+            if (tenantTasks.isEmpty()) tasks.remove(tenantKey);
+            else turns.addLast(tenantKey);
+        }
+
+        int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.commercetools.pspadapter.stripe.util;
+
+/**
+ * Hands out permits at a fixed rate, allowing short bursts. Instead of blocking, a reservation returns how long the
+ * caller has to wait, so no thread is held while waiting.
+ */
+public class RateLimiter {
+    final private long intervalNanos;
+    final private long burstNanos;
+    private long nextFreeNanos = System.nanoTime();
+
+    public RateLimiter(double permitsPerSecond, int burst) {
+        this.intervalNanos = (long) (1_000_000_000L / permitsPerSecond);
+        this.burstNanos = intervalNanos * burst;
+    }
+
+    /**
+     * @return The number of nanoseconds to wait before the permit can be used.
+     */
+    public synchronized long reserve() {
+        final long now = System.nanoTime();
+        // Unused permits of an idle period can be used for a burst.
+        nextFreeNanos = Math.max(nextFreeNanos, now - burstNanos);
+        final long start = Math.max(now, nextFreeNanos);
+        nextFreeNanos = start + intervalNanos;
+        return start - now;
+    }
+}
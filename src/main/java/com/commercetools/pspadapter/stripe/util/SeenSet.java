@@ -0,0 +1,29 @@
+package com.commercetools.pspadapter.stripe.util;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the most recently added ids. The oldest id is forgotten once the capacity is reached.
+ */
+public class SeenSet {
+    private final Map<String, Boolean> seen;
+
+    public SeenSet(final int capacity) {
+        this.seen = Collections.synchronizedMap(new LinkedHashMap<String, Boolean>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > capacity;
+            }
+        });
+    }
+
+    public boolean contains(String id) {
+        return seen.containsKey(id);
+    }
+
+    public void add(String id) {
+        seen.put(id, Boolean.TRUE);
+    }
+}
@@ -0,0 +1,93 @@
+package com.commercetools.pspadapter.stripe.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces idempotent reads: Concurrent reads of the same key share one request, and a successful result is reused
+ * for ttlMillis afterwards. Failures are not kept, so the next read tries again.
+ */
+public class SingleFlight<K, V> {
+    private static final int CLEANUP_SIZE = 10000;
+
+    final private String name;
+    final private long ttlNanos;
+    final private Map<K, Flight<V>> flights = new ConcurrentHashMap<>();
+    final private AtomicLong loads = new AtomicLong();
+    final private AtomicLong merges = new AtomicLong();
+    final private AtomicLong hits = new AtomicLong();
+
+    /**
+     * @param name The prefix of the statistics, e.g. ctp_customer.
+     */
+    public SingleFlight(String name, long ttlMillis) {
+        this.name = name;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    /**
+     * @return An instance keeping results for CTP_STRIPE_ADAPTER_SINGLE_FLIGHT_TTL_MS (2 seconds by default).
+     */
+    public static <K, V> SingleFlight<K, V> ofEnvironment(String name) {
+        return new SingleFlight<>(name, Long.parseLong(Optional.ofNullable(System.getenv("CTP_STRIPE_ADAPTER_SINGLE_FLIGHT_TTL_MS")).orElse("2000")));
+    }
+
+    /**
+     * @param load Starts the read, if there is no read of the key in flight or recently completed.
+     */
+    public CompletableFuture<V> get(K key, Supplier<CompletableFuture<V>> load) {
+        final long now = System.nanoTime();
+        final boolean[] loaded = new boolean[1];
+        final Flight<V> flight = flights.compute(key, (k, current) -> {
+            if (current != null && current.isUsable(now, ttlNanos)) return current;
+            loaded[0] = true;
+            return new Flight<>();
+        });
+        if (!loaded[0]) {
+            (flight.future.isDone() ? hits : merges).incrementAndGet();
+            return flight.future;
+        }
+        loads.incrementAndGet();
+        if (flights.size() > CLEANUP_SIZE) flights.entrySet().removeIf(entry -> !entry.getValue().isUsable(now, ttlNanos));
+        try {
+            load.get().whenComplete((value, e) -> {
+                if (e != null) {
+                    // Later reads must not get the failure
+                    flights.remove(key, flight);
+                    flight.future.completeExceptionally(e);
+                } else {
+                    flight.completedAtNanos = System.nanoTime();
+                    flight.future.complete(value);
+                }
+            });
+        } catch (RuntimeException e) {
+            flights.remove(key, flight);
+            flight.future.completeExceptionally(e);
+        }
+        return flight.future;
+    }
+
+    public Map<String, Long> getStatistics() {
+        final Map<String, Long> statistics = new LinkedHashMap<>();
+        statistics.put(name + "_single_flight_loads", loads.get());
+        statistics.put(name + "_single_flight_merges", merges.get());
+        statistics.put(name + "_single_flight_hits", hits.get());
+        return statistics;
+    }
+
+    private static class Flight<V> {
+        final CompletableFuture<V> future = new CompletableFuture<>();
+        volatile long completedAtNanos;
+
+        boolean isUsable(long now, long ttlNanos) {
+            if (!future.isDone()) return true;
+            return !future.isCompletedExceptionally() && now - completedAtNanos < ttlNanos;
+        }
+    }
+}
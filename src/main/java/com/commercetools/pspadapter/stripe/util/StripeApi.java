@@ -0,0 +1,349 @@
+package com.commercetools.pspadapter.stripe.util;
+
+import com.stripe.exception.APIConnectionException;
+import com.stripe.exception.StripeException;
+import com.stripe.net.RequestOptions;
+
+import javax.net.ssl.HttpsURLConnection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs all calls to the Stripe API on a bounded pool, with a timeout per operation. Calls wait for a thread by priority
+ * class, see PriorityScheduler.
+ * stripe-java uses HttpURLConnection, so connections are pooled by the keep-alive cache of the JDK. The pool size of
+ * the cache matches the number of threads, so every thread can keep its connection (and TLS session) open.
+ * The timeout of a call is also applied to the connection of stripe-java (see StripeTimeoutHandler), so a call that
+ * timed out gives its thread back instead of waiting for Stripe.
+ */
+public class StripeApi {
+    public static final String CUSTOMER_CREATE = "customer.create";
+    public static final String CHARGE_CREATE = "charge.create";
+    public static final String CHARGE_CAPTURE = "charge.capture";
+    public static final String CHARGE_REFUND = "charge.refund";
+    public static final String CHARGE_LIST = "charge.list";
+    public static final String EVENT_RETRIEVE = "event.retrieve";
+    public static final String EVENT_LIST = "event.list";
+    public static final String TOKEN_CREATE = "token.create";
+    // States of a call between the scheduler and its timeout
+    private static final int QUEUED = 0;
+    private static final int RUNNING = 1;
+    private static final int SKIPPED = 2;
+    private static final String[] OPERATIONS = {CUSTOMER_CREATE, CHARGE_CREATE, CHARGE_CAPTURE, CHARGE_REFUND, CHARGE_LIST, EVENT_RETRIEVE, EVENT_LIST, TOKEN_CREATE};
+
+    @FunctionalInterface
+    public interface StripeCall<T> {
+        T call(RequestOptions options) throws StripeException;
+    }
+
+    @FunctionalInterface
+    public interface StripeRequestCall<T> {
+        T call(Map<String, Object> params, RequestOptions options) throws StripeException;
+    }
+
+    /**
+     * Runs the calls of all instances, e.g. to record the responses of Stripe or to replay them.
+     */
+    public interface Interceptor {
+        /**
+         * @param subject Identifies the request within the operation, e.g. the idempotencyKey. May be null.
+         */
+        <T> T intercept(String operation, String subject, RequestOptions options, StripeCall<T> call) throws StripeException;
+
+        /**
+         * Intercepts a call that is executed with params, e.g. to check them against an earlier request with the same
+         * idempotencyKey.
+         */
+        default <T> T intercept(String operation, String subject, Map<String, Object> params, RequestOptions options, StripeCall<T> call) throws StripeException {
+            return intercept(operation, subject, options, call);
+        }
+    }
+
+    private static final Interceptor DIRECT = new Interceptor() {
+        @Override
+        public <T> T intercept(String operation, String subject, RequestOptions options, StripeCall<T> call) throws StripeException {
+            return call.call(options);
+        }
+    };
+
+    private static volatile Interceptor interceptor = DIRECT;
+
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "stripe-api-timeouts");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static CountingSSLSocketFactory socketFactory;
+    private static StripeApi defaultInstance;
+
+    final private String apiKey;
+    final private PriorityScheduler scheduler;
+    final private String tenantKey;
+    final private RateLimiter rateLimiter;
+    final private long defaultTimeoutMillis;
+    final private Map<String, Long> timeoutsMillis;
+    final private AtomicLong requests = new AtomicLong();
+    final private AtomicLong failures = new AtomicLong();
+    final private AtomicLong timeouts = new AtomicLong();
+    final private AtomicLong inFlight = new AtomicLong();
+    final private AtomicLong peakInFlight = new AtomicLong();
+    final private Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    /**
+     * @param apiKey The Stripe API key, or null to use the global Stripe.apiKey.
+     * @param rateLimiter Limits the rate of requests, or null for no limit.
+     */
+    public StripeApi(String apiKey, Executor executor, RateLimiter rateLimiter, long defaultTimeoutMillis, Map<String, Long> timeoutsMillis) {
+        // Virtual threads are not limited by the pool size
+        this(apiKey, PriorityScheduler.ofEnvironment(executor, rateLimiter, ThreadPools.isVirtual() ? 0 : poolSizeFromEnvironment()),
+            defaultTimeoutMillis, timeoutsMillis);
+    }
+
+    /**
+     * @param scheduler Runs the calls on its executor, by priority class.
+     */
+    public StripeApi(String apiKey, PriorityScheduler scheduler, long defaultTimeoutMillis, Map<String, Long> timeoutsMillis) {
+        this(apiKey, scheduler, "", null, defaultTimeoutMillis, timeoutsMillis);
+    }
+
+    /**
+     * @param scheduler Runs the calls on its executor, by priority class. It may be shared with other tenants.
+     * @param tenantKey The tenant whose calls take turns with the calls of the other tenants of the scheduler.
+     * @param rateLimiter Limits the rate of requests of the tenant, or null for the limit of the scheduler.
+     */
+    public StripeApi(String apiKey, PriorityScheduler scheduler, String tenantKey, RateLimiter rateLimiter,
+                     long defaultTimeoutMillis, Map<String, Long> timeoutsMillis) {
+        this.apiKey = apiKey;
+        this.scheduler = scheduler;
+        this.tenantKey = tenantKey;
+        this.rateLimiter = rateLimiter;
+        this.defaultTimeoutMillis = defaultTimeoutMillis;
+        this.timeoutsMillis = timeoutsMillis;
+    }
+
+    /**
+     * Uses the timeouts of the CTP_STRIPE_ADAPTER_STRIPE_TIMEOUT_MS environment variable. The timeout of a single
+     * operation can be set with e.g. CTP_STRIPE_ADAPTER_STRIPE_TIMEOUT_MS_CHARGE_CREATE.
+     */
+    public static StripeApi ofEnvironment(String apiKey, Executor executor, RateLimiter rateLimiter) {
+        return new StripeApi(apiKey, executor, rateLimiter, defaultTimeoutFromEnvironment(), timeoutsFromEnvironment());
+    }
+
+    /**
+     * Like ofEnvironment, for a tenant that shares the scheduler and its pool with other tenants.
+     */
+    public static StripeApi ofEnvironment(String apiKey, PriorityScheduler scheduler, String tenantKey, RateLimiter rateLimiter) {
+        return new StripeApi(apiKey, scheduler, tenantKey, rateLimiter, defaultTimeoutFromEnvironment(), timeoutsFromEnvironment());
+    }
+
+    private static long defaultTimeoutFromEnvironment() {
+        return Long.parseLong(getEnv("CTP_STRIPE_ADAPTER_STRIPE_TIMEOUT_MS").orElse("30000"));
+    }
+
+    private static Map<String, Long> timeoutsFromEnvironment() {
+        final Map<String, Long> timeoutsMillis = new HashMap<>();
+        for (String operation : OPERATIONS) {
+            getEnv("CTP_STRIPE_ADAPTER_STRIPE_TIMEOUT_MS_" + operation.toUpperCase().replace('.', '_'))
+                .ifPresent(timeout -> timeoutsMillis.put(operation, Long.parseLong(timeout)));
+        }
+        return timeoutsMillis;
+    }
+
+    /**
+     * @return The instance using the global Stripe.apiKey, with a pool sized by CTP_STRIPE_ADAPTER_STRIPE_POOL_SIZE.
+     */
+    public static synchronized StripeApi getDefault() {
+        if (defaultInstance == null) {
+            final int poolSize = poolSizeFromEnvironment();
+            configureTransport(poolSize);
+            // In virtual thread mode the pool size only limits the connections kept alive.
+            final ExecutorService pool = ThreadPools.newPool(poolSize, "stripe-api");
+            defaultInstance = ofEnvironment(null, pool, null);
+        }
+        return defaultInstance;
+    }
+
+    public static int poolSizeFromEnvironment() {
+        return Integer.parseInt(getEnv("CTP_STRIPE_ADAPTER_STRIPE_POOL_SIZE").orElse("20"));
+    }
+
+    /**
+     * Enables the keep-alive cache for up to poolSize connections per host, counts the connections that are opened to
+     * Stripe, and applies the timeouts of the calls to the connections of stripe-java.
+     * Has to run before stripe-java makes its first request, as stripe-java copies the default SSLSocketFactory.
+     */
+    public static synchronized void configureTransport(int poolSize) {
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(poolSize));
+        StripeTimeoutHandler.install();
+        if (socketFactory == null) {
+            socketFactory = new CountingSSLSocketFactory(HttpsURLConnection.getDefaultSSLSocketFactory(), StripeTimeoutHandler.STRIPE_DOMAIN);
+            HttpsURLConnection.setDefaultSSLSocketFactory(socketFactory);
+        }
+    }
+
+    /**
+     * Executes the request with its params and its RequestOptions (and so its idempotencyKey).
+     * @return The execution, which is exceptional if Stripe returned an error or the request timed out.
+     */
+    public <T> CompletableFuture<StripeExecution<T>> execute(String operation, StripeRequest request, StripeRequestCall<T> call) {
+        return execute(operation, request, call, Deadline.none());
+    }
+
+    /**
+     * Like execute, but the timeout is shortened to the remaining time of the deadline. A request that runs out of time
+     * is an APIConnectionException, so it is recorded as temporary failure and retried with the same idempotencyKey.
+     */
+    public <T> CompletableFuture<StripeExecution<T>> execute(String operation, StripeRequest request, StripeRequestCall<T> call, Deadline deadline) {
+        final WorkClass workClass = request.isRetry() ? WorkClass.RETRY : WorkClass.of(operation);
+        final RequestOptions requestOptions = request.getRequestOptions(apiKey);
+        return this.<T>call(operation, request.getIdempotencyKey(), workClass, request.getParams(), requestOptions, options -> call.call(request.getParams(), options), deadline)
+            .handle((stripeObject, e) -> {
+                if (e == null) return request.<T>toSuccess(stripeObject);
+                final Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                if (cause instanceof StripeException) return request.<T>toException((StripeException) cause);
+                throw new CompletionException(cause);
+            });
+    }
+
+    /**
+     * @return The result of the call. Completes exceptionally with an APIConnectionException if the operation timed out.
+     */
+    public <T> CompletableFuture<T> call(String operation, RequestOptions options, StripeCall<T> call) {
+        return call(operation, options, call, Deadline.none());
+    }
+
+    public <T> CompletableFuture<T> call(String operation, RequestOptions options, StripeCall<T> call, Deadline deadline) {
+        return call(operation, options.getIdempotencyKey(), options, call, deadline);
+    }
+
+    /**
+     * @param subject Identifies the request for the interceptor, e.g. the id of a retrieved object.
+     */
+    public <T> CompletableFuture<T> call(String operation, String subject, RequestOptions options, StripeCall<T> call, Deadline deadline) {
+        return call(operation, subject, WorkClass.of(operation), options, call, deadline);
+    }
+
+    /**
+     * @param workClass The priority of the call while it waits for a thread and the rate limit.
+     */
+    public <T> CompletableFuture<T> call(String operation, String subject, WorkClass workClass, RequestOptions options, StripeCall<T> call, Deadline deadline) {
+        return call(operation, subject, workClass, null, options, call, deadline);
+    }
+
+    /**
+     * @param params The params of the request for the interceptor, or null if the call has none.
+     */
+    private <T> CompletableFuture<T> call(String operation, String subject, WorkClass workClass, Map<String, Object> params,
+                                          RequestOptions options, StripeCall<T> call, Deadline deadline) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        requests.incrementAndGet();
+        if (deadline.isExpired()) {
+            timeouts.incrementAndGet();
+            result.completeExceptionally(new APIConnectionException("Deadline exceeded before Stripe " + operation));
+            return result;
+        }
+        final CircuitBreaker breaker = breakers.computeIfAbsent(operation, op -> CircuitBreaker.fromEnvironment());
+        final long generation = breaker.tryAcquire();
+        if (generation < 0) {
+            // Fail fast while Stripe has problems, the payment is retried later.
+            result.completeExceptionally(new APIConnectionException("Circuit breaker open for Stripe " + operation));
+            return result;
+        }
+        final long timeoutMillis = deadline.timeoutMillis(timeoutsMillis.getOrDefault(operation, defaultTimeoutMillis));
+        final long queuedAt = System.nanoTime();
+        // The task and the completion race for the call: whoever is first decides if it reached Stripe
+        final AtomicInteger dispatch = new AtomicInteger(QUEUED);
+        result.whenComplete((r, e) -> {
+            // Timed out while waiting for a thread, Stripe never saw the call
+            if (dispatch.compareAndSet(QUEUED, SKIPPED)) breaker.release(generation);
+        });
+        final Runnable task = () -> {
+            if (!dispatch.compareAndSet(QUEUED, RUNNING)) return;
+            if (result.isDone()) {
+                breaker.release(generation);
+                return;
+            }
+            peakInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            // Only the time at Stripe counts as latency of the breaker, not the time in the queue
+            final long start = System.nanoTime();
+            // The connection may only use the time left after waiting for a thread
+            final long remainingMillis = timeoutMillis - TimeUnit.NANOSECONDS.toMillis(start - queuedAt);
+            boolean failed = false;
+            try {
+                result.complete(StripeTimeoutHandler.withTimeout(remainingMillis, options,
+                    callOptions -> interceptor.intercept(operation, subject, params, callOptions, call)));
+            } catch (StripeException | RuntimeException e) {
+                failures.incrementAndGet();
+                failed = !(e instanceof StripeException) || StripeExecution.isTemporary((StripeException) e);
+                result.completeExceptionally(e);
+            } finally {
+                inFlight.decrementAndGet();
+                breaker.onResult(generation, failed, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+        };
+        scheduler.execute(workClass, tenantKey, rateLimiter, task);
+        final ScheduledFuture<?> timeout = timer.schedule(() -> {
+            // The idempotencyKey makes it safe to retry, even if Stripe still processes the timed out request.
+            if (result.completeExceptionally(new APIConnectionException("Stripe " + operation + " timed out after " + timeoutMillis + "ms"))) {
+                timeouts.incrementAndGet();
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        result.whenComplete((r, e) -> timeout.cancel(false));
+        return result;
+    }
+
+    /**
+     * @param interceptor Runs the calls of all instances, or null to call Stripe directly.
+     */
+    public static void setInterceptor(Interceptor interceptor) {
+        StripeApi.interceptor = interceptor == null ? DIRECT : interceptor;
+    }
+
+    /**
+     * @return RequestOptions with the API key of this instance, for requests without idempotencyKey.
+     */
+    public RequestOptions requestOptions() {
+        if (apiKey == null) return RequestOptions.builder().build();
+        return RequestOptions.builder().setApiKey(apiKey).build();
+    }
+
+    public Map<String, Long> getStatistics() {
+        final Map<String, Long> statistics = new LinkedHashMap<>();
+        statistics.put("stripe_requests", requests.get());
+        statistics.put("stripe_failures", failures.get());
+        statistics.put("stripe_timeouts", timeouts.get());
+        statistics.put("stripe_in_flight", inFlight.get());
+        statistics.put("stripe_peak_in_flight", peakInFlight.get());
+        final long opened = Optional.ofNullable(socketFactory).map(f -> f.getOpenedConnections()).orElse(0L);
+        statistics.put("stripe_connections_opened", opened);
+        // Every request gets a connection, those that did not open a socket came from the keep-alive cache
+        statistics.put("stripe_connections_reused", Math.max(0L, StripeTimeoutHandler.getHandedOutConnections() - opened));
+        // State 0 is closed, 1 half-open and 2 open
+        new TreeMap<>(breakers).forEach((operation, breaker) -> {
+            final String prefix = "stripe_breaker_" + operation.replace('.', '_');
+            statistics.put(prefix + "_state", (long) breaker.getState().ordinal());
+            statistics.put(prefix + "_rejected", breaker.getRejected());
+        });
+        statistics.putAll(scheduler.getStatistics());
+        return statistics;
+    }
+
+    private static Optional<String> getEnv(String name) {
+        return Optional.ofNullable(System.getenv(name));
+    }
+}
@@ -1,5 +1,6 @@
 package com.commercetools.pspadapter.stripe.util;
 
+import com.commercetools.pspadapter.stripe.logging.Log;
 import com.stripe.exception.*;
 import io.sphere.sdk.commands.UpdateAction;
 import io.sphere.sdk.payments.Payment;
@@ -12,6 +13,8 @@ import java.util.function.Function;
 import java.util.function.Supplier;
 
 public class StripeExecution<T> {
+    private static final Log LOG = Log.of(StripeExecution.class);
+
     public final String idempotencyKey;
     public final T stripeObject;
     public final StripeException stripeException;
@@ -21,7 +24,11 @@ public class StripeExecution<T> {
     }
 
     public static <T> StripeExecution<T> exceptional(String idempotencyKey, StripeException e) {
-        e.printStackTrace();
+        final Log log = LOG.with("idempotencyKey", idempotencyKey).with("statusCode", e.getStatusCode());
+        // Temporary failures come in bursts during outages, so their stack traces are throttled.
+        if (isTemporary(e)) log.warnThrottled("Temporary Stripe failure", e);
+        // Permanent failures like declined cards are expected, the stack trace would not help.
+        else log.warn("Stripe request failed", "error", e.toString());
         return new StripeExecution<T>(idempotencyKey, null, e);
     }
 
@@ -75,23 +82,39 @@ public class StripeExecution<T> {
         );
     }
 
+    /**
+     * @return The update actions of the payment status, without the interface interaction.
+     */
+    public List<UpdateAction<Payment>> exceptionToStatusUpdateActions() {
+        assert(stripeException != null);
+        return Arrays.asList(
+            exceptionToStatusInterfaceText(),
+            exceptionToStatusInterfaceCode()
+        );
+    }
+
     private AddInterfaceInteraction exceptionToInterfaceInteraction() {
         HashMap<String, Object> objects = new HashMap();
         objects.put("idempotencyKey", idempotencyKey);
         objects.put("response", stripeException.toString());
-        if (stripeException instanceof APIConnectionException ||
-            stripeException instanceof APIException ||
-            stripeException instanceof AuthenticationException ||
-            stripeException instanceof RateLimitException)
+        if (isTemporary(stripeException))
             return AddInterfaceInteraction.ofTypeKeyAndObjects("STRIPE_TEMPORARY_EXCEPTION", objects);
         else  return AddInterfaceInteraction.ofTypeKeyAndObjects("STRIPE_EXCEPTION", objects);
     }
 
+    public static boolean isTemporary(StripeException e) {
+        return e instanceof APIConnectionException ||
+            e instanceof APIException ||
+            e instanceof AuthenticationException ||
+            e instanceof RateLimitException;
+    }
+
     private SetStatusInterfaceText exceptionToStatusInterfaceText() {
         return SetStatusInterfaceText.of(stripeException.getMessage());
     }
 
     private SetStatusInterfaceCode exceptionToStatusInterfaceCode() {
-        return SetStatusInterfaceCode.of(stripeException.getStatusCode().toString());
+        // Connection errors and timeouts have no status code
+        return SetStatusInterfaceCode.of(Optional.ofNullable(stripeException.getStatusCode()).map(code -> code.toString()).orElse(null));
     }
 }
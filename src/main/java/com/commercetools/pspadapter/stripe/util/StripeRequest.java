@@ -1,5 +1,6 @@
 package com.commercetools.pspadapter.stripe.util;
 
+import com.commercetools.pspadapter.stripe.logging.Log;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -9,28 +10,56 @@ import io.sphere.sdk.payments.commands.updateactions.AddInterfaceInteraction;
 import io.sphere.sdk.types.CustomFields;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.CompletionException;
 
 public class StripeRequest {
+    private static final Log LOG = Log.of(StripeRequest.class);
+
     private final Map<String, Object> params;
     private final String idempotencyKey;
+    private final boolean retry;
 
     public StripeRequest(Map<String, Object> params, String idempotencyKey) {
+        this(params, idempotencyKey, false);
+    }
+
+    /**
+     * @param retry Whether the request was sent before, which lowers its priority below new checkouts.
+     */
+    public StripeRequest(Map<String, Object> params, String idempotencyKey, boolean retry) {
         this.params = params;
         this.idempotencyKey = idempotencyKey;
+        this.retry = retry;
     }
 
     public RequestOptions getRequestOptions() {
         return RequestOptions.builder().setIdempotencyKey(idempotencyKey).build();
     }
 
+    /**
+     * @param apiKey The Stripe API key of the tenant, or null to use the global Stripe.apiKey.
+     */
+    public RequestOptions getRequestOptions(String apiKey) {
+        if (apiKey == null) return getRequestOptions();
+        return RequestOptions.builder().setApiKey(apiKey).setIdempotencyKey(idempotencyKey).build();
+    }
+
     public Map<String, Object> getParams() {
         return params;
     }
 
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    public boolean isRetry() {
+        return retry;
+    }
+
     public AddInterfaceInteraction toInterfaceInteractionOfType(String typeKey) {
         ObjectMapper om = new ObjectMapper();
         HashMap<String, Object> objects = new HashMap();
@@ -38,7 +67,7 @@ public class StripeRequest {
         try {
             objects.put("params", om.writeValueAsString(params));
         } catch (JsonProcessingException e) {
-            e.printStackTrace();
+            LOG.error("Can not serialize Stripe request", e, "idempotencyKey", idempotencyKey);
             throw new CompletionException(e);
         }
         return AddInterfaceInteraction.ofTypeKeyAndObjects(typeKey, objects);
@@ -48,15 +77,38 @@ public class StripeRequest {
         return new StripeRequest(params, UUID.randomUUID().toString());
     }
 
+    public static StripeRequest ofParams(Map<String, Object> params, String paymentId, String operation, long attempt) {
+        return ofParams(params, paymentId, operation, attempt, false);
+    }
+
+    /**
+     * @param retry Whether the derived idempotencyKey was sent before, see the constructor.
+     */
+    public static StripeRequest ofParams(Map<String, Object> params, String paymentId, String operation, long attempt, boolean retry) {
+        return new StripeRequest(params, deterministicIdempotencyKey(paymentId, operation, attempt), retry);
+    }
+
+    /**
+     * Derives the idempotency key from the payment, the operation and the attempt, so a retry can rebuild the same key
+     * without reading a saved request from the payment.
+     * Stripe only keeps idempotency keys for 24 hours, so a retry has to happen within that time.
+     */
+    public static String deterministicIdempotencyKey(String paymentId, String operation, long attempt) {
+        final String name = paymentId + ":" + operation + ":" + attempt;
+        return UUID.nameUUIDFromBytes(name.getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
     public static StripeRequest of(CustomFields interfaceInteraction) {
         ObjectMapper om = new ObjectMapper();
         try {
             return new StripeRequest(
                 om.readValue(interfaceInteraction.getFieldAsString("params"), new TypeReference<Map<String, Object>>() {}),
-                interfaceInteraction.getFieldAsString("idempotencyKey")
+                interfaceInteraction.getFieldAsString("idempotencyKey"),
+                // A saved request is only loaded again to retry it
+                true
             );
         } catch (IOException e) {
-            e.printStackTrace();
+            LOG.error("Can not load Stripe request from interface interaction", e);
             throw new CompletionException("Can not load com.commercetools.pspadapter.stripe.util.StripeRequest from interfaceInteraction", e);
         }
     }
@@ -0,0 +1,330 @@
+package com.commercetools.pspadapter.stripe.util;
+
+import com.stripe.exception.StripeException;
+import com.stripe.net.RequestOptions;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Proxy;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.security.Principal;
+import java.security.cert.Certificate;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Applies the timeout of the running Stripe call to the HTTP connection of stripe-java. stripe-java sets a connect
+ * timeout of 30 and a read timeout of 80 seconds, so without it a call that timed out still blocks its pool thread
+ * until Stripe answers.
+ * stripe-java opens its connections through the URLStreamHandler named by the com.stripe.net.customURLStreamHandler
+ * system property, and the handler opens them on the thread of the call, so the timeout is passed as thread local.
+ * The handler also counts the connections it hands out to Stripe. Together with the sockets counted by
+ * CountingSSLSocketFactory, this gives the number of connections reused from the keep-alive cache.
+ */
+public class StripeTimeoutHandler extends URLStreamHandler {
+    public static final String STRIPE_DOMAIN = "stripe.com";
+
+    private static final ThreadLocal<Long> timeoutMillis = new ThreadLocal<>();
+    private static final AtomicLong handedOut = new AtomicLong();
+
+    public static void install() {
+        System.setProperty("com.stripe.net.customURLStreamHandler", StripeTimeoutHandler.class.getName());
+    }
+
+    /**
+     * Runs the call with connect and read timeouts of at most timeoutMillis.
+     */
+    public static <T> T withTimeout(long timeoutMillis, RequestOptions options, StripeApi.StripeCall<T> call) throws StripeException {
+        StripeTimeoutHandler.timeoutMillis.set(Math.max(1L, timeoutMillis));
+        try {
+            return call.call(options);
+        } finally {
+            StripeTimeoutHandler.timeoutMillis.remove();
+        }
+    }
+
+    /**
+     * @return The number of connections to Stripe handed out to stripe-java, newly opened or reused.
+     */
+    public static long getHandedOutConnections() {
+        return handedOut.get();
+    }
+
+    @Override
+    protected URLConnection openConnection(URL url) throws IOException {
+        count(url);
+        // A URL of its own, so the connection is opened by the handler of the JDK
+        return limit(new URL(url.toExternalForm()).openConnection());
+    }
+
+    @Override
+    protected URLConnection openConnection(URL url, Proxy proxy) throws IOException {
+        count(url);
+        return limit(new URL(url.toExternalForm()).openConnection(proxy));
+    }
+
+    private static void count(URL url) {
+        final String host = url.getHost();
+        if (host != null && (host.equals(STRIPE_DOMAIN) || host.endsWith("." + STRIPE_DOMAIN))) handedOut.incrementAndGet();
+    }
+
+    private static URLConnection limit(URLConnection connection) {
+        final Long limit = timeoutMillis.get();
+        if (limit == null || !(connection instanceof HttpsURLConnection)) return connection;
+        return new LimitedConnection((HttpsURLConnection) connection, (int) Math.min(Integer.MAX_VALUE, limit));
+    }
+
+    /**
+     * Caps the timeouts stripe-java sets, and passes everything else to the connection of the JDK.
+     */
+    static class LimitedConnection extends HttpsURLConnection {
+        final private HttpsURLConnection delegate;
+        final private int limitMillis;
+
+        LimitedConnection(HttpsURLConnection delegate, int limitMillis) {
+            super(delegate.getURL());
+            this.delegate = delegate;
+            this.limitMillis = limitMillis;
+            delegate.setConnectTimeout(limitMillis);
+            delegate.setReadTimeout(limitMillis);
+        }
+
+        private int cap(int timeout) {
+            // 0 is no timeout at all
+            return timeout == 0 ? limitMillis : Math.min(timeout, limitMillis);
+        }
+
+        @Override
+        public void setConnectTimeout(int timeout) {
+            delegate.setConnectTimeout(cap(timeout));
+        }
+
+        @Override
+        public int getConnectTimeout() {
+            return delegate.getConnectTimeout();
+        }
+
+        @Override
+        public void setReadTimeout(int timeout) {
+            delegate.setReadTimeout(cap(timeout));
+        }
+
+        @Override
+        public int getReadTimeout() {
+            return delegate.getReadTimeout();
+        }
+
+        @Override
+        public void connect() throws IOException {
+            delegate.connect();
+        }
+
+        @Override
+        public void disconnect() {
+            delegate.disconnect();
+        }
+
+        @Override
+        public boolean usingProxy() {
+            return delegate.usingProxy();
+        }
+
+        @Override
+        public void setRequestMethod(String method) throws java.net.ProtocolException {
+            delegate.setRequestMethod(method);
+        }
+
+        @Override
+        public String getRequestMethod() {
+            return delegate.getRequestMethod();
+        }
+
+        @Override
+        public void setRequestProperty(String key, String value) {
+            delegate.setRequestProperty(key, value);
+        }
+
+        @Override
+        public void addRequestProperty(String key, String value) {
+            delegate.addRequestProperty(key, value);
+        }
+
+        @Override
+        public String getRequestProperty(String key) {
+            return delegate.getRequestProperty(key);
+        }
+
+        @Override
+        public Map<String, List<String>> getRequestProperties() {
+            return delegate.getRequestProperties();
+        }
+
+        @Override
+        public void setDoOutput(boolean doOutput) {
+            delegate.setDoOutput(doOutput);
+        }
+
+        @Override
+        public boolean getDoOutput() {
+            return delegate.getDoOutput();
+        }
+
+        @Override
+        public void setDoInput(boolean doInput) {
+            delegate.setDoInput(doInput);
+        }
+
+        @Override
+        public boolean getDoInput() {
+            return delegate.getDoInput();
+        }
+
+        @Override
+        public void setUseCaches(boolean useCaches) {
+            delegate.setUseCaches(useCaches);
+        }
+
+        @Override
+        public boolean getUseCaches() {
+            return delegate.getUseCaches();
+        }
+
+        @Override
+        public void setInstanceFollowRedirects(boolean followRedirects) {
+            delegate.setInstanceFollowRedirects(followRedirects);
+        }
+
+        @Override
+        public boolean getInstanceFollowRedirects() {
+            return delegate.getInstanceFollowRedirects();
+        }
+
+        @Override
+        public void setFixedLengthStreamingMode(int contentLength) {
+            delegate.setFixedLengthStreamingMode(contentLength);
+        }
+
+        @Override
+        public void setFixedLengthStreamingMode(long contentLength) {
+            delegate.setFixedLengthStreamingMode(contentLength);
+        }
+
+        @Override
+        public void setChunkedStreamingMode(int chunkLength) {
+            delegate.setChunkedStreamingMode(chunkLength);
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return delegate.getOutputStream();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return delegate.getInputStream();
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return delegate.getErrorStream();
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            return delegate.getResponseCode();
+        }
+
+        @Override
+        public String getResponseMessage() throws IOException {
+            return delegate.getResponseMessage();
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return delegate.getHeaderField(name);
+        }
+
+        @Override
+        public String getHeaderField(int n) {
+            return delegate.getHeaderField(n);
+        }
+
+        @Override
+        public String getHeaderFieldKey(int n) {
+            return delegate.getHeaderFieldKey(n);
+        }
+
+        @Override
+        public Map<String, List<String>> getHeaderFields() {
+            return delegate.getHeaderFields();
+        }
+
+        @Override
+        public String getContentType() {
+            return delegate.getContentType();
+        }
+
+        @Override
+        public String getContentEncoding() {
+            return delegate.getContentEncoding();
+        }
+
+        @Override
+        public long getContentLengthLong() {
+            return delegate.getContentLengthLong();
+        }
+
+        @Override
+        public String getCipherSuite() {
+            return delegate.getCipherSuite();
+        }
+
+        @Override
+        public Certificate[] getLocalCertificates() {
+            return delegate.getLocalCertificates();
+        }
+
+        @Override
+        public Certificate[] getServerCertificates() throws SSLPeerUnverifiedException {
+            return delegate.getServerCertificates();
+        }
+
+        @Override
+        public Principal getPeerPrincipal() throws SSLPeerUnverifiedException {
+            return delegate.getPeerPrincipal();
+        }
+
+        @Override
+        public Principal getLocalPrincipal() {
+            return delegate.getLocalPrincipal();
+        }
+
+        @Override
+        public void setHostnameVerifier(HostnameVerifier verifier) {
+            delegate.setHostnameVerifier(verifier);
+        }
+
+        @Override
+        public HostnameVerifier getHostnameVerifier() {
+            return delegate.getHostnameVerifier();
+        }
+
+        @Override
+        public void setSSLSocketFactory(SSLSocketFactory factory) {
+            delegate.setSSLSocketFactory(factory);
+        }
+
+        @Override
+        public SSLSocketFactory getSSLSocketFactory() {
+            return delegate.getSSLSocketFactory();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.commercetools.pspadapter.stripe.util;
+
+import java.lang.reflect.Method;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the thread pools for blocking work. With CTP_STRIPE_ADAPTER_VIRTUAL_THREADS=true on a JDK with virtual
+ * threads (21+), every task gets its own virtual thread, so blocking stripe-java calls and .get() calls no longer
+ * limit the concurrency to the number of platform threads.
+ * The virtual thread API is called by reflection, so the code still compiles and runs on Java 8.
+ */
+public class ThreadPools {
+    private static final boolean virtualThreads =
+        Boolean.parseBoolean(Optional.ofNullable(System.getenv("CTP_STRIPE_ADAPTER_VIRTUAL_THREADS")).orElse("false"))
+            && virtualThreadsAvailable();
+
+    public static boolean isVirtual() {
+        return virtualThreads;
+    }
+
+    public static boolean virtualThreadsAvailable() {
+        try {
+            Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return A pool of daemon threads, or an executor with a virtual thread per task in virtual thread mode.
+     */
+    public static ExecutorService newPool(int threads, String name) {
+        return newPool(threads, name, virtualThreads);
+    }
+
+    public static ExecutorService newPool(int threads, String name, boolean virtual) {
+        if (virtual) return newVirtualThreadPerTaskExecutor(name);
+        return Executors.newFixedThreadPool(threads, r -> {
+            final Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return The executor for the processing of single payments: a virtual thread per task in virtual thread mode,
+     * otherwise the task runs on the calling thread.
+     */
+    public static Executor taskExecutor(String name) {
+        if (virtualThreads) return newVirtualThreadPerTaskExecutor(name);
+        return Runnable::run;
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor(String name) {
+        try {
+            // Thread.ofVirtual().name(name, 0).factory()
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+            final ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            final Method newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) newThreadPerTaskExecutor.invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual threads are not available", e);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.commercetools.pspadapter.stripe.util;
+
+/**
+ * The priority classes of Stripe calls, from the most to the least urgent.
+ */
+public enum WorkClass {
+    /** Customers and charges of a checkout, a shopper is waiting. */
+    INTERACTIVE,
+    /** Retries of requests that failed temporarily. */
+    RETRY,
+    /** Bookkeeping for webhooks, e.g. disputes. */
+    WEBHOOK,
+    /** Jobs like deferred captures, bulk refunds and reconciliation. */
+    BATCH;
+
+    /**
+     * @return The class of a first attempt of the operation.
+     */
+    public static WorkClass of(String operation) {
+        switch (operation) {
+            case StripeApi.CUSTOMER_CREATE:
+            case StripeApi.CHARGE_CREATE:
+            case StripeApi.TOKEN_CREATE:
+                return INTERACTIVE;
+            case StripeApi.EVENT_RETRIEVE:
+                return WEBHOOK;
+            default:
+                return BATCH;
+        }
+    }
+}
@@ -1,7 +1,11 @@
 package com.commercetools.pspadapter.stripe.webhookprocessors;
 
-import com.commercetools.pspadapter.stripe.TypeKeyToId;
-import com.commercetools.pspadapter.stripe.util.JavaClientInstantiation;
+import com.commercetools.pspadapter.stripe.archive.InteractionCompaction;
+import com.commercetools.pspadapter.stripe.logging.Log;
+import com.commercetools.pspadapter.stripe.tenants.Tenant;
+import com.commercetools.pspadapter.stripe.util.Deadline;
+import com.commercetools.pspadapter.stripe.util.HedgedReads;
+import com.commercetools.pspadapter.stripe.util.PaymentCache;
 import com.commercetools.pspadapter.stripe.util.PaymentHelperMethods;
 import com.stripe.model.Dispute;
 import com.stripe.model.Event;
@@ -12,10 +16,8 @@ import io.sphere.sdk.commands.UpdateAction;
 import io.sphere.sdk.payments.Payment;
 import io.sphere.sdk.payments.TransactionBuilder;
 import io.sphere.sdk.payments.TransactionType;
-import io.sphere.sdk.payments.commands.PaymentUpdateCommand;
 import io.sphere.sdk.payments.commands.updateactions.AddInterfaceInteraction;
 import io.sphere.sdk.payments.commands.updateactions.AddTransaction;
-import io.sphere.sdk.payments.commands.updateactions.SetAmountRefunded;
 import io.sphere.sdk.payments.commands.updateactions.SetStatusInterfaceText;
 import io.sphere.sdk.payments.queries.PaymentQuery;
 import io.sphere.sdk.payments.queries.PaymentQueryModel;
@@ -23,63 +25,110 @@ import io.sphere.sdk.payments.queries.PaymentQueryModel;
 import javax.money.MonetaryAmount;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutionException;
 
 public class DisputeEventProcessor extends PaymentHelperMethods {
+    private static final Log LOG = Log.of(DisputeEventProcessor.class);
+
     final private SphereClient client;
+    final private PaymentCache paymentCache;
+    final private HedgedReads ctpReads;
+    final private InteractionCompaction interactionCompaction;
 
     public DisputeEventProcessor(SphereClient client) {
-        super(new TypeKeyToId(client));
-        this.client = client;
+        this(Tenant.of(client));
+    }
+
+    public DisputeEventProcessor(Tenant tenant) {
+        super(tenant.getTypeKeyToId());
+        this.client = tenant.getClient();
+        this.paymentCache = tenant.getPaymentCache();
+        this.ctpReads = tenant.getCtpReads();
+        this.interactionCompaction = tenant.getInteractionCompaction();
     }
 
     public int processDisputeEvent(Event event) throws ExecutionException, InterruptedException {
+        return processDisputeEventAsync(event).toCompletableFuture().get();
+    }
+
+    /**
+     * @return The HTTP status code for the webhook response, once the event has been processed.
+     */
+    public CompletionStage<Integer> processDisputeEventAsync(Event event) {
+        return processDisputeEventAsync(event, Deadline.fromEnvironment());
+    }
+
+    /**
+     * @param deadline The time budget for all CTP requests of the event.
+     */
+    public CompletionStage<Integer> processDisputeEventAsync(Event event, Deadline deadline) {
         final StripeObject stripeObject = event.getData().getObject();
         if (stripeObject instanceof Dispute) {
             Dispute dispute = (Dispute) stripeObject;
-            // Search for corresponding Payment Object
             final String chargeId = dispute.getCharge();
-            return client
-                .execute(
-                    PaymentQuery
-                        .of()
-                        .withPredicates(
-                            PaymentQueryModel.of().interfaceId().is(chargeId)
-                                .and(PaymentQueryModel.of().paymentMethodInfo().paymentInterface().is("STRIPE"))
-                        )
-                        .withLimit(1)
-                )
-                .toCompletableFuture()
-                .thenCompose(r -> r.head().map(payment -> {
-                    // Idempotency check: Did we process this event before?
-                    if (getLastInteractionOfTypeWithField(payment, "STRIPE_DISPUTE_UPDATE", "eventId", event.getId()).isPresent()) {
-                        return CompletableFuture.completedFuture(200);
-                    } else {
-                        // Add the event to the payment object
-                        return addEventToPayment(payment, event, dispute)
-                            .thenApply(p -> 201);
-                    }
-                })
-                // The corresponding payment object was not found
-                .orElseGet(() -> CompletableFuture.completedFuture(404)))
-                .get();
+            // Try the cached payment first
+            return paymentCache.getByInterfaceId(chargeId)
+                .map(payment -> processDisputeEvent(payment, event, dispute, deadline)
+                    .handle((status, e) -> {
+                        // The cached payment was outdated, it is removed from the cache by now.
+                        if (e != null && PaymentCache.isVersionConflict(e)) return queryAndProcessDisputeEvent(chargeId, event, dispute, deadline);
+                        else if (e != null) throw new CompletionException(e);
+                        return CompletableFuture.completedFuture(status);
+                    })
+                    .thenCompose(status -> status))
+                .orElseGet(() -> queryAndProcessDisputeEvent(chargeId, event, dispute, deadline));
+        } else {
+            LOG.warn("Expected object of type Dispute in Event, but got something else", "eventId", event.getId());
+            return CompletableFuture.completedFuture(400);
+        }
+    }
+
+    private CompletableFuture<Integer> queryAndProcessDisputeEvent(String chargeId, Event event, Dispute dispute, Deadline deadline) {
+        // Search for corresponding Payment Object
+        return ctpReads
+            .execute(
+                PaymentQuery
+                    .of()
+                    .withPredicates(
+                        PaymentQueryModel.of().interfaceId().is(chargeId)
+                            .and(PaymentQueryModel.of().paymentMethodInfo().paymentInterface().is("STRIPE"))
+                    )
+                    .withLimit(1),
+                deadline
+            )
+            .thenCompose(r -> r.head().map(payment -> {
+                paymentCache.put(payment);
+                return processDisputeEvent(payment, event, dispute, deadline);
+            })
+            // The corresponding payment object was not found
+            .orElseGet(() -> CompletableFuture.completedFuture(404)));
+    }
+
+    private CompletableFuture<Integer> processDisputeEvent(Payment payment, Event event, Dispute dispute, Deadline deadline) {
+        // Idempotency check: Did we process this event before?
+        if (getLastInteractionOfTypeWithField(payment, "STRIPE_DISPUTE_UPDATE", "eventId", event.getId()).isPresent()) {
+            return CompletableFuture.completedFuture(200);
         } else {
-            System.out.println("Expected object of type Dispute in Event, but got something else!");
-            return 400;
+            // Add the event to the payment object
+            return addEventToPayment(payment, event, dispute, deadline)
+                .thenApply(p -> 201);
         }
     }
 
-    private CompletableFuture<Payment> addEventToPayment(Payment payment, Event event, Dispute dispute) {
-        HashMap<String, Object> objects = new HashMap();
-        objects.put("eventId", event.getId());
-        objects.put("dispute", StripeObject.PRETTY_PRINT_GSON.toJson(dispute));
+    private CompletableFuture<Payment> addEventToPayment(Payment payment, Event event, Dispute dispute, Deadline deadline) {
+        // Save full dispute object, in the archive if the payment has reached its interaction limit
+        return interactionCompaction
+            .disputeUpdateInteraction(payment, event.getId(), StripeObject.PRETTY_PRINT_GSON.toJson(dispute))
+            .thenCompose(interaction -> addEventToPayment(payment, event, dispute, interaction, deadline));
+    }
+
+    private CompletableFuture<Payment> addEventToPayment(Payment payment, Event event, Dispute dispute, AddInterfaceInteraction interaction, Deadline deadline) {
         final List<UpdateAction<Payment>> updateActions = new ArrayList();
-        // Save full dispute object
-        updateActions.add(AddInterfaceInteraction.ofTypeKeyAndObjects("STRIPE_DISPUTE_UPDATE", objects));
+        updateActions.add(interaction);
         // Set status interface text to the dispute status and dispute reason
         final String statusText = "Dispute! Status: " + dispute.getStatus() + " Reason: " + dispute.getReason();
         if (!statusText.equals(payment.getPaymentStatus().getInterfaceText())) {
@@ -103,6 +152,6 @@ public class DisputeEventProcessor extends PaymentHelperMethods {
                 updateActions.add(SetStatusInterfaceText.of(null));
             }
         }
-        return client.execute(PaymentUpdateCommand.of(payment, updateActions)).toCompletableFuture();
+        return paymentCache.update(client, payment, updateActions, deadline);
     }
 }
@@ -0,0 +1,229 @@
+package com.commercetools.pspadapter.stripe.webhookprocessors;
+
+import com.commercetools.pspadapter.stripe.deadletters.DeadLetter;
+import com.commercetools.pspadapter.stripe.logging.Log;
+import com.commercetools.pspadapter.stripe.tenants.Tenant;
+import com.commercetools.pspadapter.stripe.util.Deadline;
+import com.commercetools.pspadapter.stripe.util.ParallelTasks;
+import com.commercetools.pspadapter.stripe.util.StripeApi;
+import com.google.gson.JsonObject;
+import com.stripe.model.Dispute;
+import com.stripe.model.Event;
+import com.stripe.model.EventCollection;
+import io.sphere.sdk.customobjects.CustomObject;
+import io.sphere.sdk.customobjects.CustomObjectDraft;
+import io.sphere.sdk.customobjects.commands.CustomObjectUpsertCommand;
+import io.sphere.sdk.customobjects.queries.CustomObjectByKeyGet;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recovers dispute events whose webhooks were lost, e.g. because the process was down longer than Stripe retries.
+ * Pages through the event list of Stripe, starting after the last event of the previous run (or at the start of the
+ * lookback window on the first run), and processes the events with the DisputeEventProcessor. The cursor is saved
+ * after every page. Events of the same dispute are processed in order, different disputes in parallel. Events that
+ * were already processed through their webhook are skipped by the eventId check of the processor, and events that
+ * fail are recorded as dead letters, so the cursor always moves on.
+ * The events come from the Stripe API, so they don't have to be confirmed like webhooks.
+ */
+public class EventCatchUp {
+    private static final Log LOG = Log.of(EventCatchUp.class);
+
+    public static final String CONTAINER = "ctp-stripe-adapter-event-cursors";
+    public static final String TYPES = "charge.dispute.*";
+
+    private static final String CURSOR_KEY = "dispute";
+    private static final int PAGE_SIZE = 100;
+
+    final private Tenant tenant;
+    final private Duration lookback;
+    final private int parallelism;
+    final private AtomicLong runs = new AtomicLong();
+    final private AtomicLong events = new AtomicLong();
+    final private AtomicLong failed = new AtomicLong();
+
+    public EventCatchUp(Tenant tenant, Duration lookback, int parallelism) {
+        this.tenant = tenant;
+        this.lookback = lookback;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Uses the CTP_STRIPE_ADAPTER_CATCH_UP_LOOKBACK_HOURS (Stripe keeps events for 30 days) and
+     * CTP_STRIPE_ADAPTER_CATCH_UP_PARALLELISM environment variables.
+     */
+    public static EventCatchUp fromEnvironment(Tenant tenant) {
+        final long lookbackHours = Long.parseLong(Optional.ofNullable(System.getenv("CTP_STRIPE_ADAPTER_CATCH_UP_LOOKBACK_HOURS")).orElse("72"));
+        final int parallelism = Integer.parseInt(Optional.ofNullable(System.getenv("CTP_STRIPE_ADAPTER_CATCH_UP_PARALLELISM")).orElse("8"));
+        return new EventCatchUp(tenant, Duration.ofHours(lookbackHours), parallelism);
+    }
+
+    /**
+     * @return The CTP_STRIPE_ADAPTER_CATCH_UP_INTERVAL_MS environment variable. Without it, there is no catch-up.
+     */
+    public static Optional<Long> intervalFromEnvironment() {
+        return Optional.ofNullable(System.getenv("CTP_STRIPE_ADAPTER_CATCH_UP_INTERVAL_MS")).map(Long::parseLong);
+    }
+
+    /**
+     * Runs the catch-up right away, e.g. after a downtime, and then with the interval.
+     */
+    public void start(ScheduledExecutorService scheduler, long intervalMillis) {
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                run();
+            } catch (Exception e) {
+                LOG.warn("Catching up on Stripe events failed", e, "tenant", tenant.getKey());
+            }
+        }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Processes all events after the cursor, blocking the calling thread.
+     * @return The number of events that were processed.
+     */
+    public long run() throws Exception {
+        runs.incrementAndGet();
+        final Optional<CustomObject<EventCursor>> saved = fetchCursor();
+        long version = saved.map(cursor -> cursor.getVersion()).orElse(0L);
+        long processed = 0;
+        if (!saved.isPresent()) {
+            final List<Event> window = listWindow();
+            for (int from = 0; from < window.size(); from += PAGE_SIZE) {
+                final List<Event> page = window.subList(from, Math.min(from + PAGE_SIZE, window.size()));
+                processed += process(page);
+                version = saveCursor(page.get(page.size() - 1), version);
+            }
+        } else {
+            String cursor = saved.get().getValue().getLastEventId();
+            while (true) {
+                // The page right after the cursor, newest first
+                final Map<String, Object> params = params();
+                params.put("ending_before", cursor);
+                final EventCollection page = list(params);
+                if (page.getData().isEmpty()) break;
+                final List<Event> events = new ArrayList<>(page.getData());
+                Collections.reverse(events);
+                processed += process(events);
+                version = saveCursor(events.get(events.size() - 1), version);
+                cursor = events.get(events.size() - 1).getId();
+                if (!Boolean.TRUE.equals(page.getHasMore())) break;
+            }
+        }
+        if (processed > 0) LOG.info("Caught up on Stripe events", "tenant", tenant.getKey(), "events", processed);
+        return processed;
+    }
+
+    public Map<String, Long> getStatistics() {
+        final Map<String, Long> statistics = new LinkedHashMap<>();
+        statistics.put("catch_up_runs", runs.get());
+        statistics.put("catch_up_events", events.get());
+        statistics.put("catch_up_failed", failed.get());
+        return statistics;
+    }
+
+    /**
+     * @return The events of the lookback window, oldest first.
+     */
+    private List<Event> listWindow() {
+        final Map<String, Object> created = new HashMap<>();
+        created.put("gte", Instant.now().minus(lookback).getEpochSecond());
+        final List<Event> window = new ArrayList<>();
+        Optional<String> startingAfter = Optional.empty();
+        while (true) {
+            final Map<String, Object> params = params();
+            params.put("created", created);
+            startingAfter.ifPresent(id -> params.put("starting_after", id));
+            final EventCollection page = list(params);
+            window.addAll(page.getData());
+            if (page.getData().isEmpty() || !Boolean.TRUE.equals(page.getHasMore())) break;
+            startingAfter = Optional.of(page.getData().get(page.getData().size() - 1).getId());
+        }
+        Collections.reverse(window);
+        return window;
+    }
+
+    private Map<String, Object> params() {
+        final Map<String, Object> params = new HashMap<>();
+        params.put("type", TYPES);
+        params.put("limit", PAGE_SIZE);
+        return params;
+    }
+
+    private EventCollection list(Map<String, Object> params) {
+        final StripeApi stripeApi = tenant.getStripeApi();
+        return stripeApi
+            .call(StripeApi.EVENT_LIST, stripeApi.requestOptions(), options -> Event.list(params, options))
+            .join();
+    }
+
+    /**
+     * @return The number of events that were processed, the failed ones are recorded as dead letters instead.
+     */
+    private long process(List<Event> page) throws Exception {
+        // Events of a dispute change the same payment, so they keep their order
+        final Map<String, List<Event>> byDispute = new LinkedHashMap<>();
+        page.forEach(event -> byDispute.computeIfAbsent(disputeOf(event), dispute -> new ArrayList<>()).add(event));
+        final List<Long> results = ParallelTasks.map(new ArrayList<>(byDispute.values()), parallelism, events -> {
+            CompletableFuture<Long> chain = CompletableFuture.completedFuture(0L);
+            for (Event event : events) {
+                chain = chain.thenCompose(count -> process(event).thenApply(success -> success ? count + 1 : count));
+            }
+            return chain;
+        }).get();
+        return results.stream().mapToLong(count -> count == null ? 0 : count).sum();
+    }
+
+    private CompletableFuture<Boolean> process(Event event) {
+        return new DisputeEventProcessor(tenant).processDisputeEventAsync(event, Deadline.fromEnvironment())
+            .toCompletableFuture()
+            .handle((status, e) -> {
+                events.incrementAndGet();
+                // Kept for a replay like a failed webhook, so the cursor can move on
+                if (e == null && status != 404 && status < 500) return true;
+                failed.incrementAndGet();
+                final Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                // The replay fetches the event from Stripe again, so the id and type are enough
+                final JsonObject body = new JsonObject();
+                body.addProperty("id", event.getId());
+                body.addProperty("object", "event");
+                body.addProperty("type", event.getType());
+                body.addProperty("created", event.getCreated());
+                tenant.getDeadLetters().add(DeadLetter.WEBHOOK, event.getId(), body.toString(),
+                    cause != null ? cause.toString() : "Status " + status);
+                return false;
+            });
+    }
+
+    private static String disputeOf(Event event) {
+        final Object object = event.getData().getObject();
+        return object instanceof Dispute ? ((Dispute) object).getCharge() : event.getId();
+    }
+
+    private Optional<CustomObject<EventCursor>> fetchCursor() {
+        return Optional.ofNullable(tenant.getClient()
+            .execute(CustomObjectByKeyGet.of(CONTAINER, CURSOR_KEY, EventCursor.class))
+            .toCompletableFuture()
+            .join());
+    }
+
+    /**
+     * Fails if another node moved the cursor in the meantime, that run continues from there.
+     * @return The version of the saved cursor.
+     */
+    private long saveCursor(Event last, long version) {
+        return tenant.getClient()
+            .execute(CustomObjectUpsertCommand.of(CustomObjectDraft.ofVersionedUpdate(
+                CONTAINER, CURSOR_KEY, new EventCursor(last.getId(), last.getCreated()), version, EventCursor.class)))
+            .toCompletableFuture()
+            .join()
+            .getVersion();
+    }
+}
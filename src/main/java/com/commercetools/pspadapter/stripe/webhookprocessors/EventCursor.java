@@ -0,0 +1,29 @@
+package com.commercetools.pspadapter.stripe.webhookprocessors;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * The last Stripe event the catch-up has processed, stored as CTP custom object so the next run continues after it.
+ */
+public class EventCursor {
+    final private String lastEventId;
+    final private long lastEventCreated;
+
+    @JsonCreator
+    public EventCursor(@JsonProperty("lastEventId") String lastEventId, @JsonProperty("lastEventCreated") long lastEventCreated) {
+        this.lastEventId = lastEventId;
+        this.lastEventCreated = lastEventCreated;
+    }
+
+    public String getLastEventId() {
+        return lastEventId;
+    }
+
+    /**
+     * @return The creation time of the last event, in seconds since the epoch.
+     */
+    public long getLastEventCreated() {
+        return lastEventCreated;
+    }
+}
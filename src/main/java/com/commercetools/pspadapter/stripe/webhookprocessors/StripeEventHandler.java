@@ -0,0 +1,82 @@
+package com.commercetools.pspadapter.stripe.webhookprocessors;
+
+import com.commercetools.pspadapter.stripe.deadletters.DeadLetter;
+import com.commercetools.pspadapter.stripe.logging.Log;
+import com.commercetools.pspadapter.stripe.tenants.Tenant;
+import com.commercetools.pspadapter.stripe.util.Deadline;
+import com.commercetools.pspadapter.stripe.util.StripeApi;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.stripe.model.Event;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Handles a webhook event from Stripe for a tenant.
+ */
+public class StripeEventHandler {
+    private static final Log LOG = Log.of(StripeEventHandler.class);
+
+    final private Tenant tenant;
+
+    public StripeEventHandler(Tenant tenant) {
+        this.tenant = tenant;
+    }
+
+    /**
+     * @return The HTTP status code for the webhook response.
+     */
+    public CompletionStage<Integer> handle(String body) {
+        // Parse req to Stripe Event
+        final Event webhookEvent = Event.GSON.fromJson(body, Event.class);
+        if (webhookEvent.getType().startsWith("charge.dispute")) {
+            final DisputeEventProcessor disputeEventProcessor = new DisputeEventProcessor(tenant);
+            // One time budget for confirming and processing the event
+            final Deadline deadline = Deadline.fromEnvironment();
+            return confirmEvent(webhookEvent, deadline)
+                .thenCompose(event -> disputeEventProcessor.processDisputeEventAsync(event, deadline))
+                // Succeeded after all, e.g. on a redelivery of Stripe or a retry of the journal
+                .thenCompose(status -> status >= 300 ? CompletableFuture.completedFuture(status) :
+                    tenant.getDeadLetters().resolve(DeadLetter.WEBHOOK, webhookEvent.getId()).thenApply(removed -> status))
+                .whenComplete((status, e) -> {
+                    // Kept for a replay, e.g. if the payment of the dispute is not found yet
+                    if (e != null || status == 404 || status >= 500) {
+                        final Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                        tenant.getDeadLetters().add(DeadLetter.WEBHOOK, webhookEvent.getId(), body,
+                            cause != null ? cause.toString() : "Status " + status);
+                    }
+                });
+        }
+        else {
+            // We're not interested in this event
+            LOG.info("Ignored event", "eventId", webhookEvent.getId(), "type", webhookEvent.getType(), "tenant", tenant.getKey());
+            return CompletableFuture.completedFuture(200);
+        }
+    }
+
+    private CompletionStage<Event> confirmEvent(Event webhookEvent, Deadline deadline) {
+        // To make sure that this is not a spoofed webhook, fetch the Event again directly from the Stripe API.
+        final StripeApi stripeApi = tenant.getStripeApi();
+        // Redeliveries of the event that arrive at the same time share the retrieval
+        return deadline.bound(
+            tenant.getEventReads().get(webhookEvent.getId(), () -> stripeApi.call(StripeApi.EVENT_RETRIEVE, webhookEvent.getId(),
+                stripeApi.requestOptions(), options -> Event.retrieve(webhookEvent.getId(), options), deadline)),
+            "Stripe event retrieval");
+    }
+
+    /**
+     * @return The id of the connected Stripe account that sent the event, if any.
+     */
+    public static Optional<String> stripeAccountOf(String body) {
+        final JsonObject json = new JsonParser().parse(body).getAsJsonObject();
+        // Newer API versions use "account", older ones "user_id".
+        final JsonElement account = json.has("account") ? json.get("account") : json.get("user_id");
+        return Optional.ofNullable(account)
+            .filter(a -> !a.isJsonNull())
+            .map(a -> a.getAsString());
+    }
+}
@@ -48,4 +48,18 @@ public abstract class AbstractCTPStripeTest {
         );
         return client.execute(paymentCreateCommand).toCompletableFuture().get();
     }
+
+    protected Payment createAnonymousPayment(String tokenId) throws InterruptedException, java.util.concurrent.ExecutionException {
+        final CustomFieldsDraft interaction = CustomFieldsDraftBuilder
+                .ofTypeKey("STRIPE_TOKEN_RECEIVED")
+                .addObject("token", tokenId)
+                .build();
+        final PaymentCreateCommand paymentCreateCommand = PaymentCreateCommand.of(
+            PaymentDraftBuilder
+                .of(FastMoney.of(23, DefaultCurrencyUnits.EUR))
+                .interfaceInteractions(Arrays.asList(interaction))
+                .build()
+        );
+        return client.execute(paymentCreateCommand).toCompletableFuture().get();
+    }
 }
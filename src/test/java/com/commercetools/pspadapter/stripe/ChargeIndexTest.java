@@ -0,0 +1,147 @@
+package com.commercetools.pspadapter.stripe;
+
+import com.commercetools.pspadapter.stripe.reconciliation.ChargeIndex;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class ChargeIndexTest {
+
+    @Test
+    public void testJoinsBothSidesInEitherOrder() {
+        final ChargeIndex index = new ChargeIndex(16);
+        final String paymentId = UUID.randomUUID().toString();
+        final long value = ChargeIndex.value(2300, "EUR");
+
+        assertNull(index.addStripe("ch_1", value));
+        assertEquals(1, index.size());
+        final ChargeIndex.Entry stripeFirst = index.addCtp("ch_1", value, paymentId);
+        assertEquals("ch_1", stripeFirst.chargeId);
+        assertEquals(value, stripeFirst.stripeValue);
+        assertEquals(value, stripeFirst.ctpValue);
+        assertEquals(paymentId, stripeFirst.paymentId);
+        assertEquals(0, index.size());
+
+        assertNull(index.addCtp("ch_2", value, paymentId));
+        final ChargeIndex.Entry ctpFirst = index.addStripe("ch_2", ChargeIndex.value(2200, "EUR"));
+        assertEquals(ChargeIndex.value(2200, "EUR"), ctpFirst.stripeValue);
+        assertEquals(value, ctpFirst.ctpValue);
+        assertEquals(paymentId, ctpFirst.paymentId);
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testDuplicateOfTheSameSideIsIgnored() {
+        final ChargeIndex index = new ChargeIndex(16);
+        assertNull(index.addStripe("ch_1", 1));
+        assertNull(index.addStripe("ch_1", 2));
+        assertEquals(1, index.size());
+        assertEquals(1, index.addCtp("ch_1", 3, UUID.randomUUID().toString()).stripeValue);
+    }
+
+    @Test
+    public void testDrainPassesWaitingCharges() {
+        final ChargeIndex index = new ChargeIndex(16);
+        final String paymentId = UUID.randomUUID().toString();
+        index.addStripe("ch_stripe", 5);
+        index.addCtp("ch_ctp", 7, paymentId);
+        final Map<String, ChargeIndex.Entry> drained = new HashMap<>();
+        index.drain(entry -> drained.put(entry.chargeId, entry));
+
+        assertEquals(2, drained.size());
+        assertEquals(5, drained.get("ch_stripe").stripeValue);
+        assertEquals(-1, drained.get("ch_stripe").ctpValue);
+        assertNull(drained.get("ch_stripe").paymentId);
+        assertEquals(-1, drained.get("ch_ctp").stripeValue);
+        assertEquals(7, drained.get("ch_ctp").ctpValue);
+        assertEquals(paymentId, drained.get("ch_ctp").paymentId);
+        assertEquals(0, index.size());
+        // The index can be used again after draining
+        assertNull(index.addStripe("ch_stripe", 5));
+        assertNotNull(index.addCtp("ch_stripe", 5, paymentId));
+    }
+
+    @Test
+    public void testMatchesHashMapUnderRandomAddsAndRemovals() {
+        // Starts small, so the index rehashes, shifts entries back on removal and compacts its arena many times
+        final ChargeIndex index = new ChargeIndex(1);
+        final Map<String, Long> stripeSide = new HashMap<>();
+        final Map<String, Long> ctpSide = new HashMap<>();
+        final Random random = new Random(42);
+        for (int i = 0; i < 200000; i++) {
+            final String chargeId = "ch_" + Integer.toString(random.nextInt(5000), 36) + "x" + random.nextInt(3);
+            final long value = ChargeIndex.value(random.nextInt(100000), "EUR");
+            if (random.nextBoolean()) {
+                final ChargeIndex.Entry joined = index.addStripe(chargeId, value);
+                final Long ctpValue = ctpSide.remove(chargeId);
+                if (ctpValue != null) {
+                    assertNotNull(joined);
+                    assertEquals(chargeId, joined.chargeId);
+                    assertEquals(value, joined.stripeValue);
+                    assertEquals((long) ctpValue, joined.ctpValue);
+                } else {
+                    assertNull(joined);
+                    stripeSide.putIfAbsent(chargeId, value);
+                }
+            } else {
+                final ChargeIndex.Entry joined = index.addCtp(chargeId, value, UUID.randomUUID().toString());
+                final Long stripeValue = stripeSide.remove(chargeId);
+                if (stripeValue != null) {
+                    assertNotNull(joined);
+                    assertEquals((long) stripeValue, joined.stripeValue);
+                    assertEquals(value, joined.ctpValue);
+                } else {
+                    assertNull(joined);
+                    ctpSide.putIfAbsent(chargeId, value);
+                }
+            }
+            assertEquals(stripeSide.size() + ctpSide.size(), index.size());
+        }
+        final List<ChargeIndex.Entry> drained = new ArrayList<>();
+        index.drain(drained::add);
+        assertEquals(stripeSide.size() + ctpSide.size(), drained.size());
+        for (ChargeIndex.Entry entry : drained) {
+            if (entry.ctpValue == -1) assertEquals((long) stripeSide.get(entry.chargeId), entry.stripeValue);
+            else assertEquals((long) ctpSide.get(entry.chargeId), entry.ctpValue);
+        }
+    }
+
+    @Test
+    public void testArenaIsCompactedInsteadOfGrowing() {
+        final ChargeIndex index = new ChargeIndex(16);
+        final long memoryBefore = index.memoryBytes();
+        final String paymentId = UUID.randomUUID().toString();
+        // Every join leaves the bytes of its charge id behind in the arena
+        for (int i = 0; i < 100000; i++) {
+            final String chargeId = "ch_" + UUID.randomUUID().toString().replace("-", "");
+            assertNull(index.addStripe(chargeId, i));
+            assertNotNull(index.addCtp(chargeId, i, paymentId));
+        }
+        assertEquals(0, index.size());
+        assertEquals(memoryBefore, index.memoryBytes());
+    }
+
+    @Test
+    public void testValueRoundTripsThroughFormat() {
+        assertEquals("2300 EUR", ChargeIndex.format(ChargeIndex.value(2300, "EUR")));
+        assertEquals("0 USD", ChargeIndex.format(ChargeIndex.value(0, "usd")));
+        assertEquals("123456789 JPY", ChargeIndex.format(ChargeIndex.value(123456789, "JPY")));
+        assertEquals("", ChargeIndex.format(-1));
+        assertNotEquals(ChargeIndex.value(100, "EUR"), ChargeIndex.value(100, "USD"));
+        assertNotEquals(ChargeIndex.value(100, "EUR"), ChargeIndex.value(101, "EUR"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsTooLongChargeId() {
+        final StringBuilder chargeId = new StringBuilder("ch_");
+        while (chargeId.length() <= Byte.MAX_VALUE) chargeId.append('x');
+        new ChargeIndex(16).addStripe(chargeId.toString(), 1);
+    }
+}
@@ -0,0 +1,139 @@
+package com.commercetools.pspadapter.stripe;
+
+import com.commercetools.pspadapter.stripe.util.CircuitBreaker;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void testOpensWhenTooManyCallsFail() {
+        final CircuitBreaker breaker = new CircuitBreaker(10, 4, 0.5, 1000, 60000, 2);
+        for (int i = 0; i < 2; i++) breaker.onResult(breaker.tryAcquire(), false, 1);
+        breaker.onResult(breaker.tryAcquire(), true, 1);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.onResult(breaker.tryAcquire(), true, 1);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        assertEquals(-1, breaker.tryAcquire());
+        assertEquals(1, breaker.getRejected());
+    }
+
+    @Test
+    public void testSlowCallsCountAsFailed() {
+        final CircuitBreaker breaker = new CircuitBreaker(10, 2, 0.5, 100, 60000, 2);
+        breaker.onResult(breaker.tryAcquire(), false, 100);
+        breaker.onResult(breaker.tryAcquire(), false, 500);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void testOldFailuresLeaveTheWindow() {
+        final CircuitBreaker breaker = new CircuitBreaker(4, 4, 0.5, 1000, 60000, 2);
+        breaker.onResult(breaker.tryAcquire(), true, 1);
+        for (int i = 0; i < 10; i++) breaker.onResult(breaker.tryAcquire(), false, 1);
+        breaker.onResult(breaker.tryAcquire(), true, 1);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testClosesWhenProbesSucceed() throws InterruptedException {
+        final CircuitBreaker breaker = opened(new CircuitBreaker(10, 1, 0.5, 1000, 20, 2));
+        Thread.sleep(30);
+
+        final long first = breaker.tryAcquire();
+        final long second = breaker.tryAcquire();
+        assertTrue(first >= 0);
+        assertEquals(first, second);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        // Only as many calls as probes go through
+        assertEquals(-1, breaker.tryAcquire());
+
+        breaker.onResult(first, false, 1);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.onResult(second, false, 1);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.tryAcquire() >= 0);
+    }
+
+    @Test
+    public void testOpensAgainWhenProbeFails() throws InterruptedException {
+        final CircuitBreaker breaker = opened(new CircuitBreaker(10, 1, 0.5, 1000, 20, 2));
+        Thread.sleep(30);
+
+        breaker.onResult(breaker.tryAcquire(), true, 1);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(-1, breaker.tryAcquire());
+    }
+
+    @Test
+    public void testCallsFromBeforeTheBreakerOpenedAreNoProbes() throws InterruptedException {
+        final CircuitBreaker breaker = new CircuitBreaker(10, 1, 0.5, 1000, 20, 1);
+        final long slow = breaker.tryAcquire();
+        breaker.onResult(breaker.tryAcquire(), true, 1);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Thread.sleep(30);
+
+        final long probe = breaker.tryAcquire();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        // The call that started while closed finishes during the probe, it neither closes nor opens the breaker
+        breaker.onResult(slow, false, 1);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.onResult(slow, true, 1);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        breaker.onResult(probe, false, 1);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        // The old probe generation does not count for the closed breaker either
+        breaker.onResult(probe, true, 1);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testLostProbeOpensTheBreakerAgain() throws InterruptedException {
+        final CircuitBreaker breaker = opened(new CircuitBreaker(10, 1, 0.5, 50, 20, 1));
+        Thread.sleep(30);
+
+        final long lost = breaker.tryAcquire();
+        assertTrue(lost >= 0);
+        assertEquals(-1, breaker.tryAcquire());
+        // The probe never reports back, after the slow call time the breaker opens again and probes later
+        Thread.sleep(60);
+        assertEquals(-1, breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Thread.sleep(30);
+        final long probe = breaker.tryAcquire();
+        assertTrue(probe > lost);
+        breaker.onResult(lost, false, 1);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.onResult(probe, false, 1);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testReleasedProbeLetsAnotherProbeThrough() throws InterruptedException {
+        final CircuitBreaker breaker = opened(new CircuitBreaker(10, 1, 0.5, 1000, 20, 1));
+        Thread.sleep(30);
+
+        final long queued = breaker.tryAcquire();
+        assertTrue(queued >= 0);
+        assertEquals(-1, breaker.tryAcquire());
+        // The probe timed out before it reached the dependency, it is no result
+        breaker.release(queued);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        final long probe = breaker.tryAcquire();
+        assertEquals(queued, probe);
+        breaker.onResult(probe, false, 1);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        // A release of an old generation changes nothing
+        breaker.release(queued);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    private static CircuitBreaker opened(CircuitBreaker breaker) {
+        breaker.onResult(breaker.tryAcquire(), true, 1);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        return breaker;
+    }
+}
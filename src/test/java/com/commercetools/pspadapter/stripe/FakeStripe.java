@@ -0,0 +1,136 @@
+package com.commercetools.pspadapter.stripe;
+
+import com.commercetools.pspadapter.stripe.util.StripeApi;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.stripe.exception.APIConnectionException;
+import com.stripe.exception.InvalidRequestException;
+import com.stripe.exception.StripeException;
+import com.stripe.model.Charge;
+import com.stripe.model.Customer;
+import com.stripe.net.APIResource;
+import com.stripe.net.RequestOptions;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates customers and charges in memory with the idempotency of Stripe: A request with a known idempotencyKey gets
+ * the stored response (also a stored decline), and a request whose key is still being processed is rejected, like
+ * Stripe does with a 409. A request that reuses a key with other params is rejected with a 400, like Stripe does.
+ * Faults are injected before a request is processed and after (the response got lost).
+ */
+class FakeStripe implements StripeApi.Interceptor {
+    // Params are compared like Stripe compares the encoded form: independent of the order and of the number types
+    private static final ObjectMapper MAPPER = new ObjectMapper().configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
+
+    final private Random random;
+    final private AtomicLong ids = new AtomicLong();
+    final private Map<String, Object> responses = new HashMap<>();
+    // The hash of the params of the first request, by its idempotencyKey
+    final private Map<String, Integer> paramsHashes = new HashMap<>();
+    final private Set<String> processing = new HashSet<>();
+    // Every object that was created, by the idempotencyKey of its request
+    final private Map<String, Object> created = new LinkedHashMap<>();
+    private volatile double failureRate;
+    private volatile double declineRate;
+    private volatile int maxDelayMillis;
+
+    FakeStripe(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * @param failureRate The share of requests that fail temporarily, half of them after the object was created.
+     * @param declineRate The share of new requests that are declined permanently.
+     */
+    void setFaults(double failureRate, double declineRate, int maxDelayMillis) {
+        this.failureRate = failureRate;
+        this.declineRate = declineRate;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * @return The charges (or customers) that were created, by the idempotencyKey of their request.
+     */
+    synchronized <T> Map<String, T> getCreated(Class<T> type) {
+        final Map<String, T> objects = new LinkedHashMap<>();
+        created.forEach((key, object) -> {
+            if (type.isInstance(object)) objects.put(key, type.cast(object));
+        });
+        return objects;
+    }
+
+    @Override
+    public <T> T intercept(String operation, String subject, RequestOptions options, StripeApi.StripeCall<T> call) throws StripeException {
+        return intercept(operation, subject, null, options, call);
+    }
+
+    @Override
+    public <T> T intercept(String operation, String subject, Map<String, Object> params, RequestOptions options, StripeApi.StripeCall<T> call) throws StripeException {
+        final String key = options.getIdempotencyKey();
+        if (key == null) throw new IllegalStateException(operation + " without idempotencyKey");
+        pause();
+        if (random.nextDouble() < failureRate / 2) throw new APIConnectionException("Injected failure before " + operation);
+        final Object response;
+        synchronized (this) {
+            if (processing.contains(key)) throw new APIConnectionException("Injected 409: idempotencyKey in use");
+            processing.add(key);
+        }
+        try {
+            // Requests with different keys run concurrently
+            pause();
+            response = respond(operation, key, hash(params));
+        } finally {
+            synchronized (this) {
+                processing.remove(key);
+            }
+        }
+        if (random.nextDouble() < failureRate / 2) throw new APIConnectionException("Injected failure after " + operation);
+        if (response instanceof StripeException) throw (StripeException) response;
+        @SuppressWarnings("unchecked")
+        final T result = (T) response;
+        return result;
+    }
+
+    private synchronized Object respond(String operation, String key, int paramsHash) {
+        final Integer storedHash = paramsHashes.putIfAbsent(key, paramsHash);
+        if (storedHash != null && storedHash != paramsHash) {
+            return new InvalidRequestException("Keys for idempotent requests can only be used with the same parameters " +
+                "they were first used with. Try using a key other than '" + key + "' if you meant to execute a different request.",
+                null, null, 400, null);
+        }
+        final Object stored = responses.get(key);
+        if (stored != null) return stored;
+        final Object response;
+        if (random.nextDouble() < declineRate) response = new InvalidRequestException("Injected decline", null, null, 402, null);
+        else if (StripeApi.CUSTOMER_CREATE.equals(operation)) response = APIResource.GSON.fromJson(
+            "{\"id\":\"cus_" + ids.incrementAndGet() + "\",\"object\":\"customer\"}", Customer.class);
+        else if (StripeApi.CHARGE_CREATE.equals(operation)) response = APIResource.GSON.fromJson(
+            "{\"id\":\"ch_" + ids.incrementAndGet() + "\",\"object\":\"charge\",\"amount\":2300,\"currency\":\"eur\"," +
+            "\"captured\":true,\"paid\":true,\"created\":" + System.currentTimeMillis() / 1000 + "}", Charge.class);
+        else throw new IllegalStateException("Not supported by the fake: " + operation);
+        responses.put(key, response);
+        if (!(response instanceof StripeException)) created.put(key, response);
+        return response;
+    }
+
+    private static int hash(Map<String, Object> params) {
+        try {
+            return MAPPER.writeValueAsString(params).hashCode();
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Can not serialize params", e);
+        }
+    }
+
+    private void pause() {
+        final int delayMillis = maxDelayMillis > 0 ? random.nextInt(maxDelayMillis + 1) : 0;
+        if (delayMillis == 0) return;
+        try {
+            Thread.sleep(delayMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.commercetools.pspadapter.stripe;
+
+import com.commercetools.pspadapter.stripe.executors.CaptureMode;
+import com.commercetools.pspadapter.stripe.executors.IdempotencyMode;
+import com.commercetools.pspadapter.stripe.executors.IdempotentChargeExecutor;
+import com.commercetools.pspadapter.stripe.tenants.Tenant;
+import com.commercetools.pspadapter.stripe.util.PaymentPair;
+import com.commercetools.pspadapter.stripe.util.StripeRequest;
+import com.stripe.Stripe;
+import com.stripe.model.Charge;
+import com.stripe.net.RequestOptions;
+import io.sphere.sdk.payments.Payment;
+import io.sphere.sdk.payments.commands.PaymentUpdateCommand;
+import io.sphere.sdk.types.CustomFields;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class IdempotentChargeExecutorTest extends AbstractCTPStripeTest {
+
+    @Test
+    public void testDeterministicChargeAfterCrashBeforeStripeRequest() throws Exception {
+        // Nothing was saved and nothing was sent to Stripe, so the derived request is simply executed.
+        final Payment beforePayment = createAnonymousPayment(WebHookReceiver.createTestToken().getId());
+        final String customerId = createStripeCustomer();
+
+        final IdempotentChargeExecutor chargeCreator = executor(beforePayment, customerId, IdempotencyMode.DETERMINISTIC);
+        assertFalse(chargeCreator.previousExecution().isPresent());
+        assertFalse(chargeCreator.retryPreviousExecution().isPresent());
+
+        final PaymentPair<Optional<String>> paymentPair = chargeCreator.executionResult().get();
+        final Payment payment = paymentPair.getPayment();
+
+        // No request was saved before calling Stripe
+        assertEquals(2, payment.getInterfaceInteractions().size());
+        final CustomFields interaction = payment.getInterfaceInteractions().get(1);
+        assertEquals(typeKeyToId.getId("STRIPE_CHARGED").get(), interaction.getType().getId());
+        assertEquals(StripeRequest.deterministicIdempotencyKey(payment.getId(), "charge", 0), interaction.getFieldAsString("idempotencyKey"));
+        assertEquals(paymentPair.getRight().get(), interaction.getFieldAsString("chargeId"));
+        assertEquals(1, payment.getTransactions().size());
+        assertNotNull(payment.getAmountPaid());
+    }
+
+    @Test
+    public void testDeterministicChargeAfterCrashBeforeResultUpdate() throws Exception {
+        final Payment beforePayment = createAnonymousPayment(WebHookReceiver.createTestToken().getId());
+        final String customerId = createStripeCustomer();
+
+        // Simulate a crash after the charge was created at Stripe, but before the result was saved in the payment.
+        final String idempotencyKey = StripeRequest.deterministicIdempotencyKey(beforePayment.getId(), "charge", 0);
+        final Charge crashedCharge = Charge.create(chargeParams(customerId), RequestOptions.builder().setIdempotencyKey(idempotencyKey).build());
+
+        // The retry derives the same idempotencyKey, so Stripe returns the charge of the crashed execution.
+        final IdempotentChargeExecutor chargeCreator = executor(beforePayment, customerId, IdempotencyMode.DETERMINISTIC);
+        assertFalse(chargeCreator.previousExecution().isPresent());
+
+        final PaymentPair<Optional<String>> paymentPair = chargeCreator.executionResult().get();
+        assertEquals(crashedCharge.getId(), paymentPair.getRight().get());
+        assertEquals(2, paymentPair.getPayment().getInterfaceInteractions().size());
+        assertEquals(1, paymentPair.getPayment().getTransactions().size());
+    }
+
+    @Test
+    public void testDeterministicChargeAfterCrashAfterResultUpdate() throws Exception {
+        final Payment beforePayment = createAnonymousPayment(WebHookReceiver.createTestToken().getId());
+        final String customerId = createStripeCustomer();
+
+        final PaymentPair<Optional<String>> paymentPair =
+            executor(beforePayment, customerId, IdempotencyMode.DETERMINISTIC).executionResult().get();
+        final String chargeId = paymentPair.getRight().get();
+
+        // Simulate a crash after the result was saved: processing the updated payment again must not hit Stripe.
+        final IdempotentChargeExecutor chargeCreatorNew = executor(paymentPair.getPayment(), customerId, IdempotencyMode.DETERMINISTIC);
+        assertTrue(chargeCreatorNew.previousExecution().isPresent());
+        assertEquals(chargeId, chargeCreatorNew.executionResult().get().getRight().get());
+        assertEquals(paymentPair.getPayment().getVersion(), chargeCreatorNew.executionResult().get().getPayment().getVersion());
+    }
+
+    @Test
+    public void testDeterministicTemporarilyFailingCharge() throws Exception {
+        final Payment beforePayment = createAnonymousPayment(WebHookReceiver.createTestToken().getId());
+        final String customerId = createStripeCustomer();
+
+        // Set invalid Stripe key to make request fail temporarily
+        Stripe.apiKey = "invalid";
+
+        final Payment payment = executor(beforePayment, customerId, IdempotencyMode.DETERMINISTIC).executionResult().get().getPayment();
+        assertEquals(2, payment.getInterfaceInteractions().size());
+        final CustomFields exceptionInteraction = payment.getInterfaceInteractions().get(1);
+        assertEquals(typeKeyToId.getId("STRIPE_TEMPORARY_EXCEPTION").get(), exceptionInteraction.getType().getId());
+
+        // Set valid Stripe key again
+        setStripeApiKey();
+
+        // Retry request with the same derived idempotencyKey
+        final IdempotentChargeExecutor secondChargeCreator = executor(payment, customerId, IdempotencyMode.DETERMINISTIC);
+        assertFalse(secondChargeCreator.previousExecution().isPresent());
+
+        final Payment secondPayment = secondChargeCreator.executionResult().get().getPayment();
+        assertEquals(3, secondPayment.getInterfaceInteractions().size());
+        final CustomFields chargedInteraction = secondPayment.getInterfaceInteractions().get(2);
+        assertEquals(typeKeyToId.getId("STRIPE_CHARGED").get(), chargedInteraction.getType().getId());
+        assertEquals(exceptionInteraction.getFieldAsString("idempotencyKey"), chargedInteraction.getFieldAsString("idempotencyKey"));
+    }
+
+    @Test
+    public void testWriteAheadChargeAfterCrashBeforeStripeRequest() throws Exception {
+        final Payment beforePayment = createAnonymousPayment(WebHookReceiver.createTestToken().getId());
+        final String customerId = createStripeCustomer();
+
+        // Simulate a crash after the request was saved, but before it was sent to Stripe.
+        final Payment payment = saveRequest(beforePayment, customerId, UUID.randomUUID().toString());
+        final String savedKey = payment.getInterfaceInteractions().get(1).getFieldAsString("idempotencyKey");
+
+        final IdempotentChargeExecutor chargeCreator = executor(payment, customerId, IdempotencyMode.WRITE_AHEAD);
+        assertFalse(chargeCreator.previousExecution().isPresent());
+        final PaymentPair<Optional<String>> paymentPair = chargeCreator.executionResult().get();
+
+        // The saved request was sent, no second request was saved
+        assertEquals(3, paymentPair.getPayment().getInterfaceInteractions().size());
+        final CustomFields chargedInteraction = paymentPair.getPayment().getInterfaceInteractions().get(2);
+        assertEquals(typeKeyToId.getId("STRIPE_CHARGED").get(), chargedInteraction.getType().getId());
+        assertEquals(savedKey, chargedInteraction.getFieldAsString("idempotencyKey"));
+    }
+
+    @Test
+    public void testWriteAheadRequestIsRetriedAfterSwitchToDeterministic() throws Exception {
+        final Payment beforePayment = createAnonymousPayment(WebHookReceiver.createTestToken().getId());
+        final String customerId = createStripeCustomer();
+
+        // Simulate a crash in WRITE_AHEAD mode with a random key, after the charge was created at Stripe.
+        final String randomKey = UUID.randomUUID().toString();
+        final Payment payment = saveRequest(beforePayment, customerId, randomKey);
+        final Charge crashedCharge = Charge.create(chargeParams(customerId), RequestOptions.builder().setIdempotencyKey(randomKey).build());
+
+        // After the switch, the saved key is retried instead of deriving a new one, so there is no second charge.
+        final IdempotentChargeExecutor chargeCreator = executor(payment, customerId, IdempotencyMode.DETERMINISTIC);
+        assertFalse(chargeCreator.previousExecution().isPresent());
+        final PaymentPair<Optional<String>> paymentPair = chargeCreator.executionResult().get();
+        assertEquals(crashedCharge.getId(), paymentPair.getRight().get());
+        assertEquals(randomKey, paymentPair.getPayment().getInterfaceInteractions().get(2).getFieldAsString("idempotencyKey"));
+    }
+
+    private IdempotentChargeExecutor executor(Payment payment, String customerId, IdempotencyMode mode) {
+        return new IdempotentChargeExecutor(payment, customerId, Tenant.of(client), mode, CaptureMode.IMMEDIATE);
+    }
+
+    private Payment saveRequest(Payment payment, String customerId, String idempotencyKey) throws Exception {
+        return client.execute(PaymentUpdateCommand.of(payment,
+            new StripeRequest(chargeParams(customerId), idempotencyKey).toInterfaceInteractionOfType("STRIPE_CHARGE_CREATE_REQUEST")))
+            .toCompletableFuture().get();
+    }
+
+    /**
+     * The params of the executor, Stripe rejects an idempotencyKey that is used again with other params.
+     */
+    private Map<String, Object> chargeParams(String customerId) {
+        final Map<String, Object> chargeParams = new HashMap<>();
+        chargeParams.put("amount", 2300L);
+        chargeParams.put("currency", "EUR");
+        chargeParams.put("customer", customerId);
+        chargeParams.put("capture", true);
+        return chargeParams;
+    }
+
+    private String createStripeCustomer() throws Exception {
+        final Map<String, Object> customerParams = new HashMap<>();
+        customerParams.put("source", WebHookReceiver.createTestToken().getId());
+        return com.stripe.model.Customer.create(customerParams).getId();
+    }
+}
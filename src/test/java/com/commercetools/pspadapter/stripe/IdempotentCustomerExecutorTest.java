@@ -1,14 +1,17 @@
 package com.commercetools.pspadapter.stripe;
 
 import com.commercetools.pspadapter.stripe.*;
+import com.commercetools.pspadapter.stripe.executors.IdempotencyMode;
 import com.commercetools.pspadapter.stripe.executors.IdempotentCustomerExecutor;
 import com.commercetools.pspadapter.stripe.util.JavaClientInstantiation;
 import com.commercetools.pspadapter.stripe.util.PaymentPair;
+import com.commercetools.pspadapter.stripe.util.StripeRequest;
 import com.stripe.Stripe;
 import com.stripe.exception.*;
 import com.stripe.model.Card;
 import com.stripe.model.ExternalAccount;
 import com.stripe.model.Token;
+import com.stripe.net.RequestOptions;
 import io.sphere.sdk.client.SphereClient;
 import io.sphere.sdk.customers.Customer;
 import io.sphere.sdk.models.DefaultCurrencyUnits;
@@ -24,7 +27,9 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 import static org.junit.Assert.*;
@@ -135,4 +140,89 @@ public class IdempotentCustomerExecutorTest extends AbstractCTPStripeTest {
         assertEquals(firstInteraction.getFieldAsString("idempotencyKey"), thirdInteraction.getFieldAsString("idempotencyKey"));
     }
 
+    @Test
+    public void testDeterministicCustomerCreationAfterCrashBeforeStripeRequest() throws Exception {
+        // Nothing was saved and nothing was sent to Stripe, so the derived request is simply executed.
+        Payment beforePayment = createAnonymousPayment(WebHookReceiver.createTestToken().getId());
+
+        final IdempotentCustomerExecutor customerCreator = new IdempotentCustomerExecutor(beforePayment, client, IdempotencyMode.DETERMINISTIC);
+        assertFalse(customerCreator.previousExecution().isPresent());
+        assertFalse(customerCreator.retryPreviousExecution().isPresent());
+
+        final PaymentPair<Optional<String>> paymentPair = customerCreator.executionResult().get();
+        Payment payment = paymentPair.getPayment();
+
+        // No request was saved before calling Stripe
+        assertEquals(2, payment.getInterfaceInteractions().size());
+        final CustomFields interaction = payment.getInterfaceInteractions().get(1);
+        assertEquals(typeKeyToId.getId("STRIPE_CUSTOMER_CHECKED").get(), interaction.getType().getId());
+        assertEquals(StripeRequest.deterministicIdempotencyKey(payment.getId(), "customer", 0), interaction.getFieldAsString("idempotencyKey"));
+        assertTrue(paymentPair.getRight().isPresent());
+    }
+
+    @Test
+    public void testDeterministicCustomerCreationAfterCrashBeforeResultUpdate() throws Exception {
+        final String tokenId = WebHookReceiver.createTestToken().getId();
+        Payment beforePayment = createAnonymousPayment(tokenId);
+
+        // Simulate a crash after the customer was created at Stripe, but before the result was saved in the payment.
+        final Map<String, Object> customerParams = new HashMap<>();
+        customerParams.put("source", tokenId);
+        final String idempotencyKey = StripeRequest.deterministicIdempotencyKey(beforePayment.getId(), "customer", 0);
+        final com.stripe.model.Customer crashedCustomer = com.stripe.model.Customer.create(
+            customerParams, RequestOptions.builder().setIdempotencyKey(idempotencyKey).build());
+
+        // The retry derives the same idempotencyKey, so Stripe returns the customer of the crashed execution.
+        final IdempotentCustomerExecutor customerCreator = new IdempotentCustomerExecutor(beforePayment, client, IdempotencyMode.DETERMINISTIC);
+        assertFalse(customerCreator.previousExecution().isPresent());
+
+        final PaymentPair<Optional<String>> paymentPair = customerCreator.executionResult().get();
+        assertEquals(crashedCustomer.getId(), paymentPair.getRight().get());
+        assertEquals(2, paymentPair.getPayment().getInterfaceInteractions().size());
+    }
+
+    @Test
+    public void testDeterministicCustomerCreationAfterCrashAfterResultUpdate() throws Exception {
+        Payment beforePayment = createAnonymousPayment(WebHookReceiver.createTestToken().getId());
+
+        final PaymentPair<Optional<String>> paymentPair =
+            new IdempotentCustomerExecutor(beforePayment, client, IdempotencyMode.DETERMINISTIC).executionResult().get();
+        String customerId = paymentPair.getRight().get();
+
+        // Simulate a crash after the result was saved: processing the updated payment again must not hit Stripe.
+        final IdempotentCustomerExecutor customerCreatorNew = new IdempotentCustomerExecutor(paymentPair.getPayment(), client, IdempotencyMode.DETERMINISTIC);
+        assertTrue(customerCreatorNew.previousExecution().isPresent());
+        assertEquals(customerId, customerCreatorNew.executionResult().get().getRight().get());
+        assertEquals(paymentPair.getPayment().getVersion(), customerCreatorNew.executionResult().get().getPayment().getVersion());
+    }
+
+    @Test
+    public void testDeterministicTemporarilyFailingCustomerCreation() throws Exception {
+        Payment beforePayment = createAnonymousPayment(WebHookReceiver.createTestToken().getId());
+
+        // Set invalid Stripe key to make request fail temporarily
+        Stripe.apiKey = "invalid";
+
+        final PaymentPair<Optional<String>> paymentPair =
+            new IdempotentCustomerExecutor(beforePayment, client, IdempotencyMode.DETERMINISTIC).executionResult().get();
+        Payment payment = paymentPair.getPayment();
+
+        assertEquals(2, payment.getInterfaceInteractions().size());
+        final CustomFields exceptionInteraction = payment.getInterfaceInteractions().get(1);
+        assertEquals(typeKeyToId.getId("STRIPE_TEMPORARY_EXCEPTION").get(), exceptionInteraction.getType().getId());
+
+        // Set valid Stripe key again
+        setStripeApiKey();
+
+        // Retry request with the same derived idempotencyKey
+        final IdempotentCustomerExecutor secondCustomerCreator = new IdempotentCustomerExecutor(payment, client, IdempotencyMode.DETERMINISTIC);
+        assertFalse(secondCustomerCreator.previousExecution().isPresent());
+
+        final Payment secondPayment = secondCustomerCreator.executionResult().get().getPayment();
+        assertEquals(3, secondPayment.getInterfaceInteractions().size());
+        final CustomFields checkedInteraction = secondPayment.getInterfaceInteractions().get(2);
+        assertEquals(typeKeyToId.getId("STRIPE_CUSTOMER_CHECKED").get(), checkedInteraction.getType().getId());
+        assertEquals(exceptionInteraction.getFieldAsString("idempotencyKey"), checkedInteraction.getFieldAsString("idempotencyKey"));
+    }
+
 }
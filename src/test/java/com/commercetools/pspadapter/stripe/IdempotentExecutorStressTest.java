@@ -0,0 +1,214 @@
+package com.commercetools.pspadapter.stripe;
+
+import com.commercetools.pspadapter.stripe.executors.CaptureMode;
+import com.commercetools.pspadapter.stripe.executors.IdempotencyMode;
+import com.commercetools.pspadapter.stripe.executors.IdempotentChargeExecutor;
+import com.commercetools.pspadapter.stripe.executors.IdempotentCustomerExecutor;
+import com.commercetools.pspadapter.stripe.tenants.Tenant;
+import com.commercetools.pspadapter.stripe.util.Deadline;
+import com.commercetools.pspadapter.stripe.util.PaymentCache;
+import com.commercetools.pspadapter.stripe.util.StripeApi;
+import com.commercetools.pspadapter.stripe.util.StripeRequest;
+import com.stripe.model.Charge;
+import com.stripe.model.Customer;
+import io.sphere.sdk.payments.Payment;
+import io.sphere.sdk.types.CustomFields;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Processes every payment on several nodes at once, against the in-memory CTP and Stripe fakes with injected delays,
+ * failures and lost responses, and checks after every round that no payment got two Stripe customers or charges.
+ * A failed CTP update or a lost response stands for a node that crashed at that point. Afterwards the faults are
+ * turned off, and every payment has to settle with its charge recorded.
+ *
+ * Runs without CTP and Stripe credentials. The size is set with the stress.payments, stress.nodes and stress.rounds
+ * system properties, and the failing run is repeated with the stress.seed from the assertion message (thread
+ * scheduling still varies).
+ */
+public class IdempotentExecutorStressTest {
+    private static final int PAYMENTS = Integer.getInteger("stress.payments", 500);
+    private static final int NODES = Integer.getInteger("stress.nodes", 4);
+    private static final int CHAOS_ROUNDS = Integer.getInteger("stress.rounds", 5);
+    private static final int SETTLE_ROUNDS = 5;
+
+    final private long seed = Long.getLong("stress.seed", System.nanoTime());
+    final private Random random = new Random(seed);
+    final private Map<String, String> typeIds = new HashMap<>();
+    final private ExecutorService stripeThreads = Executors.newFixedThreadPool(32, r -> {
+        final Thread thread = new Thread(r, "stress-stripe");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public IdempotentExecutorStressTest() {
+        WarmUp.TYPE_KEYS.forEach(typeKey -> typeIds.put(typeKey, UUID.randomUUID().toString()));
+    }
+
+    @After
+    public void after() {
+        StripeApi.setInterceptor(null);
+        stripeThreads.shutdownNow();
+    }
+
+    @Test
+    public void testWriteAhead() throws Exception {
+        stress(IdempotencyMode.WRITE_AHEAD);
+    }
+
+    @Test
+    public void testDeterministic() throws Exception {
+        stress(IdempotencyMode.DETERMINISTIC);
+    }
+
+    private void stress(IdempotencyMode mode) throws Exception {
+        final InMemorySphereClient client = new InMemorySphereClient(typeIds, seed);
+        final FakeStripe stripe = new FakeStripe(seed);
+        StripeApi.setInterceptor(stripe);
+        final List<String> paymentIds = new ArrayList<>();
+        for (int i = 0; i < PAYMENTS; i++) paymentIds.add(client.createPayment("tok_" + i).getId());
+
+        client.setFaults(0.1, 3);
+        stripe.setFaults(0.1, 0.05, 3);
+        final List<Tenant> nodes = startNodes(client);
+        final Map<String, Payment> snapshots = new ConcurrentHashMap<>();
+        for (int round = 0; round < CHAOS_ROUNDS; round++) {
+            runRound(client, nodes, paymentIds, snapshots, mode);
+            assertSafe(client, stripe, paymentIds, mode, "chaos round " + round);
+        }
+
+        // Restarted nodes without faults finish what the crashed ones left behind
+        client.setFaults(0, 0);
+        stripe.setFaults(0, 0, 0);
+        List<String> unsettled = paymentIds;
+        for (int round = 0; round < SETTLE_ROUNDS && !unsettled.isEmpty(); round++) {
+            runRound(client, startNodes(client), unsettled, new ConcurrentHashMap<>(), mode);
+            unsettled = unsettled.stream().filter(id -> !isSettled(client.getPayment(id))).collect(Collectors.toList());
+        }
+        assertSafe(client, stripe, paymentIds, mode, "settled");
+        assertTrue("Unsettled payments " + unsettled + " with seed " + seed, unsettled.isEmpty());
+        assertChargesRecorded(client, stripe, paymentIds, mode);
+    }
+
+    /**
+     * Every node has its own StripeApi and PaymentCache, the CTP project and the Stripe account are shared.
+     */
+    private List<Tenant> startNodes(InMemorySphereClient client) {
+        final List<Tenant> nodes = new ArrayList<>();
+        for (int i = 0; i < NODES; i++) {
+            final StripeApi stripeApi = new StripeApi("sk_test_stress", stripeThreads, null, 200, Collections.emptyMap());
+            nodes.add(new Tenant("node" + i, null, client, stripeApi, new TypeKeyToId(client, typeIds), new PaymentCache(PAYMENTS)));
+        }
+        return nodes;
+    }
+
+    /**
+     * Starts every payment on every node at the same time. Some nodes work with the version of the payment they read
+     * in the last round, like a node that pulled a message late.
+     */
+    private void runRound(InMemorySphereClient client, List<Tenant> nodes, List<String> paymentIds, Map<String, Payment> snapshots,
+                          IdempotencyMode mode) throws InterruptedException {
+        final List<CompletableFuture<?>> executions = new ArrayList<>();
+        for (String paymentId : paymentIds) {
+            for (Tenant node : nodes) {
+                final Payment stale = snapshots.get(paymentId);
+                final Payment payment = stale != null && random.nextInt(4) == 0 ? stale : node.getPaymentCache().freshest(client.getPayment(paymentId));
+                snapshots.put(paymentId, payment);
+                executions.add(process(node, payment, mode));
+            }
+        }
+        try {
+            CompletableFuture.allOf(executions.toArray(new CompletableFuture[executions.size()])).get(60, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            // Failed executions are the injected crashes
+        } catch (TimeoutException e) {
+            fail("Round did not finish with seed " + seed);
+        }
+    }
+
+    /**
+     * The steps of PaymentCreationListener, with the given idempotency mode.
+     */
+    private CompletableFuture<?> process(Tenant node, Payment payment, IdempotencyMode mode) {
+        final Deadline deadline = Deadline.after(1000);
+        return CompletableFuture.completedFuture(payment)
+            .thenCompose(p -> new IdempotentCustomerExecutor(p, node, mode, deadline).executionResult())
+            .thenCompose(pair -> pair.getRight()
+                .map(customerId -> new IdempotentChargeExecutor(pair.getPayment(), customerId, node, mode, CaptureMode.IMMEDIATE, deadline).executionResult())
+                .orElse(CompletableFuture.completedFuture(pair)));
+    }
+
+    private void assertSafe(InMemorySphereClient client, FakeStripe stripe, List<String> paymentIds, IdempotencyMode mode, String phase) {
+        final String context = " in " + phase + " with seed " + seed;
+        final Map<String, String> paymentIdsByKey = new HashMap<>();
+        for (String paymentId : paymentIds) {
+            final Payment payment = client.getPayment(paymentId);
+            assertTrue("Two STRIPE_CHARGED for " + paymentId + context,
+                interactions(payment, "STRIPE_CHARGED").size() + interactions(payment, "STRIPE_AUTHORIZED").size() <= 1);
+            assertTrue("Two STRIPE_CUSTOMER_CHECKED for " + paymentId + context, interactions(payment, "STRIPE_CUSTOMER_CHECKED").size() <= 1);
+            assertTrue("Two transactions for " + paymentId + context, payment.getTransactions().size() <= 1);
+            idempotencyKeys(payment, mode).forEach(key -> paymentIdsByKey.put(key, paymentId));
+        }
+        assertAtMostOnePerPayment(stripe.getCreated(Customer.class), paymentIdsByKey, "customers" + context);
+        assertAtMostOnePerPayment(stripe.getCreated(Charge.class), paymentIdsByKey, "charges" + context);
+    }
+
+    private void assertAtMostOnePerPayment(Map<String, ?> createdByKey, Map<String, String> paymentIdsByKey, String context) {
+        final Map<String, Long> perPayment = createdByKey.keySet().stream()
+            .map(key -> {
+                final String paymentId = paymentIdsByKey.get(key);
+                assertNotNull("Stripe object of unknown payment, idempotencyKey " + key + ", " + context, paymentId);
+                return paymentId;
+            })
+            .collect(Collectors.groupingBy(paymentId -> paymentId, Collectors.counting()));
+        perPayment.forEach((paymentId, count) ->
+            assertEquals("Stripe objects for " + paymentId + ", " + context, Long.valueOf(1), count));
+    }
+
+    /**
+     * Every charge that Stripe created is the one recorded in its payment.
+     */
+    private void assertChargesRecorded(InMemorySphereClient client, FakeStripe stripe, List<String> paymentIds, IdempotencyMode mode) {
+        final Map<String, Charge> charges = stripe.getCreated(Charge.class);
+        for (String paymentId : paymentIds) {
+            final Payment payment = client.getPayment(paymentId);
+            final Optional<Charge> charge = idempotencyKeys(payment, mode).stream()
+                .filter(charges::containsKey)
+                .map(charges::get)
+                .findFirst();
+            final List<CustomFields> charged = interactions(payment, "STRIPE_CHARGED");
+            assertEquals("Charge not recorded for " + paymentId + " with seed " + seed, charge.isPresent(), !charged.isEmpty());
+            charge.ifPresent(c -> {
+                assertEquals("Wrong charge recorded for " + paymentId + " with seed " + seed, c.getId(), charged.get(0).getFieldAsString("chargeId"));
+                assertNotNull("No amount paid for " + paymentId + " with seed " + seed, payment.getAmountPaid());
+            });
+        }
+    }
+
+    private boolean isSettled(Payment payment) {
+        return !interactions(payment, "STRIPE_CHARGED").isEmpty() || !interactions(payment, "STRIPE_EXCEPTION").isEmpty();
+    }
+
+    private List<String> idempotencyKeys(Payment payment, IdempotencyMode mode) {
+        if (mode == IdempotencyMode.DETERMINISTIC) return Arrays.asList(
+            StripeRequest.deterministicIdempotencyKey(payment.getId(), "customer", 0),
+            StripeRequest.deterministicIdempotencyKey(payment.getId(), "charge", 0));
+        return payment.getInterfaceInteractions().stream()
+            .filter(interaction -> interaction.getType().getId().equals(typeIds.get("STRIPE_CUSTOMER_CREATE_REQUEST")) ||
+                interaction.getType().getId().equals(typeIds.get("STRIPE_CHARGE_CREATE_REQUEST")))
+            .map(interaction -> interaction.getFieldAsString("idempotencyKey"))
+            .collect(Collectors.toList());
+    }
+
+    private List<CustomFields> interactions(Payment payment, String typeKey) {
+        return payment.getInterfaceInteractions().stream()
+            .filter(interaction -> interaction.getType().getId().equals(typeIds.get(typeKey)))
+            .collect(Collectors.toList());
+    }
+}
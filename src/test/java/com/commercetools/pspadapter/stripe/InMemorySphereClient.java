@@ -0,0 +1,177 @@
+package com.commercetools.pspadapter.stripe;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.sphere.sdk.client.ConcurrentModificationException;
+import io.sphere.sdk.client.SphereClient;
+import io.sphere.sdk.client.SphereRequest;
+import io.sphere.sdk.commands.UpdateAction;
+import io.sphere.sdk.http.HttpMethod;
+import io.sphere.sdk.http.HttpRequestIntent;
+import io.sphere.sdk.json.SphereJsonUtils;
+import io.sphere.sdk.models.SphereException;
+import io.sphere.sdk.payments.Payment;
+import io.sphere.sdk.payments.commands.PaymentUpdateCommand;
+
+import java.io.IOException;
+import java.time.ZonedDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Keeps payments in memory and applies the update actions the executors send, with the version check of CTP.
+ * Every request completes on another thread after a random delay, and fails with the configured rate: either before
+ * the update is applied, or after it (the response got lost).
+ */
+class InMemorySphereClient implements SphereClient {
+    private static final ObjectMapper MAPPER = SphereJsonUtils.newObjectMapper();
+
+    final private Map<String, ObjectNode> payments = new HashMap<>();
+    final private Map<String, String> typeKeyToId;
+    final private Random random;
+    final private ScheduledExecutorService responses = Executors.newScheduledThreadPool(4, r -> {
+        final Thread thread = new Thread(r, "in-memory-ctp");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile double failureRate;
+    private volatile int maxDelayMillis;
+
+    InMemorySphereClient(Map<String, String> typeKeyToId, long seed) {
+        this.typeKeyToId = typeKeyToId;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * @param failureRate The share of requests that fail, half of them after the update was applied.
+     */
+    void setFaults(double failureRate, int maxDelayMillis) {
+        this.failureRate = failureRate;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Creates a payment of 23 EUR with a token, without customer.
+     */
+    synchronized Payment createPayment(String tokenId) {
+        final String id = UUID.randomUUID().toString();
+        final ObjectNode payment = MAPPER.createObjectNode();
+        payment.put("id", id);
+        payment.put("version", 1L);
+        payment.put("createdAt", ZonedDateTime.now().toString());
+        payment.put("lastModifiedAt", ZonedDateTime.now().toString());
+        payment.set("amountPlanned", money(2300));
+        payment.putObject("paymentMethodInfo").put("paymentInterface", "STRIPE");
+        payment.putObject("paymentStatus");
+        payment.putArray("transactions");
+        final ObjectNode interaction = payment.putArray("interfaceInteractions").addObject();
+        interaction.putObject("type").put("typeId", "type").put("id", typeKeyToId.get("STRIPE_TOKEN_RECEIVED"));
+        interaction.putObject("fields").put("token", tokenId);
+        payments.put(id, payment);
+        return toPayment(payment);
+    }
+
+    synchronized Payment getPayment(String id) {
+        return toPayment(payments.get(id));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> CompletionStage<T> execute(SphereRequest<T> request) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        final boolean fail = random.nextDouble() < failureRate;
+        final boolean failBeforeApply = random.nextBoolean();
+        final int delayMillis = maxDelayMillis > 0 ? random.nextInt(maxDelayMillis + 1) : 0;
+        responses.schedule(() -> {
+            if (fail && failBeforeApply) {
+                result.completeExceptionally(new SphereException("Injected failure before apply"));
+                return;
+            }
+            try {
+                final T response = (T) handle(request);
+                if (fail) result.completeExceptionally(new SphereException("Injected failure after apply"));
+                else result.complete(response);
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+        return result;
+    }
+
+    @Override
+    public void close() {
+        responses.shutdown();
+    }
+
+    private synchronized Object handle(SphereRequest<?> request) {
+        if (request instanceof PaymentUpdateCommand) {
+            final PaymentUpdateCommand command = (PaymentUpdateCommand) request;
+            final ObjectNode payment = Optional.ofNullable(payments.get(command.getVersioned().getId()))
+                .orElseThrow(() -> new SphereException("No payment " + command.getVersioned().getId()));
+            if (payment.get("version").asLong() != command.getVersioned().getVersion()) throw new ConcurrentModificationException();
+            final ObjectNode updated = payment.deepCopy();
+            for (UpdateAction<Payment> action : command.getUpdateActions()) apply(updated, MAPPER.valueToTree(action));
+            updated.put("version", payment.get("version").asLong() + 1);
+            updated.put("lastModifiedAt", ZonedDateTime.now().toString());
+            payments.put(command.getVersioned().getId(), updated);
+            return toPayment(updated);
+        }
+        final HttpRequestIntent intent = request.httpRequestIntent();
+        final String path = intent.getPath().split("\\?")[0];
+        if (intent.getHttpMethod() == HttpMethod.GET && path.startsWith("/payments/")) {
+            return Optional.ofNullable(payments.get(path.substring("/payments/".length())))
+                .map(payment -> toPayment(payment))
+                .orElse(null);
+        }
+        throw new SphereException("Not supported by the in-memory client: " + intent.getHttpMethod() + " " + path);
+    }
+
+    private void apply(ObjectNode payment, JsonNode action) {
+        switch (action.get("action").asText()) {
+            case "addInterfaceInteraction":
+                final ObjectNode interaction = ((ArrayNode) payment.get("interfaceInteractions")).addObject();
+                final JsonNode type = action.get("type");
+                final String typeId = type.has("id") ? type.get("id").asText() : typeKeyToId.get(type.get("key").asText());
+                if (typeId == null) throw new SphereException("Unknown type " + type);
+                interaction.putObject("type").put("typeId", "type").put("id", typeId);
+                interaction.set("fields", action.get("fields"));
+                break;
+            case "addTransaction":
+                final ObjectNode transaction = action.get("transaction").deepCopy();
+                transaction.put("id", UUID.randomUUID().toString());
+                ((ArrayNode) payment.get("transactions")).add(transaction);
+                break;
+            case "setAmountPaid":
+                payment.set("amountPaid", action.get("amount"));
+                break;
+            case "setAmountAuthorized":
+                payment.set("amountAuthorized", action.get("amount"));
+                break;
+            case "setStatusInterfaceCode":
+                ((ObjectNode) payment.get("paymentStatus")).set("interfaceCode", action.get("interfaceCode"));
+                break;
+            case "setStatusInterfaceText":
+                ((ObjectNode) payment.get("paymentStatus")).set("interfaceText", action.get("interfaceText"));
+                break;
+            default:
+                throw new SphereException("Update action not supported by the in-memory client: " + action);
+        }
+    }
+
+    private static ObjectNode money(long centAmount) {
+        final ObjectNode money = MAPPER.createObjectNode();
+        money.put("currencyCode", "EUR");
+        money.put("centAmount", centAmount);
+        return money;
+    }
+
+    private static Payment toPayment(ObjectNode payment) {
+        try {
+            return MAPPER.treeToValue(payment, Payment.class);
+        } catch (IOException e) {
+            throw new IllegalStateException("Invalid payment", e);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.commercetools.pspadapter.stripe;
+
+import com.commercetools.pspadapter.stripe.archive.ArchivedInteraction;
+import com.commercetools.pspadapter.stripe.archive.InteractionArchive;
+import com.commercetools.pspadapter.stripe.archive.InteractionCompaction;
+import io.sphere.sdk.payments.Payment;
+import io.sphere.sdk.payments.commands.PaymentUpdateCommand;
+import io.sphere.sdk.payments.commands.updateactions.AddInterfaceInteraction;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class InteractionArchiveTest extends AbstractCTPStripeTest {
+
+    @Test
+    public void testRehydrateMergesArchivedInteractionsByPosition() throws Exception {
+        final InteractionArchive archive = new InteractionArchive(client, typeKeyToId);
+        final Payment created = createAnonymousPayment("tok_" + UUID.randomUUID());
+        // Archived while the payment had only the token interaction
+        assertTrue(archive.append(created.getId(), archived("STRIPE_TEMPORARY_EXCEPTION", "idempotencyKey", "key-1", 1)).get());
+        assertTrue(archive.append(created.getId(), archived("STRIPE_TEMPORARY_EXCEPTION", "idempotencyKey", "key-2", 1)).get());
+        final Payment withDispute = client.execute(PaymentUpdateCommand.of(created, AddInterfaceInteraction.ofTypeKeyAndObjects(
+            "STRIPE_DISPUTE_UPDATE", Collections.singletonMap("eventId", "evt_1")))).toCompletableFuture().get();
+        assertTrue(archive.append(created.getId(), archived("STRIPE_DISPUTE_UPDATE", "eventId", "evt_2", 2)).get());
+
+        final List<ArchivedInteraction> history = archive.rehydrate(withDispute).get();
+        assertEquals(5, history.size());
+        assertEquals("STRIPE_TOKEN_RECEIVED", history.get(0).getTypeKey());
+        assertEquals(0, history.get(0).getPosition());
+        assertEquals("key-1", history.get(1).getFields().get("idempotencyKey"));
+        assertEquals("key-2", history.get(2).getFields().get("idempotencyKey"));
+        assertEquals("evt_1", history.get(3).getFields().get("eventId"));
+        assertEquals(1, history.get(3).getPosition());
+        assertEquals("evt_2", history.get(4).getFields().get("eventId"));
+    }
+
+    @Test
+    public void testRehydrateOfOlderPaymentKeepsLaterArchivedInteractionsAtTheEnd() throws Exception {
+        final InteractionArchive archive = new InteractionArchive(client, typeKeyToId);
+        final Payment created = createAnonymousPayment("tok_" + UUID.randomUUID());
+        archive.append(created.getId(), archived("STRIPE_DISPUTE_UPDATE", "eventId", "evt_1", 3)).get();
+        archive.append(created.getId(), archived("STRIPE_DISPUTE_UPDATE", "eventId", "evt_2", 5)).get();
+
+        final List<String> history = archive.rehydrate(created).get().stream()
+            .map(interaction -> interaction.getFields().getOrDefault("eventId", interaction.getTypeKey()))
+            .collect(Collectors.toList());
+        assertEquals(Arrays.asList("STRIPE_TOKEN_RECEIVED", "evt_1", "evt_2"), history);
+    }
+
+    @Test
+    public void testRehydrateWithoutArchive() throws Exception {
+        final Payment created = createAnonymousPayment("tok_" + UUID.randomUUID());
+        final List<ArchivedInteraction> history = new InteractionArchive(client, typeKeyToId).rehydrate(created).get();
+        assertEquals(1, history.size());
+        assertEquals("STRIPE_TOKEN_RECEIVED", history.get(0).getTypeKey());
+    }
+
+    @Test
+    public void testInteractionIsArchivedOnce() throws Exception {
+        final InteractionArchive archive = new InteractionArchive(client, typeKeyToId);
+        final Payment created = createAnonymousPayment("tok_" + UUID.randomUUID());
+        assertTrue(archive.append(created.getId(), archived("STRIPE_DISPUTE_UPDATE", "eventId", "evt_1", 1)).get());
+        // The retry of an update that failed with a version conflict archives the same event again
+        assertFalse(archive.append(created.getId(), archived("STRIPE_DISPUTE_UPDATE", "eventId", "evt_1", 2)).get());
+        // Same id of another type
+        assertTrue(archive.append(created.getId(), archived("STRIPE_TEMPORARY_EXCEPTION", "eventId", "evt_1", 1)).get());
+
+        assertEquals(3, archive.rehydrate(created).get().size());
+    }
+
+    @Test
+    public void testCompactionCountsArchivedInteractionsOnce() throws Exception {
+        final InteractionCompaction compaction = new InteractionCompaction(new InteractionArchive(client, typeKeyToId), 1);
+        final Payment created = createAnonymousPayment("tok_" + UUID.randomUUID());
+        compaction.disputeUpdateInteraction(created, "evt_1", "{}").get();
+        compaction.disputeUpdateInteraction(created, "evt_1", "{}").get();
+
+        assertEquals(1L, (long) compaction.getStatistics().get("interactions_archived"));
+        assertEquals(2, compaction.getArchive().rehydrate(created).get().size());
+    }
+
+    private static ArchivedInteraction archived(String typeKey, String idField, String id, int position) {
+        final Map<String, String> fields = new HashMap<>();
+        fields.put(idField, id);
+        return new ArchivedInteraction(typeKey, fields, position);
+    }
+}
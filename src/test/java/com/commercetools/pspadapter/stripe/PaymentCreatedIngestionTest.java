@@ -0,0 +1,69 @@
+package com.commercetools.pspadapter.stripe;
+
+import com.commercetools.pspadapter.stripe.tenants.Tenant;
+import io.sphere.sdk.payments.Payment;
+import io.sphere.sdk.payments.queries.PaymentByIdGet;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class PaymentCreatedIngestionTest extends AbstractCTPStripeTest {
+    private static final String TOKEN = "test-token";
+
+    @Test
+    public void testPushedPaymentIsCharged() throws Exception {
+        final Tenant tenant = Tenant.of(client);
+        final PaymentCreatedIngestion ingestion = new PaymentCreatedIngestion(TOKEN, Collections.singletonMap(tenant.getKey(),
+            new PaymentCreatedSubscriber(new CTPMessagePull(client), MessageCursors.ofEnvironment(client),
+                new PaymentCreationListener(tenant), Executors.newSingleThreadScheduledExecutor(), 10, 60000)), 10);
+        final Payment payment = createPayment();
+        final String push = StandInPublisher.envelope(payment.getId());
+
+        assertEquals(401, ingestion.accept(Optional.of(tenant), Optional.of("Bearer wrong"), Optional.empty(), push));
+        // Not subscribed yet, so there is no demand
+        assertEquals(503, ingestion.accept(Optional.of(tenant), Optional.of("Bearer " + TOKEN), Optional.empty(), push));
+
+        ingestion.start();
+        assertEquals(204, ingestion.accept(Optional.of(tenant), Optional.empty(), Optional.of(TOKEN), push));
+        // A redelivery is acknowledged without processing the payment again
+        assertEquals(204, ingestion.accept(Optional.of(tenant), Optional.empty(), Optional.of(TOKEN), push));
+
+        final String chargedTypeId = typeKeyToId.getId("STRIPE_CHARGED").get();
+        boolean charged = false;
+        for (int i = 0; i < 60 && !charged; i++) {
+            Thread.sleep(500);
+            charged = client.execute(PaymentByIdGet.of(payment.getId())).toCompletableFuture().get()
+                .getInterfaceInteractions().stream()
+                .anyMatch(interaction -> interaction.getType().getId().equals(chargedTypeId));
+        }
+        assertTrue(charged);
+    }
+
+    @Test
+    public void testOtherMessagesAreIgnored() {
+        assertEquals(Optional.empty(), PaymentCreatedIngestion.paymentIdOf("{\"type\":\"PaymentStatusStateTransition\"," +
+            "\"resource\":{\"typeId\":\"payment\",\"id\":\"b7c7a4f1-6d8c-4a2e-9b1a-0a3c1f5e2d11\"}}"));
+        assertEquals(Optional.of("b7c7a4f1-6d8c-4a2e-9b1a-0a3c1f5e2d11"),
+            PaymentCreatedIngestion.paymentIdOf(StandInPublisher.message("b7c7a4f1-6d8c-4a2e-9b1a-0a3c1f5e2d11")));
+    }
+
+    /**
+     * Stands in for the CTP subscription and the push bridge of the message queue.
+     */
+    static class StandInPublisher {
+        static String message(String paymentId) {
+            return "{\"type\":\"PaymentCreated\",\"resource\":{\"typeId\":\"payment\",\"id\":\"" + paymentId + "\"}}";
+        }
+
+        static String envelope(String paymentId) {
+            final String data = Base64.getEncoder().encodeToString(message(paymentId).getBytes(StandardCharsets.UTF_8));
+            return "{\"message\":{\"data\":\"" + data + "\",\"messageId\":\"1\"},\"subscription\":\"payment-created\"}";
+        }
+    }
+}
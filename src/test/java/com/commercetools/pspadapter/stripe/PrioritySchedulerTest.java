@@ -0,0 +1,173 @@
+package com.commercetools.pspadapter.stripe;
+
+import com.commercetools.pspadapter.stripe.util.PriorityScheduler;
+import com.commercetools.pspadapter.stripe.util.RateLimiter;
+import com.commercetools.pspadapter.stripe.util.WorkClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PrioritySchedulerTest {
+    private static final long NO_AGING = 3600000;
+
+    // The tasks handed to the executor, they run when the test says so
+    private final List<Runnable> started = Collections.synchronizedList(new ArrayList<>());
+    // The names of the tasks in the order they ran
+    private final List<String> ran = Collections.synchronizedList(new ArrayList<>());
+
+    @Test
+    public void testRunsAtMostSlotsTasks() {
+        final PriorityScheduler scheduler = new PriorityScheduler(started::add, null, 2, reserved(0, 0, 0, 0), NO_AGING);
+        for (int i = 0; i < 3; i++) scheduler.execute(WorkClass.BATCH, task("batch" + i));
+
+        assertEquals(2, started.size());
+        assertEquals(2L, (long) scheduler.getStatistics().get("stripe_queue_batch_running"));
+        assertEquals(1L, (long) scheduler.getStatistics().get("stripe_queue_batch_waiting"));
+
+        // A finished task frees its slot for the next one
+        runNext();
+        assertEquals(2, started.size());
+        runNext();
+        runNext();
+        assertTrue(started.isEmpty());
+        assertEquals(Arrays.asList("batch0", "batch1", "batch2"), ran);
+        assertEquals(0L, (long) scheduler.getStatistics().get("stripe_queue_batch_running"));
+        assertEquals(0L, (long) scheduler.getStatistics().get("stripe_queue_batch_waiting"));
+        assertEquals(3L, (long) scheduler.getStatistics().get("stripe_queue_batch_dispatched"));
+    }
+
+    @Test
+    public void testFailingTaskFreesItsSlot() {
+        final PriorityScheduler scheduler = new PriorityScheduler(started::add, null, 1, reserved(0, 0, 0, 0), NO_AGING);
+        scheduler.execute(WorkClass.BATCH, () -> {
+            throw new IllegalStateException("Failed");
+        });
+        scheduler.execute(WorkClass.BATCH, task("batch"));
+        try {
+            runNext();
+            fail("The failure is passed to the executor");
+        } catch (IllegalStateException e) {
+            assertEquals(1, started.size());
+        }
+        runNext();
+        assertEquals(Collections.singletonList("batch"), ran);
+        assertEquals(0L, (long) scheduler.getStatistics().get("stripe_queue_batch_running"));
+    }
+
+    @Test
+    public void testReservedSlotsAreKeptFreeForTheirClass() {
+        final PriorityScheduler scheduler = new PriorityScheduler(started::add, null, 4, reserved(2, 0, 0, 0), NO_AGING);
+        for (int i = 0; i < 5; i++) scheduler.execute(WorkClass.BATCH, task("batch" + i));
+        // Two of the four slots are held for checkouts
+        assertEquals(2, started.size());
+
+        for (int i = 0; i < 3; i++) scheduler.execute(WorkClass.INTERACTIVE, task("interactive" + i));
+        assertEquals(4, started.size());
+        assertEquals(2L, (long) scheduler.getStatistics().get("stripe_queue_interactive_running"));
+        assertEquals(1L, (long) scheduler.getStatistics().get("stripe_queue_interactive_waiting"));
+
+        // The slot of a finished batch task goes to the waiting checkout, which has the better priority
+        runNext();
+        assertEquals(3L, (long) scheduler.getStatistics().get("stripe_queue_interactive_running"));
+        assertEquals(3L, (long) scheduler.getStatistics().get("stripe_queue_batch_waiting"));
+    }
+
+    @Test
+    public void testReservationOfOtherClassesAppliesOnlyToUnusedSlots() {
+        final PriorityScheduler scheduler = new PriorityScheduler(started::add, null, 3, reserved(1, 0, 1, 0), NO_AGING);
+        scheduler.execute(WorkClass.INTERACTIVE, task("interactive"));
+        scheduler.execute(WorkClass.WEBHOOK, task("webhook"));
+        // Both reservations are in use, so batch tasks may take the last slot
+        scheduler.execute(WorkClass.BATCH, task("batch0"));
+        scheduler.execute(WorkClass.BATCH, task("batch1"));
+        assertEquals(3, started.size());
+        assertEquals(1L, (long) scheduler.getStatistics().get("stripe_queue_batch_running"));
+        assertEquals(1L, (long) scheduler.getStatistics().get("stripe_queue_batch_waiting"));
+    }
+
+    @Test
+    public void testBetterPriorityGoesFirst() {
+        final PriorityScheduler scheduler = new PriorityScheduler(started::add, null, 1, reserved(0, 0, 0, 0), NO_AGING);
+        scheduler.execute(WorkClass.BATCH, task("running"));
+        scheduler.execute(WorkClass.BATCH, task("batch"));
+        scheduler.execute(WorkClass.WEBHOOK, task("webhook"));
+        scheduler.execute(WorkClass.RETRY, task("retry"));
+        scheduler.execute(WorkClass.INTERACTIVE, task("interactive"));
+        for (int i = 0; i < 5; i++) runNext();
+
+        assertEquals(Arrays.asList("running", "interactive", "retry", "webhook", "batch"), ran);
+    }
+
+    @Test
+    public void testTenantsTakeTurnsWithinAClass() {
+        final PriorityScheduler scheduler = new PriorityScheduler(started::add, null, 1, reserved(0, 0, 0, 0), NO_AGING);
+        scheduler.execute(WorkClass.BATCH, "a", null, task("running"));
+        for (int i = 0; i < 3; i++) scheduler.execute(WorkClass.BATCH, "a", null, task("a" + i));
+        scheduler.execute(WorkClass.BATCH, "b", null, task("b0"));
+        // The checkout of another tenant still goes before the backlog of batch tasks
+        scheduler.execute(WorkClass.INTERACTIVE, "b", null, task("interactive"));
+        for (int i = 0; i < 6; i++) runNext();
+
+        assertEquals(Arrays.asList("running", "interactive", "a0", "b0", "a1", "a2"), ran);
+        assertEquals(0L, (long) scheduler.getStatistics().get("stripe_queue_batch_waiting"));
+    }
+
+    @Test
+    public void testWaitingTasksMoveUpByAging() throws InterruptedException {
+        final PriorityScheduler scheduler = new PriorityScheduler(started::add, null, 1, reserved(0, 0, 0, 0), 10);
+        scheduler.execute(WorkClass.BATCH, task("running"));
+        scheduler.execute(WorkClass.BATCH, task("batch"));
+        // Waited long enough to move up more than the three classes to INTERACTIVE
+        Thread.sleep(100);
+        scheduler.execute(WorkClass.INTERACTIVE, task("interactive"));
+        for (int i = 0; i < 3; i++) runNext();
+
+        assertEquals(Arrays.asList("running", "batch", "interactive"), ran);
+        assertTrue(scheduler.getStatistics().get("stripe_queue_batch_wait_ms_max") >= 100);
+    }
+
+    @Test
+    public void testRateLimitDelaysDispatch() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(3);
+        final List<Long> startedAtNanos = Collections.synchronizedList(new ArrayList<>());
+        // 20 permits per second without burst, so a permit every 50ms
+        final PriorityScheduler scheduler = new PriorityScheduler(run -> {
+            startedAtNanos.add(System.nanoTime());
+            run.run();
+        }, new RateLimiter(20, 1), 0, reserved(0, 0, 0, 0), NO_AGING);
+        for (int i = 0; i < 3; i++) scheduler.execute(WorkClass.INTERACTIVE, done::countDown);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(3, startedAtNanos.size());
+        // The delays are lower bounds, the timer may run the tasks later but never earlier
+        assertTrue(startedAtNanos.get(2) - startedAtNanos.get(0) >= TimeUnit.MILLISECONDS.toNanos(95));
+        assertEquals(3L, (long) scheduler.getStatistics().get("stripe_queue_interactive_dispatched"));
+    }
+
+    @Test
+    public void testWithoutSlotsOnlyTheRateIsLimited() {
+        final PriorityScheduler scheduler = new PriorityScheduler(started::add, null, 0, reserved(0, 0, 0, 0), NO_AGING);
+        for (int i = 0; i < 100; i++) scheduler.execute(WorkClass.BATCH, task("batch" + i));
+        assertEquals(100, started.size());
+        assertEquals(100L, (long) scheduler.getStatistics().get("stripe_queue_batch_running"));
+    }
+
+    private Runnable task(String name) {
+        return () -> ran.add(name);
+    }
+
+    private void runNext() {
+        started.remove(0).run();
+    }
+
+    private static int[] reserved(int interactive, int retry, int webhook, int batch) {
+        return new int[] { interactive, retry, webhook, batch };
+    }
+}
@@ -0,0 +1,98 @@
+package com.commercetools.pspadapter.stripe;
+
+import com.commercetools.pspadapter.stripe.util.SingleFlight;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SingleFlightTest {
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @Test
+    public void testConcurrentReadsShareOneLoad() throws Exception {
+        final SingleFlight<String, String> flight = new SingleFlight<>("test", 60000);
+        final CompletableFuture<String> load = new CompletableFuture<>();
+        final CompletableFuture<String> first = flight.get("key", () -> count(load));
+        final CompletableFuture<String> second = flight.get("key", () -> count(new CompletableFuture<>()));
+        assertSame(first, second);
+        assertFalse(first.isDone());
+
+        load.complete("value");
+        assertEquals("value", second.get());
+        assertEquals(1, loads.get());
+        assertEquals(1L, (long) flight.getStatistics().get("test_single_flight_loads"));
+        assertEquals(1L, (long) flight.getStatistics().get("test_single_flight_merges"));
+        assertEquals(0L, (long) flight.getStatistics().get("test_single_flight_hits"));
+    }
+
+    @Test
+    public void testKeysLoadSeparately() throws Exception {
+        final SingleFlight<String, String> flight = new SingleFlight<>("test", 60000);
+        assertEquals("a", flight.get("a", () -> count(CompletableFuture.completedFuture("a"))).get());
+        assertEquals("b", flight.get("b", () -> count(CompletableFuture.completedFuture("b"))).get());
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void testResultIsReusedWithinTtl() throws Exception {
+        final SingleFlight<String, String> flight = new SingleFlight<>("test", 60000);
+        assertEquals("value", flight.get("key", () -> count(CompletableFuture.completedFuture("value"))).get());
+        assertEquals("value", flight.get("key", () -> count(CompletableFuture.completedFuture("other"))).get());
+        assertEquals(1, loads.get());
+        assertEquals(1L, (long) flight.getStatistics().get("test_single_flight_hits"));
+    }
+
+    @Test
+    public void testResultExpiresAfterTtl() throws Exception {
+        final SingleFlight<String, String> flight = new SingleFlight<>("test", 20);
+        assertEquals("value", flight.get("key", () -> count(CompletableFuture.completedFuture("value"))).get());
+        Thread.sleep(40);
+        assertEquals("other", flight.get("key", () -> count(CompletableFuture.completedFuture("other"))).get());
+        assertEquals(2, loads.get());
+        assertEquals(0L, (long) flight.getStatistics().get("test_single_flight_hits"));
+    }
+
+    @Test
+    public void testFailureIsSharedButNotKept() throws Exception {
+        final SingleFlight<String, String> flight = new SingleFlight<>("test", 60000);
+        final CompletableFuture<String> load = new CompletableFuture<>();
+        final CompletableFuture<String> first = flight.get("key", () -> count(load));
+        final CompletableFuture<String> merged = flight.get("key", () -> count(new CompletableFuture<>()));
+        load.completeExceptionally(new IllegalStateException("Failed"));
+        assertFailed(first);
+        assertFailed(merged);
+
+        // The next read loads again
+        assertEquals("value", flight.get("key", () -> count(CompletableFuture.completedFuture("value"))).get());
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void testLoadThatThrowsIsNotKept() throws Exception {
+        final SingleFlight<String, String> flight = new SingleFlight<>("test", 60000);
+        assertFailed(flight.get("key", () -> {
+            loads.incrementAndGet();
+            throw new IllegalStateException("Failed");
+        }));
+        assertEquals("value", flight.get("key", () -> count(CompletableFuture.completedFuture("value"))).get());
+        assertEquals(2, loads.get());
+    }
+
+    private <V> CompletableFuture<V> count(CompletableFuture<V> load) {
+        loads.incrementAndGet();
+        return load;
+    }
+
+    private static void assertFailed(CompletableFuture<?> future) throws InterruptedException {
+        try {
+            future.get();
+            fail("The read has to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.commercetools.pspadapter.stripe;
+
+import com.commercetools.pspadapter.stripe.util.PriorityScheduler;
+import com.commercetools.pspadapter.stripe.util.StripeApi;
+import com.commercetools.pspadapter.stripe.util.ThreadPools;
+import com.stripe.exception.APIConnectionException;
+import com.stripe.net.RequestOptions;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares platform and virtual threads for blocking Stripe calls. The Stripe API is simulated by a call that blocks
+ * for a fixed latency, so the benchmark runs without network.
+ *
+ * Runs only with the benchmark profile (mvn test -Pbenchmark) and writes the durations to the properties file named
+ * by the benchmark.results system property.
+ */
+public class ThreadModeBenchmark {
+    private static final int CALLS = 2000;
+    private static final int POOL_SIZE = 20;
+    private static final long LATENCY_MILLIS = 20;
+
+    @Test
+    public void platformThreads() throws Exception {
+        report("platform_threads_millis", run(false));
+    }
+
+    @Test
+    public void virtualThreads() throws Exception {
+        Assume.assumeTrue(ThreadPools.virtualThreadsAvailable());
+        report("virtual_threads_millis", run(true));
+    }
+
+    private static synchronized void report(String name, long millis) throws IOException {
+        final Path path = Paths.get(System.getProperty("benchmark.results", "target/benchmark-results.properties"));
+        final Properties results = new Properties();
+        if (Files.exists(path)) {
+            try (InputStream in = Files.newInputStream(path)) {
+                results.load(in);
+            }
+        } else if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        results.setProperty("calls", String.valueOf(CALLS));
+        results.setProperty("pool_size", String.valueOf(POOL_SIZE));
+        results.setProperty("latency_millis", String.valueOf(LATENCY_MILLIS));
+        results.setProperty(name, String.valueOf(millis));
+        try (OutputStream out = Files.newOutputStream(path)) {
+            results.store(out, "Blocking Stripe calls by thread mode");
+        }
+    }
+
+    private long run(boolean virtual) throws Exception {
+        final ExecutorService executor = ThreadPools.newPool(POOL_SIZE, "benchmark", virtual);
+        // Virtual threads are not limited by the pool size
+        final PriorityScheduler scheduler = PriorityScheduler.ofEnvironment(executor, null, virtual ? 0 : POOL_SIZE);
+        final StripeApi stripeApi = new StripeApi(null, scheduler, 60000, Collections.emptyMap());
+        try {
+            final long start = System.nanoTime();
+            final List<CompletableFuture<Integer>> calls = new ArrayList<>();
+            for (int i = 0; i < CALLS; i++) {
+                calls.add(stripeApi.call("benchmark", RequestOptions.builder().build(), options -> {
+                    try {
+                        Thread.sleep(LATENCY_MILLIS);
+                    } catch (InterruptedException e) {
+                        throw new APIConnectionException("Interrupted");
+                    }
+                    return 1;
+                }));
+            }
+            int done = 0;
+            for (CompletableFuture<Integer> call : calls) {
+                done += call.get();
+            }
+            assertEquals(CALLS, done);
+            return (System.nanoTime() - start) / 1000000;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.commercetools.pspadapter.stripe;
+
+import com.commercetools.pspadapter.stripe.replay.TrafficRecord;
+import com.commercetools.pspadapter.stripe.replay.TrafficRecorder;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+public class TrafficRecorderTest {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Test
+    public void testRedactsDisputeEvidence() throws Exception {
+        final JsonNode evidence = recordWebhook("{\"data\":{\"object\":{\"id\":\"dp_1\",\"evidence\":{" +
+            "\"customer_email_address\":\"jane@example.com\",\"customer_name\":\"Jane Doe\"," +
+            "\"billing_address\":\"Street 1, Berlin\",\"shipping_address\":\"Street 2, Berlin\"," +
+            "\"customer_purchase_ip\":\"192.0.2.1\",\"product_description\":\"Shoes\"}}}}")
+            .get("data").get("object").get("evidence");
+
+        assertEquals("redacted", evidence.get("customer_email_address").asText());
+        assertEquals("redacted", evidence.get("customer_name").asText());
+        assertEquals("redacted", evidence.get("billing_address").asText());
+        assertEquals("redacted", evidence.get("shipping_address").asText());
+        assertEquals("redacted", evidence.get("customer_purchase_ip").asText());
+        assertEquals("Shoes", evidence.get("product_description").asText());
+    }
+
+    @Test
+    public void testRedactsCardAddressAndKeepsStructure() throws Exception {
+        final JsonNode card = recordWebhook("{\"source\":{\"object\":\"card\",\"brand\":\"Visa\",\"last4\":\"4242\"," +
+            "\"exp_month\":12,\"address_line1\":\"Street 1\",\"address_line2\":\"Floor 2\",\"address_city\":\"Berlin\"," +
+            "\"address_state\":\"BE\",\"address_zip\":\"10115\",\"address_country\":\"DE\"}}")
+            .get("source");
+
+        assertEquals("redacted", card.get("last4").asText());
+        assertEquals(0, card.get("exp_month").asInt());
+        assertEquals("redacted", card.get("address_line1").asText());
+        assertEquals("redacted", card.get("address_line2").asText());
+        assertEquals("redacted", card.get("address_city").asText());
+        assertEquals("redacted", card.get("address_state").asText());
+        assertEquals("redacted", card.get("address_zip").asText());
+        assertEquals("DE", card.get("address_country").asText());
+        assertEquals("Visa", card.get("brand").asText());
+    }
+
+    @Test
+    public void testRedactsCtpPersonalDataInNestedObjects() throws Exception {
+        final JsonNode customer = recordWebhook("{\"customer\":{\"email\":\"jane@example.com\",\"dateOfBirth\":\"1980-01-01\"," +
+            "\"addresses\":[{\"firstName\":\"Jane\",\"streetName\":\"Street\",\"country\":\"DE\"}]}}")
+            .get("customer");
+
+        assertEquals("redacted", customer.get("email").asText());
+        assertEquals("redacted", customer.get("dateOfBirth").asText());
+        assertEquals("redacted", customer.get("addresses").get(0).get("firstName").asText());
+        assertEquals("redacted", customer.get("addresses").get(0).get("streetName").asText());
+        assertEquals("DE", customer.get("addresses").get(0).get("country").asText());
+    }
+
+    @Test
+    public void testKeepsTextThatIsNoJson() throws Exception {
+        final StringWriter writer = new StringWriter();
+        new TrafficRecorder(writer).recordWebhook("shop", "not json");
+        assertEquals("not json", MAPPER.readValue(writer.toString(), TrafficRecord.class).getBody());
+    }
+
+    private static JsonNode recordWebhook(String body) throws Exception {
+        final StringWriter writer = new StringWriter();
+        new TrafficRecorder(writer).recordWebhook("shop", body);
+        final TrafficRecord record = MAPPER.readValue(writer.toString(), TrafficRecord.class);
+        assertEquals(TrafficRecord.WEBHOOK, record.getKind());
+        return MAPPER.readTree(record.getBody());
+    }
+}
@@ -0,0 +1,166 @@
+package com.commercetools.pspadapter.stripe;
+
+import com.commercetools.pspadapter.stripe.journal.FsyncPolicy;
+import com.commercetools.pspadapter.stripe.journal.JournalEntry;
+import com.commercetools.pspadapter.stripe.journal.WebhookJournal;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class WebhookJournalTest {
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("webhook-journal");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) Files.delete(path);
+        }
+    }
+
+    @Test
+    public void testRecoversEventsThatWereNotCompleted() throws Exception {
+        final WebhookJournal journal = open();
+        final long first = journal.append("shop", "{\"id\":\"evt_1\"}").get();
+        final long second = journal.append("shop", "{\"id\":\"evt_2\"}").get();
+        final long third = journal.append("other", "line 1\nline 2").get();
+        journal.complete(second).get();
+        journal.close();
+
+        final WebhookJournal reopened = open();
+        final List<JournalEntry> recovered = reopened.getRecovered();
+        assertEquals(2, recovered.size());
+        assertEquals(first, recovered.get(0).getSequence());
+        assertEquals("shop", recovered.get(0).getTenantKey());
+        assertEquals("{\"id\":\"evt_1\"}", recovered.get(0).getBody());
+        assertEquals(third, recovered.get(1).getSequence());
+        assertEquals("other", recovered.get(1).getTenantKey());
+        assertEquals("line 1\nline 2", recovered.get(1).getBody());
+        // Sequences continue after the recovered ones
+        assertTrue(reopened.append("shop", "{\"id\":\"evt_4\"}").get() > third);
+        reopened.close();
+    }
+
+    @Test
+    public void testIgnoresTornRecordAtTheEnd() throws Exception {
+        final WebhookJournal journal = open();
+        final long first = journal.append("shop", "{\"id\":\"evt_1\"}").get();
+        journal.close();
+
+        // A crash in the middle of a write leaves the size of a record without all of its bytes
+        final ByteBuffer torn = ByteBuffer.allocate(4 + 6).putInt(100).put(new byte[6]);
+        Files.write(lastSegment(), torn.array(), StandardOpenOption.APPEND);
+
+        final WebhookJournal reopened = open();
+        assertEquals(1, reopened.getRecovered().size());
+        assertEquals(first, reopened.getRecovered().get(0).getSequence());
+        reopened.close();
+    }
+
+    @Test
+    public void testStopsAtRecordWithWrongChecksum() throws Exception {
+        final WebhookJournal journal = open();
+        journal.append("shop", "{\"id\":\"evt_1\"}").get();
+        journal.append("shop", "{\"id\":\"evt_2\"}").get();
+        journal.close();
+
+        // Flip a byte in the payload of the second record
+        final Path segment = lastSegment();
+        final byte[] bytes = Files.readAllBytes(segment);
+        final int offset = new String(bytes, StandardCharsets.ISO_8859_1).indexOf("evt_2");
+        bytes[offset] ^= 1;
+        Files.write(segment, bytes);
+
+        final WebhookJournal reopened = open();
+        assertEquals(1, reopened.getRecovered().size());
+        assertEquals("{\"id\":\"evt_1\"}", reopened.getRecovered().get(0).getBody());
+        reopened.close();
+    }
+
+    @Test
+    public void testCompactionCopiesPendingEventsAndDeletesOldSegments() throws Exception {
+        // Every batch starts a new segment, at most two segments are kept
+        final WebhookJournal journal = WebhookJournal.open(directory, FsyncPolicy.ALWAYS, 0, 1, 2);
+        final long pending = journal.append("shop", "{\"id\":\"evt_pending\"}").get();
+        for (int i = 0; i < 20; i++) {
+            final long sequence = journal.append("shop", "{\"id\":\"evt_" + i + "\"}").get();
+            journal.complete(sequence).get();
+        }
+        assertTrue(segments().size() <= 2);
+        journal.close();
+
+        final WebhookJournal reopened = open();
+        assertEquals(1, reopened.getRecovered().size());
+        assertEquals(pending, reopened.getRecovered().get(0).getSequence());
+        assertEquals("{\"id\":\"evt_pending\"}", reopened.getRecovered().get(0).getBody());
+        reopened.close();
+    }
+
+    @Test
+    public void testConcurrentAppendsShareFsyncs() throws Exception {
+        final WebhookJournal journal = open();
+        final List<CompletableFuture<Long>> appends = new ArrayList<>();
+        for (int i = 0; i < 200; i++) appends.add(journal.append("shop", "{\"id\":\"evt_" + i + "\"}"));
+        final List<Long> sequences = new ArrayList<>();
+        for (CompletableFuture<Long> append : appends) sequences.add(append.get());
+
+        assertEquals(200, sequences.stream().distinct().count());
+        assertEquals(200L, (long) journal.getStatistics().get("journal_appends"));
+        // The appends that wait while the writer forces are written with the next fsync
+        assertTrue(journal.getStatistics().get("journal_fsyncs") < 200L);
+        journal.close();
+    }
+
+    @Test
+    public void testIntervalPolicyForcesWithoutFurtherWrites() throws Exception {
+        final WebhookJournal journal = WebhookJournal.open(directory, FsyncPolicy.INTERVAL, 50, 64L * 1024 * 1024, 4);
+        journal.append("shop", "{\"id\":\"evt_1\"}").get();
+        final long fsyncs = journal.getStatistics().get("journal_fsyncs");
+        journal.append("shop", "{\"id\":\"evt_2\"}").get();
+
+        // The second append is within the interval of the first fsync, the writer forces it once the interval is over
+        final long waitUntil = System.currentTimeMillis() + 5000;
+        while (journal.getStatistics().get("journal_fsyncs") <= fsyncs && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(10);
+        }
+        assertTrue(journal.getStatistics().get("journal_fsyncs") > fsyncs);
+        journal.close();
+    }
+
+    private WebhookJournal open() throws IOException {
+        return WebhookJournal.open(directory, FsyncPolicy.ALWAYS, 0, 64L * 1024 * 1024, 4);
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+
+    private Path lastSegment() throws IOException {
+        // Every open starts an empty segment, the records are in the one before
+        final List<Path> segments = segments().stream()
+            .filter(path -> path.toFile().length() > 0)
+            .collect(Collectors.toList());
+        return segments.get(segments.size() - 1);
+    }
+}